@@ -2,6 +2,9 @@ package alg;
 
 import calc.Backward;
 import calc.Forward;
+import math.DenseTensor;
+import math.Precision;
+import math.Simd;
 
 /**
  * Adam最適化アルゴリズム
@@ -107,4 +110,33 @@ public class Adam {
             param[i] -= learningRate * mHat / (Math.sqrt(vHat) + epsilon);
         }
     }
+
+    /**
+     * 1ステップ分のAdam更新（層のパラメータ用、デフォルトのハイパーパラメータ）
+     * @param param パラメータ（更新される）
+     * @param grad 勾配
+     * @param m 1次モーメント（更新される）
+     * @param v 2次モーメント（更新される）
+     * @param learningRate 学習率
+     * @param t 更新回数（1始まり）
+     */
+    public static void step(DenseTensor param, DenseTensor grad, DenseTensor m, DenseTensor v,
+                            double learningRate, int t) {
+        double beta1 = 0.9, beta2 = 0.999, epsilon = 1e-8;
+        double bc1 = 1 - Math.pow(beta1, t);
+        double bc2 = 1 - Math.pow(beta2, t);
+
+        if (param.precision() == Precision.FLOAT32) {
+            // FLOAT32のパラメータはモーメントもfloatで保持する
+            grad = grad.toPrecision(Precision.FLOAT32);
+            Simd.adam(param.floatData(), param.offset(), grad.floatData(), grad.offset(),
+                    m.floatData(), m.offset(), v.floatData(), v.offset(), param.size(),
+                    (float) learningRate, (float) beta1, (float) beta2, (float) epsilon,
+                    (float) bc1, (float) bc2);
+            return;
+        }
+        Simd.adam(param.data(), param.offset(), grad.data(), grad.offset(),
+                m.data(), m.offset(), v.data(), v.offset(), param.size(),
+                learningRate, beta1, beta2, epsilon, bc1, bc2);
+    }
 }
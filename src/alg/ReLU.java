@@ -1,5 +1,9 @@
 package alg;
 
+import math.DenseTensor;
+import math.Precision;
+import math.Simd;
+
 public class ReLU {
 
     /**
@@ -18,12 +22,26 @@ public class ReLU {
      */
     public static double[] apply(double[] x) {
         double[] result = new double[x.length];
-        for (int i = 0; i < x.length; i++) {
-            result[i] = apply(x[i]);
-        }
+        applyInto(x, result);
         return result;
     }
 
+    /**
+     * ReLUの結果を出力先に書き込む（dstにxを渡せばその場で適用）
+     * @param x 入力ベクトル
+     * @param dst 書き込み先
+     */
+    public static void applyInto(double[] x, double[] dst) {
+        Simd.relu(x, 0, dst, 0, x.length);
+    }
+
+    /**
+     * ベクトルにその場でReLUを適用
+     */
+    public static void applyInPlace(double[] x) {
+        applyInto(x, x);
+    }
+
     /**
      * 2D配列の各要素にReLU関数を適用
      * @param x 入力2D配列
@@ -33,13 +51,17 @@ public class ReLU {
         int height = x.length;
         int width = x[0].length;
         double[][] result = new double[height][width];
+        applyInto(x, result);
+        return result;
+    }
 
-        for (int h = 0; h < height; h++) {
-            for (int w = 0; w < width; w++) {
-                result[h][w] = apply(x[h][w]);
-            }
+    /**
+     * 2D配列のReLUを出力先に書き込む（dstにxを渡せばその場で適用）
+     */
+    public static void applyInto(double[][] x, double[][] dst) {
+        for (int h = 0; h < x.length; h++) {
+            applyInto(x[h], dst[h]);
         }
-        return result;
     }
 
     /**
@@ -52,15 +74,95 @@ public class ReLU {
         int height = x[0].length;
         int width = x[0][0].length;
         double[][][] result = new double[channels][height][width];
+        applyInto(x, result);
+        return result;
+    }
 
-        for (int c = 0; c < channels; c++) {
-            for (int h = 0; h < height; h++) {
-                for (int w = 0; w < width; w++) {
-                    result[c][h][w] = apply(x[c][h][w]);
+    /**
+     * 3DテンソルのReLUを出力先に書き込む（dstにxを渡せばその場で適用）
+     */
+    public static void applyInto(double[][][] x, double[][][] dst) {
+        for (int c = 0; c < x.length; c++) {
+            applyInto(x[c], dst[c]);
+        }
+    }
+
+    /**
+     * 3Dテンソルにその場でReLUを適用
+     */
+    public static void applyInPlace(double[][][] x) {
+        applyInto(x, x);
+    }
+
+    /**
+     * テンソルの各要素にReLU関数を適用
+     * @param x 入力テンソル（任意の形状）
+     * @return ReLU適用後のテンソル
+     */
+    public static DenseTensor apply(DenseTensor x) {
+        DenseTensor result = DenseTensor.zeros(x.precision(), x.shape());
+        applyInto(x, result);
+        return result;
+    }
+
+    /**
+     * テンソルのReLUを出力先に書き込む（dstにxを渡せばその場で適用）
+     * @param x 入力テンソル
+     * @param dst 書き込み先（同じ形状・精度、連続メモリ）
+     */
+    public static void applyInto(DenseTensor x, DenseTensor dst) {
+        DenseTensor src = x.toPrecision(dst.precision()).contiguous();
+        int n = dst.size();
+        if (dst.precision() == Precision.FLOAT32) {
+            Simd.relu(src.floatData(), src.offset(), dst.floatData(), dst.offset(), n);
+        } else {
+            Simd.relu(src.data(), src.offset(), dst.data(), dst.offset(), n);
+        }
+    }
+
+    /**
+     * テンソルにその場でReLUを適用
+     */
+    public static void applyInPlace(DenseTensor x) {
+        applyInto(x, x);
+    }
+
+    /**
+     * ReLUの逆伝播（入力が正の位置だけ勾配を通す）
+     * @param gradOutput 出力に対する勾配
+     * @param x 入力テンソル（ReLU適用前の値、gradOutputと同じ形状）
+     * @return 入力に対する勾配
+     */
+    public static DenseTensor backward(DenseTensor gradOutput, DenseTensor x) {
+        DenseTensor result = gradOutput.copy();
+        backwardInPlace(result, x);
+        return result;
+    }
+
+    /**
+     * ReLUの逆伝播をその場で計算（x ≤ 0 の位置の勾配を0にする）
+     * xにはReLU適用前の値の代わりに適用後の値を渡してもよい（正負の判定が同じため）
+     * @param grad 出力に対する勾配（連続メモリ、上書きされる）
+     * @param x 入力テンソル（gradと同じ形状）
+     */
+    public static void backwardInPlace(DenseTensor grad, DenseTensor x) {
+        DenseTensor xc = x.contiguous();
+        int n = grad.size();
+        int gOff = grad.offset();
+        int xOff = xc.offset();
+        boolean gf = grad.precision() == Precision.FLOAT32;
+        boolean xf = xc.precision() == Precision.FLOAT32;
+
+        for (int i = 0; i < n; i++) {
+            double xi = xf ? xc.floatData()[xOff + i] : xc.data()[xOff + i];
+            if (xi <= 0) {
+                if (gf) {
+                    grad.floatData()[gOff + i] = 0;
+                } else {
+                    grad.data()[gOff + i] = 0;
                 }
             }
         }
-        return result;
     }
 
     /**
@@ -79,10 +181,17 @@ public class ReLU {
      */
     public static double[] derivative(double[] x) {
         double[] result = new double[x.length];
+        derivativeInto(x, result);
+        return result;
+    }
+
+    /**
+     * ReLUの導関数を出力先に書き込む（dstにxを渡してもよい）
+     */
+    public static void derivativeInto(double[] x, double[] dst) {
         for (int i = 0; i < x.length; i++) {
-            result[i] = derivative(x[i]);
+            dst[i] = derivative(x[i]);
         }
-        return result;
     }
 
     /**
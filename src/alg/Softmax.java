@@ -1,5 +1,7 @@
 package alg;
 
+import math.DenseTensor;
+
 public class Softmax {
 
     /**
@@ -8,6 +10,17 @@ public class Softmax {
      * @return Softmax適用後のベクトル（確率分布）
      */
     public static double[] apply(double[] x) {
+        double[] result = new double[x.length];
+        applyInto(x, result);
+        return result;
+    }
+
+    /**
+     * Softmaxの結果を出力先に書き込む（dstにxを渡せばその場で適用）
+     * @param x 入力ベクトル
+     * @param dst 書き込み先
+     */
+    public static void applyInto(double[] x, double[] dst) {
         // オーバーフロー対策として最大値を引く
         double max = Double.NEGATIVE_INFINITY;
         for (double val : x) {
@@ -15,20 +28,16 @@ public class Softmax {
         }
 
         // exp(x - max)を計算
-        double[] exp = new double[x.length];
         double sum = 0.0;
         for (int i = 0; i < x.length; i++) {
-            exp[i] = Math.exp(x[i] - max);
-            sum += exp[i];
+            dst[i] = Math.exp(x[i] - max);
+            sum += dst[i];
         }
 
         // 正規化
-        double[] result = new double[x.length];
         for (int i = 0; i < x.length; i++) {
-            result[i] = exp[i] / sum;
+            dst[i] = dst[i] / sum;
         }
-
-        return result;
     }
 
     /**
@@ -47,6 +56,45 @@ public class Softmax {
         return result;
     }
 
+    /**
+     * テンソルの最後の次元に沿ってSoftmaxを適用
+     * @param x 入力テンソル [..., numClasses]
+     * @return Softmax適用後のテンソル（入力と同じ形状・精度）
+     */
+    public static DenseTensor apply(DenseTensor x) {
+        DenseTensor result = DenseTensor.zeros(x.precision(), x.shape());
+        applyInto(x, result);
+        return result;
+    }
+
+    /**
+     * 最後の次元に沿ったSoftmaxを出力先に書き込む（dstにxを渡せばその場で適用）
+     * 指数計算はdoubleで行い、結果をdstの精度で格納する
+     * @param x 入力テンソル [..., numClasses]
+     * @param dst 書き込み先（同じ形状、連続メモリ）
+     */
+    public static void applyInto(DenseTensor x, DenseTensor dst) {
+        int numClasses = x.dim(x.rank() - 1);
+        DenseTensor src = x.contiguous();
+        int rows = src.size() / numClasses;
+
+        for (int r = 0; r < rows; r++) {
+            int base = r * numClasses;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < numClasses; i++) {
+                max = Math.max(max, src.getFlat(base + i));
+            }
+
+            double sum = 0.0;
+            for (int i = 0; i < numClasses; i++) {
+                sum += Math.exp(src.getFlat(base + i) - max);
+            }
+            for (int i = 0; i < numClasses; i++) {
+                dst.setFlat(base + i, Math.exp(src.getFlat(base + i) - max) / sum);
+            }
+        }
+    }
+
     /**
      * Softmaxとクロスエントロピー損失の組み合わせの勾配
      * （計算効率のため組み合わせて実装）
@@ -56,16 +104,24 @@ public class Softmax {
      */
     public static double[] gradientWithCrossEntropy(double[] softmaxOutput, int targetClass) {
         double[] gradient = new double[softmaxOutput.length];
+        gradientWithCrossEntropyInto(softmaxOutput, targetClass, gradient);
+        return gradient;
+    }
 
+    /**
+     * Softmax + クロスエントロピーの勾配を出力先に書き込む（dstにsoftmaxOutputを渡してもよい）
+     * @param softmaxOutput Softmaxの出力
+     * @param targetClass 正解クラスのインデックス
+     * @param dst 書き込み先
+     */
+    public static void gradientWithCrossEntropyInto(double[] softmaxOutput, int targetClass, double[] dst) {
         for (int i = 0; i < softmaxOutput.length; i++) {
             if (i == targetClass) {
-                gradient[i] = softmaxOutput[i] - 1.0;
+                dst[i] = softmaxOutput[i] - 1.0;
             } else {
-                gradient[i] = softmaxOutput[i];
+                dst[i] = softmaxOutput[i];
             }
         }
-
-        return gradient;
     }
 
     /**
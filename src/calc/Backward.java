@@ -36,7 +36,7 @@ public class Backward {
         gradB3 = new double[]{delta3};
 
         // 隠れ層2のデルタ
-        double[] delta2Temp = Matrix.dotMV(Matrix.t(fwd.getW3()), new double[]{delta3});
+        double[] delta2Temp = Matrix.dotMVT(fwd.getW3(), new double[]{delta3});
         double[] tanhDeriv2 = Tanh.derivative(fwd.getA2());
         double[] delta2 = Matrix.hadamard(delta2Temp, tanhDeriv2);
 
@@ -45,7 +45,7 @@ public class Backward {
         gradB2 = delta2;
 
         // 隠れ層1のデルタ
-        double[] delta1Temp = Matrix.dotMV(Matrix.t(fwd.getW2()), delta2);
+        double[] delta1Temp = Matrix.dotMVT(fwd.getW2(), delta2);
         double[] tanhDeriv1 = Tanh.derivative(fwd.getA1());
         double[] delta1 = Matrix.hadamard(delta1Temp, tanhDeriv1);
 
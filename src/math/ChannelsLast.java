@@ -0,0 +1,564 @@
+package math;
+
+import java.util.Arrays;
+
+/**
+ * NHWC（チャンネルが最も内側）配置の畳み込み・プーリングの演算
+ * 画素ごとにチャンネルが連続するため、積和の内側のループを出力チャンネル方向のaxpy/内積としてSIMD化できる
+ * カーネルは [kernelSize][kernelSize][inChannels][outChannels] に並べ替えたもの（{@link #packKernelsInto}）を使う
+ * ReLUは要素ごとの演算なので配置によらず{@code alg.ReLU}をそのまま使える
+ */
+public final class ChannelsLast {
+
+    private ChannelsLast() {
+    }
+
+    // ========== 配置の変換 ==========
+
+    /**
+     * NCHW → NHWC の変換を既存のテンソルに書き込む
+     * @param input 入力 [batch][channels][height][width]
+     * @param output 書き込み先 [batch][height][width][channels]（連続メモリ）
+     */
+    public static void toNHWCInto(DenseTensor input, DenseTensor output) {
+        DenseTensor src = input.toPrecision(output.precision()).contiguous();
+        int batch = src.dim(0);
+        int channels = src.dim(1);
+        int planeSize = src.dim(2) * src.dim(3);
+        if (output.dim(0) != batch || output.dim(1) != src.dim(2) || output.dim(2) != src.dim(3)
+                || output.dim(3) != channels) {
+            throw new IllegalArgumentException("Shape mismatch: " + input + " -> " + output);
+        }
+        boolean f32 = output.precision() == Precision.FLOAT32;
+        for (int n = 0; n < batch; n++) {
+            int from = src.offset() + n * channels * planeSize;
+            int to = output.offset() + n * channels * planeSize;
+            for (int c = 0; c < channels; c++) {
+                for (int p = 0; p < planeSize; p++) {
+                    if (f32) {
+                        output.floatData()[to + p * channels + c] = src.floatData()[from + c * planeSize + p];
+                    } else {
+                        output.data()[to + p * channels + c] = src.data()[from + c * planeSize + p];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * NHWC → NCHW の変換を既存のテンソルに書き込む
+     * @param input 入力 [batch][height][width][channels]
+     * @param output 書き込み先 [batch][channels][height][width]（連続メモリ）
+     */
+    public static void toNCHWInto(DenseTensor input, DenseTensor output) {
+        DenseTensor src = input.toPrecision(output.precision()).contiguous();
+        int batch = src.dim(0);
+        int channels = src.dim(3);
+        int planeSize = src.dim(1) * src.dim(2);
+        if (output.dim(0) != batch || output.dim(1) != channels || output.dim(2) != src.dim(1)
+                || output.dim(3) != src.dim(2)) {
+            throw new IllegalArgumentException("Shape mismatch: " + input + " -> " + output);
+        }
+        boolean f32 = output.precision() == Precision.FLOAT32;
+        for (int n = 0; n < batch; n++) {
+            int from = src.offset() + n * channels * planeSize;
+            int to = output.offset() + n * channels * planeSize;
+            for (int c = 0; c < channels; c++) {
+                for (int p = 0; p < planeSize; p++) {
+                    if (f32) {
+                        output.floatData()[to + c * planeSize + p] = src.floatData()[from + p * channels + c];
+                    } else {
+                        output.data()[to + c * planeSize + p] = src.data()[from + p * channels + c];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * カーネルを [outChannels][inChannels][K][K] から [K][K][inChannels][outChannels] に並べ替える
+     * @param kernels カーネル [outChannels][inChannels][kernelSize][kernelSize]
+     * @param packed 書き込み先 [kernelSize][kernelSize][inChannels][outChannels]（連続メモリ）
+     */
+    public static void packKernelsInto(DenseTensor kernels, DenseTensor packed) {
+        DenseTensor k = kernels.contiguous();
+        int outChannels = k.dim(0);
+        int inChannels = k.dim(1);
+        int area = k.dim(2) * k.dim(3);
+        for (int oc = 0; oc < outChannels; oc++) {
+            for (int ic = 0; ic < inChannels; ic++) {
+                for (int tap = 0; tap < area; tap++) {
+                    packed.setFlat((tap * inChannels + ic) * outChannels + oc,
+                            k.getFlat((oc * inChannels + ic) * area + tap));
+                }
+            }
+        }
+    }
+
+    /**
+     * {@link #packKernelsInto}の逆（並べ替えたカーネルの勾配を元の配置に戻す）
+     * @param packed [kernelSize][kernelSize][inChannels][outChannels]
+     * @param kernels 書き込み先 [outChannels][inChannels][kernelSize][kernelSize]
+     */
+    public static void unpackKernelsInto(DenseTensor packed, DenseTensor kernels) {
+        DenseTensor p = packed.contiguous();
+        int outChannels = kernels.dim(0);
+        int inChannels = kernels.dim(1);
+        int area = kernels.dim(2) * kernels.dim(3);
+        for (int oc = 0; oc < outChannels; oc++) {
+            for (int ic = 0; ic < inChannels; ic++) {
+                for (int tap = 0; tap < area; tap++) {
+                    kernels.setFlat((oc * inChannels + ic) * area + tap,
+                            p.getFlat((tap * inChannels + ic) * outChannels + oc));
+                }
+            }
+        }
+    }
+
+    // ========== 畳み込み ==========
+
+    /**
+     * NHWCの畳み込みを既存のテンソルに書き込む
+     * 出力の行ごとに並列化し、(タップ, 入力チャンネル)ごとに出力チャンネル方向のaxpyで加算する（パディングのコピーなし）
+     * @param input 入力 [batch][height][width][inChannels]
+     * @param packed 並べ替えたカーネル [kernelSize][kernelSize][inChannels][outChannels]
+     * @param bias バイアス [outChannels]（nullなら加算しない）
+     * @param stride ストライド
+     * @param padding パディング
+     * @param output 書き込み先 [batch][outputHeight][outputWidth][outChannels]（連続メモリ、精度は入力と同じ）
+     */
+    public static void convolveInto(DenseTensor input, DenseTensor packed, DenseTensor bias,
+                                    int stride, int padding, DenseTensor output) {
+        Precision precision = output.precision();
+        DenseTensor in = input.toPrecision(precision).contiguous();
+        DenseTensor w = packed.toPrecision(precision).contiguous();
+        DenseTensor b = bias == null ? null : bias.toPrecision(precision).contiguous();
+        Shape s = new Shape(in, w, stride, padding);
+        if (output.dim(0) != s.batch || output.dim(1) != s.outputHeight || output.dim(2) != s.outputWidth
+                || output.dim(3) != s.outChannels) {
+            throw new IllegalArgumentException("Shape mismatch: " + input + " * " + packed + " -> " + output);
+        }
+
+        int work = s.kernelSize * s.kernelSize * s.inChannels * s.outputWidth * s.outChannels;
+        Matrix.parallelRows(s.batch * s.outputHeight, work, (start, end) -> {
+            for (int row = start; row < end; row++) {
+                int n = row / s.outputHeight;
+                int oh = row % s.outputHeight;
+                int inBase = in.offset() + n * s.height * s.width * s.inChannels;
+                int outRow = output.offset() + row * s.outputWidth * s.outChannels;
+                if (precision == Precision.FLOAT32) {
+                    for (int ow = 0; ow < s.outputWidth; ow++) {
+                        int dst = outRow + ow * s.outChannels;
+                        if (b == null) {
+                            Arrays.fill(output.floatData(), dst, dst + s.outChannels, 0.0f);
+                        } else {
+                            System.arraycopy(b.floatData(), b.offset(), output.floatData(), dst, s.outChannels);
+                        }
+                    }
+                    forwardRow(in.floatData(), inBase, w.floatData(), w.offset(), output.floatData(), outRow, s, oh);
+                } else {
+                    for (int ow = 0; ow < s.outputWidth; ow++) {
+                        int dst = outRow + ow * s.outChannels;
+                        if (b == null) {
+                            Arrays.fill(output.data(), dst, dst + s.outChannels, 0.0);
+                        } else {
+                            System.arraycopy(b.data(), b.offset(), output.data(), dst, s.outChannels);
+                        }
+                    }
+                    forwardRow(in.data(), inBase, w.data(), w.offset(), output.data(), outRow, s, oh);
+                }
+            }
+        });
+    }
+
+    /**
+     * NHWCの畳み込みのカーネル勾配を既存のテンソルに書き込む（バッチで合計）
+     * 並べ替えたカーネルの行 (kh, kw, inChannel) ごとに並列化し、出力チャンネル方向のaxpyで足す
+     * 各行の総和の順序はスレッド数によらないため結果は決定的
+     * @param input 順伝播の入力 [batch][height][width][inChannels]
+     * @param gradOutput 出力に対する勾配 [batch][outputHeight][outputWidth][outChannels]
+     * @param packedGrad 書き込み先 [kernelSize][kernelSize][inChannels][outChannels]（連続メモリ、上書きされる）
+     */
+    public static void convolveBackwardKernelsInto(DenseTensor input, DenseTensor gradOutput,
+                                                   int stride, int padding, DenseTensor packedGrad) {
+        Precision precision = packedGrad.precision();
+        DenseTensor in = input.toPrecision(precision).contiguous();
+        DenseTensor grad = gradOutput.toPrecision(precision).contiguous();
+        Shape s = new Shape(in, packedGrad, stride, padding);
+        int rows = s.kernelSize * s.kernelSize * s.inChannels;
+
+        Matrix.parallelRows(rows, s.batch * s.outputHeight * s.outputWidth * s.outChannels, (start, end) -> {
+            for (int r = start; r < end; r++) {
+                int ic = r % s.inChannels;
+                int kw = r / s.inChannels % s.kernelSize;
+                int kh = r / s.inChannels / s.kernelSize;
+                int dst = packedGrad.offset() + r * s.outChannels;
+                if (precision == Precision.FLOAT32) {
+                    Arrays.fill(packedGrad.floatData(), dst, dst + s.outChannels, 0.0f);
+                    kernelRow(in.floatData(), in.offset(), grad.floatData(), grad.offset(),
+                            packedGrad.floatData(), dst, s, kh, kw, ic);
+                } else {
+                    Arrays.fill(packedGrad.data(), dst, dst + s.outChannels, 0.0);
+                    kernelRow(in.data(), in.offset(), grad.data(), grad.offset(),
+                            packedGrad.data(), dst, s, kh, kw, ic);
+                }
+            }
+        });
+    }
+
+    /**
+     * NHWCの畳み込みの入力勾配を既存のテンソルに書き込む
+     * 入力の行ごとに並列化し、各要素を出力チャンネル方向の内積で求める（書き込み先が重ならず決定的）
+     * @param gradOutput 出力に対する勾配 [batch][outputHeight][outputWidth][outChannels]
+     * @param packed 並べ替えたカーネル [kernelSize][kernelSize][inChannels][outChannels]
+     * @param gradInput 書き込み先 [batch][height][width][inChannels]（連続メモリ、上書きされる）
+     */
+    public static void convolveBackwardInputInto(DenseTensor gradOutput, DenseTensor packed,
+                                                 int stride, int padding, DenseTensor gradInput) {
+        Precision precision = gradInput.precision();
+        DenseTensor grad = gradOutput.toPrecision(precision).contiguous();
+        DenseTensor w = packed.toPrecision(precision).contiguous();
+        Shape s = new Shape(gradInput, w, stride, padding);
+
+        int work = s.kernelSize * s.kernelSize * s.width * s.inChannels * s.outChannels;
+        Matrix.parallelRows(s.batch * s.height, work, (start, end) -> {
+            for (int row = start; row < end; row++) {
+                int n = row / s.height;
+                int ih = row % s.height;
+                int giRow = gradInput.offset() + row * s.width * s.inChannels;
+                int gBase = grad.offset() + n * s.outputHeight * s.outputWidth * s.outChannels;
+                if (precision == Precision.FLOAT32) {
+                    Arrays.fill(gradInput.floatData(), giRow, giRow + s.width * s.inChannels, 0.0f);
+                    inputRow(grad.floatData(), gBase, w.floatData(), w.offset(), gradInput.floatData(), giRow, s, ih);
+                } else {
+                    Arrays.fill(gradInput.data(), giRow, giRow + s.width * s.inChannels, 0.0);
+                    inputRow(grad.data(), gBase, w.data(), w.offset(), gradInput.data(), giRow, s, ih);
+                }
+            }
+        });
+    }
+
+    /**
+     * NHWCの畳み込みのバイアス勾配を既存のテンソルに書き込む（全画素の勾配の和）
+     * @param gradOutput 出力に対する勾配 [batch][outputHeight][outputWidth][outChannels]
+     * @param gradBias 書き込み先 [outChannels]（連続メモリ、上書きされる）
+     */
+    public static void convolveBackwardBiasInto(DenseTensor gradOutput, DenseTensor gradBias) {
+        DenseTensor grad = gradOutput.toPrecision(gradBias.precision()).contiguous();
+        int channels = grad.dim(3);
+        int pixels = grad.size() / channels;
+        gradBias.fill(0);
+        for (int p = 0; p < pixels; p++) {
+            int from = grad.offset() + p * channels;
+            if (grad.precision() == Precision.FLOAT32) {
+                Simd.add(gradBias.floatData(), gradBias.offset(), grad.floatData(), from,
+                        gradBias.floatData(), gradBias.offset(), channels);
+            } else {
+                Simd.add(gradBias.data(), gradBias.offset(), grad.data(), from,
+                        gradBias.data(), gradBias.offset(), channels);
+            }
+        }
+    }
+
+    /**
+     * 出力の1行（画像n、出力行oh）に全タップの寄与を加算（FLOAT64）
+     */
+    private static void forwardRow(double[] in, int inBase, double[] w, int wOff, double[] out, int outRow,
+                                   Shape s, int oh) {
+        for (int kh = 0; kh < s.kernelSize; kh++) {
+            int ih = oh * s.stride + kh - s.padding;
+            if (ih < 0 || ih >= s.height) {
+                continue;
+            }
+            for (int kw = 0; kw < s.kernelSize; kw++) {
+                int owStart = ConvolutionOps.firstInside(kw, s.stride, s.padding);
+                int owEnd = ConvolutionOps.endInside(kw, s.stride, s.padding, s.width, s.outputWidth);
+                int tap = wOff + (kh * s.kernelSize + kw) * s.inChannels * s.outChannels;
+                for (int ow = owStart; ow < owEnd; ow++) {
+                    int src = inBase + (ih * s.width + ow * s.stride + kw - s.padding) * s.inChannels;
+                    int dst = outRow + ow * s.outChannels;
+                    for (int ic = 0; ic < s.inChannels; ic++) {
+                        Simd.axpy(in[src + ic], w, tap + ic * s.outChannels, out, dst, s.outChannels);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 出力の1行（画像n、出力行oh）に全タップの寄与を加算（FLOAT32）
+     */
+    private static void forwardRow(float[] in, int inBase, float[] w, int wOff, float[] out, int outRow,
+                                   Shape s, int oh) {
+        for (int kh = 0; kh < s.kernelSize; kh++) {
+            int ih = oh * s.stride + kh - s.padding;
+            if (ih < 0 || ih >= s.height) {
+                continue;
+            }
+            for (int kw = 0; kw < s.kernelSize; kw++) {
+                int owStart = ConvolutionOps.firstInside(kw, s.stride, s.padding);
+                int owEnd = ConvolutionOps.endInside(kw, s.stride, s.padding, s.width, s.outputWidth);
+                int tap = wOff + (kh * s.kernelSize + kw) * s.inChannels * s.outChannels;
+                for (int ow = owStart; ow < owEnd; ow++) {
+                    int src = inBase + (ih * s.width + ow * s.stride + kw - s.padding) * s.inChannels;
+                    int dst = outRow + ow * s.outChannels;
+                    for (int ic = 0; ic < s.inChannels; ic++) {
+                        Simd.axpy(in[src + ic], w, tap + ic * s.outChannels, out, dst, s.outChannels);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 並べ替えたカーネルの勾配の1行 (kh, kw, ic) を全画像・全出力位置について加算（FLOAT64）
+     */
+    private static void kernelRow(double[] in, int inOff, double[] g, int gOff, double[] dst, int dstOff,
+                                  Shape s, int kh, int kw, int ic) {
+        int ohStart = ConvolutionOps.firstInside(kh, s.stride, s.padding);
+        int ohEnd = ConvolutionOps.endInside(kh, s.stride, s.padding, s.height, s.outputHeight);
+        int owStart = ConvolutionOps.firstInside(kw, s.stride, s.padding);
+        int owEnd = ConvolutionOps.endInside(kw, s.stride, s.padding, s.width, s.outputWidth);
+        for (int n = 0; n < s.batch; n++) {
+            for (int oh = ohStart; oh < ohEnd; oh++) {
+                int inRow = inOff + ((n * s.height + oh * s.stride + kh - s.padding) * s.width) * s.inChannels;
+                int gRow = gOff + ((n * s.outputHeight + oh) * s.outputWidth) * s.outChannels;
+                for (int ow = owStart; ow < owEnd; ow++) {
+                    double x = in[inRow + (ow * s.stride + kw - s.padding) * s.inChannels + ic];
+                    Simd.axpy(x, g, gRow + ow * s.outChannels, dst, dstOff, s.outChannels);
+                }
+            }
+        }
+    }
+
+    /**
+     * 並べ替えたカーネルの勾配の1行 (kh, kw, ic) を全画像・全出力位置について加算（FLOAT32）
+     */
+    private static void kernelRow(float[] in, int inOff, float[] g, int gOff, float[] dst, int dstOff,
+                                  Shape s, int kh, int kw, int ic) {
+        int ohStart = ConvolutionOps.firstInside(kh, s.stride, s.padding);
+        int ohEnd = ConvolutionOps.endInside(kh, s.stride, s.padding, s.height, s.outputHeight);
+        int owStart = ConvolutionOps.firstInside(kw, s.stride, s.padding);
+        int owEnd = ConvolutionOps.endInside(kw, s.stride, s.padding, s.width, s.outputWidth);
+        for (int n = 0; n < s.batch; n++) {
+            for (int oh = ohStart; oh < ohEnd; oh++) {
+                int inRow = inOff + ((n * s.height + oh * s.stride + kh - s.padding) * s.width) * s.inChannels;
+                int gRow = gOff + ((n * s.outputHeight + oh) * s.outputWidth) * s.outChannels;
+                for (int ow = owStart; ow < owEnd; ow++) {
+                    float x = in[inRow + (ow * s.stride + kw - s.padding) * s.inChannels + ic];
+                    Simd.axpy(x, g, gRow + ow * s.outChannels, dst, dstOff, s.outChannels);
+                }
+            }
+        }
+    }
+
+    /**
+     * 入力勾配の1行（画像n、入力行ih）を計算（FLOAT64、giRowはゼロ埋め済み）
+     */
+    private static void inputRow(double[] g, int gBase, double[] w, int wOff, double[] gi, int giRow,
+                                 Shape s, int ih) {
+        for (int kh = 0; kh < s.kernelSize; kh++) {
+            int rowDiff = ih + s.padding - kh;
+            if (rowDiff < 0 || rowDiff % s.stride != 0 || rowDiff / s.stride >= s.outputHeight) {
+                continue;
+            }
+            int oh = rowDiff / s.stride;
+            for (int kw = 0; kw < s.kernelSize; kw++) {
+                int tap = wOff + (kh * s.kernelSize + kw) * s.inChannels * s.outChannels;
+                for (int iw = 0; iw < s.width; iw++) {
+                    int colDiff = iw + s.padding - kw;
+                    if (colDiff < 0 || colDiff % s.stride != 0 || colDiff / s.stride >= s.outputWidth) {
+                        continue;
+                    }
+                    int src = gBase + (oh * s.outputWidth + colDiff / s.stride) * s.outChannels;
+                    int dst = giRow + iw * s.inChannels;
+                    for (int ic = 0; ic < s.inChannels; ic++) {
+                        gi[dst + ic] += Simd.dot(g, src, w, tap + ic * s.outChannels, s.outChannels);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 入力勾配の1行（画像n、入力行ih）を計算（FLOAT32、giRowはゼロ埋め済み）
+     */
+    private static void inputRow(float[] g, int gBase, float[] w, int wOff, float[] gi, int giRow,
+                                 Shape s, int ih) {
+        for (int kh = 0; kh < s.kernelSize; kh++) {
+            int rowDiff = ih + s.padding - kh;
+            if (rowDiff < 0 || rowDiff % s.stride != 0 || rowDiff / s.stride >= s.outputHeight) {
+                continue;
+            }
+            int oh = rowDiff / s.stride;
+            for (int kw = 0; kw < s.kernelSize; kw++) {
+                int tap = wOff + (kh * s.kernelSize + kw) * s.inChannels * s.outChannels;
+                for (int iw = 0; iw < s.width; iw++) {
+                    int colDiff = iw + s.padding - kw;
+                    if (colDiff < 0 || colDiff % s.stride != 0 || colDiff / s.stride >= s.outputWidth) {
+                        continue;
+                    }
+                    int src = gBase + (oh * s.outputWidth + colDiff / s.stride) * s.outChannels;
+                    int dst = giRow + iw * s.inChannels;
+                    for (int ic = 0; ic < s.inChannels; ic++) {
+                        gi[dst + ic] += Simd.dot(g, src, w, tap + ic * s.outChannels, s.outChannels);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 畳み込みの形状（入力 [batch][height][width][inChannels]、カーネル [K][K][inChannels][outChannels]）
+     */
+    private static final class Shape {
+        final int batch, height, width, inChannels, outChannels, kernelSize, stride, padding;
+        final int outputHeight, outputWidth;
+
+        Shape(DenseTensor input, DenseTensor packed, int stride, int padding) {
+            if (packed.dim(2) != input.dim(3) || packed.dim(0) != packed.dim(1)) {
+                throw new IllegalArgumentException("Shape mismatch: " + input + " * " + packed);
+            }
+            this.batch = input.dim(0);
+            this.height = input.dim(1);
+            this.width = input.dim(2);
+            this.inChannels = input.dim(3);
+            this.outChannels = packed.dim(3);
+            this.kernelSize = packed.dim(0);
+            this.stride = stride;
+            this.padding = padding;
+            this.outputHeight = ConvolutionOps.outputSize(height, kernelSize, stride, padding);
+            this.outputWidth = ConvolutionOps.outputSize(width, kernelSize, stride, padding);
+        }
+    }
+
+    // ========== ReLU + 最大プーリング ==========
+
+    /**
+     * NHWCのReLU + 最大プーリングを既存のテンソルに書き込む
+     * 窓の位置を外側、チャンネルを内側のループにして連続した要素を比較する
+     * 最大値の比較はReLU後の値で行い、同じ値なら先の位置を選ぶ（{@link FusedConvolution}と同じ）
+     * @param input 畳み込みの出力（ReLU前）[batch][height][width][channels]
+     * @param argmax 最大値の窓の中の位置（ph * poolSize + pw）の記録先（出力と同じ要素数、推論ならnull）
+     * @param mask 最大値が正かの記録先（出力と同じ要素数、推論ならnull）
+     * @param output 書き込み先 [batch][pooledHeight][pooledWidth][channels]（連続メモリ）
+     */
+    public static void reluMaxPoolInto(DenseTensor input, int poolSize, int poolStride,
+                                       byte[] argmax, boolean[] mask, DenseTensor output) {
+        DenseTensor src = input.toPrecision(output.precision()).contiguous();
+        int height = src.dim(1);
+        int width = src.dim(2);
+        int channels = src.dim(3);
+        int pooledHeight = output.dim(1);
+        int pooledWidth = output.dim(2);
+        if (poolSize > MaxPooling.MAX_POOL_SIZE || (argmax == null) != (mask == null)
+                || argmax != null && (argmax.length < output.size() || mask.length < output.size())) {
+            throw new IllegalArgumentException("Invalid pooling record for " + output);
+        }
+        boolean f32 = output.precision() == Precision.FLOAT32;
+
+        Matrix.parallelRows(src.dim(0) * pooledHeight, pooledWidth * poolSize * poolSize * channels, (start, end) -> {
+            for (int row = start; row < end; row++) {
+                int n = row / pooledHeight;
+                int ph = row % pooledHeight;
+                for (int pw = 0; pw < pooledWidth; pw++) {
+                    int out = (row * pooledWidth + pw) * channels;
+                    for (int a = 0; a < poolSize * poolSize; a++) {
+                        int ih = ph * poolStride + a / poolSize;
+                        int iw = pw * poolStride + a % poolSize;
+                        int from = src.offset() + ((n * height + ih) * width + iw) * channels;
+                        if (f32) {
+                            poolStep(src.floatData(), from, output.floatData(), output.offset() + out,
+                                    argmax, out, a, channels);
+                        } else {
+                            poolStep(src.data(), from, output.data(), output.offset() + out,
+                                    argmax, out, a, channels);
+                        }
+                    }
+                    if (mask != null) {
+                        for (int c = 0; c < channels; c++) {
+                            mask[out + c] = output.getFlat(out + c) > 0.0;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 窓の位置aの画素で、チャンネルごとの最大値を更新（FLOAT64、a == 0 なら初期化）
+     */
+    private static void poolStep(double[] src, int from, double[] dst, int dstOff,
+                                 byte[] argmax, int recordOff, int a, int channels) {
+        for (int c = 0; c < channels; c++) {
+            double v = Math.max(src[from + c], 0.0);
+            if (a == 0 || v > dst[dstOff + c]) {
+                dst[dstOff + c] = v;
+                if (argmax != null) {
+                    argmax[recordOff + c] = (byte) a;
+                }
+            }
+        }
+    }
+
+    /**
+     * 窓の位置aの画素で、チャンネルごとの最大値を更新（FLOAT32、a == 0 なら初期化）
+     */
+    private static void poolStep(float[] src, int from, float[] dst, int dstOff,
+                                 byte[] argmax, int recordOff, int a, int channels) {
+        for (int c = 0; c < channels; c++) {
+            float v = Math.max(src[from + c], 0.0f);
+            if (a == 0 || v > dst[dstOff + c]) {
+                dst[dstOff + c] = v;
+                if (argmax != null) {
+                    argmax[recordOff + c] = (byte) a;
+                }
+            }
+        }
+    }
+
+    /**
+     * {@link #reluMaxPoolInto}の逆伝播: 記録した最大値の位置とReLUのマスクに従って勾配を戻す
+     * @param gradOutput プーリング後の勾配 [batch][pooledHeight][pooledWidth][channels]
+     * @param argmax 順伝播で記録した最大値の位置
+     * @param mask 順伝播で記録したReLUのマスク
+     * @param gradInput 書き込み先 [batch][height][width][channels]（連続メモリ、上書きされる）
+     */
+    public static void reluMaxPoolBackwardInto(DenseTensor gradOutput, byte[] argmax, boolean[] mask,
+                                               int poolSize, int poolStride, DenseTensor gradInput) {
+        if (argmax == null || mask == null) {
+            throw new IllegalArgumentException("Backward needs the recorded argmax and mask");
+        }
+        DenseTensor grad = gradOutput.toPrecision(gradInput.precision()).contiguous();
+        int pooledHeight = grad.dim(1);
+        int pooledWidth = grad.dim(2);
+        int channels = grad.dim(3);
+        int height = gradInput.dim(1);
+        int width = gradInput.dim(2);
+        boolean f32 = grad.precision() == Precision.FLOAT32;
+
+        gradInput.fill(0);
+        int idx = 0;
+        for (int row = 0; row < grad.dim(0) * pooledHeight; row++) {
+            int n = row / pooledHeight;
+            int ph = row % pooledHeight;
+            for (int pw = 0; pw < pooledWidth; pw++) {
+                for (int c = 0; c < channels; c++, idx++) {
+                    if (!mask[idx]) {
+                        continue;
+                    }
+                    int a = argmax[idx];
+                    int ih = ph * poolStride + a / poolSize;
+                    int iw = pw * poolStride + a % poolSize;
+                    int pos = gradInput.offset() + ((n * height + ih) * width + iw) * channels + c;
+                    // 窓が重なる場合に備えて加算
+                    if (f32) {
+                        gradInput.floatData()[pos] += grad.floatData()[grad.offset() + idx];
+                    } else {
+                        gradInput.data()[pos] += grad.data()[grad.offset() + idx];
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package math;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 畳み込みのアルゴリズムを形状ごとに選ぶオートチューナー
+ * (精度, 入出力チャンネル, 入力の大きさ, カーネル, ストライド, パディング, バッチ)の組ごとに、
+ * 最初の使用時に候補を実際の入力と重みで計測して最も速いものを選び、キャッシュファイルに保存する
+ * 次回以降の実行ではファイルの結果を使い、計測しない
+ * 後にReLUと最大プーリングが続く層は{@link #selectPooled}で、融合した計算（{@link Algorithm#FUSED}）も含めて
+ * ReLUとプーリングまでの時間で選ぶ（層が実際に実行する組み合わせを計測する）
+ * -Dnumsense.autotune=false または setEnabled(false) で無効（層は固定の規則で選ぶ）、
+ * -Dnumsense.autotune.cache=パス でキャッシュファイルを変更できる
+ */
+public final class ConvAutotuner {
+
+    /**
+     * 順伝播のアルゴリズム
+     */
+    public enum Algorithm {
+        /** パディングしない直接畳み込み（{@link ConvolutionOps#convolveDirectInto}） */
+        DIRECT,
+        /** タイル分割の並列畳み込み（{@link ParallelConvolution#convolveTiledInto}） */
+        TILED,
+        /** バッチをまとめたim2col + GEMM（{@link ParallelConvolution#convolveBatchIm2colInto}） */
+        IM2COL,
+        /** Winograd F(2x2,3x3)（3x3・ストライド1のみ） */
+        WINOGRAD,
+        /** FFT（5x5以上のカーネル） */
+        FFT,
+        /** 畳み込み + ReLU + 最大プーリングの融合（{@link FusedConvolution#convReluMaxPoolInto}、プーリングが続く層のみ） */
+        FUSED
+    }
+
+    private static final int ROUNDS = 5; // 候補を交互に計測する回数（最小値を使う）
+
+    private static volatile boolean enabled =
+            !"false".equalsIgnoreCase(System.getProperty("numsense.autotune"));
+    private static volatile ConvAutotuner shared;
+
+    private final Path cacheFile;
+    private final Map<String, Algorithm> choices = new ConcurrentHashMap<>();
+
+    /**
+     * @param cacheFile 選択結果を保存するファイル（nullなら保存しない）
+     */
+    public ConvAutotuner(Path cacheFile) {
+        this.cacheFile = cacheFile;
+        load();
+    }
+
+    /**
+     * 層が共有するオートチューナー（既定のキャッシュファイルは ./outputs/conv_autotune.properties）
+     */
+    public static ConvAutotuner shared() {
+        ConvAutotuner tuner = shared;
+        if (tuner == null) {
+            synchronized (ConvAutotuner.class) {
+                if (shared == null) {
+                    shared = new ConvAutotuner(Paths.get(
+                            System.getProperty("numsense.autotune.cache", "./outputs/conv_autotune.properties")));
+                }
+                tuner = shared;
+            }
+        }
+        return tuner;
+    }
+
+    /**
+     * オートチューナーを使用中か
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * オートチューナーの使用を切り替え
+     * @param on falseなら層は固定の規則（Winograd → FFT → im2col → 直接）で選ぶ
+     */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * この形状で最も速いアルゴリズム（未計測なら計測して保存する）
+     * @param input 入力 [batch][inChannels][height][width]
+     * @param kernels カーネル [outChannels][inChannels][kernelSize][kernelSize]
+     * @param bias バイアス [outChannels]（nullなら加算しない）
+     */
+    public Algorithm select(DenseTensor input, DenseTensor kernels, DenseTensor bias, int stride, int padding) {
+        String key = key(input, kernels, stride, padding);
+        Algorithm choice = choices.get(key);
+        if (choice != null) {
+            return choice;
+        }
+        synchronized (this) {
+            choice = choices.get(key);
+            if (choice == null) {
+                choice = tune(input, kernels, bias, stride, padding);
+                choices.put(key, choice);
+                save();
+            }
+        }
+        return choice;
+    }
+
+    /**
+     * 畳み込みの後にReLUと最大プーリングを行う場合に最も速いアルゴリズム（未計測なら計測して保存する）
+     * FUSED以外の候補は畳み込みの後に{@link FusedConvolution#reluMaxPoolInto}を行う時間で比べる
+     * @param training trueなら学習時の計算（最大値の位置とReLUのマスクの記録、FUSEDはim2col行列を残す）で計測する
+     */
+    public Algorithm selectPooled(DenseTensor input, DenseTensor kernels, DenseTensor bias, int stride, int padding,
+                                  int poolSize, int poolStride, boolean training) {
+        String key = key(input, kernels, stride, padding)
+                + "/pool" + poolSize + "s" + poolStride + (training ? "/train" : "");
+        Algorithm choice = choices.get(key);
+        if (choice != null) {
+            return choice;
+        }
+        synchronized (this) {
+            choice = choices.get(key);
+            if (choice == null) {
+                choice = tunePooled(input, kernels, bias, stride, padding, poolSize, poolStride, training);
+                choices.put(key, choice);
+                save();
+            }
+        }
+        return choice;
+    }
+
+    /**
+     * これまでの選択結果（キー → アルゴリズム）
+     */
+    public Map<String, Algorithm> choices() {
+        return Collections.unmodifiableMap(choices);
+    }
+
+    /**
+     * この形状で使えるアルゴリズム
+     */
+    public static List<Algorithm> candidates(int kernelSize, int stride, int padding) {
+        List<Algorithm> list = new ArrayList<>(List.of(Algorithm.DIRECT, Algorithm.TILED, Algorithm.IM2COL));
+        if (Winograd.supports(kernelSize, stride, padding)) {
+            list.add(Algorithm.WINOGRAD);
+        }
+        if (FFTConvolution.supports(kernelSize)) {
+            list.add(Algorithm.FFT);
+        }
+        return list;
+    }
+
+    /**
+     * ReLUと最大プーリングが続く場合に使えるアルゴリズム（{@link #candidates}とFUSED）
+     */
+    public static List<Algorithm> pooledCandidates(int kernelSize, int stride, int padding) {
+        List<Algorithm> list = candidates(kernelSize, stride, padding);
+        list.add(Algorithm.FUSED);
+        return list;
+    }
+
+    /**
+     * キャッシュのキー（精度/入力チャンネルx出力チャンネル/高さx幅/カーネル・ストライド・パディング/バッチ/コア数）
+     * 並列のアルゴリズムの順位はコア数で変わるため、コア数も含める
+     */
+    static String key(DenseTensor input, DenseTensor kernels, int stride, int padding) {
+        return input.precision() + "/" + input.dim(1) + "x" + kernels.dim(0)
+                + "/" + input.dim(2) + "x" + input.dim(3)
+                + "/k" + kernels.dim(2) + "s" + stride + "p" + padding
+                + "/n" + input.dim(0) + "/c" + Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * 候補を交互にROUNDS回ずつ実行し、最小の時間が最も短いものを選ぶ
+     * 作業領域は計測用に新しく確保する（層の状態は変えない）
+     */
+    private static Algorithm tune(DenseTensor input, DenseTensor kernels, DenseTensor bias, int stride, int padding) {
+        Precision precision = input.precision();
+        DenseTensor in = input.contiguous();
+        DenseTensor w = kernels.toPrecision(precision).contiguous();
+        DenseTensor b = bias == null ? null : bias.toPrecision(precision).contiguous();
+        DenseTensor output = convOutput(in, w, stride, padding);
+        List<Algorithm> candidates = candidates(w.dim(2), stride, padding);
+        Runnable[] runs = new Runnable[candidates.size()];
+        for (int i = 0; i < runs.length; i++) {
+            runs[i] = prepare(candidates.get(i), in, w, b, stride, padding, output);
+        }
+        return candidates.get(fastest(runs));
+    }
+
+    /**
+     * 畳み込み → ReLU → 最大プーリングまでの時間で候補を比べる
+     */
+    private static Algorithm tunePooled(DenseTensor input, DenseTensor kernels, DenseTensor bias,
+                                        int stride, int padding, int poolSize, int poolStride, boolean training) {
+        Precision precision = input.precision();
+        DenseTensor in = input.contiguous();
+        DenseTensor w = kernels.toPrecision(precision).contiguous();
+        DenseTensor b = bias == null ? null : bias.toPrecision(precision).contiguous();
+        int batch = in.dim(0);
+        int kernelSize = w.dim(2);
+        int pooledHeight = FusedConvolution.pooledSize(in.dim(2), kernelSize, stride, padding, poolSize, poolStride);
+        int pooledWidth = FusedConvolution.pooledSize(in.dim(3), kernelSize, stride, padding, poolSize, poolStride);
+        DenseTensor pooled = DenseTensor.zeros(precision, batch, w.dim(0), pooledHeight, pooledWidth);
+        byte[] argmax = training ? new byte[pooled.size()] : null;
+        boolean[] mask = training ? new boolean[pooled.size()] : null;
+        DenseTensor output = convOutput(in, w, stride, padding);
+
+        List<Algorithm> candidates = pooledCandidates(kernelSize, stride, padding);
+        Runnable[] runs = new Runnable[candidates.size()];
+        for (int i = 0; i < runs.length; i++) {
+            Algorithm algorithm = candidates.get(i);
+            if (algorithm == Algorithm.FUSED) {
+                DenseTensor col = training ? DenseTensor.zeros(precision,
+                        ParallelConvolution.im2colBatchShape(in, kernelSize, kernelSize, stride, padding)) : null;
+                runs[i] = () -> FusedConvolution.convReluMaxPoolInto(in, w, b, stride, padding, poolSize, poolStride,
+                        argmax, mask, col, pooled);
+            } else {
+                Runnable conv = prepare(algorithm, in, w, b, stride, padding, output);
+                runs[i] = () -> {
+                    conv.run();
+                    FusedConvolution.reluMaxPoolInto(output, poolSize, poolStride, argmax, mask, pooled);
+                };
+            }
+        }
+        return candidates.get(fastest(runs));
+    }
+
+    /**
+     * 候補を交互にROUNDS回ずつ実行し、最小の時間が最も短いものの番号を返す
+     */
+    private static int fastest(Runnable[] runs) {
+        for (Runnable run : runs) {
+            run.run(); // 変換済みカーネルなどの準備と1回目の実行は計測しない
+        }
+
+        long[] best = new long[runs.length];
+        Arrays.fill(best, Long.MAX_VALUE);
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < runs.length; i++) {
+                long start = System.nanoTime();
+                runs[i].run();
+                best[i] = Math.min(best[i], System.nanoTime() - start);
+            }
+        }
+
+        int fastest = 0;
+        for (int i = 1; i < runs.length; i++) {
+            if (best[i] < best[fastest]) {
+                fastest = i;
+            }
+        }
+        return fastest;
+    }
+
+    /**
+     * 計測用の畳み込みの出力 [batch][outChannels][outputHeight][outputWidth]
+     */
+    private static DenseTensor convOutput(DenseTensor input, DenseTensor kernels, int stride, int padding) {
+        int kernelSize = kernels.dim(2);
+        return DenseTensor.zeros(input.precision(), input.dim(0), kernels.dim(0),
+                ConvolutionOps.outputSize(input.dim(2), kernelSize, stride, padding),
+                ConvolutionOps.outputSize(input.dim(3), kernelSize, stride, padding));
+    }
+
+    private static Runnable prepare(Algorithm algorithm, DenseTensor input, DenseTensor kernels, DenseTensor bias,
+                                    int stride, int padding, DenseTensor output) {
+        Precision precision = input.precision();
+        int batch = input.dim(0);
+        int kernelSize = kernels.dim(2);
+        int outChannels = kernels.dim(0);
+        int outputHeight = output.dim(2);
+        int outputWidth = output.dim(3);
+
+        switch (algorithm) {
+            case DIRECT:
+                return () -> ConvolutionOps.convolveDirectInto(input, kernels, bias, stride, padding, output);
+            case TILED: {
+                DenseTensor padded = ConvolutionOps.pad(input, padding);
+                return () -> {
+                    ConvolutionOps.padInto(input, padding, padded);
+                    ParallelConvolution.convolveTiledInto(padded, kernels, bias, stride, output);
+                };
+            }
+            case IM2COL: {
+                DenseTensor col = DenseTensor.zeros(precision,
+                        ParallelConvolution.im2colBatchShape(input, kernelSize, kernelSize, stride, padding));
+                DenseTensor product = batch == 1 ? null
+                        : DenseTensor.zeros(precision, outChannels, batch * outputHeight * outputWidth);
+                return () -> ParallelConvolution.convolveBatchIm2colInto(input, kernels, bias, stride, padding,
+                        col, product, output);
+            }
+            case WINOGRAD: {
+                DenseTensor filters = Winograd.transformFilters(kernels);
+                int tiles = Winograd.tiles(batch, outputHeight, outputWidth);
+                DenseTensor v = DenseTensor.zeros(precision, 16, input.dim(1), tiles);
+                DenseTensor m = DenseTensor.zeros(precision, 16, outChannels, tiles);
+                return () -> Winograd.convolveInto(input, filters, bias, padding, v, m, output);
+            }
+            case FFT: {
+                FFTConvolution fft = new FFTConvolution(kernelSize, stride, padding);
+                return () -> fft.convolveInto(input, kernels, bias, output);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown algorithm: " + algorithm);
+        }
+    }
+
+    private void load() {
+        if (cacheFile == null || !Files.exists(cacheFile)) {
+            return;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(cacheFile)) {
+            properties.load(reader);
+        } catch (IOException e) {
+            System.err.println("Could not read autotune cache " + cacheFile + ": " + e.getMessage());
+            return;
+        }
+        for (String key : properties.stringPropertyNames()) {
+            try {
+                choices.put(key, Algorithm.valueOf(properties.getProperty(key).trim()));
+            } catch (IllegalArgumentException e) {
+                // 知らないアルゴリズム名（古い・新しい版のファイル）は計測し直す
+            }
+        }
+    }
+
+    private void save() {
+        if (cacheFile == null) {
+            return;
+        }
+        Properties properties = new Properties();
+        choices.forEach((key, algorithm) -> properties.setProperty(key, algorithm.name()));
+        try {
+            Path parent = cacheFile.getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            try (Writer writer = Files.newBufferedWriter(cacheFile)) {
+                properties.store(writer, "NumSense convolution autotune cache (precision/in x out/h x w/kernel/batch/cores)");
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write autotune cache " + cacheFile + ": " + e.getMessage());
+        }
+    }
+}
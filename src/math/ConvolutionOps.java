@@ -1,12 +1,19 @@
 package math;
 
+import java.util.Arrays;
+
 /**
  * 畳み込みニューラルネットワーク用の演算
  */
 public class ConvolutionOps {
 
+    // 逆伝播の入力勾配で、面が少ないときに行の帯に分ける目安（コアあたりのタスク数）
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    private static final int BACKWARD_TASKS_PER_CORE = 4;
+
     /**
      * 2D畳み込み演算（単一チャンネル）
+     * パディングしたコピーは作らず、境界の外のタップを飛ばして計算する
      * @param input 入力画像 [height][width]
      * @param kernel カーネル [kernelHeight][kernelWidth]
      * @param stride ストライド
@@ -15,43 +22,17 @@ public class ConvolutionOps {
      */
     public static double[][] convolve2D(double[][] input, double[][] kernel,
                                         int stride, int padding) {
-        // パディングを適用
-        double[][] paddedInput = applyPadding(input, padding);
-
-        int inputHeight = paddedInput.length;
-        int inputWidth = paddedInput[0].length;
-        int kernelHeight = kernel.length;
-        int kernelWidth = kernel[0].length;
-
-        // 出力サイズを計算
-        int outputHeight = (inputHeight - kernelHeight) / stride + 1;
-        int outputWidth = (inputWidth - kernelWidth) / stride + 1;
+        int outputHeight = outputSize(input.length, kernel.length, stride, padding);
+        int outputWidth = outputSize(input[0].length, kernel[0].length, stride, padding);
 
         double[][] output = new double[outputHeight][outputWidth];
-
-        // 畳み込み演算
-        for (int oh = 0; oh < outputHeight; oh++) {
-            for (int ow = 0; ow < outputWidth; ow++) {
-                double sum = 0.0;
-
-                // カーネルの各要素について
-                for (int kh = 0; kh < kernelHeight; kh++) {
-                    for (int kw = 0; kw < kernelWidth; kw++) {
-                        int ih = oh * stride + kh;
-                        int iw = ow * stride + kw;
-                        sum += paddedInput[ih][iw] * kernel[kh][kw];
-                    }
-                }
-
-                output[oh][ow] = sum;
-            }
-        }
-
+        accumulate2D(input, kernel, stride, padding, output);
         return output;
     }
 
     /**
      * 3D畳み込み演算（複数チャンネル）
+     * 入力チャンネルごとの結果は出力に直接加算する（パディングしたコピーや一時的な出力は作らない）
      * @param input 入力テンソル [channels][height][width]
      * @param kernels カーネル [outputChannels][inputChannels][kernelHeight][kernelWidth]
      * @param bias バイアス [outputChannels]
@@ -63,39 +44,78 @@ public class ConvolutionOps {
                                           double[] bias, int stride, int padding) {
         int inputChannels = input.length;
         int outputChannels = kernels.length;
-
-        // 最初のチャンネルで出力サイズを計算
-        double[][] firstPadded = applyPadding(input[0], padding);
-        int outputHeight = (firstPadded.length - kernels[0][0].length) / stride + 1;
-        int outputWidth = (firstPadded[0].length - kernels[0][0][0].length) / stride + 1;
+        int outputHeight = outputSize(input[0].length, kernels[0][0].length, stride, padding);
+        int outputWidth = outputSize(input[0][0].length, kernels[0][0][0].length, stride, padding);
 
         double[][][] output = new double[outputChannels][outputHeight][outputWidth];
 
         // 各出力チャンネルについて
         for (int oc = 0; oc < outputChannels; oc++) {
-            // 各入力チャンネルの畳み込みを累積
-            for (int ic = 0; ic < inputChannels; ic++) {
-                double[][] conv = convolve2D(input[ic], kernels[oc][ic], stride, padding);
-
-                // 結果を累積
+            // バイアスで初期化
+            if (bias != null) {
                 for (int h = 0; h < outputHeight; h++) {
-                    for (int w = 0; w < outputWidth; w++) {
-                        output[oc][h][w] += conv[h][w];
-                    }
+                    Arrays.fill(output[oc][h], bias[oc]);
                 }
             }
 
-            // バイアスを追加
-            if (bias != null) {
-                for (int h = 0; h < outputHeight; h++) {
-                    for (int w = 0; w < outputWidth; w++) {
-                        output[oc][h][w] += bias[oc];
+            // 各入力チャンネルの畳み込みを累積
+            for (int ic = 0; ic < inputChannels; ic++) {
+                accumulate2D(input[ic], kernels[oc][ic], stride, padding, output[oc]);
+            }
+        }
+
+        return output;
+    }
+
+    /**
+     * 1チャンネル分の畳み込みを出力に加算
+     * タップ(kh, kw)ごとに入力の範囲内に収まる出力の範囲（内側）を求め、その範囲だけを加算する
+     */
+    private static void accumulate2D(double[][] input, double[][] kernel, int stride, int padding,
+                                     double[][] output) {
+        int inputHeight = input.length;
+        int inputWidth = input[0].length;
+        int outputHeight = output.length;
+        int outputWidth = output[0].length;
+
+        for (int kh = 0; kh < kernel.length; kh++) {
+            int ohStart = firstInside(kh, stride, padding);
+            int ohEnd = endInside(kh, stride, padding, inputHeight, outputHeight);
+            for (int kw = 0; kw < kernel[kh].length; kw++) {
+                double weight = kernel[kh][kw];
+                int owStart = firstInside(kw, stride, padding);
+                int owEnd = endInside(kw, stride, padding, inputWidth, outputWidth);
+                for (int oh = ohStart; oh < ohEnd; oh++) {
+                    double[] in = input[oh * stride + kh - padding];
+                    double[] out = output[oh];
+                    int iw = owStart * stride + kw - padding;
+                    for (int ow = owStart; ow < owEnd; ow++, iw += stride) {
+                        out[ow] += weight * in[iw];
                     }
                 }
             }
         }
+    }
 
-        return output;
+    /**
+     * タップkが入力の範囲内（0以上）になる最初の出力位置
+     */
+    static int firstInside(int k, int stride, int padding) {
+        return firstInside(k, stride, padding, 0);
+    }
+
+    /**
+     * タップkが入力の範囲内（size未満）になる最後の出力位置 + 1
+     */
+    static int endInside(int k, int stride, int padding, int size, int outputSize) {
+        return Math.max(0, Math.min(outputSize, Math.floorDiv(size - 1 + padding - k, stride) + 1));
+    }
+
+    /**
+     * タップkの入力位置がlo以上になる最初の出力位置（行の帯に分けるとき用）
+     */
+    private static int firstInside(int k, int stride, int padding, int lo) {
+        return Math.max(0, -Math.floorDiv(k - padding - lo, stride));
     }
 
     /**
@@ -274,4 +294,927 @@ public class ConvolutionOps {
 
         return padded;
     }
-}
\ No newline at end of file
+
+    // ========== DenseTensor版（NCHW） ==========
+
+    /**
+     * 出力サイズを計算
+     * @param inputSize 入力サイズ
+     * @param kernelSize カーネルサイズ
+     * @param stride ストライド
+     * @param padding パディング
+     * @return 出力サイズ
+     */
+    public static int outputSize(int inputSize, int kernelSize, int stride, int padding) {
+        return (inputSize + 2 * padding - kernelSize) / stride + 1;
+    }
+
+    /**
+     * バッチ全体にパディングを適用
+     * @param input 入力テンソル [batch][channels][height][width]
+     * @param padding パディングサイズ
+     * @return パディングされたテンソル（padding=0なら入力そのもの、精度は入力と同じ）
+     */
+    public static DenseTensor pad(DenseTensor input, int padding) {
+        if (padding == 0) {
+            return input.contiguous();
+        }
+
+        int batch = input.dim(0);
+        int channels = input.dim(1);
+        int height = input.dim(2);
+        int width = input.dim(3);
+        int paddedHeight = height + 2 * padding;
+        int paddedWidth = width + 2 * padding;
+
+        DenseTensor padded = DenseTensor.zeros(input.precision(), batch, channels, paddedHeight, paddedWidth);
+        padInto(input, padding, padded);
+        return padded;
+    }
+
+    /**
+     * パディングした入力を既存のテンソルに書き込む
+     * 境界部分には書き込まないため、ゼロで確保したバッファを同じパディングで使い回すこと
+     * @param input 入力テンソル [batch][channels][height][width]
+     * @param padding パディングサイズ
+     * @param dst 書き込み先 [batch][channels][height+2p][width+2p]（連続メモリ、精度は入力と同じ）
+     */
+    public static void padInto(DenseTensor input, int padding, DenseTensor dst) {
+        int planes = input.dim(0) * input.dim(1);
+        int height = input.dim(2);
+        int width = input.dim(3);
+        int paddedHeight = dst.dim(2);
+        int paddedWidth = dst.dim(3);
+
+        DenseTensor src = input.toPrecision(dst.precision()).contiguous();
+        boolean f32 = src.precision() == Precision.FLOAT32;
+        Object in = f32 ? src.floatData() : src.data();
+        Object out = f32 ? dst.floatData() : dst.data();
+
+        int srcIdx = src.offset();
+        for (int plane = 0; plane < planes; plane++) {
+            int dstBase = dst.offset() + plane * paddedHeight * paddedWidth + padding * paddedWidth + padding;
+            for (int h = 0; h < height; h++) {
+                System.arraycopy(in, srcIdx, out, dstBase + h * paddedWidth, width);
+                srcIdx += width;
+            }
+        }
+    }
+
+    /**
+     * 4D畳み込み演算（バッチ・複数チャンネル）
+     * FLOAT32の入力はfloatのまま計算する（カーネルとバイアスは入力の精度に合わせる）
+     * @param input 入力テンソル [batch][inChannels][height][width]
+     * @param kernels カーネル [outChannels][inChannels][kernelHeight][kernelWidth]
+     * @param bias バイアス [outChannels]（nullなら加算しない）
+     * @param stride ストライド
+     * @param padding パディング
+     * @return 畳み込み結果 [batch][outChannels][outputHeight][outputWidth]
+     */
+    public static DenseTensor convolve(DenseTensor input, DenseTensor kernels, DenseTensor bias,
+                                       int stride, int padding) {
+        int batch = input.dim(0);
+        int outChannels = kernels.dim(0);
+        int outputHeight = outputSize(input.dim(2), kernels.dim(2), stride, padding);
+        int outputWidth = outputSize(input.dim(3), kernels.dim(3), stride, padding);
+
+        DenseTensor output = DenseTensor.zeros(input.precision(), batch, outChannels, outputHeight, outputWidth);
+        convolveDirectInto(input, kernels, bias, stride, padding, output);
+        return output;
+    }
+
+    /**
+     * パディングしていない入力に対する畳み込みを既存のテンソルに書き込む
+     * 出力の面をバイアスで初期化し、(入力チャンネル, kh, kw)ごとに重み × 入力の行を出力の行に直接加算する
+     * 境界はタップごとに入力の範囲内に収まる出力の範囲（内側）を先に求めて処理するため、
+     * パディングしたコピーを作らず、内側のループに分岐がない（ストライド1ならSIMDのaxpy）
+     * (バッチ, 出力チャンネル)の面ごとに並列化する
+     * @param input 入力 [batch][inChannels][height][width]（パディング前）
+     * @param kernels カーネル [outChannels][inChannels][kernelHeight][kernelWidth]
+     * @param bias バイアス [outChannels]（nullなら加算しない）
+     * @param stride ストライド
+     * @param padding パディング
+     * @param output 書き込み先 [batch][outChannels][outputHeight][outputWidth]（連続メモリ、精度は入力と同じ）
+     */
+    public static void convolveDirectInto(DenseTensor input, DenseTensor kernels, DenseTensor bias,
+                                          int stride, int padding, DenseTensor output) {
+        Precision precision = output.precision();
+        DenseTensor in = input.toPrecision(precision).contiguous();
+        DenseTensor k = kernels.toPrecision(precision).contiguous();
+        DenseTensor b = bias == null ? null : bias.toPrecision(precision).contiguous();
+        int batch = in.dim(0);
+        int inChannels = in.dim(1);
+        int height = in.dim(2);
+        int width = in.dim(3);
+        int outChannels = k.dim(0);
+        int kernelHeight = k.dim(2);
+        int kernelWidth = k.dim(3);
+        int outputHeight = output.dim(2);
+        int outputWidth = output.dim(3);
+        if (k.dim(1) != inChannels || output.dim(0) != batch || output.dim(1) != outChannels
+                || outputHeight != outputSize(height, kernelHeight, stride, padding)
+                || outputWidth != outputSize(width, kernelWidth, stride, padding)) {
+            throw new IllegalArgumentException("Shape mismatch: " + input + " * " + kernels + " -> " + output);
+        }
+
+        // 出力チャンネルの面ごとの積和回数
+        int work = inChannels * kernelHeight * kernelWidth * outputHeight * outputWidth;
+        Matrix.parallelRows(batch * outChannels, work, (start, end) -> {
+            for (int plane = start; plane < end; plane++) {
+                int n = plane / outChannels;
+                int oc = plane % outChannels;
+                int inBase = in.offset() + n * inChannels * height * width;
+                int wBase = k.offset() + oc * inChannels * kernelHeight * kernelWidth;
+                int outBase = output.offset() + plane * outputHeight * outputWidth;
+                if (precision == Precision.FLOAT32) {
+                    float biasValue = b == null ? 0.0f : b.floatData()[b.offset() + oc];
+                    Arrays.fill(output.floatData(), outBase, outBase + outputHeight * outputWidth, biasValue);
+                    directPlane(in.floatData(), inBase, k.floatData(), wBase, output.floatData(), outBase,
+                            inChannels, height, width, kernelHeight, kernelWidth,
+                            outputHeight, outputWidth, stride, padding);
+                } else {
+                    double biasValue = b == null ? 0.0 : b.data()[b.offset() + oc];
+                    Arrays.fill(output.data(), outBase, outBase + outputHeight * outputWidth, biasValue);
+                    directPlane(in.data(), inBase, k.data(), wBase, output.data(), outBase,
+                            inChannels, height, width, kernelHeight, kernelWidth,
+                            outputHeight, outputWidth, stride, padding);
+                }
+            }
+        });
+    }
+
+    /**
+     * 1枚の出力の面に全入力チャンネルの寄与を加算（FLOAT64）
+     */
+    private static void directPlane(double[] in, int inBase, double[] w, int wBase, double[] out, int outBase,
+                                    int inChannels, int height, int width, int kernelHeight, int kernelWidth,
+                                    int outputHeight, int outputWidth, int stride, int padding) {
+        for (int ic = 0; ic < inChannels; ic++) {
+            int plane = inBase + ic * height * width;
+            for (int kh = 0; kh < kernelHeight; kh++) {
+                int ohStart = firstInside(kh, stride, padding);
+                int ohEnd = endInside(kh, stride, padding, height, outputHeight);
+                for (int kw = 0; kw < kernelWidth; kw++) {
+                    double weight = w[wBase + (ic * kernelHeight + kh) * kernelWidth + kw];
+                    int owStart = firstInside(kw, stride, padding);
+                    int count = endInside(kw, stride, padding, width, outputWidth) - owStart;
+                    if (count <= 0) {
+                        continue;
+                    }
+                    for (int oh = ohStart; oh < ohEnd; oh++) {
+                        int src = plane + (oh * stride + kh - padding) * width + owStart * stride + kw - padding;
+                        int dst = outBase + oh * outputWidth + owStart;
+                        if (stride == 1) {
+                            Simd.axpy(weight, in, src, out, dst, count);
+                        } else {
+                            for (int i = 0; i < count; i++) {
+                                out[dst + i] += weight * in[src + i * stride];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 1枚の出力の面に全入力チャンネルの寄与を加算（FLOAT32）
+     */
+    private static void directPlane(float[] in, int inBase, float[] w, int wBase, float[] out, int outBase,
+                                    int inChannels, int height, int width, int kernelHeight, int kernelWidth,
+                                    int outputHeight, int outputWidth, int stride, int padding) {
+        for (int ic = 0; ic < inChannels; ic++) {
+            int plane = inBase + ic * height * width;
+            for (int kh = 0; kh < kernelHeight; kh++) {
+                int ohStart = firstInside(kh, stride, padding);
+                int ohEnd = endInside(kh, stride, padding, height, outputHeight);
+                for (int kw = 0; kw < kernelWidth; kw++) {
+                    float weight = w[wBase + (ic * kernelHeight + kh) * kernelWidth + kw];
+                    int owStart = firstInside(kw, stride, padding);
+                    int count = endInside(kw, stride, padding, width, outputWidth) - owStart;
+                    if (count <= 0) {
+                        continue;
+                    }
+                    for (int oh = ohStart; oh < ohEnd; oh++) {
+                        int src = plane + (oh * stride + kh - padding) * width + owStart * stride + kw - padding;
+                        int dst = outBase + oh * outputWidth + owStart;
+                        if (stride == 1) {
+                            Simd.axpy(weight, in, src, out, dst, count);
+                        } else {
+                            for (int i = 0; i < count; i++) {
+                                out[dst + i] += weight * in[src + i * stride];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * パディング済みの入力に対する畳み込みを既存のテンソルに書き込む
+     * @param padded パディング済みの入力 [batch][inChannels][paddedHeight][paddedWidth]（連続メモリ）
+     * @param kernels カーネル [outChannels][inChannels][kernelHeight][kernelWidth]
+     * @param bias バイアス [outChannels]（nullなら加算しない）
+     * @param stride ストライド
+     * @param output 書き込み先 [batch][outChannels][outputHeight][outputWidth]（連続メモリ、精度は入力と同じ）
+     */
+    public static void convolvePaddedInto(DenseTensor padded, DenseTensor kernels, DenseTensor bias,
+                                          int stride, DenseTensor output) {
+        int batch = padded.dim(0);
+        int inChannels = padded.dim(1);
+        int paddedHeight = padded.dim(2);
+        int paddedWidth = padded.dim(3);
+        int outChannels = kernels.dim(0);
+        int kernelHeight = kernels.dim(2);
+        int kernelWidth = kernels.dim(3);
+        int outputHeight = output.dim(2);
+        int outputWidth = output.dim(3);
+
+        Precision precision = padded.precision();
+        DenseTensor k = kernels.toPrecision(precision).contiguous();
+        DenseTensor b = bias == null ? null : bias.toPrecision(precision).contiguous();
+        if (precision == Precision.FLOAT32) {
+            convolveFloat(padded.floatData(), padded.offset(), k.floatData(), k.offset(),
+                    b == null ? null : b.floatData(), b == null ? 0 : b.offset(),
+                    output.floatData(), output.offset(),
+                    batch, inChannels, outChannels, paddedHeight, paddedWidth,
+                    kernelHeight, kernelWidth, outputHeight, outputWidth, stride);
+            return;
+        }
+
+        double[] in = padded.data();
+        int inOff = padded.offset();
+        double[] w = k.data();
+        int wOff = k.offset();
+        double[] bd = b == null ? null : b.data();
+        int bOff = b == null ? 0 : b.offset();
+        double[] out = output.data();
+
+        int outIdx = output.offset();
+        for (int n = 0; n < batch; n++) {
+            for (int oc = 0; oc < outChannels; oc++) {
+                for (int oh = 0; oh < outputHeight; oh++) {
+                    for (int ow = 0; ow < outputWidth; ow++) {
+                        double sum = bd == null ? 0.0 : bd[bOff + oc];
+
+                        for (int ic = 0; ic < inChannels; ic++) {
+                            int inBase = inOff + ((n * inChannels + ic) * paddedHeight + oh * stride) * paddedWidth
+                                    + ow * stride;
+                            int wBase = wOff + (oc * inChannels + ic) * kernelHeight * kernelWidth;
+                            for (int kh = 0; kh < kernelHeight; kh++) {
+                                int inRow = inBase + kh * paddedWidth;
+                                int wRow = wBase + kh * kernelWidth;
+                                for (int kw = 0; kw < kernelWidth; kw++) {
+                                    sum += in[inRow + kw] * w[wRow + kw];
+                                }
+                            }
+                        }
+
+                        out[outIdx++] = sum;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void convolveFloat(float[] in, int inOff, float[] w, int wOff, float[] b, int bOff,
+                                      float[] out, int outOff,
+                                      int batch, int inChannels, int outChannels,
+                                      int paddedHeight, int paddedWidth, int kernelHeight, int kernelWidth,
+                                      int outputHeight, int outputWidth, int stride) {
+        int outIdx = outOff;
+        for (int n = 0; n < batch; n++) {
+            for (int oc = 0; oc < outChannels; oc++) {
+                for (int oh = 0; oh < outputHeight; oh++) {
+                    for (int ow = 0; ow < outputWidth; ow++) {
+                        float sum = b == null ? 0.0f : b[bOff + oc];
+
+                        for (int ic = 0; ic < inChannels; ic++) {
+                            int inBase = inOff + ((n * inChannels + ic) * paddedHeight + oh * stride) * paddedWidth
+                                    + ow * stride;
+                            int wBase = wOff + (oc * inChannels + ic) * kernelHeight * kernelWidth;
+                            for (int kh = 0; kh < kernelHeight; kh++) {
+                                int inRow = inBase + kh * paddedWidth;
+                                int wRow = wBase + kh * kernelWidth;
+                                for (int kw = 0; kw < kernelWidth; kw++) {
+                                    sum += in[inRow + kw] * w[wRow + kw];
+                                }
+                            }
+                        }
+
+                        out[outIdx++] = sum;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 畳み込みのバイアス勾配（出力勾配の総和）
+     * @param gradOutput 出力に対する勾配 [batch][outChannels][outputHeight][outputWidth]
+     * @return バイアスの勾配 [outChannels]（精度はgradOutputと同じ）
+     */
+    public static DenseTensor convolveBackwardBias(DenseTensor gradOutput) {
+        DenseTensor gradBias = DenseTensor.zeros(gradOutput.precision(), gradOutput.dim(1));
+        convolveBackwardBiasInto(gradOutput, gradBias);
+        return gradBias;
+    }
+
+    /**
+     * 畳み込みのバイアス勾配を既存のテンソルに書き込む
+     * @param gradOutput 出力に対する勾配 [batch][outChannels][outputHeight][outputWidth]
+     * @param gradBias 書き込み先 [outChannels]（上書きされる）
+     */
+    public static void convolveBackwardBiasInto(DenseTensor gradOutput, DenseTensor gradBias) {
+        DenseTensor grad = gradOutput.contiguous();
+        int batch = grad.dim(0);
+        int outChannels = grad.dim(1);
+        int outputPlane = grad.dim(2) * grad.dim(3);
+        int gOff = grad.offset();
+
+        gradBias.fill(0);
+        for (int n = 0; n < batch; n++) {
+            for (int oc = 0; oc < outChannels; oc++) {
+                int gBase = gOff + (n * outChannels + oc) * outputPlane;
+                double sum = 0;
+                if (grad.precision() == Precision.FLOAT32) {
+                    float[] g = grad.floatData();
+                    for (int i = 0; i < outputPlane; i++) {
+                        sum += g[gBase + i];
+                    }
+                } else {
+                    double[] g = grad.data();
+                    for (int i = 0; i < outputPlane; i++) {
+                        sum += g[gBase + i];
+                    }
+                }
+                gradBias.setFlat(oc, gradBias.getFlat(oc) + sum);
+            }
+        }
+    }
+
+    /**
+     * 畳み込みのカーネル勾配 dL/dW = input ⋆ gradOutput（相関演算、バッチで合計）
+     * @param paddedInput パディング済みの入力 [batch][inChannels][paddedHeight][paddedWidth]
+     * @param gradOutput 出力に対する勾配 [batch][outChannels][outputHeight][outputWidth]
+     * @param kernelSize カーネルサイズ
+     * @param stride ストライド
+     * @return カーネルの勾配 [outChannels][inChannels][kernelSize][kernelSize]
+     */
+    public static DenseTensor convolveBackwardKernels(DenseTensor paddedInput, DenseTensor gradOutput,
+                                                      int kernelSize, int stride) {
+        DenseTensor gradKernels = DenseTensor.zeros(paddedInput.precision(),
+                gradOutput.dim(1), paddedInput.dim(1), kernelSize, kernelSize);
+        convolveBackwardKernelsInto(paddedInput, gradOutput, stride, gradKernels);
+        return gradKernels;
+    }
+
+    /**
+     * 畳み込みのカーネル勾配を既存のテンソルに書き込む
+     * @param paddedInput パディング済みの入力 [batch][inChannels][paddedHeight][paddedWidth]
+     * @param gradOutput 出力に対する勾配 [batch][outChannels][outputHeight][outputWidth]
+     * @param stride ストライド
+     * @param gradKernels 書き込み先 [outChannels][inChannels][kernelSize][kernelSize]（上書きされる）
+     */
+    public static void convolveBackwardKernelsInto(DenseTensor paddedInput, DenseTensor gradOutput,
+                                                   int stride, DenseTensor gradKernels) {
+        Precision precision = paddedInput.precision();
+        DenseTensor pin = paddedInput.contiguous();
+        DenseTensor grad = gradOutput.toPrecision(precision).contiguous();
+        int batch = pin.dim(0);
+        int inChannels = pin.dim(1);
+        int paddedWidth = pin.dim(3);
+        int paddedPlane = pin.dim(2) * paddedWidth;
+        int outChannels = grad.dim(1);
+        int outputHeight = grad.dim(2);
+        int outputWidth = grad.dim(3);
+        int outputPlane = outputHeight * outputWidth;
+        int kernelSize = gradKernels.dim(2);
+        int gOff = grad.offset();
+        int inOff = pin.offset();
+        boolean f32 = precision == Precision.FLOAT32;
+
+        double[] g = f32 ? null : grad.data();
+        double[] in = f32 ? null : pin.data();
+        float[] gf = f32 ? grad.floatData() : null;
+        float[] inf = f32 ? pin.floatData() : null;
+
+        // 出力チャンネルごとに並列化（書き込み先のカーネルは出力チャンネルごとに別、
+        // 各要素の総和の順序はスレッド数によらないため結果は決定的）
+        int perChannel = inChannels * kernelSize * kernelSize;
+        Matrix.parallelRows(outChannels, perChannel * batch * outputPlane, (start, end) -> {
+            for (int oc = start; oc < end; oc++) {
+                int idx = oc * perChannel;
+                for (int ic = 0; ic < inChannels; ic++) {
+                    for (int kh = 0; kh < kernelSize; kh++) {
+                        for (int kw = 0; kw < kernelSize; kw++) {
+                            double sum = 0;
+
+                            for (int n = 0; n < batch; n++) {
+                                int gBase = gOff + (n * outChannels + oc) * outputPlane;
+                                int inBase = inOff + (n * inChannels + ic) * paddedPlane;
+
+                                // 出力の各位置について
+                                for (int oh = 0; oh < outputHeight; oh++) {
+                                    // 対応する入力位置
+                                    int inRow = inBase + (oh * stride + kh) * paddedWidth + kw;
+                                    int gRow = gBase + oh * outputWidth;
+                                    if (stride == 1) {
+                                        sum += f32 ? Simd.dot(gf, gRow, inf, inRow, outputWidth)
+                                                : Simd.dot(g, gRow, in, inRow, outputWidth);
+                                    } else if (f32) {
+                                        float partial = 0;
+                                        for (int ow = 0; ow < outputWidth; ow++) {
+                                            partial += gf[gRow + ow] * inf[inRow + ow * stride];
+                                        }
+                                        sum += partial;
+                                    } else {
+                                        for (int ow = 0; ow < outputWidth; ow++) {
+                                            sum += g[gRow + ow] * in[inRow + ow * stride];
+                                        }
+                                    }
+                                }
+                            }
+
+                            gradKernels.setFlat(idx++, sum);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * 畳み込みの入力勾配（転置畳み込み）
+     * @param gradOutput 出力に対する勾配 [batch][outChannels][outputHeight][outputWidth]
+     * @param kernels カーネル [outChannels][inChannels][kernelSize][kernelSize]
+     * @param inputHeight 元の入力の高さ
+     * @param inputWidth 元の入力の幅
+     * @param stride ストライド
+     * @param padding パディング
+     * @return 入力に対する勾配 [batch][inChannels][inputHeight][inputWidth]（精度はgradOutputと同じ）
+     */
+    public static DenseTensor convolveBackwardInput(DenseTensor gradOutput, DenseTensor kernels,
+                                                    int inputHeight, int inputWidth,
+                                                    int stride, int padding) {
+        DenseTensor gradInput = DenseTensor.zeros(gradOutput.precision(),
+                gradOutput.dim(0), kernels.dim(1), inputHeight, inputWidth);
+        convolveBackwardInputInto(gradOutput, kernels, stride, padding, gradInput);
+        return gradInput;
+    }
+
+    /**
+     * 畳み込みの入力勾配を既存のテンソルに書き込む
+     * パディング領域への寄与は捨てるため、パディングした勾配バッファを必要としない
+     * @param gradOutput 出力に対する勾配 [batch][outChannels][outputHeight][outputWidth]
+     * @param kernels カーネル [outChannels][inChannels][kernelSize][kernelSize]
+     * @param stride ストライド
+     * @param padding パディング
+     * @param gradInput 書き込み先 [batch][inChannels][inputHeight][inputWidth]（連続メモリ、上書きされる）
+     */
+    public static void convolveBackwardInputInto(DenseTensor gradOutput, DenseTensor kernels,
+                                                 int stride, int padding, DenseTensor gradInput) {
+        Precision precision = gradInput.precision();
+        DenseTensor grad = gradOutput.toPrecision(precision).contiguous();
+        DenseTensor k = kernels.toPrecision(precision).contiguous();
+        int batch = grad.dim(0);
+        int outChannels = grad.dim(1);
+        int outputHeight = grad.dim(2);
+        int outputWidth = grad.dim(3);
+        int inChannels = k.dim(1);
+        int kernelSize = k.dim(2);
+        int inputHeight = gradInput.dim(2);
+        int inputWidth = gradInput.dim(3);
+        boolean f32 = precision == Precision.FLOAT32;
+
+        // (バッチ, 入力チャンネル)の面ごと、面が少なければさらに行の帯ごとに並列化
+        // 各タスクは自分の帯の行だけに書き込み、要素ごとの加算の順序は分け方によらない
+        int planes = batch * inChannels;
+        int split = Math.min(inputHeight, Math.max(1, (BACKWARD_TASKS_PER_CORE * CORES + planes - 1) / planes));
+        int rowsPerBand = (inputHeight + split - 1) / split;
+        int bands = (inputHeight + rowsPerBand - 1) / rowsPerBand;
+        int work = outChannels * kernelSize * kernelSize * outputHeight * outputWidth / bands;
+        Matrix.parallelRows(planes * bands, work, (start, end) -> {
+            for (int task = start; task < end; task++) {
+                int plane = task / bands;
+                int rowStart = task % bands * rowsPerBand;
+                int rowEnd = Math.min(inputHeight, rowStart + rowsPerBand);
+                int n = plane / inChannels;
+                int ic = plane % inChannels;
+                int giBase = gradInput.offset() + plane * inputHeight * inputWidth;
+                int gBase = grad.offset() + n * outChannels * outputHeight * outputWidth;
+                int wBase = k.offset() + ic * kernelSize * kernelSize;
+                if (f32) {
+                    Arrays.fill(gradInput.floatData(), giBase + rowStart * inputWidth, giBase + rowEnd * inputWidth, 0.0f);
+                    backwardInputBand(grad.floatData(), gBase, k.floatData(), wBase, gradInput.floatData(), giBase,
+                            outChannels, inChannels, kernelSize, inputWidth,
+                            outputHeight, outputWidth, stride, padding, rowStart, rowEnd);
+                } else {
+                    Arrays.fill(gradInput.data(), giBase + rowStart * inputWidth, giBase + rowEnd * inputWidth, 0.0);
+                    backwardInputBand(grad.data(), gBase, k.data(), wBase, gradInput.data(), giBase,
+                            outChannels, inChannels, kernelSize, inputWidth,
+                            outputHeight, outputWidth, stride, padding, rowStart, rowEnd);
+                }
+            }
+        });
+    }
+
+    /**
+     * 1枚の入力勾配の面の行 rowStart..rowEnd に全出力チャンネルの寄与を加算（FLOAT64）
+     * 順伝播の直接畳み込みと同じく、タップごとに範囲内の出力の範囲を求めて行単位で加算する
+     */
+    private static void backwardInputBand(double[] g, int gBase, double[] w, int wBase, double[] gi, int giBase,
+                                          int outChannels, int inChannels, int kernelSize,
+                                          int inputWidth, int outputHeight, int outputWidth,
+                                          int stride, int padding, int rowStart, int rowEnd) {
+        int kernelArea = kernelSize * kernelSize;
+        for (int oc = 0; oc < outChannels; oc++) {
+            int gPlane = gBase + oc * outputHeight * outputWidth;
+            int wPlane = wBase + oc * inChannels * kernelArea;
+            for (int kh = 0; kh < kernelSize; kh++) {
+                int ohStart = firstInside(kh, stride, padding, rowStart);
+                int ohEnd = endInside(kh, stride, padding, rowEnd, outputHeight);
+                for (int kw = 0; kw < kernelSize; kw++) {
+                    double weight = w[wPlane + kh * kernelSize + kw];
+                    int owStart = firstInside(kw, stride, padding);
+                    int count = endInside(kw, stride, padding, inputWidth, outputWidth) - owStart;
+                    if (count <= 0) {
+                        continue;
+                    }
+                    for (int oh = ohStart; oh < ohEnd; oh++) {
+                        int src = gPlane + oh * outputWidth + owStart;
+                        int dst = giBase + (oh * stride + kh - padding) * inputWidth + owStart * stride + kw - padding;
+                        if (stride == 1) {
+                            Simd.axpy(weight, g, src, gi, dst, count);
+                        } else {
+                            for (int i = 0; i < count; i++) {
+                                gi[dst + i * stride] += weight * g[src + i];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 1枚の入力勾配の面の行 rowStart..rowEnd に全出力チャンネルの寄与を加算（FLOAT32）
+     */
+    private static void backwardInputBand(float[] g, int gBase, float[] w, int wBase, float[] gi, int giBase,
+                                          int outChannels, int inChannels, int kernelSize,
+                                          int inputWidth, int outputHeight, int outputWidth,
+                                          int stride, int padding, int rowStart, int rowEnd) {
+        int kernelArea = kernelSize * kernelSize;
+        for (int oc = 0; oc < outChannels; oc++) {
+            int gPlane = gBase + oc * outputHeight * outputWidth;
+            int wPlane = wBase + oc * inChannels * kernelArea;
+            for (int kh = 0; kh < kernelSize; kh++) {
+                int ohStart = firstInside(kh, stride, padding, rowStart);
+                int ohEnd = endInside(kh, stride, padding, rowEnd, outputHeight);
+                for (int kw = 0; kw < kernelSize; kw++) {
+                    float weight = w[wPlane + kh * kernelSize + kw];
+                    int owStart = firstInside(kw, stride, padding);
+                    int count = endInside(kw, stride, padding, inputWidth, outputWidth) - owStart;
+                    if (count <= 0) {
+                        continue;
+                    }
+                    for (int oh = ohStart; oh < ohEnd; oh++) {
+                        int src = gPlane + oh * outputWidth + owStart;
+                        int dst = giBase + (oh * stride + kh - padding) * inputWidth + owStart * stride + kw - padding;
+                        if (stride == 1) {
+                            Simd.axpy(weight, g, src, gi, dst, count);
+                        } else {
+                            for (int i = 0; i < count; i++) {
+                                gi[dst + i * stride] += weight * g[src + i];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // ========== Depthwise / 1x1（pointwise）畳み込み ==========
+
+    /**
+     * Depthwise畳み込み（チャンネルごとに独立した K×K の畳み込み）を既存のテンソルに書き込む
+     * 各チャンネルの面に直接畳み込みの行ごとのaxpyを適用する（ストライド1ならSIMD、パディングのコピーなし）
+     * @param input 入力 [batch][channels][height][width]（パディング前）
+     * @param kernels カーネル [channels][1][kernelSize][kernelSize]
+     * @param bias バイアス [channels]（nullなら加算しない）
+     * @param stride ストライド
+     * @param padding パディング
+     * @param output 書き込み先 [batch][channels][outputHeight][outputWidth]（連続メモリ、精度は入力と同じ）
+     */
+    public static void convolveDepthwiseInto(DenseTensor input, DenseTensor kernels, DenseTensor bias,
+                                             int stride, int padding, DenseTensor output) {
+        Precision precision = output.precision();
+        DenseTensor in = input.toPrecision(precision).contiguous();
+        DenseTensor k = kernels.toPrecision(precision).contiguous();
+        DenseTensor b = bias == null ? null : bias.toPrecision(precision).contiguous();
+        int batch = in.dim(0);
+        int channels = in.dim(1);
+        int height = in.dim(2);
+        int width = in.dim(3);
+        int kernelSize = k.dim(2);
+        int outputHeight = output.dim(2);
+        int outputWidth = output.dim(3);
+        if (k.dim(0) != channels || k.dim(1) != 1 || output.dim(0) != batch || output.dim(1) != channels
+                || outputHeight != outputSize(height, kernelSize, stride, padding)
+                || outputWidth != outputSize(width, kernelSize, stride, padding)) {
+            throw new IllegalArgumentException("Shape mismatch: " + input + " * " + kernels + " -> " + output);
+        }
+
+        Matrix.parallelRows(batch * channels, kernelSize * kernelSize * outputHeight * outputWidth, (start, end) -> {
+            for (int plane = start; plane < end; plane++) {
+                int c = plane % channels;
+                int inBase = in.offset() + plane * height * width;
+                int wBase = k.offset() + c * kernelSize * kernelSize;
+                int outBase = output.offset() + plane * outputHeight * outputWidth;
+                if (precision == Precision.FLOAT32) {
+                    float biasValue = b == null ? 0.0f : b.floatData()[b.offset() + c];
+                    Arrays.fill(output.floatData(), outBase, outBase + outputHeight * outputWidth, biasValue);
+                    directPlane(in.floatData(), inBase, k.floatData(), wBase, output.floatData(), outBase,
+                            1, height, width, kernelSize, kernelSize, outputHeight, outputWidth, stride, padding);
+                } else {
+                    double biasValue = b == null ? 0.0 : b.data()[b.offset() + c];
+                    Arrays.fill(output.data(), outBase, outBase + outputHeight * outputWidth, biasValue);
+                    directPlane(in.data(), inBase, k.data(), wBase, output.data(), outBase,
+                            1, height, width, kernelSize, kernelSize, outputHeight, outputWidth, stride, padding);
+                }
+            }
+        });
+    }
+
+    /**
+     * Depthwise畳み込みのカーネル勾配を既存のテンソルに書き込む（バッチで合計）
+     * チャンネルごとに並列化し、タップごとに範囲内の出力の行と入力の行の内積を足す（パディングのコピーなし）
+     * @param input 順伝播の入力 [batch][channels][height][width]（パディング前）
+     * @param gradOutput 出力に対する勾配 [batch][channels][outputHeight][outputWidth]
+     * @param stride ストライド
+     * @param padding パディング
+     * @param gradKernels 書き込み先 [channels][1][kernelSize][kernelSize]（上書きされる）
+     */
+    public static void convolveDepthwiseBackwardKernelsInto(DenseTensor input, DenseTensor gradOutput,
+                                                            int stride, int padding, DenseTensor gradKernels) {
+        Precision precision = input.precision();
+        DenseTensor in = input.contiguous();
+        DenseTensor grad = gradOutput.toPrecision(precision).contiguous();
+        int batch = in.dim(0);
+        int channels = in.dim(1);
+        int height = in.dim(2);
+        int width = in.dim(3);
+        int outputHeight = grad.dim(2);
+        int outputWidth = grad.dim(3);
+        int kernelSize = gradKernels.dim(2);
+        boolean f32 = precision == Precision.FLOAT32;
+
+        // 書き込み先はチャンネルごとに別、総和の順序はスレッド数によらない
+        Matrix.parallelRows(channels, kernelSize * kernelSize * batch * outputHeight * outputWidth, (start, end) -> {
+            for (int c = start; c < end; c++) {
+                for (int kh = 0; kh < kernelSize; kh++) {
+                    int ohStart = firstInside(kh, stride, padding);
+                    int ohEnd = endInside(kh, stride, padding, height, outputHeight);
+                    for (int kw = 0; kw < kernelSize; kw++) {
+                        int owStart = firstInside(kw, stride, padding);
+                        int count = endInside(kw, stride, padding, width, outputWidth) - owStart;
+                        double sum = 0;
+                        for (int n = 0; n < batch && count > 0; n++) {
+                            int plane = n * channels + c;
+                            int inBase = in.offset() + plane * height * width;
+                            int gBase = grad.offset() + plane * outputHeight * outputWidth;
+                            for (int oh = ohStart; oh < ohEnd; oh++) {
+                                int src = inBase + (oh * stride + kh - padding) * width + owStart * stride + kw - padding;
+                                int gRow = gBase + oh * outputWidth + owStart;
+                                if (stride == 1) {
+                                    sum += f32 ? Simd.dot(grad.floatData(), gRow, in.floatData(), src, count)
+                                            : Simd.dot(grad.data(), gRow, in.data(), src, count);
+                                } else if (f32) {
+                                    float partial = 0;
+                                    for (int i = 0; i < count; i++) {
+                                        partial += grad.floatData()[gRow + i] * in.floatData()[src + i * stride];
+                                    }
+                                    sum += partial;
+                                } else {
+                                    for (int i = 0; i < count; i++) {
+                                        sum += grad.data()[gRow + i] * in.data()[src + i * stride];
+                                    }
+                                }
+                            }
+                        }
+                        gradKernels.setFlat((c * kernelSize + kh) * kernelSize + kw, sum);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Depthwise畳み込みの入力勾配を既存のテンソルに書き込む
+     * (バッチ, チャンネル)の面ごとに、順伝播と同じタップごとの行のaxpyで勾配を散らす
+     * @param gradOutput 出力に対する勾配 [batch][channels][outputHeight][outputWidth]
+     * @param kernels カーネル [channels][1][kernelSize][kernelSize]
+     * @param stride ストライド
+     * @param padding パディング
+     * @param gradInput 書き込み先 [batch][channels][inputHeight][inputWidth]（連続メモリ、上書きされる）
+     */
+    public static void convolveDepthwiseBackwardInputInto(DenseTensor gradOutput, DenseTensor kernels,
+                                                          int stride, int padding, DenseTensor gradInput) {
+        Precision precision = gradInput.precision();
+        DenseTensor grad = gradOutput.toPrecision(precision).contiguous();
+        DenseTensor k = kernels.toPrecision(precision).contiguous();
+        int channels = grad.dim(1);
+        int outputHeight = grad.dim(2);
+        int outputWidth = grad.dim(3);
+        int kernelSize = k.dim(2);
+        int inputHeight = gradInput.dim(2);
+        int inputWidth = gradInput.dim(3);
+        boolean f32 = precision == Precision.FLOAT32;
+
+        int work = kernelSize * kernelSize * outputHeight * outputWidth;
+        Matrix.parallelRows(grad.dim(0) * channels, work, (start, end) -> {
+            for (int plane = start; plane < end; plane++) {
+                int giBase = gradInput.offset() + plane * inputHeight * inputWidth;
+                int gBase = grad.offset() + plane * outputHeight * outputWidth;
+                int wBase = k.offset() + plane % channels * kernelSize * kernelSize;
+                if (f32) {
+                    Arrays.fill(gradInput.floatData(), giBase, giBase + inputHeight * inputWidth, 0.0f);
+                    backwardInputBand(grad.floatData(), gBase, k.floatData(), wBase, gradInput.floatData(), giBase,
+                            1, 1, kernelSize, inputWidth, outputHeight, outputWidth, stride, padding, 0, inputHeight);
+                } else {
+                    Arrays.fill(gradInput.data(), giBase, giBase + inputHeight * inputWidth, 0.0);
+                    backwardInputBand(grad.data(), gBase, k.data(), wBase, gradInput.data(), giBase,
+                            1, 1, kernelSize, inputWidth, outputHeight, outputWidth, stride, padding, 0, inputHeight);
+                }
+            }
+        });
+    }
+
+    /**
+     * 1x1（pointwise）畳み込みを既存のテンソルに書き込む
+     * 画像ごとに Y[n] = W × X[n]（[outChannels][inChannels] × [inChannels][height * width]）の行列積
+     * @param input 入力 [batch][inChannels][height][width]
+     * @param weights 重み [outChannels][inChannels]
+     * @param bias バイアス [outChannels]（nullなら加算しない）
+     * @param output 書き込み先 [batch][outChannels][height][width]（連続メモリ、精度は入力と同じ）
+     */
+    public static void convolvePointwiseInto(DenseTensor input, DenseTensor weights, DenseTensor bias,
+                                             DenseTensor output) {
+        Precision precision = output.precision();
+        DenseTensor in = input.toPrecision(precision).contiguous();
+        DenseTensor w = weights.toPrecision(precision).contiguous();
+        int batch = in.dim(0);
+        int inChannels = in.dim(1);
+        int planeSize = in.dim(2) * in.dim(3);
+        int outChannels = w.dim(0);
+        if (w.dim(1) != inChannels || output.dim(0) != batch || output.dim(1) != outChannels
+                || output.dim(2) != in.dim(2) || output.dim(3) != in.dim(3)) {
+            throw new IllegalArgumentException("Shape mismatch: " + input + " * " + weights + " -> " + output);
+        }
+
+        for (int n = 0; n < batch; n++) {
+            int inOff = in.offset() + n * inChannels * planeSize;
+            int outOff = output.offset() + n * outChannels * planeSize;
+            if (precision == Precision.FLOAT32) {
+                Matrix.gemm(outChannels, planeSize, inChannels, w.floatData(), w.offset(), inChannels,
+                        in.floatData(), inOff, planeSize, output.floatData(), outOff, planeSize);
+            } else {
+                Matrix.gemm(outChannels, planeSize, inChannels, w.data(), w.offset(), inChannels,
+                        in.data(), inOff, planeSize, output.data(), outOff, planeSize);
+            }
+        }
+        if (bias != null) {
+            addChannelBias(bias.toPrecision(precision).contiguous(), output);
+        }
+    }
+
+    /**
+     * 1x1畳み込みの重みの勾配を既存のテンソルに書き込む
+     * gradW = Σ_n gradOut[n] × X[n]ᵀ（転置は作らず、ストライドの入れ替えで行列積に渡す）
+     * @param input 順伝播の入力 [batch][inChannels][height][width]
+     * @param gradOutput 出力に対する勾配 [batch][outChannels][height][width]
+     * @param gradWeights 書き込み先 [outChannels][inChannels]（連続メモリ、上書きされる）
+     */
+    public static void convolvePointwiseBackwardWeightsInto(DenseTensor input, DenseTensor gradOutput,
+                                                            DenseTensor gradWeights) {
+        Precision precision = gradWeights.precision();
+        DenseTensor in = input.toPrecision(precision).contiguous();
+        DenseTensor grad = gradOutput.toPrecision(precision).contiguous();
+        int batch = in.dim(0);
+        int inChannels = in.dim(1);
+        int planeSize = in.dim(2) * in.dim(3);
+        int outChannels = grad.dim(1);
+        int size = outChannels * inChannels;
+        boolean f32 = precision == Precision.FLOAT32;
+
+        // 1枚目は書き込み先に直接、2枚目以降は作業領域に計算して足す
+        // 作業領域はこの呼び出しで確保する（行列積は並列化されるので、スレッドごとの領域を持ったまま
+        // 待つと、同じスレッドが実行する別のタスクに上書きされる。大きさは重みと同じで行列積より十分小さい）
+        double[] partial = batch > 1 && !f32 ? new double[size] : null;
+        float[] partialf = batch > 1 && f32 ? new float[size] : null;
+        for (int n = 0; n < batch; n++) {
+            int gOff = grad.offset() + n * outChannels * planeSize;
+            int inOff = in.offset() + n * inChannels * planeSize;
+            if (f32) {
+                float[] dst = n == 0 ? gradWeights.floatData() : partialf;
+                Matrix.gemmStrided(outChannels, inChannels, planeSize, grad.floatData(), gOff, planeSize, 1,
+                        in.floatData(), inOff, 1, planeSize, dst, n == 0 ? gradWeights.offset() : 0, inChannels);
+                if (n > 0) {
+                    Simd.add(gradWeights.floatData(), gradWeights.offset(), partialf, 0,
+                            gradWeights.floatData(), gradWeights.offset(), size);
+                }
+            } else {
+                double[] dst = n == 0 ? gradWeights.data() : partial;
+                Matrix.gemmStrided(outChannels, inChannels, planeSize, grad.data(), gOff, planeSize, 1,
+                        in.data(), inOff, 1, planeSize, dst, n == 0 ? gradWeights.offset() : 0, inChannels);
+                if (n > 0) {
+                    Simd.add(gradWeights.data(), gradWeights.offset(), partial, 0,
+                            gradWeights.data(), gradWeights.offset(), size);
+                }
+            }
+        }
+    }
+
+    /**
+     * 1x1畳み込みの入力勾配を既存のテンソルに書き込む
+     * 画像ごとに gradX[n] = Wᵀ × gradOut[n]（転置は作らず、ストライドの入れ替えで行列積に渡す）
+     * @param gradOutput 出力に対する勾配 [batch][outChannels][height][width]
+     * @param weights 重み [outChannels][inChannels]
+     * @param gradInput 書き込み先 [batch][inChannels][height][width]（連続メモリ、上書きされる）
+     */
+    public static void convolvePointwiseBackwardInputInto(DenseTensor gradOutput, DenseTensor weights,
+                                                          DenseTensor gradInput) {
+        Precision precision = gradInput.precision();
+        DenseTensor grad = gradOutput.toPrecision(precision).contiguous();
+        DenseTensor w = weights.toPrecision(precision).contiguous();
+        int batch = grad.dim(0);
+        int outChannels = grad.dim(1);
+        int planeSize = grad.dim(2) * grad.dim(3);
+        int inChannels = w.dim(1);
+
+        for (int n = 0; n < batch; n++) {
+            int gOff = grad.offset() + n * outChannels * planeSize;
+            int giOff = gradInput.offset() + n * inChannels * planeSize;
+            if (precision == Precision.FLOAT32) {
+                Matrix.gemmStrided(inChannels, planeSize, outChannels, w.floatData(), w.offset(), 1, inChannels,
+                        grad.floatData(), gOff, planeSize, 1, gradInput.floatData(), giOff, planeSize);
+            } else {
+                Matrix.gemmStrided(inChannels, planeSize, outChannels, w.data(), w.offset(), 1, inChannels,
+                        grad.data(), gOff, planeSize, 1, gradInput.data(), giOff, planeSize);
+            }
+        }
+    }
+
+    /**
+     * 出力の各チャンネルの面にバイアスを加算
+     */
+    private static void addChannelBias(DenseTensor bias, DenseTensor output) {
+        int channels = output.dim(1);
+        int planeSize = output.dim(2) * output.dim(3);
+        int planes = output.dim(0) * channels;
+        for (int p = 0; p < planes; p++) {
+            int base = output.offset() + p * planeSize;
+            int c = p % channels;
+            if (output.precision() == Precision.FLOAT32) {
+                float b = bias.floatData()[bias.offset() + c];
+                float[] out = output.floatData();
+                for (int i = 0; i < planeSize; i++) {
+                    out[base + i] += b;
+                }
+            } else {
+                double b = bias.data()[bias.offset() + c];
+                double[] out = output.data();
+                for (int i = 0; i < planeSize; i++) {
+                    out[base + i] += b;
+                }
+            }
+        }
+    }
+
+    /**
+     * 4D最大プーリング（推論用）
+     * @param input 入力テンソル [batch][channels][height][width]
+     * @param poolSize プーリングサイズ
+     * @param stride ストライド
+     * @return プーリング結果 [batch][channels][outputHeight][outputWidth]（精度は入力と同じ）
+     */
+    public static DenseTensor maxPool(DenseTensor input, int poolSize, int stride) {
+        DenseTensor output = DenseTensor.zeros(input.precision(), input.dim(0), input.dim(1),
+                MaxPooling.outputSize(input.dim(2), poolSize, stride),
+                MaxPooling.outputSize(input.dim(3), poolSize, stride));
+        maxPoolInto(input, poolSize, stride, output);
+        return output;
+    }
+
+    /**
+     * 4D最大プーリングの結果を既存のテンソルに書き込む（{@link MaxPooling#forwardInto}の推論用）
+     * @param input 入力テンソル [batch][channels][height][width]
+     * @param poolSize プーリングサイズ
+     * @param stride ストライド
+     * @param output 書き込み先 [batch][channels][outputHeight][outputWidth]（連続メモリ）
+     */
+    public static void maxPoolInto(DenseTensor input, int poolSize, int stride, DenseTensor output) {
+        MaxPooling.forwardInto(input, poolSize, stride, null, output);
+    }
+}
@@ -0,0 +1,595 @@
+package math;
+
+import java.util.Arrays;
+
+/**
+ * 連続メモリ上の多次元テンソル（NCHWレイアウト）
+ * 1本のプリミティブ配列（FLOAT64ならdouble[]、FLOAT32ならfloat[]）と
+ * shape/strideのメタデータで多次元配列を表現する
+ * reshape/flatten/slice/narrow/permuteはデータをコピーせずビューを返す
+ */
+public final class DenseTensor {
+
+    private final double[] data;       // FLOAT64のときのみ
+    private final float[] floatData;   // FLOAT32のときのみ
+    private final int offset;
+    private final int[] shape;
+    private final int[] strides;
+    private final int size;
+
+    private DenseTensor(double[] data, float[] floatData, int offset, int[] shape, int[] strides) {
+        this.data = data;
+        this.floatData = floatData;
+        this.offset = offset;
+        this.shape = shape;
+        this.strides = strides;
+        this.size = sizeOf(shape);
+    }
+
+    // ========== 生成 ==========
+
+    /**
+     * ゼロで初期化されたテンソルを作成
+     * @param shape 各次元のサイズ
+     * @return 新しいテンソル
+     */
+    public static DenseTensor zeros(int... shape) {
+        return zeros(Precision.FLOAT64, shape);
+    }
+
+    /**
+     * 精度を指定してゼロで初期化されたテンソルを作成
+     * @param precision 数値精度
+     * @param shape 各次元のサイズ
+     * @return 新しいテンソル
+     */
+    public static DenseTensor zeros(Precision precision, int... shape) {
+        int[] s = shape.clone();
+        int n = sizeOf(s);
+        if (precision == Precision.FLOAT32) {
+            return new DenseTensor(null, new float[n], 0, s, contiguousStrides(s));
+        }
+        return new DenseTensor(new double[n], null, 0, s, contiguousStrides(s));
+    }
+
+    /**
+     * 形状と精度が一致すればバッファをそのまま返し、そうでなければ新しく確保する
+     * 呼び出し側が保持する出力バッファを使い回すためのもの（内容は初期化しない）
+     * @param buffer 既存のバッファ（null可）
+     * @param precision 数値精度
+     * @param shape 必要な形状
+     * @return 使えるバッファ
+     */
+    public static DenseTensor reuse(DenseTensor buffer, Precision precision, int... shape) {
+        if (buffer != null && buffer.precision() == precision && buffer.offset == 0
+                && Arrays.equals(buffer.shape, shape) && buffer.isContiguous()) {
+            return buffer;
+        }
+        return zeros(precision, shape);
+    }
+
+    /**
+     * 既存の配列をコピーせずにテンソルとして扱う
+     * @param data 要素配列（行優先）
+     * @param shape 各次元のサイズ
+     * @return 配列を共有するテンソル
+     */
+    public static DenseTensor wrap(double[] data, int... shape) {
+        int[] s = shape.clone();
+        if (sizeOf(s) != data.length) {
+            throw new IllegalArgumentException("Shape " + Arrays.toString(s)
+                    + " does not match data length " + data.length);
+        }
+        return new DenseTensor(data, null, 0, s, contiguousStrides(s));
+    }
+
+    /**
+     * 既存のfloat配列をコピーせずにFLOAT32テンソルとして扱う
+     * @param data 要素配列（行優先）
+     * @param shape 各次元のサイズ
+     * @return 配列を共有するテンソル
+     */
+    public static DenseTensor wrap(float[] data, int... shape) {
+        int[] s = shape.clone();
+        if (sizeOf(s) != data.length) {
+            throw new IllegalArgumentException("Shape " + Arrays.toString(s)
+                    + " does not match data length " + data.length);
+        }
+        return new DenseTensor(null, data, 0, s, contiguousStrides(s));
+    }
+
+    /**
+     * ベクトルからテンソルを作成
+     * @param v ベクトル
+     * @return テンソル [length]
+     */
+    public static DenseTensor fromArray(double[] v) {
+        return wrap(v.clone(), v.length);
+    }
+
+    /**
+     * 2D配列からテンソルを作成
+     * @param m 行列 [rows][cols]
+     * @return テンソル [rows][cols]
+     */
+    public static DenseTensor fromArray(double[][] m) {
+        int rows = m.length;
+        int cols = m[0].length;
+        DenseTensor t = zeros(rows, cols);
+        for (int i = 0; i < rows; i++) {
+            System.arraycopy(m[i], 0, t.data, i * cols, cols);
+        }
+        return t;
+    }
+
+    /**
+     * 3D配列からテンソルを作成
+     * @param src 入力テンソル [channels][height][width]
+     * @return テンソル [channels][height][width]
+     */
+    public static DenseTensor fromArray(double[][][] src) {
+        int channels = src.length;
+        int height = src[0].length;
+        int width = src[0][0].length;
+        DenseTensor t = zeros(channels, height, width);
+
+        int idx = 0;
+        for (int c = 0; c < channels; c++) {
+            for (int h = 0; h < height; h++) {
+                System.arraycopy(src[c][h], 0, t.data, idx, width);
+                idx += width;
+            }
+        }
+        return t;
+    }
+
+    /**
+     * 4D配列からテンソルを作成
+     * @param src 入力バッチ [batch][channels][height][width]
+     * @return テンソル [batch][channels][height][width]
+     */
+    public static DenseTensor fromArray(double[][][][] src) {
+        int batch = src.length;
+        int channels = src[0].length;
+        int height = src[0][0].length;
+        int width = src[0][0][0].length;
+        DenseTensor t = zeros(batch, channels, height, width);
+
+        int idx = 0;
+        for (int n = 0; n < batch; n++) {
+            for (int c = 0; c < channels; c++) {
+                for (int h = 0; h < height; h++) {
+                    System.arraycopy(src[n][c][h], 0, t.data, idx, width);
+                    idx += width;
+                }
+            }
+        }
+        return t;
+    }
+
+    // ========== メタデータ ==========
+
+    public int rank() { return shape.length; }
+    public int[] shape() { return shape.clone(); }
+    public int dim(int axis) { return shape[axis]; }
+    public int stride(int axis) { return strides[axis]; }
+    public int size() { return size; }
+
+    /**
+     * 数値精度
+     */
+    public Precision precision() {
+        return floatData != null ? Precision.FLOAT32 : Precision.FLOAT64;
+    }
+
+    /**
+     * 内部の要素配列（FLOAT64のみ、ビューの場合は他のテンソルと共有）
+     */
+    public double[] data() {
+        if (data == null) {
+            throw new IllegalStateException("Tensor is FLOAT32; use floatData()");
+        }
+        return data;
+    }
+
+    /**
+     * 内部の要素配列（FLOAT32のみ、ビューの場合は他のテンソルと共有）
+     */
+    public float[] floatData() {
+        if (floatData == null) {
+            throw new IllegalStateException("Tensor is FLOAT64; use data()");
+        }
+        return floatData;
+    }
+
+    /**
+     * 要素配列内での先頭位置
+     */
+    public int offset() { return offset; }
+
+    /**
+     * 行優先で隙間なく並んでいるか
+     */
+    public boolean isContiguous() {
+        int expected = 1;
+        for (int i = shape.length - 1; i >= 0; i--) {
+            if (shape[i] != 1 && strides[i] != expected) {
+                return false;
+            }
+            expected *= shape[i];
+        }
+        return true;
+    }
+
+    /**
+     * 形状が同じかどうか
+     */
+    public boolean sameShape(DenseTensor other) {
+        return Arrays.equals(shape, other.shape);
+    }
+
+    /**
+     * 指定した形状かどうか（shape()と違いコピーを作らない）
+     */
+    boolean hasShape(int[] expected) {
+        return Arrays.equals(shape, expected);
+    }
+
+    // ========== 要素アクセス ==========
+
+    /**
+     * 多次元インデックスから要素配列上の位置を計算
+     */
+    public int index(int... indices) {
+        if (indices.length != shape.length) {
+            throw new IllegalArgumentException("Expected " + shape.length
+                    + " indices but got " + indices.length);
+        }
+        int pos = offset;
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] < 0 || indices[i] >= shape[i]) {
+                throw new IndexOutOfBoundsException("Index " + indices[i]
+                        + " out of bounds for axis " + i + " with size " + shape[i]);
+            }
+            pos += indices[i] * strides[i];
+        }
+        return pos;
+    }
+
+    public double get(int... indices) {
+        return read(index(indices));
+    }
+
+    public void set(double value, int... indices) {
+        write(index(indices), value);
+    }
+
+    /**
+     * 行優先の通し番号で要素を取得（連続メモリのテンソルのみ）
+     */
+    public double getFlat(int i) {
+        return read(offset + i);
+    }
+
+    /**
+     * 行優先の通し番号で要素を設定（連続メモリのテンソルのみ）
+     */
+    public void setFlat(int i, double value) {
+        write(offset + i, value);
+    }
+
+    // ========== ビュー（コピーなし） ==========
+
+    /**
+     * 形状を変更（連続メモリならコピーなし）
+     * @param newShape 新しい形状（1つだけ-1を指定すると自動計算）
+     * @return 形状を変えたビュー
+     */
+    public DenseTensor reshape(int... newShape) {
+        int[] s = newShape.clone();
+        int inferAxis = -1;
+        int known = 1;
+        for (int i = 0; i < s.length; i++) {
+            if (s[i] == -1) {
+                if (inferAxis >= 0) {
+                    throw new IllegalArgumentException("Only one axis can be inferred");
+                }
+                inferAxis = i;
+            } else {
+                known *= s[i];
+            }
+        }
+        if (inferAxis >= 0) {
+            s[inferAxis] = known == 0 ? 0 : size / known;
+        }
+        if (sizeOf(s) != size) {
+            throw new IllegalArgumentException("Cannot reshape " + Arrays.toString(shape)
+                    + " to " + Arrays.toString(newShape));
+        }
+
+        if (!isContiguous()) {
+            return contiguous().reshape(s);
+        }
+        return new DenseTensor(data, floatData, offset, s, contiguousStrides(s));
+    }
+
+    /**
+     * 1次元にフラット化（連続メモリならコピーなし）
+     */
+    public DenseTensor flatten() {
+        return reshape(size);
+    }
+
+    /**
+     * 先頭の次元で1つを選択（例: バッチからの1画像）
+     * @param index 先頭次元のインデックス
+     * @return 次元が1つ少ないビュー
+     */
+    public DenseTensor slice(int index) {
+        if (index < 0 || index >= shape[0]) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + shape[0]);
+        }
+        return new DenseTensor(data, floatData, offset + index * strides[0],
+                Arrays.copyOfRange(shape, 1, shape.length),
+                Arrays.copyOfRange(strides, 1, strides.length));
+    }
+
+    /**
+     * 指定した次元の範囲を切り出す
+     * @param axis 対象の次元
+     * @param start 開始位置
+     * @param length 長さ
+     * @return 範囲を切り出したビュー
+     */
+    public DenseTensor narrow(int axis, int start, int length) {
+        if (start < 0 || length < 0 || start + length > shape[axis]) {
+            throw new IndexOutOfBoundsException("Range [" + start + ", " + (start + length)
+                    + ") out of bounds for axis " + axis + " with size " + shape[axis]);
+        }
+        int[] s = shape.clone();
+        s[axis] = length;
+        return new DenseTensor(data, floatData, offset + start * strides[axis], s, strides.clone());
+    }
+
+    /**
+     * 次元の並び替え（例: 行列の転置は permute(1, 0)）
+     * @param axes 新しい次元の順序
+     * @return 並び替えたビュー
+     */
+    public DenseTensor permute(int... axes) {
+        if (axes.length != shape.length) {
+            throw new IllegalArgumentException("Expected " + shape.length + " axes");
+        }
+        int[] s = new int[axes.length];
+        int[] st = new int[axes.length];
+        boolean[] used = new boolean[axes.length];
+        for (int i = 0; i < axes.length; i++) {
+            if (used[axes[i]]) {
+                throw new IllegalArgumentException("Duplicate axis " + axes[i]);
+            }
+            used[axes[i]] = true;
+            s[i] = shape[axes[i]];
+            st[i] = strides[axes[i]];
+        }
+        return new DenseTensor(data, floatData, offset, s, st);
+    }
+
+    // ========== コピー ==========
+
+    /**
+     * 連続メモリのテンソルを返す（既に連続ならそのまま）
+     */
+    public DenseTensor contiguous() {
+        return isContiguous() ? this : copy();
+    }
+
+    /**
+     * 要素を連続メモリへコピーした新しいテンソル
+     */
+    public DenseTensor copy() {
+        return copy(precision());
+    }
+
+    /**
+     * 精度を指定して連続メモリへコピー
+     * @param precision コピー先の精度
+     */
+    public DenseTensor copy(Precision precision) {
+        DenseTensor dst = zeros(precision, shape);
+        dst.copyFrom(this);
+        return dst;
+    }
+
+    /**
+     * 指定した精度のテンソルを返す（既に同じ精度ならそのまま）
+     * @param precision 精度
+     */
+    public DenseTensor toPrecision(Precision precision) {
+        return precision() == precision ? this : copy(precision);
+    }
+
+    /**
+     * 同じ形状のテンソルから要素をコピー（精度が異なれば変換）
+     * @param src コピー元
+     */
+    public void copyFrom(DenseTensor src) {
+        if (!sameShape(src)) {
+            throw new IllegalArgumentException("Shape mismatch: " + Arrays.toString(shape)
+                    + " vs " + Arrays.toString(src.shape));
+        }
+        boolean contiguous = isContiguous() && src.isContiguous();
+        if (contiguous && precision() == src.precision()) {
+            if (data != null) {
+                System.arraycopy(src.data, src.offset, data, offset, size);
+            } else {
+                System.arraycopy(src.floatData, src.offset, floatData, offset, size);
+            }
+            return;
+        }
+        if (contiguous) {
+            for (int i = 0; i < size; i++) {
+                write(offset + i, src.read(src.offset + i));
+            }
+            return;
+        }
+
+        // ストライドに沿って1要素ずつコピー
+        int[] idx = new int[shape.length];
+        for (int i = 0; i < size; i++) {
+            int dstPos = offset;
+            int srcPos = src.offset;
+            for (int d = 0; d < shape.length; d++) {
+                dstPos += idx[d] * strides[d];
+                srcPos += idx[d] * src.strides[d];
+            }
+            write(dstPos, src.read(srcPos));
+
+            for (int d = shape.length - 1; d >= 0; d--) {
+                if (++idx[d] < shape[d]) {
+                    break;
+                }
+                idx[d] = 0;
+            }
+        }
+    }
+
+    /**
+     * 全要素を指定値で埋める
+     */
+    public void fill(double value) {
+        if (!isContiguous()) {
+            DenseTensor filled = zeros(precision(), shape);
+            filled.fill(value);
+            copyFrom(filled);
+        } else if (data != null) {
+            Arrays.fill(data, offset, offset + size, value);
+        } else {
+            Arrays.fill(floatData, offset, offset + size, (float) value);
+        }
+    }
+
+    /**
+     * 行優先のフラット配列としてコピーを取得
+     */
+    public double[] toArray() {
+        DenseTensor c = contiguous();
+        if (c.data != null) {
+            return Arrays.copyOfRange(c.data, c.offset, c.offset + size);
+        }
+        double[] result = new double[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = c.floatData[c.offset + i];
+        }
+        return result;
+    }
+
+    /**
+     * 行優先のfloat配列としてコピーを取得
+     */
+    public float[] toFloatArray() {
+        DenseTensor c = contiguous();
+        if (c.floatData != null) {
+            return Arrays.copyOfRange(c.floatData, c.offset, c.offset + size);
+        }
+        float[] result = new float[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = (float) c.data[c.offset + i];
+        }
+        return result;
+    }
+
+    /**
+     * 2D配列に変換
+     */
+    public double[][] toArray2D() {
+        requireRank(2);
+        DenseTensor c = toPrecision(Precision.FLOAT64).contiguous();
+        int rows = shape[0];
+        int cols = shape[1];
+        double[][] result = new double[rows][cols];
+        for (int i = 0; i < rows; i++) {
+            System.arraycopy(c.data, c.offset + i * cols, result[i], 0, cols);
+        }
+        return result;
+    }
+
+    /**
+     * 3D配列に変換
+     */
+    public double[][][] toArray3D() {
+        requireRank(3);
+        DenseTensor c = toPrecision(Precision.FLOAT64).contiguous();
+        int channels = shape[0];
+        int height = shape[1];
+        int width = shape[2];
+        double[][][] result = new double[channels][height][width];
+
+        int idx = c.offset;
+        for (int ch = 0; ch < channels; ch++) {
+            for (int h = 0; h < height; h++) {
+                System.arraycopy(c.data, idx, result[ch][h], 0, width);
+                idx += width;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 4D配列に変換
+     */
+    public double[][][][] toArray4D() {
+        requireRank(4);
+        double[][][][] result = new double[shape[0]][][][];
+        for (int n = 0; n < shape[0]; n++) {
+            result[n] = slice(n).toArray3D();
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "DenseTensor" + Arrays.toString(shape) + "(" + precision() + ")";
+    }
+
+    // ========== 補助メソッド ==========
+
+    private double read(int pos) {
+        return data != null ? data[pos] : floatData[pos];
+    }
+
+    private void write(int pos, double value) {
+        if (data != null) {
+            data[pos] = value;
+        } else {
+            floatData[pos] = (float) value;
+        }
+    }
+
+    private void requireRank(int expected) {
+        if (shape.length != expected) {
+            throw new IllegalStateException("Expected rank " + expected
+                    + " but was " + shape.length);
+        }
+    }
+
+    private static int sizeOf(int[] shape) {
+        int n = 1;
+        for (int d : shape) {
+            if (d < 0) {
+                throw new IllegalArgumentException("Negative dimension: " + Arrays.toString(shape));
+            }
+            n *= d;
+        }
+        return n;
+    }
+
+    private static int[] contiguousStrides(int[] shape) {
+        int[] strides = new int[shape.length];
+        int stride = 1;
+        for (int i = shape.length - 1; i >= 0; i--) {
+            strides[i] = stride;
+            stride *= shape[i];
+        }
+        return strides;
+    }
+}
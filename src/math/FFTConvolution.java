@@ -0,0 +1,497 @@
+package math;
+
+import java.util.Arrays;
+
+/**
+ * FFTによる畳み込み（大きなカーネル・大きな入力向け）
+ * 直接計算はカーネルの面積K²に比例して重くなるが、FFTでは周波数領域の要素ごとの積になる
+ * <ul>
+ *   <li>実数入力の2次元FFT（行は半分の長さの複素FFTで計算し、列はF/2+1本だけ変換）</li>
+ *   <li>カーネルのスペクトルはインスタンスに保持し、{@link #invalidate()}されるまで使い回す</li>
+ *   <li>入力はタイルに分割し、各タイルの線形畳み込みを出力に重ねて足し込む（overlap-add）</li>
+ * </ul>
+ * 内部の計算はFLOAT32の入力でもdoubleで行う
+ * 層ごとに1つ持つ（カーネルのスペクトルと作業領域を保持するため、1つを複数スレッドから同時に使わないこと）
+ */
+public final class FFTConvolution {
+
+    private static final int MAX_TILE = 64; // FFTの大きさの上限（これより大きな入力はタイルに分割）
+    private static final int MIN_KERNEL = 5; // 3x3以下は入力が大きくてもim2col/Winogradの方が速い
+
+    // 切り替えの閾値（カーネルの面積 × 入力の面積）
+    private static volatile long threshold = 1L << 17;
+
+    private final int kernelSize;
+    private final int stride;
+    private final int padding;
+
+    // FFTの大きさと、それに合わせたカーネルのスペクトル [outChannels][inChannels][F][F/2+1]
+    private int fftSize;
+    private Plan plan;
+    private double[] kernelRe = new double[0];
+    private double[] kernelIm = new double[0];
+    private boolean stale = true;
+
+    // 入力タイルのスペクトル [batch][inChannels][tiles][F][F/2+1]
+    private double[] inputRe = new double[0];
+    private double[] inputIm = new double[0];
+
+    // スレッドごとの作業領域
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * @param kernelSize カーネルの大きさ
+     * @param stride ストライド（1以外は出力を間引いて計算）
+     * @param padding パディング
+     */
+    public FFTConvolution(int kernelSize, int stride, int padding) {
+        if (kernelSize <= 0 || stride <= 0 || padding < 0) {
+            throw new IllegalArgumentException("Invalid convolution: kernel " + kernelSize
+                    + ", stride " + stride + ", padding " + padding);
+        }
+        this.kernelSize = kernelSize;
+        this.stride = stride;
+        this.padding = padding;
+    }
+
+    /**
+     * FFTに切り替える閾値を設定
+     * @param kernelTimesInputArea カーネルの面積 × 入力の面積（K² × H × W）
+     */
+    public static void setThreshold(long kernelTimesInputArea) {
+        if (kernelTimesInputArea <= 0) {
+            throw new IllegalArgumentException("Threshold must be positive");
+        }
+        threshold = kernelTimesInputArea;
+    }
+
+    /**
+     * FFTを候補にするカーネルの大きさか（5x5以上）
+     */
+    public static boolean supports(int kernelSize) {
+        return kernelSize >= MIN_KERNEL;
+    }
+
+    /**
+     * この大きさならFFTの方が速いと見込めるか（5x5以上のカーネルで、K² × H × Wが閾値以上）
+     */
+    public static boolean prefers(int kernelSize, int height, int width) {
+        return supports(kernelSize) && (long) kernelSize * kernelSize * height * width >= threshold;
+    }
+
+    /**
+     * カーネルが変わったことを通知（次の畳み込みでスペクトルを作り直す）
+     */
+    public void invalidate() {
+        stale = true;
+    }
+
+    /**
+     * 畳み込みを計算（1回だけ使う場合）
+     * @param input 入力 [batch][inChannels][height][width]
+     * @param kernels カーネル [outChannels][inChannels][kernelSize][kernelSize]
+     * @param bias バイアス [outChannels]（nullなら加算しない）
+     * @return 畳み込み結果 [batch][outChannels][outputHeight][outputWidth]（精度は入力と同じ）
+     */
+    public static DenseTensor convolve(DenseTensor input, DenseTensor kernels, DenseTensor bias,
+                                       int stride, int padding) {
+        int kernelSize = kernels.dim(2);
+        DenseTensor output = DenseTensor.zeros(input.precision(), input.dim(0), kernels.dim(0),
+                ConvolutionOps.outputSize(input.dim(2), kernelSize, stride, padding),
+                ConvolutionOps.outputSize(input.dim(3), kernelSize, stride, padding));
+        new FFTConvolution(kernelSize, stride, padding).convolveInto(input, kernels, bias, output);
+        return output;
+    }
+
+    /**
+     * 畳み込みを既存のテンソルに書き込む
+     * カーネルのスペクトルは初回と{@link #invalidate()}の後、または入力の大きさが変わったときだけ作る
+     * @param input 入力 [batch][inChannels][height][width]
+     * @param kernels カーネル [outChannels][inChannels][kernelSize][kernelSize]
+     * @param bias バイアス [outChannels]（nullなら加算しない）
+     * @param output 書き込み先 [batch][outChannels][outputHeight][outputWidth]（連続メモリ）
+     */
+    public void convolveInto(DenseTensor input, DenseTensor kernels, DenseTensor bias, DenseTensor output) {
+        DenseTensor in = input.contiguous();
+        int batch = in.dim(0);
+        int inChannels = in.dim(1);
+        int height = in.dim(2);
+        int width = in.dim(3);
+        int outChannels = kernels.dim(0);
+        if (kernels.dim(1) != inChannels || kernels.dim(2) != kernelSize || kernels.dim(3) != kernelSize
+                || output.dim(0) != batch || output.dim(1) != outChannels
+                || output.dim(2) != ConvolutionOps.outputSize(height, kernelSize, stride, padding)
+                || output.dim(3) != ConvolutionOps.outputSize(width, kernelSize, stride, padding)) {
+            throw new IllegalArgumentException("Shape mismatch: " + input + " * " + kernels + " -> " + output);
+        }
+
+        // タイルの大きさ（FFTの大きさからカーネルの分を引いたもの）
+        int size = fftSizeFor(Math.max(height, width));
+        if (stale || size != fftSize || kernelRe.length != outChannels * inChannels * spectrumSize(size)) {
+            prepareKernels(kernels, size);
+        }
+        int block = fftSize - kernelSize + 1;
+        int tilesH = (height + block - 1) / block;
+        int tilesW = (width + block - 1) / block;
+        int tiles = tilesH * tilesW;
+        int spectrum = spectrumSize(fftSize);
+
+        int needed = batch * inChannels * tiles * spectrum;
+        if (inputRe.length < needed) {
+            inputRe = new double[needed];
+            inputIm = new double[needed];
+        }
+
+        // 1. 入力タイルのスペクトル（画像・チャンネルごとに並列）
+        long work = (long) tiles * fftSize * fftSize * Integer.numberOfTrailingZeros(fftSize);
+        Matrix.parallelRows(batch * inChannels, (int) Math.min(Integer.MAX_VALUE, work), (start, end) -> {
+            Scratch s = scratch.get().ensure(fftSize);
+            for (int plane = start; plane < end; plane++) {
+                for (int t = 0; t < tiles; t++) {
+                    int y0 = t / tilesW * block;
+                    int x0 = t % tilesW * block;
+                    s.clearTile(fftSize);
+                    int rows = Math.min(block, height - y0);
+                    int cols = Math.min(block, width - x0);
+                    int base = plane * height * width;
+                    for (int i = 0; i < rows; i++) {
+                        for (int j = 0; j < cols; j++) {
+                            s.tile[i * fftSize + j] = in.getFlat(base + (y0 + i) * width + x0 + j);
+                        }
+                    }
+                    forward2D(s, rows, (plane * tiles + t) * spectrum, inputRe, inputIm);
+                }
+            }
+        });
+
+        // 2. 出力チャンネルごとに周波数領域で積和し、逆変換して重ねて足し込む
+        int outputHeight = output.dim(2);
+        int outputWidth = output.dim(3);
+        int shift = kernelSize - 1 - padding; // 線形畳み込みの位置と出力位置のずれ
+        DenseTensor b = bias == null ? null : bias.contiguous();
+        work = (long) tiles * inChannels * spectrum + (long) tiles * fftSize * fftSize;
+        Matrix.parallelRows(batch * outChannels, (int) Math.min(Integer.MAX_VALUE, work), (start, end) -> {
+            Scratch s = scratch.get().ensure(fftSize);
+            for (int plane = start; plane < end; plane++) {
+                int n = plane / outChannels;
+                int oc = plane % outChannels;
+                int outBase = plane * outputHeight * outputWidth;
+                double bv = b == null ? 0.0 : b.getFlat(oc);
+                double[] acc = s.planeAcc(outputHeight * outputWidth);
+                Arrays.fill(acc, 0, outputHeight * outputWidth, bv);
+
+                for (int t = 0; t < tiles; t++) {
+                    // Σ_ic X[ic] ⊙ K[oc][ic]
+                    Arrays.fill(s.accRe, 0, spectrum, 0.0);
+                    Arrays.fill(s.accIm, 0, spectrum, 0.0);
+                    for (int ic = 0; ic < inChannels; ic++) {
+                        int xOff = ((n * inChannels + ic) * tiles + t) * spectrum;
+                        int kOff = (oc * inChannels + ic) * spectrum;
+                        for (int f = 0; f < spectrum; f++) {
+                            double xr = inputRe[xOff + f];
+                            double xi = inputIm[xOff + f];
+                            double kr = kernelRe[kOff + f];
+                            double ki = kernelIm[kOff + f];
+                            s.accRe[f] += xr * kr - xi * ki;
+                            s.accIm[f] += xr * ki + xi * kr;
+                        }
+                    }
+
+                    // タイルの線形畳み込み（block + K - 1 四方）を出力の位置に足し込む
+                    int y0 = t / tilesW * block;
+                    int x0 = t % tilesW * block;
+                    int valid = block + kernelSize - 1;
+                    inverse2D(s, valid);
+                    for (int i = 0; i < valid; i++) {
+                        int oy = y0 + i - shift;
+                        if (oy < 0 || oy % stride != 0 || oy / stride >= outputHeight) {
+                            continue;
+                        }
+                        int rowBase = oy / stride * outputWidth;
+                        for (int j = 0; j < valid; j++) {
+                            int ox = x0 + j - shift;
+                            if (ox >= 0 && ox % stride == 0 && ox / stride < outputWidth) {
+                                acc[rowBase + ox / stride] += s.tile[i * fftSize + j];
+                            }
+                        }
+                    }
+                }
+
+                for (int i = 0; i < outputHeight * outputWidth; i++) {
+                    output.setFlat(outBase + i, acc[i]);
+                }
+            }
+        });
+    }
+
+    /**
+     * 入力の大きさに対するFFTの大きさ（2のべき、MAX_TILE以下）
+     */
+    private int fftSizeFor(int extent) {
+        int size = Integer.highestOneBit(Math.max(2, extent + kernelSize - 1) - 1) << 1;
+        int min = Integer.highestOneBit(2 * kernelSize - 1) << 1; // タイルが1辺K以上になる大きさ
+        return Math.max(min, Math.min(size, MAX_TILE));
+    }
+
+    private static int spectrumSize(int size) {
+        return size * (size / 2 + 1);
+    }
+
+    /**
+     * カーネルのスペクトルを作る（相関なので180度回転してから変換）
+     */
+    private void prepareKernels(DenseTensor kernels, int size) {
+        DenseTensor k = kernels.contiguous();
+        int outChannels = k.dim(0);
+        int inChannels = k.dim(1);
+        int area = kernelSize * kernelSize;
+        fftSize = size;
+        plan = new Plan(size);
+        int spectrum = spectrumSize(size);
+        if (kernelRe.length != outChannels * inChannels * spectrum) {
+            kernelRe = new double[outChannels * inChannels * spectrum];
+            kernelIm = new double[outChannels * inChannels * spectrum];
+        }
+
+        Matrix.parallelRows(outChannels * inChannels, spectrum * Integer.numberOfTrailingZeros(size), (start, end) -> {
+            Scratch s = scratch.get().ensure(size);
+            for (int pair = start; pair < end; pair++) {
+                s.clearTile(size);
+                int base = pair * area;
+                for (int a = 0; a < kernelSize; a++) {
+                    for (int c = 0; c < kernelSize; c++) {
+                        s.tile[a * size + c] = k.getFlat(base + (kernelSize - 1 - a) * kernelSize + kernelSize - 1 - c);
+                    }
+                }
+                forward2D(s, kernelSize, pair * spectrum, kernelRe, kernelIm);
+            }
+        });
+        stale = false;
+    }
+
+    // ========== 2次元の実数FFT ==========
+
+    /**
+     * s.tile（F×F、先頭のrows行以外はゼロ）を変換してスペクトル [F][F/2+1] を書き込む
+     */
+    private void forward2D(Scratch s, int rows, int off, double[] re, double[] im) {
+        int size = fftSize;
+        int half = size / 2;
+        int width = half + 1;
+
+        // 行方向（実数FFT）、ゼロの行のスペクトルはゼロ
+        for (int r = 0; r < size; r++) {
+            int rowOff = off + r * width;
+            if (r < rows) {
+                realForward(s, r * size, re, im, rowOff);
+            } else {
+                Arrays.fill(re, rowOff, rowOff + width, 0.0);
+                Arrays.fill(im, rowOff, rowOff + width, 0.0);
+            }
+        }
+
+        // 列方向（複素FFT）
+        for (int c = 0; c < width; c++) {
+            for (int r = 0; r < size; r++) {
+                s.colRe[r] = re[off + r * width + c];
+                s.colIm[r] = im[off + r * width + c];
+            }
+            plan.transform(s.colRe, s.colIm, false);
+            for (int r = 0; r < size; r++) {
+                re[off + r * width + c] = s.colRe[r];
+                im[off + r * width + c] = s.colIm[r];
+            }
+        }
+    }
+
+    /**
+     * s.accRe/accIm のスペクトルを逆変換して s.tile の先頭rows行に書き込む
+     */
+    private void inverse2D(Scratch s, int rows) {
+        int size = fftSize;
+        int half = size / 2;
+        int width = half + 1;
+
+        for (int c = 0; c < width; c++) {
+            for (int r = 0; r < size; r++) {
+                s.colRe[r] = s.accRe[r * width + c];
+                s.colIm[r] = s.accIm[r * width + c];
+            }
+            plan.transform(s.colRe, s.colIm, true);
+            for (int r = 0; r < size; r++) {
+                s.accRe[r * width + c] = s.colRe[r];
+                s.accIm[r * width + c] = s.colIm[r];
+            }
+        }
+
+        double scale = 1.0 / ((double) size * half);
+        for (int r = 0; r < rows; r++) {
+            realInverse(s, r * width, r * size, scale);
+        }
+    }
+
+    /**
+     * 実数列 s.tile[from..from+F) のFFT（F/2点の複素FFTで計算）
+     * X[k] = E[k] + W^k O[k]（E, Oは偶数番目・奇数番目の要素のDFT）
+     */
+    private void realForward(Scratch s, int from, double[] re, double[] im, int to) {
+        int half = fftSize / 2;
+        for (int k = 0; k < half; k++) {
+            s.halfRe[k] = s.tile[from + 2 * k];
+            s.halfIm[k] = s.tile[from + 2 * k + 1];
+        }
+        plan.half.transform(s.halfRe, s.halfIm, false);
+
+        for (int k = 0; k <= half; k++) {
+            int k1 = k == half ? 0 : k;
+            int k2 = k == 0 ? 0 : half - k;
+            double zr = s.halfRe[k1];
+            double zi = s.halfIm[k1];
+            double cr = s.halfRe[k2];
+            double ci = -s.halfIm[k2];
+            double er = 0.5 * (zr + cr);
+            double ei = 0.5 * (zi + ci);
+            double or = 0.5 * (zi - ci);
+            double oi = -0.5 * (zr - cr);
+            double c = plan.cos[k];
+            double sn = plan.sin[k];
+            re[to + k] = er + or * c + oi * sn;
+            im[to + k] = ei + oi * c - or * sn;
+        }
+    }
+
+    /**
+     * スペクトル s.accRe/accIm[from..from+F/2] から実数列を復元して s.tile[to..to+F) に書き込む
+     */
+    private void realInverse(Scratch s, int from, int to, double scale) {
+        int half = fftSize / 2;
+        for (int k = 0; k < half; k++) {
+            double xr = s.accRe[from + k];
+            double xi = s.accIm[from + k];
+            double cr = s.accRe[from + half - k];
+            double ci = -s.accIm[from + half - k];
+            double er = 0.5 * (xr + cr);
+            double ei = 0.5 * (xi + ci);
+            // O = (X[k] - conj(X[h-k])) / 2 × conj(W^k)
+            double dr = 0.5 * (xr - cr);
+            double di = 0.5 * (xi - ci);
+            double c = plan.cos[k];
+            double sn = plan.sin[k];
+            double or = dr * c - di * sn;
+            double oi = dr * sn + di * c;
+            // Z = E + iO
+            s.halfRe[k] = er - oi;
+            s.halfIm[k] = ei + or;
+        }
+        plan.half.transform(s.halfRe, s.halfIm, true);
+        for (int k = 0; k < half; k++) {
+            s.tile[to + 2 * k] = s.halfRe[k] * scale;
+            s.tile[to + 2 * k + 1] = s.halfIm[k] * scale;
+        }
+    }
+
+    /**
+     * 大きさnの複素FFT（基数2、ビット反転順の並べ替え＋バタフライ）
+     * cos/sinは大きさnの実数FFT用の回転因子（k = 0..n/2）も兼ねる
+     */
+    private static final class Plan {
+        final int n;
+        final int[] reversed;
+        final double[] cos;
+        final double[] sin;
+        final Plan half; // 実数FFT用のn/2点の複素FFT
+
+        Plan(int n) {
+            this(n, true);
+        }
+
+        private Plan(int n, boolean withHalf) {
+            this.n = n;
+            int bits = Integer.numberOfTrailingZeros(n);
+            reversed = new int[n];
+            for (int i = 0; i < n; i++) {
+                reversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+            }
+            cos = new double[n / 2 + 1];
+            sin = new double[n / 2 + 1];
+            for (int k = 0; k <= n / 2; k++) {
+                double angle = 2.0 * Math.PI * k / n;
+                cos[k] = Math.cos(angle);
+                sin[k] = Math.sin(angle);
+            }
+            half = withHalf ? new Plan(n / 2, false) : null;
+        }
+
+        /**
+         * その場で変換（逆変換はスケーリングしない）
+         */
+        void transform(double[] re, double[] im, boolean inverse) {
+            for (int i = 0; i < n; i++) {
+                int j = reversed[i];
+                if (j > i) {
+                    double tr = re[i];
+                    re[i] = re[j];
+                    re[j] = tr;
+                    double ti = im[i];
+                    im[i] = im[j];
+                    im[j] = ti;
+                }
+            }
+            for (int size = 2; size <= n; size <<= 1) {
+                int half = size >> 1;
+                int step = n / size;
+                for (int i = 0; i < n; i += size) {
+                    for (int j = 0; j < half; j++) {
+                        double wr = cos[j * step];
+                        double wi = inverse ? sin[j * step] : -sin[j * step];
+                        int a = i + j;
+                        int b = a + half;
+                        double tr = re[b] * wr - im[b] * wi;
+                        double ti = re[b] * wi + im[b] * wr;
+                        re[b] = re[a] - tr;
+                        im[b] = im[a] - ti;
+                        re[a] += tr;
+                        im[a] += ti;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * スレッドごとの作業領域（FFTの大きさが変わったときだけ確保し直す）
+     */
+    private static final class Scratch {
+        int size;
+        double[] tile = new double[0];
+        double[] colRe, colIm;
+        double[] halfRe, halfIm;
+        double[] accRe, accIm;
+        double[] plane = new double[0];
+
+        Scratch ensure(int fftSize) {
+            if (size != fftSize) {
+                size = fftSize;
+                tile = new double[fftSize * fftSize];
+                colRe = new double[fftSize];
+                colIm = new double[fftSize];
+                halfRe = new double[fftSize / 2];
+                halfIm = new double[fftSize / 2];
+                accRe = new double[spectrumSize(fftSize)];
+                accIm = new double[spectrumSize(fftSize)];
+            }
+            return this;
+        }
+
+        void clearTile(int fftSize) {
+            Arrays.fill(tile, 0, fftSize * fftSize, 0.0);
+        }
+
+        double[] planeAcc(int length) {
+            if (plane.length < length) {
+                plane = new double[length];
+            }
+            return plane;
+        }
+    }
+}
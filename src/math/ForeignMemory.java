@@ -0,0 +1,133 @@
+package math;
+
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * Foreign Memory API（jdk.incubator.foreign）のMemorySegmentによるヒープ外メモリ
+ * 直接使わずに{@link OffHeapMemory}経由で使う（モジュールがない環境ではロードしない）
+ */
+final class ForeignMemory extends OffHeapMemory {
+
+    // FileChannelに一度に渡すByteBufferの大きさ（ByteBufferは2GBまで）
+    private static final long IO_CHUNK = 1L << 30;
+
+    private final MemorySegment segment;
+
+    private ForeignMemory(MemorySegment segment) {
+        this.segment = segment;
+    }
+
+    static boolean probe() {
+        try (ResourceScope scope = ResourceScope.newConfinedScope()) {
+            MemorySegment s = MemorySegment.allocateNative(Double.BYTES, ALIGNMENT, scope);
+            MemoryAccess.setDoubleAtIndex(s, 0, 1.0);
+            return MemoryAccess.getDoubleAtIndex(s, 0) == 1.0;
+        }
+    }
+
+    /**
+     * ResourceScopeに対応するスコープ（複数スレッドから読めるよう共有スコープ）
+     */
+    static final class ForeignScope extends Scope {
+        private final ResourceScope scope = ResourceScope.newSharedScope();
+
+        @Override
+        OffHeapMemory allocate(long bytes) {
+            return new ForeignMemory(MemorySegment.allocateNative(bytes, ALIGNMENT, scope));
+        }
+
+        @Override
+        OffHeapMemory map(Path path, long bytes) throws IOException {
+            return new ForeignMemory(MemorySegment.mapFile(path, 0, bytes, FileChannel.MapMode.READ_ONLY, scope));
+        }
+
+        @Override
+        public void close() {
+            scope.close();
+        }
+    }
+
+    @Override
+    long byteSize() {
+        return segment.byteSize();
+    }
+
+    @Override
+    double getDouble(long index) {
+        return MemoryAccess.getDoubleAtIndex(segment, index);
+    }
+
+    @Override
+    void setDouble(long index, double value) {
+        MemoryAccess.setDoubleAtIndex(segment, index, value);
+    }
+
+    @Override
+    float getFloat(long index) {
+        return MemoryAccess.getFloatAtIndex(segment, index);
+    }
+
+    @Override
+    void setFloat(long index, float value) {
+        MemoryAccess.setFloatAtIndex(segment, index, value);
+    }
+
+    @Override
+    void copyFrom(double[] src, int srcOff, long index, int length) {
+        segment.asSlice(index * Double.BYTES, (long) length * Double.BYTES)
+                .copyFrom(MemorySegment.ofArray(src).asSlice((long) srcOff * Double.BYTES, (long) length * Double.BYTES));
+    }
+
+    @Override
+    void copyFrom(float[] src, int srcOff, long index, int length) {
+        segment.asSlice(index * Float.BYTES, (long) length * Float.BYTES)
+                .copyFrom(MemorySegment.ofArray(src).asSlice((long) srcOff * Float.BYTES, (long) length * Float.BYTES));
+    }
+
+    @Override
+    void copyTo(long index, double[] dst, int dstOff, int length) {
+        MemorySegment.ofArray(dst).asSlice((long) dstOff * Double.BYTES, (long) length * Double.BYTES)
+                .copyFrom(segment.asSlice(index * Double.BYTES, (long) length * Double.BYTES));
+    }
+
+    @Override
+    void copyTo(long index, float[] dst, int dstOff, int length) {
+        MemorySegment.ofArray(dst).asSlice((long) dstOff * Float.BYTES, (long) length * Float.BYTES)
+                .copyFrom(segment.asSlice(index * Float.BYTES, (long) length * Float.BYTES));
+    }
+
+    @Override
+    void writeTo(FileChannel channel) throws IOException {
+        long size = segment.byteSize();
+        for (long position = 0; position < size; position += IO_CHUNK) {
+            ByteBuffer src = segment.asSlice(position, Math.min(IO_CHUNK, size - position)).asByteBuffer();
+            long at = position;
+            while (src.hasRemaining()) {
+                at += channel.write(src, at);
+            }
+        }
+    }
+
+    @Override
+    void readFrom(FileChannel channel) throws IOException {
+        long size = segment.byteSize();
+        for (long position = 0; position < size; position += IO_CHUNK) {
+            ByteBuffer dst = segment.asSlice(position, Math.min(IO_CHUNK, size - position)).asByteBuffer();
+            long at = position;
+            while (dst.hasRemaining()) {
+                int n = channel.read(dst, at);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+                at += n;
+            }
+        }
+    }
+}
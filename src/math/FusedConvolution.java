@@ -0,0 +1,342 @@
+package math;
+
+import java.util.Arrays;
+
+/**
+ * 畳み込み + バイアス + ReLU + 最大プーリングを1回で計算する演算
+ * 出力の数行分（帯）ごとにim2colと行列積を行い、帯の中でReLUとプーリングまで済ませるため、
+ * プーリング前の活性化（[batch][outChannels][outputHeight][outputWidth]）を確保しない
+ * 学習時はプーリングの最大値の位置（窓の中の番号）とReLUのマスクを記録し、逆伝播に使う
+ * ReLUのマスクは最大値の位置のものだけを持つ（他の位置には勾配が流れない）
+ */
+public final class FusedConvolution {
+
+    private static final int BAND_COLUMNS = 256; // 1つの帯の行列積の列数の目安
+
+    // スレッドごとの作業領域（im2colの帯と行列積の結果、並列化した行列積をまたいで持たない）
+    private static final ThreadLocal<double[][]> scratch = ThreadLocal.withInitial(() -> new double[2][0]);
+    private static final ThreadLocal<float[][]> floatScratch = ThreadLocal.withInitial(() -> new float[2][0]);
+
+    private FusedConvolution() {
+    }
+
+    /**
+     * プーリング後の出力の大きさ
+     */
+    public static int pooledSize(int inputSize, int kernelSize, int stride, int padding, int poolSize, int poolStride) {
+        return (ConvolutionOps.outputSize(inputSize, kernelSize, stride, padding) - poolSize) / poolStride + 1;
+    }
+
+    /**
+     * 畳み込み → バイアス → ReLU → 最大プーリングを既存のテンソルに書き込む
+     * @param input 入力 [batch][inChannels][height][width]（パディング前）
+     * @param kernels カーネル [outChannels][inChannels][kernelSize][kernelSize]
+     * @param bias バイアス [outChannels]（nullなら加算しない）
+     * @param stride 畳み込みのストライド
+     * @param padding 畳み込みのパディング
+     * @param poolSize プーリングの窓の大きさ（11以下）
+     * @param poolStride プーリングのストライド
+     * @param argmax 最大値の窓の中の位置（ph * poolSize + pw）の記録先（出力と同じ要素数、推論ならnull）
+     * @param mask 最大値がReLUを通ったか（正か）の記録先（出力と同じ要素数、推論ならnull）
+     * @param output 書き込み先 [batch][outChannels][pooledHeight][pooledWidth]（連続メモリ、精度は入力と同じ）
+     */
+    public static void convReluMaxPoolInto(DenseTensor input, DenseTensor kernels, DenseTensor bias,
+                                           int stride, int padding, int poolSize, int poolStride,
+                                           byte[] argmax, boolean[] mask, DenseTensor output) {
+        convReluMaxPoolInto(input, kernels, bias, stride, padding, poolSize, poolStride, argmax, mask, null, output);
+    }
+
+    /**
+     * 畳み込み → バイアス → ReLU → 最大プーリング（im2col行列を残す版）
+     * colを渡すとバッチ全体のim2col行列を先に作り、帯ごとの行列積はその一部を読む
+     * 残した行列は{@link ParallelConvolution#convolveBatchIm2colBackwardInto}で逆伝播の行列積に使える
+     * @param col im2col行列の書き込み先（{@link ParallelConvolution#im2colBatchShape}の形状、連続メモリ、nullなら帯ごとに作る）
+     */
+    public static void convReluMaxPoolInto(DenseTensor input, DenseTensor kernels, DenseTensor bias,
+                                           int stride, int padding, int poolSize, int poolStride,
+                                           byte[] argmax, boolean[] mask, DenseTensor col, DenseTensor output) {
+        Precision precision = output.precision();
+        DenseTensor in = input.toPrecision(precision).contiguous();
+        DenseTensor w = kernels.toPrecision(precision).contiguous();
+        DenseTensor b = bias == null ? null : bias.toPrecision(precision).contiguous();
+        int batch = in.dim(0);
+        int outChannels = w.dim(0);
+        int kernelSize = w.dim(2);
+        int convHeight = ConvolutionOps.outputSize(in.dim(2), kernelSize, stride, padding);
+        int convWidth = ConvolutionOps.outputSize(in.dim(3), kernelSize, stride, padding);
+        int pooledHeight = (convHeight - poolSize) / poolStride + 1;
+        int pooledWidth = (convWidth - poolSize) / poolStride + 1;
+        if (poolSize > MaxPooling.MAX_POOL_SIZE || output.dim(0) != batch || output.dim(1) != outChannels
+                || output.dim(2) != pooledHeight || output.dim(3) != pooledWidth) {
+            throw new IllegalArgumentException("Shape mismatch: " + input + " * " + kernels + " -> " + output);
+        }
+        checkRecord(argmax, mask, output.size());
+        if (col != null) {
+            ParallelConvolution.im2colBatchInto(in, kernelSize, kernelSize, stride, padding, col);
+        }
+
+        // 帯はプーリング後の行の単位で切る
+        int rowsPerBand = Math.max(1, BAND_COLUMNS / (poolStride * convWidth));
+        int bands = (pooledHeight + rowsPerBand - 1) / rowsPerBand;
+        int patch = w.dim(1) * kernelSize * kernelSize;
+        Band band = new Band(in, w, b, stride, padding, poolSize, poolStride,
+                convHeight, convWidth, pooledHeight, pooledWidth, argmax, mask, col, output);
+
+        if (batch * bands == 1) {
+            // 帯が1つだけなら行列積の中で並列化する（作業領域はこの呼び出しだけのもの）
+            band.compute(0, 0, pooledHeight, false);
+            return;
+        }
+        // 帯ごとに並列化し、帯の中の行列積はフォークしない
+        // （スレッドごとの作業領域を持ったまま行列積を待つと、同じスレッドが別の帯を実行して上書きする）
+        Matrix.parallelRows(batch * bands, outChannels * patch * rowsPerBand * poolStride * convWidth,
+                (start, end) -> {
+                    for (int task = start; task < end; task++) {
+                        int n = task / bands;
+                        int first = task % bands * rowsPerBand;
+                        band.compute(n, first, Math.min(pooledHeight, first + rowsPerBand), true);
+                    }
+                });
+    }
+
+    /**
+     * ReLU + 最大プーリングを既存のテンソルに書き込む（畳み込みの出力が既にある場合）
+     * @param input 畳み込みの出力（バイアス加算済み、ReLU前）[batch][channels][height][width]
+     * @param argmax 最大値の窓の中の位置の記録先（推論ならnull）
+     * @param mask 最大値が正かの記録先（推論ならnull）
+     * @param output 書き込み先 [batch][channels][pooledHeight][pooledWidth]（連続メモリ）
+     */
+    public static void reluMaxPoolInto(DenseTensor input, int poolSize, int poolStride,
+                                       byte[] argmax, boolean[] mask, DenseTensor output) {
+        checkRecord(argmax, mask, output.size());
+        // ReLUは単調なので、最大値を先に取ってからReLUをかけても値は同じ
+        MaxPooling.forwardInto(input, poolSize, poolStride, argmax, output);
+        int planeSize = output.dim(2) * output.dim(3);
+        Matrix.parallelRows(output.dim(0) * output.dim(1), planeSize, (start, end) -> {
+            int from = start * planeSize;
+            int count = (end - start) * planeSize;
+            if (output.precision() == Precision.FLOAT32) {
+                biasRelu(output.floatData(), output.offset() + from, count, 0.0f, mask, from);
+            } else {
+                biasRelu(output.data(), output.offset() + from, count, 0.0, mask, from);
+            }
+        });
+    }
+
+    /**
+     * 逆伝播: プーリング後の勾配を、記録した最大値の位置とReLUのマスクに従って畳み込みの出力の勾配に戻す
+     * @param gradOutput プーリング後の勾配 [batch][channels][pooledHeight][pooledWidth]
+     * @param argmax 順伝播で記録した最大値の位置
+     * @param mask 順伝播で記録したReLUのマスク
+     * @param gradInput 書き込み先（畳み込みの出力の勾配）[batch][channels][height][width]（連続メモリ、上書きされる）
+     */
+    public static void reluMaxPoolBackwardInto(DenseTensor gradOutput, byte[] argmax, boolean[] mask,
+                                               int poolSize, int poolStride, DenseTensor gradInput) {
+        checkRecord(argmax, mask, gradOutput.size());
+        if (argmax == null) {
+            throw new IllegalArgumentException("Backward needs the recorded argmax and mask");
+        }
+        MaxPooling.backwardInto(gradOutput, argmax, mask, poolSize, poolStride, gradInput);
+    }
+
+    private static void checkRecord(byte[] argmax, boolean[] mask, int size) {
+        if ((argmax == null) != (mask == null)
+                || argmax != null && (argmax.length < size || mask.length < size)) {
+            throw new IllegalArgumentException("argmax and mask must both hold " + size + " entries");
+        }
+    }
+
+    /**
+     * 1枚の帯（プーリング後の行 first..last）の計算
+     */
+    private static final class Band {
+        final DenseTensor in, w, b;
+        final int stride, padding, poolSize, poolStride;
+        final int convHeight, convWidth, pooledHeight, pooledWidth;
+        final int inChannels, outChannels, kernelSize, patch;
+        final byte[] argmax;
+        final boolean[] mask;
+        final DenseTensor col;  // バッチ全体のim2col行列（nullなら帯ごとに作る）
+        final DenseTensor output;
+
+        Band(DenseTensor in, DenseTensor w, DenseTensor b, int stride, int padding, int poolSize, int poolStride,
+             int convHeight, int convWidth, int pooledHeight, int pooledWidth,
+             byte[] argmax, boolean[] mask, DenseTensor col, DenseTensor output) {
+            this.in = in;
+            this.w = w;
+            this.b = b;
+            this.stride = stride;
+            this.padding = padding;
+            this.poolSize = poolSize;
+            this.poolStride = poolStride;
+            this.convHeight = convHeight;
+            this.convWidth = convWidth;
+            this.pooledHeight = pooledHeight;
+            this.pooledWidth = pooledWidth;
+            this.inChannels = w.dim(1);
+            this.outChannels = w.dim(0);
+            this.kernelSize = w.dim(2);
+            this.patch = inChannels * kernelSize * kernelSize;
+            this.argmax = argmax;
+            this.mask = mask;
+            this.col = col;
+            this.output = output;
+        }
+
+        /**
+         * @param serial trueなら行列積をシングルスレッドで実行し、スレッドごとの作業領域を使う
+         *               （falseなら行列積を並列化し、作業領域をこの呼び出しで確保する）
+         */
+        void compute(int n, int first, int last, boolean serial) {
+            // 帯に必要な畳み込みの出力行
+            int rowStart = first * poolStride;
+            int rowEnd = Math.min(convHeight, (last - 1) * poolStride + poolSize);
+            int columns = (rowEnd - rowStart) * convWidth;
+
+            if (output.precision() == Precision.FLOAT32) {
+                float[][] buf = serial ? floatScratch.get() : new float[2][0];
+                if (col == null && buf[0].length < patch * columns) {
+                    buf[0] = new float[patch * columns];
+                }
+                if (buf[1].length < outChannels * columns) {
+                    buf[1] = new float[outChannels * columns];
+                }
+                if (col == null) {
+                    im2colBand(n, rowStart, rowEnd, null, buf[0]);
+                    gemm(serial, w.floatData(), buf[0], 0, columns, buf[1], columns);
+                } else {
+                    gemm(serial, w.floatData(), col.floatData(), colOffset(n, rowStart), col.dim(1), buf[1], columns);
+                }
+                for (int oc = 0; oc < outChannels; oc++) {
+                    float bias = b == null ? 0.0f : b.floatData()[b.offset() + oc];
+                    int outBase = ((n * outChannels + oc) * pooledHeight + first) * pooledWidth;
+                    MaxPooling.poolPlane(buf[1], oc * columns, convWidth, poolSize, poolStride,
+                            last - first, pooledWidth, output.floatData(), output.offset() + outBase,
+                            argmax, outBase);
+                    biasRelu(output.floatData(), output.offset() + outBase, (last - first) * pooledWidth,
+                            bias, mask, outBase);
+                }
+            } else {
+                double[][] buf = serial ? scratch.get() : new double[2][0];
+                if (col == null && buf[0].length < patch * columns) {
+                    buf[0] = new double[patch * columns];
+                }
+                if (buf[1].length < outChannels * columns) {
+                    buf[1] = new double[outChannels * columns];
+                }
+                if (col == null) {
+                    im2colBand(n, rowStart, rowEnd, buf[0], null);
+                    gemm(serial, w.data(), buf[0], 0, columns, buf[1], columns);
+                } else {
+                    gemm(serial, w.data(), col.data(), colOffset(n, rowStart), col.dim(1), buf[1], columns);
+                }
+                for (int oc = 0; oc < outChannels; oc++) {
+                    double bias = b == null ? 0.0 : b.data()[b.offset() + oc];
+                    int outBase = ((n * outChannels + oc) * pooledHeight + first) * pooledWidth;
+                    MaxPooling.poolPlane(buf[1], oc * columns, convWidth, poolSize, poolStride,
+                            last - first, pooledWidth, output.data(), output.offset() + outBase,
+                            argmax, outBase);
+                    biasRelu(output.data(), output.offset() + outBase, (last - first) * pooledWidth,
+                            bias, mask, outBase);
+                }
+            }
+        }
+
+        /**
+         * 帯の行列積（カーネル [outChannels][patch] × im2col [patch][columns]）
+         */
+        private void gemm(boolean serial, double[] kernel, double[] colData, int colOff, int ldb,
+                          double[] dst, int columns) {
+            if (serial) {
+                Matrix.gemmSerial(outChannels, columns, patch, kernel, w.offset(), patch,
+                        colData, colOff, ldb, dst, 0, columns);
+            } else {
+                Matrix.gemm(outChannels, columns, patch, kernel, w.offset(), patch,
+                        colData, colOff, ldb, dst, 0, columns);
+            }
+        }
+
+        private void gemm(boolean serial, float[] kernel, float[] colData, int colOff, int ldb,
+                          float[] dst, int columns) {
+            if (serial) {
+                Matrix.gemmSerial(outChannels, columns, patch, kernel, w.offset(), patch,
+                        colData, colOff, ldb, dst, 0, columns);
+            } else {
+                Matrix.gemm(outChannels, columns, patch, kernel, w.offset(), patch,
+                        colData, colOff, ldb, dst, 0, columns);
+            }
+        }
+
+        /**
+         * バッチ全体のim2col行列の中で、n枚目の畳み込みの出力行rowStartの列の位置
+         * （列は (画像, oh, ow) の順なので、帯の列は各行の中で連続する）
+         */
+        private int colOffset(int n, int rowStart) {
+            return col.offset() + (n * convHeight + rowStart) * convWidth;
+        }
+
+        /**
+         * n枚目の畳み込みの出力行 rowStart..rowEnd に対するim2col（[patch][行数 × convWidth]、範囲外はゼロ）
+         */
+        private void im2colBand(int n, int rowStart, int rowEnd, double[] col, float[] colf) {
+            int height = in.dim(2);
+            int width = in.dim(3);
+            int columns = (rowEnd - rowStart) * convWidth;
+            boolean f32 = colf != null;
+            for (int r = 0; r < patch; r++) {
+                int c = r / (kernelSize * kernelSize);
+                int kh = r / kernelSize % kernelSize;
+                int kw = r % kernelSize;
+                int plane = in.offset() + (n * inChannels + c) * height * width;
+                int to = r * columns;
+                for (int oh = rowStart; oh < rowEnd; oh++, to += convWidth) {
+                    int ih = oh * stride + kh - padding;
+                    if (ih < 0 || ih >= height) {
+                        if (f32) {
+                            Arrays.fill(colf, to, to + convWidth, 0.0f);
+                        } else {
+                            Arrays.fill(col, to, to + convWidth, 0.0);
+                        }
+                        continue;
+                    }
+                    int rowOff = plane + ih * width;
+                    for (int ow = 0; ow < convWidth; ow++) {
+                        int iw = ow * stride + kw - padding;
+                        boolean inside = iw >= 0 && iw < width;
+                        if (f32) {
+                            colf[to + ow] = inside ? in.floatData()[rowOff + iw] : 0.0f;
+                        } else {
+                            col[to + ow] = inside ? in.data()[rowOff + iw] : 0.0;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * プーリング後の値にバイアスとReLUを適用し、ReLUを通ったか（正か）を記録する
+     * バイアスは面ごとに一定なので、最大値の位置はバイアスを足す前と変わらない
+     * 最大値が0以下の位置はマスクがfalseになり、逆伝播で勾配が流れない（argmaxはどの位置でもよい）
+     * @param recordOff maskの書き込み位置（maskがnullなら記録しない）
+     */
+    private static void biasRelu(double[] dst, int off, int count, double bias, boolean[] mask, int recordOff) {
+        for (int i = 0; i < count; i++) {
+            double v = Math.max(dst[off + i] + bias, 0.0);
+            dst[off + i] = v;
+            if (mask != null) {
+                mask[recordOff + i] = v > 0.0;
+            }
+        }
+    }
+
+    private static void biasRelu(float[] dst, int off, int count, float bias, boolean[] mask, int recordOff) {
+        for (int i = 0; i < count; i++) {
+            float v = Math.max(dst[off + i] + bias, 0.0f);
+            dst[off + i] = v;
+            if (mask != null) {
+                mask[recordOff + i] = v > 0.0f;
+            }
+        }
+    }
+}
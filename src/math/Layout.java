@@ -0,0 +1,11 @@
+package math;
+
+/**
+ * 畳み込み層の活性化のメモリ配置
+ */
+public enum Layout {
+    /** [batch][channels][height][width]（チャンネルごとの面が連続） */
+    NCHW,
+    /** [batch][height][width][channels]（画素ごとにチャンネルが連続、内側のループをチャンネル方向にSIMD化できる） */
+    NHWC
+}
@@ -1,13 +1,216 @@
 package math;
 
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
 public class Matrix {
+
+    // GEMMのマイクロカーネルのレジスタタイル（MR×NRの累積をローカル変数に保持）
+    private static final int MR = 4;
+    private static final int NR = 4;
+
+    // GEMMのブロックサイズ（KC×NRのBスライバーがL1、MC×KCのAブロックがL2、KC×NCのBパネルがL3に収まる大きさ）
+    private static volatile int blockM = 96;
+    private static volatile int blockK = 256;
+    private static volatile int blockN = 2048;
+
+    // パック用バッファ（スレッドごとに再利用）
+    private static final ThreadLocal<double[][]> packBuffers =
+            ThreadLocal.withInitial(() -> new double[2][0]);
+    private static final ThreadLocal<float[][]> floatPackBuffers =
+            ThreadLocal.withInitial(() -> new float[2][0]);
+
+    // 2D配列を平坦化する作業領域（dotIntoで使用、スレッドごとに再利用）
+    private static final ThreadLocal<double[][]> flatScratch =
+            ThreadLocal.withInitial(() -> new double[3][0]);
+
+    // 並列化（出力タイルをForkJoinPoolで分割）
+    private static final ForkJoinPool pool = ForkJoinPool.commonPool();
+    private static final boolean multiCore = Runtime.getRuntime().availableProcessors() > 1;
+    private static volatile long parallelThreshold = 1L << 18; // 1タスクあたりの積和演算回数
+    // GEMVは各要素を1回しか使わずメモリ帯域で律速されるため、GEMMより小さい単位で分ける
+    private static volatile long gemvThreshold = 1L << 16;
+
+    /**
+     * GEMMのブロックサイズを設定
+     * @param mc Aブロックの行数（MRの倍数に切り上げ）
+     * @param kc 内積方向のブロック長
+     * @param nc Bパネルの列数（NRの倍数に切り上げ）
+     */
+    public static void setBlockSizes(int mc, int kc, int nc) {
+        if (mc <= 0 || kc <= 0 || nc <= 0) {
+            throw new IllegalArgumentException("Block sizes must be positive");
+        }
+        blockM = roundUp(mc, MR);
+        blockK = kc;
+        blockN = roundUp(nc, NR);
+    }
+
+    /**
+     * GEMM/GEMVを並列化する閾値を設定
+     * 積和演算の回数がこれ以下の計算はシングルスレッドのまま実行する
+     * @param multiplyAdds 1タスクあたりの積和演算回数
+     */
+    public static void setParallelThreshold(long multiplyAdds) {
+        if (multiplyAdds <= 0) {
+            throw new IllegalArgumentException("Threshold must be positive");
+        }
+        parallelThreshold = multiplyAdds;
+    }
+
+    /**
+     * 現在の並列化閾値（積和演算回数）
+     */
+    public static long getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * GEMV（行列ベクトル積）を並列化する閾値を設定
+     * 積和演算の回数がこれ以下の計算はシングルスレッドのまま実行する（既定 2^16、FC1の128×2048は4つに分かれる）
+     * @param multiplyAdds 1タスクあたりの積和演算回数
+     */
+    public static void setGemvParallelThreshold(long multiplyAdds) {
+        if (multiplyAdds <= 0) {
+            throw new IllegalArgumentException("Threshold must be positive");
+        }
+        gemvThreshold = multiplyAdds;
+    }
+
+    /**
+     * 現在のGEMVの並列化閾値（積和演算回数）
+     */
+    public static long getGemvParallelThreshold() {
+        return gemvThreshold;
+    }
+
+    /**
+     * 現在のGEMMブロックサイズ
+     * @return {mc, kc, nc}
+     */
+    public static int[] getBlockSizes() {
+        return new int[]{blockM, blockK, blockN};
+    }
+
     /**
      * 行列の積を計算 (A × B)
+     * キャッシュブロッキングとパネルパッキングを行うGEMMを使用
      * @param a 左側の行列
      * @param b 右側の行列
      * @return 積の結果
      */
     public static double[][] dot(double[][] a, double[][] b) {
+        double[][] result = new double[a.length][b[0].length];
+        dotInto(a, b, result);
+        return result;
+    }
+
+    /**
+     * 行列の積を出力先に書き込む (dst = A × B)
+     * 平坦化用の作業領域はスレッドごとに再利用する
+     * @param a 左側の行列 [m][n]
+     * @param b 右側の行列 [n][p]
+     * @param dst 結果の書き込み先 [m][p]
+     */
+    public static void dotInto(double[][] a, double[][] b, double[][] dst) {
+        int m = a.length;
+        int n = a[0].length;
+        int p = b[0].length;
+
+        double[][] scratch = flatScratch.get();
+        double[] flatA = scratch[0] = ensureCapacity(scratch[0], m * n);
+        double[] flatB = scratch[1] = ensureCapacity(scratch[1], n * p);
+        double[] flatC = scratch[2] = ensureCapacity(scratch[2], m * p);
+        flattenRowsInto(a, flatA);
+        flattenRowsInto(b, flatB);
+        gemm(m, p, n, flatA, 0, n, flatB, 0, p, flatC, 0, p);
+
+        for (int i = 0; i < m; i++) {
+            System.arraycopy(flatC, i * p, dst[i], 0, p);
+        }
+    }
+
+    /**
+     * 転置した右側との積を計算 (A × B^T)
+     * B^Tは作らず、GEMMのストライドを入れ替えて読む
+     * @param a 左側の行列 [m][k]
+     * @param b 右側の行列 [n][k]
+     * @return 積の結果 [m][n]
+     */
+    public static double[][] dotNT(double[][] a, double[][] b) {
+        double[][] result = new double[a.length][b.length];
+        dotNTInto(a, b, result);
+        return result;
+    }
+
+    /**
+     * 転置した右側との積を出力先に書き込む (dst = A × B^T)
+     * @param a 左側の行列 [m][k]
+     * @param b 右側の行列 [n][k]
+     * @param dst 結果の書き込み先 [m][n]
+     */
+    public static void dotNTInto(double[][] a, double[][] b, double[][] dst) {
+        int m = a.length;
+        int k = a[0].length;
+        int n = b.length;
+
+        double[][] scratch = flatScratch.get();
+        double[] flatA = scratch[0] = ensureCapacity(scratch[0], m * k);
+        double[] flatB = scratch[1] = ensureCapacity(scratch[1], n * k);
+        double[] flatC = scratch[2] = ensureCapacity(scratch[2], m * n);
+        flattenRowsInto(a, flatA);
+        flattenRowsInto(b, flatB);
+        gemmStrided(m, n, k, flatA, 0, k, 1, flatB, 0, 1, k, flatC, 0, n);
+
+        for (int i = 0; i < m; i++) {
+            System.arraycopy(flatC, i * n, dst[i], 0, n);
+        }
+    }
+
+    /**
+     * 転置した左側との積を計算 (A^T × B)
+     * @param a 左側の行列 [k][m]
+     * @param b 右側の行列 [k][n]
+     * @return 積の結果 [m][n]
+     */
+    public static double[][] dotTN(double[][] a, double[][] b) {
+        double[][] result = new double[a[0].length][b[0].length];
+        dotTNInto(a, b, result);
+        return result;
+    }
+
+    /**
+     * 転置した左側との積を出力先に書き込む (dst = A^T × B)
+     * @param a 左側の行列 [k][m]
+     * @param b 右側の行列 [k][n]
+     * @param dst 結果の書き込み先 [m][n]
+     */
+    public static void dotTNInto(double[][] a, double[][] b, double[][] dst) {
+        int k = a.length;
+        int m = a[0].length;
+        int n = b[0].length;
+
+        double[][] scratch = flatScratch.get();
+        double[] flatA = scratch[0] = ensureCapacity(scratch[0], k * m);
+        double[] flatB = scratch[1] = ensureCapacity(scratch[1], k * n);
+        double[] flatC = scratch[2] = ensureCapacity(scratch[2], m * n);
+        flattenRowsInto(a, flatA);
+        flattenRowsInto(b, flatB);
+        gemmStrided(m, n, k, flatA, 0, 1, m, flatB, 0, n, 1, flatC, 0, n);
+
+        for (int i = 0; i < m; i++) {
+            System.arraycopy(flatC, i * n, dst[i], 0, n);
+        }
+    }
+
+    /**
+     * 行列の積を計算 (A × B)（参照実装、素朴な三重ループ）
+     * @param a 左側の行列
+     * @param b 右側の行列
+     * @return 積の結果
+     */
+    public static double[][] dotNaive(double[][] a, double[][] b) {
         int m = a.length;
         int n = a[0].length;
         int p = b[0].length;
@@ -25,6 +228,443 @@ public class Matrix {
         return result;
     }
 
+    /**
+     * 行優先の平坦配列に対するGEMM (C = A × B)
+     * @param m Cの行数
+     * @param n Cの列数
+     * @param k 内積の長さ
+     * @param a 行列A [m][k]（aOffから行ごとにlda間隔）
+     * @param aOff Aの先頭位置
+     * @param lda Aの行の間隔
+     * @param b 行列B [k][n]
+     * @param bOff Bの先頭位置
+     * @param ldb Bの行の間隔
+     * @param c 結果C [m][n]（上書きされる）
+     * @param cOff Cの先頭位置
+     * @param ldc Cの行の間隔
+     */
+    public static void gemm(int m, int n, int k,
+                            double[] a, int aOff, int lda,
+                            double[] b, int bOff, int ldb,
+                            double[] c, int cOff, int ldc) {
+        gemmStrided(m, n, k, a, aOff, lda, 1, b, bOff, ldb, 1, c, cOff, ldc);
+    }
+
+    /**
+     * 任意ストライドの行列に対するGEMM (C = A × B)
+     * A(i, p) = a[aOff + i * rsA + p * csA]、B(p, j) = b[bOff + p * rsB + j * csB]
+     * 転置された行列もストライドの入れ替えだけで扱える
+     */
+    static void gemmStrided(int m, int n, int k,
+                            double[] a, int aOff, int rsA, int csA,
+                            double[] b, int bOff, int rsB, int csB,
+                            double[] c, int cOff, int ldc) {
+        parallelTiles(m, n, k, (row, col, mt, nt) ->
+                gemmSequential(mt, nt, k, a, aOff + row * rsA, rsA, csA,
+                        b, bOff + col * csB, rsB, csB, c, cOff + row * ldc + col, ldc));
+    }
+
+    /**
+     * 行優先の平坦配列に対するGEMM（float版）
+     */
+    public static void gemm(int m, int n, int k,
+                            float[] a, int aOff, int lda,
+                            float[] b, int bOff, int ldb,
+                            float[] c, int cOff, int ldc) {
+        gemmStrided(m, n, k, a, aOff, lda, 1, b, bOff, ldb, 1, c, cOff, ldc);
+    }
+
+    /**
+     * 任意ストライドの行列に対するGEMM（float版）
+     */
+    static void gemmStrided(int m, int n, int k,
+                            float[] a, int aOff, int rsA, int csA,
+                            float[] b, int bOff, int rsB, int csB,
+                            float[] c, int cOff, int ldc) {
+        parallelTiles(m, n, k, (row, col, mt, nt) ->
+                gemmSequential(mt, nt, k, a, aOff + row * rsA, rsA, csA,
+                        b, bOff + col * csB, rsB, csB, c, cOff + row * ldc + col, ldc));
+    }
+
+    /**
+     * 常にシングルスレッドで実行するGEMM (C = A × B)
+     * 既に並列化されたタスクの中から呼ぶ場合に使う（行列積の中でフォークしないので、
+     * 呼び出し側がスレッドごとの作業領域を持ったままでも、同じスレッドで別のタスクが実行されない）
+     */
+    static void gemmSerial(int m, int n, int k,
+                           double[] a, int aOff, int lda,
+                           double[] b, int bOff, int ldb,
+                           double[] c, int cOff, int ldc) {
+        gemmSequential(m, n, k, a, aOff, lda, 1, b, bOff, ldb, 1, c, cOff, ldc);
+    }
+
+    /**
+     * 常にシングルスレッドで実行するGEMM（float版）
+     */
+    static void gemmSerial(int m, int n, int k,
+                           float[] a, int aOff, int lda,
+                           float[] b, int bOff, int ldb,
+                           float[] c, int cOff, int ldc) {
+        gemmSequential(m, n, k, a, aOff, lda, 1, b, bOff, ldb, 1, c, cOff, ldc);
+    }
+
+    /**
+     * 出力Cのタイル（row, colから mt×nt）に対する処理
+     */
+    @FunctionalInterface
+    interface TileKernel {
+        void compute(int row, int col, int mt, int nt);
+    }
+
+    /**
+     * 出力Cをタイルに分割して処理（m × n × kが閾値以下ならそのまま実行）
+     */
+    static void parallelTiles(int m, int n, int k, TileKernel body) {
+        if (multiCore && (long) m * n * k > parallelThreshold) {
+            // 出力タイルを並列処理
+            pool.invoke(new GemmTask(body, 0, 0, m, n, k));
+        } else {
+            body.compute(0, 0, m, n);
+        }
+    }
+
+    /**
+     * GEMMタスク（出力Cの領域を分割統治）
+     * 各タスクはCの互いに重ならない領域だけを書き込むため、結果は逐次版と一致する
+     */
+    private static class GemmTask extends RecursiveTask<Void> {
+        private final TileKernel body;
+        private final int row, col;
+        private final int m, n, k;
+
+        GemmTask(TileKernel body, int row, int col, int m, int n, int k) {
+            this.body = body;
+            this.row = row;
+            this.col = col;
+            this.m = m;
+            this.n = n;
+            this.k = k;
+        }
+
+        @Override
+        protected Void compute() {
+            boolean canSplitRows = m > MR;
+            boolean canSplitCols = n > NR;
+
+            if ((long) m * n * k <= parallelThreshold || (!canSplitRows && !canSplitCols)) {
+                // 直接計算
+                body.compute(row, col, m, n);
+                return null;
+            }
+
+            GemmTask leftTask;
+            GemmTask rightTask;
+            if (canSplitRows && (m / MR >= n / NR || !canSplitCols)) {
+                // 行方向に分割
+                int mid = roundUp(m / 2, MR);
+                leftTask = new GemmTask(body, row, col, mid, n, k);
+                rightTask = new GemmTask(body, row + mid, col, m - mid, n, k);
+            } else {
+                // 列方向に分割
+                int mid = roundUp(n / 2, NR);
+                leftTask = new GemmTask(body, row, col, m, mid, k);
+                rightTask = new GemmTask(body, row, col + mid, m, n - mid, k);
+            }
+
+            leftTask.fork();
+            rightTask.compute();
+            leftTask.join();
+            return null;
+        }
+    }
+
+    /**
+     * シングルスレッドのブロックGEMM本体
+     */
+    private static void gemmSequential(int m, int n, int k,
+                                       double[] a, int aOff, int rsA, int csA,
+                                       double[] b, int bOff, int rsB, int csB,
+                                       double[] c, int cOff, int ldc) {
+        // Cをゼロクリア（kブロックごとに累積するため）
+        for (int i = 0; i < m; i++) {
+            Arrays.fill(c, cOff + i * ldc, cOff + i * ldc + n, 0.0);
+        }
+        if (k == 0) {
+            return;
+        }
+
+        int mc = blockM;
+        int kc = blockK;
+        int nc = blockN;
+
+        double[][] buffers = packBuffers.get();
+        int packASize = roundUp(Math.min(m, mc), MR) * Math.min(k, kc);
+        int packBSize = roundUp(Math.min(n, nc), NR) * Math.min(k, kc);
+        if (buffers[0].length < packASize) {
+            buffers[0] = new double[packASize];
+        }
+        if (buffers[1].length < packBSize) {
+            buffers[1] = new double[packBSize];
+        }
+        double[] packedA = buffers[0];
+        double[] packedB = buffers[1];
+
+        for (int jc = 0; jc < n; jc += nc) {
+            int ncCur = Math.min(nc, n - jc);
+
+            for (int pc = 0; pc < k; pc += kc) {
+                int kcCur = Math.min(kc, k - pc);
+
+                // Bパネル（kc×nc）をNR列ごとのスライバーにパック
+                packB(kcCur, ncCur, b, bOff + pc * rsB + jc * csB, rsB, csB, packedB);
+
+                for (int ic = 0; ic < m; ic += mc) {
+                    int mcCur = Math.min(mc, m - ic);
+
+                    // Aブロック（mc×kc）をMR行ごとのスライバーにパック
+                    packA(mcCur, kcCur, a, aOff + ic * rsA + pc * csA, rsA, csA, packedA);
+
+                    // マクロカーネル
+                    for (int jr = 0; jr < ncCur; jr += NR) {
+                        int nr = Math.min(NR, ncCur - jr);
+                        for (int ir = 0; ir < mcCur; ir += MR) {
+                            int mr = Math.min(MR, mcCur - ir);
+                            microKernel(kcCur, packedA, ir * kcCur, packedB, jr * kcCur,
+                                    c, cOff + (ic + ir) * ldc + jc + jr, ldc, mr, nr);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Aブロックのパック（MR行ずつ、列方向に連続させる。端はゼロ埋め）
+     */
+    private static void packA(int mc, int kc, double[] a, int aOff, int rsA, int csA, double[] packed) {
+        int idx = 0;
+        for (int ir = 0; ir < mc; ir += MR) {
+            int mr = Math.min(MR, mc - ir);
+            if (mr == MR) {
+                int r0 = aOff + ir * rsA;
+                int r1 = r0 + rsA;
+                int r2 = r1 + rsA;
+                int r3 = r2 + rsA;
+                for (int p = 0; p < kc; p++) {
+                    int col = p * csA;
+                    packed[idx] = a[r0 + col];
+                    packed[idx + 1] = a[r1 + col];
+                    packed[idx + 2] = a[r2 + col];
+                    packed[idx + 3] = a[r3 + col];
+                    idx += MR;
+                }
+            } else {
+                for (int p = 0; p < kc; p++) {
+                    for (int i = 0; i < MR; i++) {
+                        packed[idx++] = i < mr ? a[aOff + (ir + i) * rsA + p * csA] : 0.0;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Bパネルのパック（NR列ずつ、行方向に連続させる。端はゼロ埋め）
+     */
+    private static void packB(int kc, int nc, double[] b, int bOff, int rsB, int csB, double[] packed) {
+        int idx = 0;
+        for (int jr = 0; jr < nc; jr += NR) {
+            int nr = Math.min(NR, nc - jr);
+            if (nr == NR) {
+                for (int p = 0; p < kc; p++) {
+                    int base = bOff + p * rsB + jr * csB;
+                    packed[idx] = b[base];
+                    packed[idx + 1] = b[base + csB];
+                    packed[idx + 2] = b[base + 2 * csB];
+                    packed[idx + 3] = b[base + 3 * csB];
+                    idx += NR;
+                }
+            } else {
+                for (int p = 0; p < kc; p++) {
+                    for (int j = 0; j < NR; j++) {
+                        packed[idx++] = j < nr ? b[bOff + p * rsB + (jr + j) * csB] : 0.0;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * マイクロカーネル（MR×NRのCタイルをレジスタ上で累積し、Cに加算）
+     */
+    private static void microKernel(int kc, double[] pa, int aIdx, double[] pb, int bIdx,
+                                    double[] c, int cIdx, int ldc, int mr, int nr) {
+        double c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+        double c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+        double c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+        double c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+
+        for (int p = 0; p < kc; p++) {
+            double a0 = pa[aIdx];
+            double a1 = pa[aIdx + 1];
+            double a2 = pa[aIdx + 2];
+            double a3 = pa[aIdx + 3];
+            double b0 = pb[bIdx];
+            double b1 = pb[bIdx + 1];
+            double b2 = pb[bIdx + 2];
+            double b3 = pb[bIdx + 3];
+
+            c00 += a0 * b0; c01 += a0 * b1; c02 += a0 * b2; c03 += a0 * b3;
+            c10 += a1 * b0; c11 += a1 * b1; c12 += a1 * b2; c13 += a1 * b3;
+            c20 += a2 * b0; c21 += a2 * b1; c22 += a2 * b2; c23 += a2 * b3;
+            c30 += a3 * b0; c31 += a3 * b1; c32 += a3 * b2; c33 += a3 * b3;
+
+            aIdx += MR;
+            bIdx += NR;
+        }
+
+        if (mr == MR && nr == NR) {
+            c[cIdx] += c00; c[cIdx + 1] += c01; c[cIdx + 2] += c02; c[cIdx + 3] += c03;
+            cIdx += ldc;
+            c[cIdx] += c10; c[cIdx + 1] += c11; c[cIdx + 2] += c12; c[cIdx + 3] += c13;
+            cIdx += ldc;
+            c[cIdx] += c20; c[cIdx + 1] += c21; c[cIdx + 2] += c22; c[cIdx + 3] += c23;
+            cIdx += ldc;
+            c[cIdx] += c30; c[cIdx + 1] += c31; c[cIdx + 2] += c32; c[cIdx + 3] += c33;
+            return;
+        }
+
+        // 端のタイルは有効な部分だけ書き戻す
+        double[] tile = {
+                c00, c01, c02, c03,
+                c10, c11, c12, c13,
+                c20, c21, c22, c23,
+                c30, c31, c32, c33
+        };
+        for (int i = 0; i < mr; i++) {
+            for (int j = 0; j < nr; j++) {
+                c[cIdx + i * ldc + j] += tile[i * NR + j];
+            }
+        }
+    }
+
+    /**
+     * シングルスレッドのブロックGEMM本体（float版）
+     */
+    private static void gemmSequential(int m, int n, int k,
+                                       float[] a, int aOff, int rsA, int csA,
+                                       float[] b, int bOff, int rsB, int csB,
+                                       float[] c, int cOff, int ldc) {
+        for (int i = 0; i < m; i++) {
+            Arrays.fill(c, cOff + i * ldc, cOff + i * ldc + n, 0.0f);
+        }
+        if (k == 0) {
+            return;
+        }
+
+        int mc = blockM;
+        int kc = blockK;
+        int nc = blockN;
+
+        float[][] buffers = floatPackBuffers.get();
+        int packASize = roundUp(Math.min(m, mc), MR) * Math.min(k, kc);
+        int packBSize = roundUp(Math.min(n, nc), NR) * Math.min(k, kc);
+        if (buffers[0].length < packASize) {
+            buffers[0] = new float[packASize];
+        }
+        if (buffers[1].length < packBSize) {
+            buffers[1] = new float[packBSize];
+        }
+        float[] packedA = buffers[0];
+        float[] packedB = buffers[1];
+
+        for (int jc = 0; jc < n; jc += nc) {
+            int ncCur = Math.min(nc, n - jc);
+
+            for (int pc = 0; pc < k; pc += kc) {
+                int kcCur = Math.min(kc, k - pc);
+                packB(kcCur, ncCur, b, bOff + pc * rsB + jc * csB, rsB, csB, packedB);
+
+                for (int ic = 0; ic < m; ic += mc) {
+                    int mcCur = Math.min(mc, m - ic);
+                    packA(mcCur, kcCur, a, aOff + ic * rsA + pc * csA, rsA, csA, packedA);
+
+                    for (int jr = 0; jr < ncCur; jr += NR) {
+                        int nr = Math.min(NR, ncCur - jr);
+                        for (int ir = 0; ir < mcCur; ir += MR) {
+                            int mr = Math.min(MR, mcCur - ir);
+                            microKernel(kcCur, packedA, ir * kcCur, packedB, jr * kcCur,
+                                    c, cOff + (ic + ir) * ldc + jc + jr, ldc, mr, nr);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void packA(int mc, int kc, float[] a, int aOff, int rsA, int csA, float[] packed) {
+        int idx = 0;
+        for (int ir = 0; ir < mc; ir += MR) {
+            int mr = Math.min(MR, mc - ir);
+            for (int p = 0; p < kc; p++) {
+                for (int i = 0; i < MR; i++) {
+                    packed[idx++] = i < mr ? a[aOff + (ir + i) * rsA + p * csA] : 0.0f;
+                }
+            }
+        }
+    }
+
+    private static void packB(int kc, int nc, float[] b, int bOff, int rsB, int csB, float[] packed) {
+        int idx = 0;
+        for (int jr = 0; jr < nc; jr += NR) {
+            int nr = Math.min(NR, nc - jr);
+            for (int p = 0; p < kc; p++) {
+                for (int j = 0; j < NR; j++) {
+                    packed[idx++] = j < nr ? b[bOff + p * rsB + (jr + j) * csB] : 0.0f;
+                }
+            }
+        }
+    }
+
+    private static void microKernel(int kc, float[] pa, int aIdx, float[] pb, int bIdx,
+                                    float[] c, int cIdx, int ldc, int mr, int nr) {
+        float c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+        float c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+        float c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+        float c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+
+        for (int p = 0; p < kc; p++) {
+            float a0 = pa[aIdx];
+            float a1 = pa[aIdx + 1];
+            float a2 = pa[aIdx + 2];
+            float a3 = pa[aIdx + 3];
+            float b0 = pb[bIdx];
+            float b1 = pb[bIdx + 1];
+            float b2 = pb[bIdx + 2];
+            float b3 = pb[bIdx + 3];
+
+            c00 += a0 * b0; c01 += a0 * b1; c02 += a0 * b2; c03 += a0 * b3;
+            c10 += a1 * b0; c11 += a1 * b1; c12 += a1 * b2; c13 += a1 * b3;
+            c20 += a2 * b0; c21 += a2 * b1; c22 += a2 * b2; c23 += a2 * b3;
+            c30 += a3 * b0; c31 += a3 * b1; c32 += a3 * b2; c33 += a3 * b3;
+
+            aIdx += MR;
+            bIdx += NR;
+        }
+
+        float[] tile = {
+                c00, c01, c02, c03,
+                c10, c11, c12, c13,
+                c20, c21, c22, c23,
+                c30, c31, c32, c33
+        };
+        for (int i = 0; i < mr; i++) {
+            for (int j = 0; j < nr; j++) {
+                c[cIdx + i * ldc + j] += tile[i * NR + j];
+            }
+        }
+    }
+
     /**
      * 行列とベクトルの積を計算 (M × v)
      * @param m 行列
@@ -32,19 +672,264 @@ public class Matrix {
      * @return 積の結果（ベクトル）
      */
     public static double[] dotMV(double[][] m, double[] v) {
-        int rows = m.length;
-        double[] result = new double[rows];
+        double[] result = new double[m.length];
+        dotMVInto(m, v, result);
+        return result;
+    }
 
-        for (int i = 0; i < rows; i++) {
-            double sum = 0.0;
-            for (int j = 0; j < v.length; j++) {
-                sum += m[i][j] * v[j];
+    /**
+     * 行列とベクトルの積を出力先に書き込む (dst = M × v)
+     * @param m 行列 [rows][cols]
+     * @param v ベクトル [cols]（dstと同じ配列は不可）
+     * @param dst 結果の書き込み先 [rows]
+     */
+    public static void dotMVInto(double[][] m, double[] v, double[] dst) {
+        parallelRows(m.length, v.length, gemvThreshold, (start, end) -> {
+            for (int i = start; i < end; i++) {
+                dst[i] = Simd.dot(m[i], 0, v, 0, v.length);
             }
-            result[i] = sum;
-        }
+        });
+    }
+
+    /**
+     * 転置行列とベクトルの積を計算 (M^T × v)
+     * @param m 行列 [rows][cols]
+     * @param v ベクトル [rows]
+     * @return 積の結果 [cols]
+     */
+    public static double[] dotMVT(double[][] m, double[] v) {
+        double[] result = new double[m[0].length];
+        dotMVTInto(m, v, result);
         return result;
     }
 
+    /**
+     * 転置行列とベクトルの積を出力先に書き込む (dst = M^T × v)
+     * M^Tは作らず、Mの各行をv[i]倍してdstに加算する
+     * @param m 行列 [rows][cols]
+     * @param v ベクトル [rows]（dstと同じ配列は不可）
+     * @param dst 結果の書き込み先 [cols]
+     */
+    public static void dotMVTInto(double[][] m, double[] v, double[] dst) {
+        int cols = m[0].length;
+        parallelRows(cols, m.length, gemvThreshold, (start, end) -> {
+            Arrays.fill(dst, start, end, 0.0);
+            for (int i = 0; i < m.length; i++) {
+                Simd.axpy(v[i], m[i], start, dst, start, end - start);
+            }
+        });
+    }
+
+    /**
+     * 行優先の平坦配列に対するGEMV (y = A × x)
+     * 大きな行列では行を分割して並列に計算する
+     * @param rows Aの行数
+     * @param cols Aの列数
+     * @param a 行列A [rows][cols]
+     * @param aOff Aの先頭位置
+     * @param lda Aの行の間隔
+     * @param x ベクトルx [cols]
+     * @param xOff xの先頭位置
+     * @param y 結果y [rows]（上書きされる）
+     * @param yOff yの先頭位置
+     */
+    public static void gemv(int rows, int cols, double[] a, int aOff, int lda,
+                            double[] x, int xOff, double[] y, int yOff) {
+        parallelRows(rows, cols, gemvThreshold, (start, end) -> {
+            for (int i = start; i < end; i++) {
+                y[yOff + i] = Simd.dot(a, aOff + i * lda, x, xOff, cols);
+            }
+        });
+    }
+
+    /**
+     * 行優先の平坦配列に対するGEMV（float版）
+     */
+    public static void gemv(int rows, int cols, float[] a, int aOff, int lda,
+                            float[] x, int xOff, float[] y, int yOff) {
+        parallelRows(rows, cols, gemvThreshold, (start, end) -> {
+            for (int i = start; i < end; i++) {
+                y[yOff + i] = Simd.dot(a, aOff + i * lda, x, xOff, cols);
+            }
+        });
+    }
+
+    /**
+     * 転置行列に対するGEMV (y = A^T × x)
+     * Aの行を順にx[i]倍してyに加算するため、Aは行方向に連続して読まれる
+     * 大きな行列ではyの範囲（Aの列）を分割して並列に計算する（加算順は分割によらず一定）
+     * @param rows Aの行数（xの長さ）
+     * @param cols Aの列数（yの長さ）
+     * @param a 行列A [rows][cols]
+     * @param aOff Aの先頭位置
+     * @param lda Aの行の間隔
+     * @param x ベクトルx [rows]
+     * @param xOff xの先頭位置
+     * @param y 結果y [cols]（上書きされる）
+     * @param yOff yの先頭位置
+     */
+    public static void gemvT(int rows, int cols, double[] a, int aOff, int lda,
+                             double[] x, int xOff, double[] y, int yOff) {
+        parallelRows(cols, rows, gemvThreshold, (start, end) -> {
+            Arrays.fill(y, yOff + start, yOff + end, 0.0);
+            for (int i = 0; i < rows; i++) {
+                Simd.axpy(x[xOff + i], a, aOff + i * lda + start, y, yOff + start, end - start);
+            }
+        });
+    }
+
+    /**
+     * 転置行列に対するGEMV（float版）
+     */
+    public static void gemvT(int rows, int cols, float[] a, int aOff, int lda,
+                             float[] x, int xOff, float[] y, int yOff) {
+        parallelRows(cols, rows, gemvThreshold, (start, end) -> {
+            Arrays.fill(y, yOff + start, yOff + end, 0.0f);
+            for (int i = 0; i < rows; i++) {
+                Simd.axpy(x[xOff + i], a, aOff + i * lda + start, y, yOff + start, end - start);
+            }
+        });
+    }
+
+    /**
+     * 疎なベクトルに対するGEMV (y = A × x)
+     * xの非ゼロ要素に対応するAの列だけを添字で集めて読む
+     * @param rows Aの行数
+     * @param a 行列A [rows][cols]
+     * @param aOff Aの先頭位置
+     * @param lda Aの行の間隔
+     * @param idx xの非ゼロ要素の位置
+     * @param values xの非ゼロ要素の値（idxと同じ順）
+     * @param nnz 非ゼロ要素の数
+     * @param y 結果y [rows]（上書きされる）
+     * @param yOff yの先頭位置
+     */
+    public static void gemvSparse(int rows, double[] a, int aOff, int lda,
+                                  int[] idx, double[] values, int nnz, double[] y, int yOff) {
+        parallelRows(rows, nnz, gemvThreshold, (start, end) -> {
+            for (int i = start; i < end; i++) {
+                y[yOff + i] = Simd.dotGather(a, aOff + i * lda, idx, values, nnz);
+            }
+        });
+    }
+
+    /**
+     * 疎なベクトルに対するGEMV（float版）
+     */
+    public static void gemvSparse(int rows, float[] a, int aOff, int lda,
+                                  int[] idx, float[] values, int nnz, float[] y, int yOff) {
+        parallelRows(rows, nnz, gemvThreshold, (start, end) -> {
+            for (int i = start; i < end; i++) {
+                y[yOff + i] = Simd.dotGather(a, aOff + i * lda, idx, values, nnz);
+            }
+        });
+    }
+
+    /**
+     * 疎なベクトルとの外積を加算 (C += g × x^T)
+     * xの非ゼロ要素に対応するCの列だけを更新する（他の列はそのまま）
+     * @param rows Cの行数（gの長さ）
+     * @param g 列ベクトル [rows]
+     * @param gOff gの先頭位置
+     * @param idx xの非ゼロ要素の位置
+     * @param values xの非ゼロ要素の値
+     * @param nnz 非ゼロ要素の数
+     * @param c 加算先C [rows][cols]
+     * @param cOff Cの先頭位置
+     * @param ldc Cの行の間隔
+     */
+    public static void outerSparseAdd(int rows, double[] g, int gOff, int[] idx, double[] values, int nnz,
+                                      double[] c, int cOff, int ldc) {
+        parallelRows(rows, nnz, (start, end) -> {
+            for (int i = start; i < end; i++) {
+                double gi = g[gOff + i];
+                if (gi != 0.0) {
+                    Simd.axpyScatter(gi, values, idx, c, cOff + i * ldc, nnz);
+                }
+            }
+        });
+    }
+
+    /**
+     * 疎なベクトルとの外積を加算（float版）
+     */
+    public static void outerSparseAdd(int rows, float[] g, int gOff, int[] idx, float[] values, int nnz,
+                                      float[] c, int cOff, int ldc) {
+        parallelRows(rows, nnz, (start, end) -> {
+            for (int i = start; i < end; i++) {
+                float gi = g[gOff + i];
+                if (gi != 0.0f) {
+                    Simd.axpyScatter(gi, values, idx, c, cOff + i * ldc, nnz);
+                }
+            }
+        });
+    }
+
+    /**
+     * 行範囲に対する処理
+     */
+    @FunctionalInterface
+    interface RowRange {
+        void compute(int start, int end);
+    }
+
+    /**
+     * 行を分割して処理（rows × colsが閾値以下ならそのまま実行）
+     */
+    static void parallelRows(int rows, int cols, RowRange body) {
+        parallelRows(rows, cols, parallelThreshold, body);
+    }
+
+    /**
+     * 行を分割して処理（閾値を指定、GEMVは{@link #getGemvParallelThreshold}を使う）
+     */
+    static void parallelRows(int rows, int cols, long threshold, RowRange body) {
+        if (multiCore && (long) rows * cols > threshold && rows > 1) {
+            pool.invoke(new RowRangeTask(body, 0, rows, cols, threshold));
+        } else {
+            body.compute(0, rows);
+        }
+    }
+
+    /**
+     * 行範囲タスク（分割統治法）
+     */
+    private static class RowRangeTask extends RecursiveTask<Void> {
+        private final RowRange body;
+        private final int start, end, cols;
+        private final long threshold;
+
+        RowRangeTask(RowRange body, int start, int end, int cols, long threshold) {
+            this.body = body;
+            this.start = start;
+            this.end = end;
+            this.cols = cols;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected Void compute() {
+            int numRows = end - start;
+
+            if ((long) numRows * cols <= threshold || numRows <= 1) {
+                // 直接計算
+                body.compute(start, end);
+            } else {
+                // 分割して並列処理
+                int mid = start + numRows / 2;
+
+                RowRangeTask leftTask = new RowRangeTask(body, start, mid, cols, threshold);
+                RowRangeTask rightTask = new RowRangeTask(body, mid, end, cols, threshold);
+
+                leftTask.fork();
+                rightTask.compute();
+                leftTask.join();
+            }
+
+            return null;
+        }
+    }
+
     /**
      * ベクトルの外積を計算 (v1 × v2^T)
      * @param v1 列ベクトル
@@ -52,16 +937,24 @@ public class Matrix {
      * @return 外積の結果（行列）
      */
     public static double[][] outer(double[] v1, double[] v2) {
-        int m = v1.length;
-        int n = v2.length;
-        double[][] result = new double[m][n];
+        double[][] result = new double[v1.length][v2.length];
+        outerInto(v1, v2, result);
+        return result;
+    }
 
-        for (int i = 0; i < m; i++) {
-            for (int j = 0; j < n; j++) {
-                result[i][j] = v1[i] * v2[j];
+    /**
+     * ベクトルの外積を出力先に書き込む (dst = v1 × v2^T)
+     * @param v1 列ベクトル [m]
+     * @param v2 行ベクトル [n]
+     * @param dst 結果の書き込み先 [m][n]
+     */
+    public static void outerInto(double[] v1, double[] v2, double[][] dst) {
+        for (int i = 0; i < v1.length; i++) {
+            double[] row = dst[i];
+            for (int j = 0; j < v2.length; j++) {
+                row[j] = v1[i] * v2[j];
             }
         }
-        return result;
     }
 
     /**
@@ -70,16 +963,24 @@ public class Matrix {
      * @return 転置行列
      */
     public static double[][] t(double[][] m) {
+        double[][] result = new double[m[0].length][m.length];
+        tInto(m, result);
+        return result;
+    }
+
+    /**
+     * 転置を出力先に書き込む (dst = m^T)
+     * @param m 元の行列 [rows][cols]
+     * @param dst 結果の書き込み先 [cols][rows]（mと同じ配列は不可）
+     */
+    public static void tInto(double[][] m, double[][] dst) {
         int rows = m.length;
         int cols = m[0].length;
-        double[][] result = new double[cols][rows];
-
         for (int i = 0; i < rows; i++) {
             for (int j = 0; j < cols; j++) {
-                result[j][i] = m[i][j];
+                dst[j][i] = m[i][j];
             }
         }
-        return result;
     }
 
     /**
@@ -89,16 +990,25 @@ public class Matrix {
      * @return 和の結果
      */
     public static double[][] add(double[][] a, double[][] b) {
-        int rows = a.length;
-        int cols = a[0].length;
-        double[][] result = new double[rows][cols];
+        double[][] result = new double[a.length][a[0].length];
+        addInto(a, b, result);
+        return result;
+    }
 
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < cols; j++) {
-                result[i][j] = a[i][j] + b[i][j];
-            }
+    /**
+     * 行列の要素ごとの和を出力先に書き込む (dst = a + b、dstにaやbを渡してもよい)
+     */
+    public static void addInto(double[][] a, double[][] b, double[][] dst) {
+        for (int i = 0; i < a.length; i++) {
+            Simd.add(a[i], 0, b[i], 0, dst[i], 0, a[i].length);
         }
-        return result;
+    }
+
+    /**
+     * 行列の要素ごとの和をその場で計算 (a += b)
+     */
+    public static void addInPlace(double[][] a, double[][] b) {
+        addInto(a, b, a);
     }
 
     /**
@@ -109,12 +1019,24 @@ public class Matrix {
      */
     public static double[] addVec(double[] a, double[] b) {
         double[] result = new double[a.length];
-        for (int i = 0; i < a.length; i++) {
-            result[i] = a[i] + b[i];
-        }
+        addVecInto(a, b, result);
         return result;
     }
 
+    /**
+     * ベクトルの要素ごとの和を出力先に書き込む (dst = a + b、dstにaやbを渡してもよい)
+     */
+    public static void addVecInto(double[] a, double[] b, double[] dst) {
+        Simd.add(a, 0, b, 0, dst, 0, a.length);
+    }
+
+    /**
+     * ベクトルの要素ごとの和をその場で計算 (a += b)
+     */
+    public static void addVecInPlace(double[] a, double[] b) {
+        addVecInto(a, b, a);
+    }
+
     /**
      * ベクトルの要素ごとの積（アダマール積）
      * @param a ベクトル1
@@ -123,12 +1045,24 @@ public class Matrix {
      */
     public static double[] hadamard(double[] a, double[] b) {
         double[] result = new double[a.length];
-        for (int i = 0; i < a.length; i++) {
-            result[i] = a[i] * b[i];
-        }
+        hadamardInto(a, b, result);
         return result;
     }
 
+    /**
+     * アダマール積を出力先に書き込む (dst = a ⊙ b、dstにaやbを渡してもよい)
+     */
+    public static void hadamardInto(double[] a, double[] b, double[] dst) {
+        Simd.multiply(a, 0, b, 0, dst, 0, a.length);
+    }
+
+    /**
+     * アダマール積をその場で計算 (a ⊙= b)
+     */
+    public static void hadamardInPlace(double[] a, double[] b) {
+        hadamardInto(a, b, a);
+    }
+
     /**
      * 行列をスカラー倍
      * @param m 行列
@@ -136,16 +1070,25 @@ public class Matrix {
      * @return スカラー倍した行列
      */
     public static double[][] scale(double[][] m, double scalar) {
-        int rows = m.length;
-        int cols = m[0].length;
-        double[][] result = new double[rows][cols];
+        double[][] result = new double[m.length][m[0].length];
+        scaleInto(m, scalar, result);
+        return result;
+    }
 
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < cols; j++) {
-                result[i][j] = m[i][j] * scalar;
-            }
+    /**
+     * スカラー倍を出力先に書き込む (dst = m * scalar、dstにmを渡してもよい)
+     */
+    public static void scaleInto(double[][] m, double scalar, double[][] dst) {
+        for (int i = 0; i < m.length; i++) {
+            scaleVecInto(m[i], scalar, dst[i]);
         }
-        return result;
+    }
+
+    /**
+     * 行列をその場でスカラー倍 (m *= scalar)
+     */
+    public static void scaleInPlace(double[][] m, double scalar) {
+        scaleInto(m, scalar, m);
     }
 
     /**
@@ -156,10 +1099,24 @@ public class Matrix {
      */
     public static double[] scaleVec(double[] v, double scalar) {
         double[] result = new double[v.length];
+        scaleVecInto(v, scalar, result);
+        return result;
+    }
+
+    /**
+     * ベクトルのスカラー倍を出力先に書き込む (dst = v * scalar、dstにvを渡してもよい)
+     */
+    public static void scaleVecInto(double[] v, double scalar, double[] dst) {
         for (int i = 0; i < v.length; i++) {
-            result[i] = v[i] * scalar;
+            dst[i] = v[i] * scalar;
         }
-        return result;
+    }
+
+    /**
+     * ベクトルをその場でスカラー倍 (v *= scalar)
+     */
+    public static void scaleVecInPlace(double[] v, double scalar) {
+        scaleVecInto(v, scalar, v);
     }
 
     /**
@@ -186,4 +1143,269 @@ public class Matrix {
     public static double[] clone(double[] v) {
         return v.clone();
     }
+
+    // ========== DenseTensor版 ==========
+
+    /**
+     * 行列の積を計算 (A × B)
+     * 転置などのストライド付きビューもコピーせずにそのまま扱う
+     * @param a 左側の行列 [m][k]
+     * @param b 右側の行列 [k][n]
+     * @return 積の結果 [m][n]
+     */
+    public static DenseTensor dot(DenseTensor a, DenseTensor b) {
+        DenseTensor result = DenseTensor.zeros(a.precision(), a.dim(0), b.dim(1));
+        dotInto(a, b, result);
+        return result;
+    }
+
+    /**
+     * 行列の積を出力先に書き込む (dst = A × B)
+     * @param a 左側の行列 [m][k]（ストライド付きビュー可）
+     * @param b 右側の行列 [k][n]（ストライド付きビュー可）
+     * @param dst 結果の書き込み先 [m][n]（行が連続していること、精度はaと同じ）
+     */
+    public static void dotInto(DenseTensor a, DenseTensor b, DenseTensor dst) {
+        int m = a.dim(0);
+        int k = a.dim(1);
+        int n = b.dim(1);
+        if (b.dim(0) != k || dst.dim(0) != m || dst.dim(1) != n || dst.stride(1) != 1) {
+            throw new IllegalArgumentException("Shape mismatch: " + a + " x " + b + " -> " + dst);
+        }
+        b = b.toPrecision(a.precision());
+
+        if (a.precision() == Precision.FLOAT32) {
+            gemmStrided(m, n, k,
+                    a.floatData(), a.offset(), a.stride(0), a.stride(1),
+                    b.floatData(), b.offset(), b.stride(0), b.stride(1),
+                    dst.floatData(), dst.offset(), dst.stride(0));
+        } else {
+            gemmStrided(m, n, k,
+                    a.data(), a.offset(), a.stride(0), a.stride(1),
+                    b.data(), b.offset(), b.stride(0), b.stride(1),
+                    dst.data(), dst.offset(), dst.stride(0));
+        }
+    }
+
+    /**
+     * 行列とベクトルの積を計算 (M × v)
+     * @param m 行列 [rows][cols]
+     * @param v ベクトル [cols]
+     * @return 積の結果 [rows]（精度は行列に合わせる）
+     */
+    public static DenseTensor dotMV(DenseTensor m, DenseTensor v) {
+        DenseTensor result = DenseTensor.zeros(m.precision(), m.dim(0));
+        dotMVInto(m, v, result);
+        return result;
+    }
+
+    /**
+     * 行列とベクトルの積を出力先に書き込む (dst = M × v)
+     * @param m 行列 [rows][cols]（連続メモリ）
+     * @param v ベクトル [cols]（連続メモリ、精度は行列と同じ）
+     * @param dst 結果の書き込み先 [rows]（連続メモリ、vと重ならないこと）
+     */
+    public static void dotMVInto(DenseTensor m, DenseTensor v, DenseTensor dst) {
+        DenseTensor a = m.contiguous();
+        DenseTensor x = v.toPrecision(a.precision()).contiguous();
+        int rows = a.dim(0);
+        int cols = a.dim(1);
+
+        if (a.precision() == Precision.FLOAT32) {
+            gemv(rows, cols, a.floatData(), a.offset(), cols,
+                    x.floatData(), x.offset(), dst.floatData(), dst.offset());
+        } else {
+            gemv(rows, cols, a.data(), a.offset(), cols,
+                    x.data(), x.offset(), dst.data(), dst.offset());
+        }
+    }
+
+    /**
+     * 転置行列とベクトルの積を計算 (M^T × v)
+     * @param m 行列 [rows][cols]
+     * @param v ベクトル [rows]
+     * @return 積の結果 [cols]（精度は行列に合わせる）
+     */
+    public static DenseTensor dotMVT(DenseTensor m, DenseTensor v) {
+        DenseTensor result = DenseTensor.zeros(m.precision(), m.dim(1));
+        dotMVTInto(m, v, result);
+        return result;
+    }
+
+    /**
+     * 転置行列とベクトルの積を出力先に書き込む (dst = M^T × v)
+     * 転置行列は作らない
+     * @param m 行列 [rows][cols]（連続メモリ）
+     * @param v ベクトル [rows]（連続メモリ、精度は行列と同じ）
+     * @param dst 結果の書き込み先 [cols]（連続メモリ、vと重ならないこと）
+     */
+    public static void dotMVTInto(DenseTensor m, DenseTensor v, DenseTensor dst) {
+        DenseTensor a = m.contiguous();
+        DenseTensor x = v.toPrecision(a.precision()).contiguous();
+        int rows = a.dim(0);
+        int cols = a.dim(1);
+        if (x.size() != rows || dst.size() != cols) {
+            throw new IllegalArgumentException("Shape mismatch: " + m + "^T x " + v + " -> " + dst);
+        }
+
+        if (a.precision() == Precision.FLOAT32) {
+            gemvT(rows, cols, a.floatData(), a.offset(), cols,
+                    x.floatData(), x.offset(), dst.floatData(), dst.offset());
+        } else {
+            gemvT(rows, cols, a.data(), a.offset(), cols,
+                    x.data(), x.offset(), dst.data(), dst.offset());
+        }
+    }
+
+    /**
+     * 転置した右側との積を出力先に書き込む (dst = A × B^T)
+     * B^TはコピーせずストライドでGEMMに渡す
+     * @param a 左側の行列 [m][k]
+     * @param b 右側の行列 [n][k]
+     * @param dst 結果の書き込み先 [m][n]（行が連続していること）
+     */
+    public static void dotNTInto(DenseTensor a, DenseTensor b, DenseTensor dst) {
+        dotInto(a, b.permute(1, 0), dst);
+    }
+
+    /**
+     * 転置した左側との積を出力先に書き込む (dst = A^T × B)
+     * A^TはコピーせずストライドでGEMMに渡す
+     * @param a 左側の行列 [k][m]
+     * @param b 右側の行列 [k][n]
+     * @param dst 結果の書き込み先 [m][n]（行が連続していること）
+     */
+    public static void dotTNInto(DenseTensor a, DenseTensor b, DenseTensor dst) {
+        dotInto(a.permute(1, 0), b, dst);
+    }
+
+    /**
+     * 疎なベクトルとの積を出力先に書き込む (dst = M × v、vの非ゼロ要素だけを使う)
+     * @param m 行列 [rows][cols]（連続メモリ、精度はvと同じ）
+     * @param v 疎なベクトル [cols]（{@link SparseVector#compress}済み）
+     * @param dst 結果の書き込み先 [rows]（連続メモリ）
+     */
+    public static void dotMVSparseInto(DenseTensor m, SparseVector v, DenseTensor dst) {
+        DenseTensor a = m.contiguous();
+        int rows = a.dim(0);
+        int cols = a.dim(1);
+        if (v.length() != cols || v.precision() != a.precision()) {
+            throw new IllegalArgumentException("Shape mismatch: " + m + " x sparse[" + v.length() + "]");
+        }
+        if (a.precision() == Precision.FLOAT32) {
+            gemvSparse(rows, a.floatData(), a.offset(), cols,
+                    v.index(), v.floatValues(), v.nnz(), dst.floatData(), dst.offset());
+        } else {
+            gemvSparse(rows, a.data(), a.offset(), cols,
+                    v.index(), v.values(), v.nnz(), dst.data(), dst.offset());
+        }
+    }
+
+    /**
+     * 疎なベクトルとの外積を加算 (dst += g × v^T、vの非ゼロ要素の列だけを更新)
+     * @param g 列ベクトル [rows]（連続メモリ、精度はvと同じ）
+     * @param v 疎なベクトル [cols]
+     * @param dst 加算先 [rows][cols]（連続メモリ）
+     */
+    public static void outerSparseAdd(DenseTensor g, SparseVector v, DenseTensor dst) {
+        int rows = g.size();
+        int cols = v.length();
+        if (dst.size() != rows * cols || v.precision() != g.precision()) {
+            throw new IllegalArgumentException("Shape mismatch: " + g + " x sparse[" + cols + "] -> " + dst);
+        }
+        if (g.precision() == Precision.FLOAT32) {
+            outerSparseAdd(rows, g.floatData(), g.offset(), v.index(), v.floatValues(), v.nnz(),
+                    dst.floatData(), dst.offset(), cols);
+        } else {
+            outerSparseAdd(rows, g.data(), g.offset(), v.index(), v.values(), v.nnz(),
+                    dst.data(), dst.offset(), cols);
+        }
+    }
+
+    /**
+     * ベクトルの外積を計算 (v1 × v2^T)
+     * @param v1 列ベクトル [m]
+     * @param v2 行ベクトル [n]
+     * @return 外積の結果 [m][n]（精度はv1に合わせる）
+     */
+    public static DenseTensor outer(DenseTensor v1, DenseTensor v2) {
+        DenseTensor result = DenseTensor.zeros(v1.precision(), v1.size(), v2.size());
+        outerInto(v1, v2, result, false);
+        return result;
+    }
+
+    /**
+     * ベクトルの外積を出力先に書き込む、または累積する (dst = v1 × v2^T / dst += v1 × v2^T)
+     * @param v1 列ベクトル [m]（連続メモリ）
+     * @param v2 行ベクトル [n]（連続メモリ）
+     * @param dst 書き込み先 [m][n]（連続メモリ、精度はv1と同じ）
+     * @param accumulate trueならdstに加算する（バッチの勾配の合計用）
+     */
+    public static void outerInto(DenseTensor v1, DenseTensor v2, DenseTensor dst, boolean accumulate) {
+        int m = v1.size();
+        int n = v2.size();
+        if (dst.size() != m * n) {
+            throw new IllegalArgumentException("Shape mismatch: " + v1 + " x " + v2 + " -> " + dst);
+        }
+        DenseTensor b = v2.toPrecision(v1.precision());
+        int aOff = v1.offset();
+        int bOff = b.offset();
+        int idx = dst.offset();
+
+        if (v1.precision() == Precision.FLOAT32) {
+            float[] a = v1.floatData();
+            float[] bd = b.floatData();
+            float[] rd = dst.floatData();
+            for (int i = 0; i < m; i++) {
+                float ai = a[aOff + i];
+                for (int j = 0; j < n; j++, idx++) {
+                    rd[idx] = accumulate ? rd[idx] + ai * bd[bOff + j] : ai * bd[bOff + j];
+                }
+            }
+            return;
+        }
+
+        double[] a = v1.data();
+        double[] bd = b.data();
+        double[] rd = dst.data();
+        for (int i = 0; i < m; i++) {
+            double ai = a[aOff + i];
+            for (int j = 0; j < n; j++, idx++) {
+                rd[idx] = accumulate ? rd[idx] + ai * bd[bOff + j] : ai * bd[bOff + j];
+            }
+        }
+    }
+
+    /**
+     * 行列の転置（連続メモリにコピー）
+     * @param m 元の行列 [rows][cols]
+     * @return 転置行列 [cols][rows]
+     */
+    public static DenseTensor t(DenseTensor m) {
+        return m.permute(1, 0).copy();
+    }
+
+    /**
+     * 転置を出力先に書き込む (dst = m^T)
+     * @param m 元の行列 [rows][cols]
+     * @param dst 結果の書き込み先 [cols][rows]
+     */
+    public static void tInto(DenseTensor m, DenseTensor dst) {
+        dst.copyFrom(m.permute(1, 0));
+    }
+
+    private static void flattenRowsInto(double[][] m, double[] flat) {
+        int cols = m[0].length;
+        for (int i = 0; i < m.length; i++) {
+            System.arraycopy(m[i], 0, flat, i * cols, cols);
+        }
+    }
+
+    private static double[] ensureCapacity(double[] buffer, int length) {
+        return buffer.length >= length ? buffer : new double[length];
+    }
+
+    private static int roundUp(int value, int multiple) {
+        return (value + multiple - 1) / multiple * multiple;
+    }
 }
@@ -0,0 +1,200 @@
+package math;
+
+import java.util.Arrays;
+
+/**
+ * 最大プーリング（NCHW）の順伝播と逆伝播
+ * 学習時は最大値の窓の中の位置（ph * poolSize + pw）を出力1要素あたり1バイトで記録し、
+ * 逆伝播ではその位置に勾配を戻す（int[][][]の添字も、入力と同じ大きさの一時配列も持たない）
+ * 学習・推論とも同じ実装で、面（画像×チャンネル）ごとに並列に計算する
+ */
+public final class MaxPooling {
+
+    /** argmaxを1バイトに収められる窓の大きさの上限（11 × 11 = 121） */
+    public static final int MAX_POOL_SIZE = 11;
+
+    private MaxPooling() {
+    }
+
+    /**
+     * プーリング後の出力の大きさ
+     */
+    public static int outputSize(int inputSize, int poolSize, int stride) {
+        return (inputSize - poolSize) / stride + 1;
+    }
+
+    /**
+     * 最大プーリングを既存のテンソルに書き込む
+     * 同じ値なら先の位置を選ぶ
+     * @param input 入力 [batch][channels][height][width]
+     * @param poolSize プーリングの窓の大きさ（11以下）
+     * @param stride ストライド
+     * @param argmax 最大値の窓の中の位置の記録先（出力と同じ要素数、推論ならnull）
+     * @param output 書き込み先 [batch][channels][pooledHeight][pooledWidth]（連続メモリ）
+     */
+    public static void forwardInto(DenseTensor input, int poolSize, int stride, byte[] argmax, DenseTensor output) {
+        DenseTensor src = input.toPrecision(output.precision()).contiguous();
+        int planes = src.dim(0) * src.dim(1);
+        int height = src.dim(2);
+        int width = src.dim(3);
+        int pooledHeight = output.dim(2);
+        int pooledWidth = output.dim(3);
+        if (poolSize > MAX_POOL_SIZE || output.dim(0) != src.dim(0) || output.dim(1) != src.dim(1)
+                || pooledHeight != outputSize(height, poolSize, stride)
+                || pooledWidth != outputSize(width, poolSize, stride)) {
+            throw new IllegalArgumentException("Shape mismatch: " + input + " -> " + output
+                    + " (pool " + poolSize + ", stride " + stride + ")");
+        }
+        checkArgmax(argmax, output.size());
+        boolean f32 = src.precision() == Precision.FLOAT32;
+
+        Matrix.parallelRows(planes, height * width, (start, end) -> {
+            for (int p = start; p < end; p++) {
+                int srcBase = src.offset() + p * height * width;
+                int outBase = p * pooledHeight * pooledWidth;
+                if (f32) {
+                    poolPlane(src.floatData(), srcBase, width, poolSize, stride, pooledHeight, pooledWidth,
+                            output.floatData(), output.offset() + outBase, argmax, outBase);
+                } else {
+                    poolPlane(src.data(), srcBase, width, poolSize, stride, pooledHeight, pooledWidth,
+                            output.data(), output.offset() + outBase, argmax, outBase);
+                }
+            }
+        });
+    }
+
+    /**
+     * 逆伝播: プーリング後の勾配を、記録した最大値の位置に戻す
+     * @param gradOutput プーリング後の勾配 [batch][channels][pooledHeight][pooledWidth]
+     * @param argmax 順伝播で記録した最大値の位置
+     * @param poolSize プーリングの窓の大きさ
+     * @param stride ストライド
+     * @param gradInput 書き込み先 [batch][channels][height][width]（連続メモリ、上書きされる）
+     */
+    public static void backwardInto(DenseTensor gradOutput, byte[] argmax, int poolSize, int stride,
+                                    DenseTensor gradInput) {
+        backwardInto(gradOutput, argmax, null, poolSize, stride, gradInput);
+    }
+
+    /**
+     * 逆伝播（maskがfalseの位置には勾配を流さない、ReLUと融合した場合に使う）
+     * @param mask 勾配を流すか（出力と同じ要素数、nullならすべて流す）
+     */
+    public static void backwardInto(DenseTensor gradOutput, byte[] argmax, boolean[] mask,
+                                    int poolSize, int stride, DenseTensor gradInput) {
+        DenseTensor grad = gradOutput.toPrecision(gradInput.precision()).contiguous();
+        int planes = grad.dim(0) * grad.dim(1);
+        int pooledHeight = grad.dim(2);
+        int pooledWidth = grad.dim(3);
+        int height = gradInput.dim(2);
+        int width = gradInput.dim(3);
+        if (argmax == null) {
+            throw new IllegalArgumentException("Backward needs the recorded argmax");
+        }
+        checkArgmax(argmax, grad.size());
+        if (mask != null && mask.length < grad.size()) {
+            throw new IllegalArgumentException("mask must hold " + grad.size() + " entries");
+        }
+        boolean f32 = grad.precision() == Precision.FLOAT32;
+
+        // 面ごとに自分の範囲だけを0にして足し込むので、スレッド間で書き込みが重ならない
+        Matrix.parallelRows(planes, height * width, (start, end) -> {
+            for (int p = start; p < end; p++) {
+                int planeBase = gradInput.offset() + p * height * width;
+                int idx = p * pooledHeight * pooledWidth;
+                if (f32) {
+                    float[] dst = gradInput.floatData();
+                    float[] g = grad.floatData();
+                    Arrays.fill(dst, planeBase, planeBase + height * width, 0.0f);
+                    for (int oh = 0; oh < pooledHeight; oh++) {
+                        for (int ow = 0; ow < pooledWidth; ow++, idx++) {
+                            if (mask == null || mask[idx]) {
+                                // 窓が重なる場合に備えて加算
+                                dst[position(planeBase, width, oh, ow, argmax[idx], poolSize, stride)]
+                                        += g[grad.offset() + idx];
+                            }
+                        }
+                    }
+                } else {
+                    double[] dst = gradInput.data();
+                    double[] g = grad.data();
+                    Arrays.fill(dst, planeBase, planeBase + height * width, 0.0);
+                    for (int oh = 0; oh < pooledHeight; oh++) {
+                        for (int ow = 0; ow < pooledWidth; ow++, idx++) {
+                            if (mask == null || mask[idx]) {
+                                dst[position(planeBase, width, oh, ow, argmax[idx], poolSize, stride)]
+                                        += g[grad.offset() + idx];
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private static int position(int planeBase, int width, int oh, int ow, int a, int poolSize, int stride) {
+        return planeBase + (oh * stride + a / poolSize) * width + ow * stride + a % poolSize;
+    }
+
+    private static void checkArgmax(byte[] argmax, int size) {
+        if (argmax != null && argmax.length < size) {
+            throw new IllegalArgumentException("argmax must hold " + size + " entries");
+        }
+    }
+
+    /**
+     * 1枚の面（またはその帯）の最大プーリング（{@link FusedConvolution}の帯からも使う）
+     * @param src 入力（srcOffから行ごとにwidth間隔）
+     * @param rows プーリング後の行数
+     * @param recordOff argmaxの書き込み位置
+     */
+    static void poolPlane(double[] src, int srcOff, int width, int poolSize, int stride,
+                          int rows, int pooledWidth, double[] dst, int dstOff, byte[] argmax, int recordOff) {
+        int idx = 0;
+        for (int oh = 0; oh < rows; oh++) {
+            for (int ow = 0; ow < pooledWidth; ow++, idx++) {
+                double maxVal = Double.NEGATIVE_INFINITY;
+                int maxIdx = 0;
+                for (int ph = 0; ph < poolSize; ph++) {
+                    int row = srcOff + (oh * stride + ph) * width + ow * stride;
+                    for (int pw = 0; pw < poolSize; pw++) {
+                        double v = src[row + pw];
+                        if (v > maxVal) {
+                            maxVal = v;
+                            maxIdx = ph * poolSize + pw;
+                        }
+                    }
+                }
+                dst[dstOff + idx] = maxVal;
+                if (argmax != null) {
+                    argmax[recordOff + idx] = (byte) maxIdx;
+                }
+            }
+        }
+    }
+
+    static void poolPlane(float[] src, int srcOff, int width, int poolSize, int stride,
+                          int rows, int pooledWidth, float[] dst, int dstOff, byte[] argmax, int recordOff) {
+        int idx = 0;
+        for (int oh = 0; oh < rows; oh++) {
+            for (int ow = 0; ow < pooledWidth; ow++, idx++) {
+                float maxVal = Float.NEGATIVE_INFINITY;
+                int maxIdx = 0;
+                for (int ph = 0; ph < poolSize; ph++) {
+                    int row = srcOff + (oh * stride + ph) * width + ow * stride;
+                    for (int pw = 0; pw < poolSize; pw++) {
+                        float v = src[row + pw];
+                        if (v > maxVal) {
+                            maxVal = v;
+                            maxIdx = ph * poolSize + pw;
+                        }
+                    }
+                }
+                dst[dstOff + idx] = maxVal;
+                if (argmax != null) {
+                    argmax[recordOff + idx] = (byte) maxIdx;
+                }
+            }
+        }
+    }
+}
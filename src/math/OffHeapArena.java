@@ -0,0 +1,149 @@
+package math;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * ヒープ外テンソルの寿命を管理するアリーナ
+ * 確保したテンソルはclose()でまとめて解放され、以降はアクセスできない
+ * （ダイレクトByteBufferへのフォールバック時は参照がなくなった後にGCで解放される）
+ * 大きなデータセットや重みの退避先をGCの走査対象から外すためのもの
+ * <pre>
+ * try (OffHeapArena arena = OffHeapArena.open()) {
+ *     OffHeapTensor images = arena.allocate(Precision.FLOAT32, 6000, 1, 32, 32);
+ *     ...
+ * }
+ * </pre>
+ */
+public final class OffHeapArena implements AutoCloseable {
+
+    private final OffHeapMemory.Scope scope;
+    private long allocatedBytes;
+    private int tensors;
+    private boolean closed;
+
+    private OffHeapArena(OffHeapMemory.Scope scope) {
+        this.scope = scope;
+    }
+
+    /**
+     * 新しいアリーナを開く
+     */
+    public static OffHeapArena open() {
+        return new OffHeapArena(OffHeapMemory.openScope());
+    }
+
+    /**
+     * MemorySegment（jdk.incubator.foreign）を使用中か
+     * falseならダイレクトByteBufferで確保する（1テンソル2GBまで）
+     */
+    public static boolean isForeignAvailable() {
+        return OffHeapMemory.isForeignAvailable();
+    }
+
+    /**
+     * ゼロで初期化されたテンソルを確保（先頭は64バイト境界に揃える）
+     * @param precision 数値精度
+     * @param shape 形状
+     */
+    public OffHeapTensor allocate(Precision precision, int... shape) {
+        checkOpen();
+        long bytes = OffHeapTensor.byteSize(precision, shape);
+        OffHeapTensor t = new OffHeapTensor(scope.allocate(bytes), precision, shape);
+        allocatedBytes += bytes;
+        tensors++;
+        return t;
+    }
+
+    /**
+     * ヒープ上のテンソルをコピーして確保
+     * @param src コピー元（精度はそのまま）
+     */
+    public OffHeapTensor copyOf(DenseTensor src) {
+        OffHeapTensor t = allocate(src.precision(), src.shape());
+        t.copyFrom(src);
+        return t;
+    }
+
+    /**
+     * ファイルの内容を読み込んで確保（{@link OffHeapTensor#writeTo}で書いた形式）
+     * @param path ファイル
+     * @param precision 数値精度
+     * @param shape 形状（ファイルの大きさと一致すること）
+     */
+    public OffHeapTensor read(Path path, Precision precision, int... shape) {
+        OffHeapTensor t = allocate(precision, shape);
+        checkFileSize(path, t.byteSize());
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            t.memory().readFrom(channel);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return t;
+    }
+
+    /**
+     * ファイルを読み取り専用でメモリにマップ（ページは必要になったときに読まれる）
+     * @param path ファイル
+     * @param precision 数値精度
+     * @param shape 形状（ファイルの大きさと一致すること）
+     */
+    public OffHeapTensor map(Path path, Precision precision, int... shape) {
+        checkOpen();
+        long bytes = OffHeapTensor.byteSize(precision, shape);
+        checkFileSize(path, bytes);
+        try {
+            tensors++;
+            return new OffHeapTensor(scope.map(path, bytes), precision, shape);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 確保したバイト数の合計（マップしたファイルは含まない）
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * 確保・マップしたテンソルの数
+     */
+    public int getTensorCount() {
+        return tensors;
+    }
+
+    /**
+     * 確保したテンソルをすべて解放（2回目以降は何もしない）
+     */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            scope.close();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Arena is closed");
+        }
+    }
+
+    private static void checkFileSize(Path path, long expected) {
+        try {
+            long actual = Files.size(path);
+            if (actual != expected) {
+                throw new IllegalArgumentException("File " + path + " has " + actual
+                        + " bytes but the tensor needs " + expected);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
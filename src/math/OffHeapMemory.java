@@ -0,0 +1,211 @@
+package math;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Javaヒープ外のメモリブロック
+ * jdk.incubator.foreign モジュールが読み込まれていればMemorySegment（{@link ForeignMemory}）を使い、
+ * なければダイレクトByteBufferにフォールバックする（1ブロック2GBまで）
+ * -Dnumsense.foreign=false でダイレクトByteBufferに固定できる
+ * バイト順はネイティブ順（ファイルにもそのまま書き込む）
+ */
+abstract class OffHeapMemory {
+
+    static final long ALIGNMENT = 64; // キャッシュラインとAVX-512レジスタの幅
+
+    private static final boolean foreignAvailable = detect();
+
+    static boolean isForeignAvailable() {
+        return foreignAvailable;
+    }
+
+    /**
+     * ブロックの寿命を管理するスコープを開く
+     */
+    static Scope openScope() {
+        return foreignAvailable ? new ForeignMemory.ForeignScope() : new DirectScope();
+    }
+
+    abstract long byteSize();
+
+    abstract double getDouble(long index);
+
+    abstract void setDouble(long index, double value);
+
+    abstract float getFloat(long index);
+
+    abstract void setFloat(long index, float value);
+
+    /**
+     * 配列からブロックへのコピー（indexは要素単位）
+     */
+    abstract void copyFrom(double[] src, int srcOff, long index, int length);
+
+    abstract void copyFrom(float[] src, int srcOff, long index, int length);
+
+    /**
+     * ブロックから配列へのコピー（indexは要素単位）
+     */
+    abstract void copyTo(long index, double[] dst, int dstOff, int length);
+
+    abstract void copyTo(long index, float[] dst, int dstOff, int length);
+
+    /**
+     * ブロック全体をファイルの先頭から書き込む
+     */
+    abstract void writeTo(FileChannel channel) throws IOException;
+
+    /**
+     * ファイルの先頭からブロック全体を読み込む
+     */
+    abstract void readFrom(FileChannel channel) throws IOException;
+
+    /**
+     * ブロックの寿命（close()でまとめて解放）
+     */
+    abstract static class Scope implements AutoCloseable {
+
+        abstract OffHeapMemory allocate(long bytes);
+
+        /**
+         * ファイルを読み取り専用でメモリにマップ
+         */
+        abstract OffHeapMemory map(Path path, long bytes) throws IOException;
+
+        @Override
+        public abstract void close();
+    }
+
+    // ========== ダイレクトByteBuffer版（フォールバック） ==========
+
+    static final class DirectScope extends Scope {
+
+        @Override
+        OffHeapMemory allocate(long bytes) {
+            // alignedSliceは容量も境界の倍数に切り下げるため、1単位余分に確保する
+            long padded = (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT + ALIGNMENT;
+            ByteBuffer raw = ByteBuffer.allocateDirect(toInt(padded));
+            ByteBuffer aligned = raw.alignedSlice((int) ALIGNMENT);
+            aligned.limit(toInt(bytes));
+            return new DirectMemory(aligned.slice());
+        }
+
+        @Override
+        OffHeapMemory map(Path path, long bytes) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return new DirectMemory(channel.map(FileChannel.MapMode.READ_ONLY, 0, toInt(bytes)));
+            }
+        }
+
+        // ダイレクトバッファは参照がなくなった後にGCで解放される
+        @Override
+        public void close() {
+        }
+
+        private static int toInt(long bytes) {
+            if (bytes > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Off-heap block of " + bytes
+                        + " bytes needs --add-modules jdk.incubator.foreign");
+            }
+            return (int) bytes;
+        }
+    }
+
+    static final class DirectMemory extends OffHeapMemory {
+        private final ByteBuffer buffer;
+        private final DoubleBuffer doubles;
+        private final FloatBuffer floats;
+
+        DirectMemory(ByteBuffer buffer) {
+            this.buffer = buffer.order(ByteOrder.nativeOrder());
+            this.doubles = this.buffer.asDoubleBuffer();
+            this.floats = this.buffer.asFloatBuffer();
+        }
+
+        @Override
+        long byteSize() {
+            return buffer.capacity();
+        }
+
+        @Override
+        double getDouble(long index) {
+            return doubles.get((int) index);
+        }
+
+        @Override
+        void setDouble(long index, double value) {
+            doubles.put((int) index, value);
+        }
+
+        @Override
+        float getFloat(long index) {
+            return floats.get((int) index);
+        }
+
+        @Override
+        void setFloat(long index, float value) {
+            floats.put((int) index, value);
+        }
+
+        @Override
+        void copyFrom(double[] src, int srcOff, long index, int length) {
+            doubles.duplicate().position((int) index).put(src, srcOff, length);
+        }
+
+        @Override
+        void copyFrom(float[] src, int srcOff, long index, int length) {
+            floats.duplicate().position((int) index).put(src, srcOff, length);
+        }
+
+        @Override
+        void copyTo(long index, double[] dst, int dstOff, int length) {
+            doubles.duplicate().position((int) index).get(dst, dstOff, length);
+        }
+
+        @Override
+        void copyTo(long index, float[] dst, int dstOff, int length) {
+            floats.duplicate().position((int) index).get(dst, dstOff, length);
+        }
+
+        @Override
+        void writeTo(FileChannel channel) throws IOException {
+            ByteBuffer src = buffer.duplicate();
+            long position = 0;
+            while (src.hasRemaining()) {
+                position += channel.write(src, position);
+            }
+        }
+
+        @Override
+        void readFrom(FileChannel channel) throws IOException {
+            ByteBuffer dst = buffer.duplicate();
+            long position = 0;
+            while (dst.hasRemaining()) {
+                int n = channel.read(dst, position);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+                position += n;
+            }
+        }
+    }
+
+    private static boolean detect() {
+        if ("false".equalsIgnoreCase(System.getProperty("numsense.foreign"))
+                || ModuleLayer.boot().findModule("jdk.incubator.foreign").isEmpty()) {
+            return false;
+        }
+        try {
+            return ForeignMemory.probe();
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+}
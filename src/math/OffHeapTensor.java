@@ -0,0 +1,202 @@
+package math;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * ヒープ外メモリ上の多次元テンソル（行優先、連続）
+ * {@link OffHeapArena}から確保し、アリーナのclose()で解放される
+ * 計算はヒープ上の{@link DenseTensor}で行い、先頭の次元ごとの一括コピー（load/store）で出し入れする
+ */
+public final class OffHeapTensor {
+
+    private final OffHeapMemory memory;
+    private final Precision precision;
+    private final int[] shape;
+    private final long size;
+    private final int sliceSize; // 先頭の次元1つ分の要素数
+
+    OffHeapTensor(OffHeapMemory memory, Precision precision, int[] shape) {
+        this.memory = memory;
+        this.precision = precision;
+        this.shape = shape.clone();
+        this.size = elementCount(shape);
+        this.sliceSize = shape.length == 0 ? 1 : (int) (size / Math.max(1, shape[0]));
+    }
+
+    // ========== メタデータ ==========
+
+    public Precision precision() { return precision; }
+    public int[] shape() { return shape.clone(); }
+    public int rank() { return shape.length; }
+    public int dim(int axis) { return shape[axis]; }
+    public long size() { return size; }
+
+    /**
+     * 占有するバイト数
+     */
+    public long byteSize() {
+        return memory.byteSize();
+    }
+
+    // ========== 要素アクセス ==========
+
+    /**
+     * 行優先の通し番号で要素を取得
+     */
+    public double getFlat(long i) {
+        checkIndex(i);
+        return precision == Precision.FLOAT32 ? memory.getFloat(i) : memory.getDouble(i);
+    }
+
+    /**
+     * 行優先の通し番号で要素を設定
+     */
+    public void setFlat(long i, double value) {
+        checkIndex(i);
+        if (precision == Precision.FLOAT32) {
+            memory.setFloat(i, (float) value);
+        } else {
+            memory.setDouble(i, value);
+        }
+    }
+
+    // ========== 一括コピー ==========
+
+    /**
+     * ヒープ上のテンソル全体をコピー（形状が同じこと、精度が異なれば変換）
+     */
+    public void copyFrom(DenseTensor src) {
+        requireShape(src, shape);
+        write(0, src);
+    }
+
+    /**
+     * ヒープ上のテンソルへ全体をコピー（形状が同じこと、精度が異なれば変換）
+     */
+    public void copyTo(DenseTensor dst) {
+        requireShape(dst, shape);
+        read(0, dst);
+    }
+
+    /**
+     * 先頭の次元のindex番目をヒープ上のテンソルへコピー（例: データセットから1枚を取り出す）
+     * @param index 先頭の次元のインデックス
+     * @param dst 書き込み先（要素数がスライスと同じこと）
+     */
+    public void load(int index, DenseTensor dst) {
+        checkSlice(index, dst);
+        read((long) index * sliceSize, dst);
+    }
+
+    /**
+     * ヒープ上のテンソルを先頭の次元のindex番目へコピー
+     * @param index 先頭の次元のインデックス
+     * @param src コピー元（要素数がスライスと同じこと）
+     */
+    public void store(int index, DenseTensor src) {
+        checkSlice(index, src);
+        write((long) index * sliceSize, src);
+    }
+
+    /**
+     * ヒープ上の新しいテンソルにコピー
+     */
+    public DenseTensor toDense() {
+        DenseTensor t = DenseTensor.zeros(precision, shape);
+        copyTo(t);
+        return t;
+    }
+
+    /**
+     * 内容をそのままファイルに書き込む（ネイティブのバイト順、ヘッダなし）
+     * {@link OffHeapArena#read}または{@link OffHeapArena#map}で読み戻せる
+     */
+    public void writeTo(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            memory.writeTo(channel);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapTensor" + Arrays.toString(shape) + "(" + precision + ")";
+    }
+
+    // ========== 補助メソッド ==========
+
+    OffHeapMemory memory() {
+        return memory;
+    }
+
+    private void write(long start, DenseTensor src) {
+        DenseTensor c = src.contiguous();
+        int n = c.size();
+        if (c.precision() != precision) {
+            for (int i = 0; i < n; i++) {
+                setFlat(start + i, c.getFlat(i));
+            }
+        } else if (precision == Precision.FLOAT32) {
+            memory.copyFrom(c.floatData(), c.offset(), start, n);
+        } else {
+            memory.copyFrom(c.data(), c.offset(), start, n);
+        }
+    }
+
+    private void read(long start, DenseTensor dst) {
+        int n = dst.size();
+        if (dst.precision() != precision || !dst.isContiguous()) {
+            DenseTensor tmp = DenseTensor.zeros(precision, dst.shape());
+            read(start, tmp);
+            dst.copyFrom(tmp);
+        } else if (precision == Precision.FLOAT32) {
+            memory.copyTo(start, dst.floatData(), dst.offset(), n);
+        } else {
+            memory.copyTo(start, dst.data(), dst.offset(), n);
+        }
+    }
+
+    private void checkIndex(long i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index " + i + " out of bounds for size " + size);
+        }
+    }
+
+    private void checkSlice(int index, DenseTensor t) {
+        if (index < 0 || index >= shape[0]) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + shape[0]);
+        }
+        if (t.size() != sliceSize) {
+            throw new IllegalArgumentException("Slice of " + this + " has " + sliceSize
+                    + " elements but " + t + " has " + t.size());
+        }
+    }
+
+    private static void requireShape(DenseTensor t, int[] shape) {
+        if (!t.hasShape(shape)) {
+            throw new IllegalArgumentException("Shape mismatch: " + Arrays.toString(shape) + " vs " + t);
+        }
+    }
+
+    static long byteSize(Precision precision, int[] shape) {
+        return elementCount(shape) * (precision == Precision.FLOAT32 ? Float.BYTES : Double.BYTES);
+    }
+
+    private static long elementCount(int[] shape) {
+        long n = 1;
+        for (int d : shape) {
+            if (d < 0) {
+                throw new IllegalArgumentException("Negative dimension: " + Arrays.toString(shape));
+            }
+            n *= d;
+        }
+        return n;
+    }
+}
@@ -1,5 +1,6 @@
 package math;
 
+import java.util.Arrays;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveTask;
 
@@ -10,192 +11,293 @@ import java.util.concurrent.RecursiveTask;
 public class ParallelConvolution {
 
     private static final ForkJoinPool pool = ForkJoinPool.commonPool();
-    private static final int THRESHOLD = 16; // 並列化の閾値
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    private static final boolean MULTI_CORE = CORES > 1;
+    private static final int TILES_PER_CORE = 4; // 負荷の偏りをならすためのコアあたりのタイル数
+    private static volatile long tileCacheBytes = 256 * 1024;
 
     /**
-     * 並列3D畳み込み演算
+     * 並列3D畳み込み演算（{@link #convolveTiled}の1枚版）
      */
     public static double[][][] convolve3DParallel(double[][][] input, double[][][][] kernels,
                                                   double[] bias, int stride, int padding) {
-        int outputChannels = kernels.length;
-
-        // 最初のチャンネルで出力サイズを計算
-        double[][] firstPadded = ConvolutionOps.applyPadding(input[0], padding);
-        int outputHeight = (firstPadded.length - kernels[0][0].length) / stride + 1;
-        int outputWidth = (firstPadded[0].length - kernels[0][0][0].length) / stride + 1;
+        DenseTensor x = DenseTensor.fromArray(input);
+        return convolveTiled(x.reshape(1, x.dim(0), x.dim(1), x.dim(2)), DenseTensor.fromArray(kernels),
+                bias == null ? null : DenseTensor.fromArray(bias), stride, padding).slice(0).toArray3D();
+    }
 
-        double[][][] output = new double[outputChannels][outputHeight][outputWidth];
+    /**
+     * タイル分割による並列畳み込み
+     * 入力は呼び出しごとに1回だけパディングし、(画像, 出力チャンネルのブロック, 出力行のブロック)の
+     * タイルに分けて並列に計算する（タイルの大きさは{@link #setTileCacheBytes}に収まるように決める）
+     * @param input 入力 [batch][inChannels][height][width]
+     * @param kernels カーネル [outChannels][inChannels][kernelHeight][kernelWidth]
+     * @param bias バイアス [outChannels]（nullなら加算しない）
+     * @return 畳み込み結果 [batch][outChannels][outputHeight][outputWidth]（精度は入力と同じ）
+     */
+    public static DenseTensor convolveTiled(DenseTensor input, DenseTensor kernels, DenseTensor bias,
+                                            int stride, int padding) {
+        DenseTensor output = DenseTensor.zeros(input.precision(), input.dim(0), kernels.dim(0),
+                ConvolutionOps.outputSize(input.dim(2), kernels.dim(2), stride, padding),
+                ConvolutionOps.outputSize(input.dim(3), kernels.dim(3), stride, padding));
+        convolveTiledInto(ConvolutionOps.pad(input, padding), kernels, bias, stride, output);
+        return output;
+    }
 
-        // 各出力チャンネルを並列処理
-        ConvolutionTask task = new ConvolutionTask(input, kernels, bias, stride, padding,
-                output, 0, outputChannels);
-        pool.invoke(task);
+    /**
+     * パディング済みの入力に対するタイル分割の並列畳み込みを既存のテンソルに書き込む
+     * 各タイルは自分の出力範囲だけに書き込むため、結果はスレッド数によらず同じ
+     * @param padded パディング済みの入力 [batch][inChannels][paddedHeight][paddedWidth]（連続メモリ）
+     * @param kernels カーネル [outChannels][inChannels][kernelHeight][kernelWidth]
+     * @param bias バイアス [outChannels]（nullなら加算しない）
+     * @param stride ストライド
+     * @param output 書き込み先 [batch][outChannels][outputHeight][outputWidth]（連続メモリ、精度は入力と同じ）
+     */
+    public static void convolveTiledInto(DenseTensor padded, DenseTensor kernels, DenseTensor bias,
+                                         int stride, DenseTensor output) {
+        Precision precision = output.precision();
+        Tiling tiling = new Tiling(padded.toPrecision(precision).contiguous(), kernels.toPrecision(precision).contiguous(),
+                bias == null ? null : bias.toPrecision(precision).contiguous(), stride, output);
+        if (MULTI_CORE && tiling.tiles() > 1) {
+            pool.invoke(new TileTask(tiling, 0, tiling.tiles()));
+        } else {
+            tiling.compute(0, tiling.tiles());
+        }
+    }
 
-        return output;
+    /**
+     * タイルの大きさを決める作業領域の目安（既定 256KB、L2キャッシュの大きさに合わせる）
+     */
+    public static void setTileCacheBytes(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Tile cache size must be positive: " + bytes);
+        }
+        tileCacheBytes = bytes;
     }
 
     /**
-     * 畳み込みタスク（分割統治法）
+     * 畳み込みのタイル分割（出力チャンネルのブロック × 出力行のブロック、画像ごと）
      */
-    private static class ConvolutionTask extends RecursiveTask<Void> {
-        private final double[][][] input;
-        private final double[][][][] kernels;
-        private final double[] bias;
-        private final int stride, padding;
-        private final double[][][] output;
-        private final int startChannel, endChannel;
-
-        ConvolutionTask(double[][][] input, double[][][][] kernels, double[] bias,
-                        int stride, int padding, double[][][] output,
-                        int startChannel, int endChannel) {
-            this.input = input;
+    private static final class Tiling {
+        final DenseTensor padded, kernels, bias, output;
+        final int stride;
+        final int batch, inChannels, paddedHeight, paddedWidth;
+        final int outChannels, kernelHeight, kernelWidth, outputHeight, outputWidth;
+        final int channelBlock, rowBlock, channelBlocks, rowBlocks;
+
+        Tiling(DenseTensor padded, DenseTensor kernels, DenseTensor bias, int stride, DenseTensor output) {
+            this.padded = padded;
             this.kernels = kernels;
             this.bias = bias;
             this.stride = stride;
-            this.padding = padding;
             this.output = output;
-            this.startChannel = startChannel;
-            this.endChannel = endChannel;
-        }
-
-        @Override
-        protected Void compute() {
-            int numChannels = endChannel - startChannel;
-
-            if (numChannels <= THRESHOLD) {
-                // 直接計算
-                computeDirectly();
-            } else {
-                // 分割して並列処理
-                int mid = startChannel + numChannels / 2;
-
-                ConvolutionTask leftTask = new ConvolutionTask(
-                        input, kernels, bias, stride, padding, output, startChannel, mid);
-                ConvolutionTask rightTask = new ConvolutionTask(
-                        input, kernels, bias, stride, padding, output, mid, endChannel);
-
-                leftTask.fork();
-                rightTask.compute();
-                leftTask.join();
+            this.batch = padded.dim(0);
+            this.inChannels = padded.dim(1);
+            this.paddedHeight = padded.dim(2);
+            this.paddedWidth = padded.dim(3);
+            this.outChannels = kernels.dim(0);
+            this.kernelHeight = kernels.dim(2);
+            this.kernelWidth = kernels.dim(3);
+            this.outputHeight = output.dim(2);
+            this.outputWidth = output.dim(3);
+            if (kernels.dim(1) != inChannels || output.dim(0) != batch || output.dim(1) != outChannels
+                    || outputHeight != (paddedHeight - kernelHeight) / stride + 1
+                    || outputWidth != (paddedWidth - kernelWidth) / stride + 1) {
+                throw new IllegalArgumentException("Shape mismatch: " + padded + " * " + kernels + " -> " + output);
             }
 
-            return null;
+            // 作業領域（入力の行・カーネル・出力）がキャッシュに収まるまで行、次に出力チャンネルを半分にする
+            int channels = outChannels;
+            int rows = outputHeight;
+            while (workingSet(channels, rows, padded.precision()) > tileCacheBytes && (rows > 1 || channels > 1)) {
+                if (rows > 1) {
+                    rows = (rows + 1) / 2;
+                } else {
+                    channels = (channels + 1) / 2;
+                }
+            }
+            // 全コアに行き渡るまでさらに分ける（行が2以下になったら出力チャンネルを分ける）
+            int target = MULTI_CORE ? TILES_PER_CORE * CORES : 1;
+            while (count(channels, rows) < target && (rows > 1 || channels > 1)) {
+                if (rows > 2 || channels == 1) {
+                    rows = (rows + 1) / 2;
+                } else {
+                    channels = (channels + 1) / 2;
+                }
+            }
+            this.channelBlock = channels;
+            this.rowBlock = rows;
+            this.channelBlocks = (outChannels + channels - 1) / channels;
+            this.rowBlocks = (outputHeight + rows - 1) / rows;
         }
 
-        private void computeDirectly() {
-            int inputChannels = input.length;
-            int outputHeight = output[0].length;
-            int outputWidth = output[0][0].length;
+        private long workingSet(int channels, int rows, Precision precision) {
+            long inputRows = (long) inChannels * Math.min(paddedHeight, (rows - 1) * stride + kernelHeight) * paddedWidth;
+            long weights = (long) channels * inChannels * kernelHeight * kernelWidth;
+            long outputs = (long) channels * rows * outputWidth;
+            return (inputRows + weights + outputs) * precision.bytes();
+        }
 
-            // パディングされた入力を事前に計算
-            double[][][] paddedInput = new double[inputChannels][][];
-            for (int ic = 0; ic < inputChannels; ic++) {
-                paddedInput[ic] = ConvolutionOps.applyPadding(input[ic], padding);
-            }
+        private int count(int channels, int rows) {
+            return batch * ((outChannels + channels - 1) / channels) * ((outputHeight + rows - 1) / rows);
+        }
 
-            // 各出力チャンネルについて
-            for (int oc = startChannel; oc < endChannel; oc++) {
-                // 出力位置の計算
-                for (int oh = 0; oh < outputHeight; oh++) {
-                    for (int ow = 0; ow < outputWidth; ow++) {
-                        double sum = 0.0;
+        int tiles() {
+            return batch * channelBlocks * rowBlocks;
+        }
 
-                        // 各入力チャンネルの畳み込み
-                        for (int ic = 0; ic < inputChannels; ic++) {
-                            sum += convolvePoint(paddedInput[ic], kernels[oc][ic],
-                                    oh, ow, stride);
-                        }
+        void compute(int start, int end) {
+            for (int tile = start; tile < end; tile++) {
+                int n = tile / (channelBlocks * rowBlocks);
+                int ocStart = tile / rowBlocks % channelBlocks * channelBlock;
+                int rowStart = tile % rowBlocks * rowBlock;
+                computeTile(n, ocStart, Math.min(outChannels, ocStart + channelBlock),
+                        rowStart, Math.min(outputHeight, rowStart + rowBlock));
+            }
+        }
 
-                        // バイアスを追加
-                        if (bias != null) {
-                            sum += bias[oc];
+        /**
+         * 1つのタイル: 出力行をバイアスで初期化し、(入力チャンネル, kh, kw)ごとに入力の行を加算
+         */
+        private void computeTile(int n, int ocStart, int ocEnd, int rowStart, int rowEnd) {
+            int kernelArea = kernelHeight * kernelWidth;
+            int inBase = padded.offset() + n * inChannels * paddedHeight * paddedWidth;
+            boolean f32 = padded.precision() == Precision.FLOAT32;
+            for (int oc = ocStart; oc < ocEnd; oc++) {
+                int outBase = output.offset() + (n * outChannels + oc) * outputHeight * outputWidth;
+                int wBase = kernels.offset() + oc * inChannels * kernelArea;
+                int from = outBase + rowStart * outputWidth;
+                int to = outBase + rowEnd * outputWidth;
+                if (f32) {
+                    Arrays.fill(output.floatData(), from, to, bias == null ? 0.0f : bias.floatData()[bias.offset() + oc]);
+                } else {
+                    Arrays.fill(output.data(), from, to, bias == null ? 0.0 : bias.data()[bias.offset() + oc]);
+                }
+                for (int ic = 0; ic < inChannels; ic++) {
+                    int plane = inBase + ic * paddedHeight * paddedWidth;
+                    for (int k = 0; k < kernelArea; k++) {
+                        int kh = k / kernelWidth;
+                        int kw = k % kernelWidth;
+                        int w = wBase + ic * kernelArea + k;
+                        for (int oh = rowStart; oh < rowEnd; oh++) {
+                            int src = plane + (oh * stride + kh) * paddedWidth + kw;
+                            int dst = outBase + oh * outputWidth;
+                            if (f32) {
+                                accumulateRow(kernels.floatData()[w], padded.floatData(), src, stride,
+                                        output.floatData(), dst, outputWidth);
+                            } else {
+                                accumulateRow(kernels.data()[w], padded.data(), src, stride,
+                                        output.data(), dst, outputWidth);
+                            }
                         }
-
-                        output[oc][oh][ow] = sum;
                     }
                 }
             }
         }
+    }
 
-        private double convolvePoint(double[][] input, double[][] kernel,
-                                     int oh, int ow, int stride) {
-            double sum = 0.0;
-            int kernelHeight = kernel.length;
-            int kernelWidth = kernel[0].length;
-
-            for (int kh = 0; kh < kernelHeight; kh++) {
-                for (int kw = 0; kw < kernelWidth; kw++) {
-                    int ih = oh * stride + kh;
-                    int iw = ow * stride + kw;
-                    sum += input[ih][iw] * kernel[kh][kw];
-                }
-            }
+    private static void accumulateRow(double weight, double[] in, int src, int stride,
+                                      double[] out, int dst, int length) {
+        if (stride == 1) {
+            Simd.axpy(weight, in, src, out, dst, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            out[dst + i] += weight * in[src + i * stride];
+        }
+    }
 
-            return sum;
+    private static void accumulateRow(float weight, float[] in, int src, int stride,
+                                      float[] out, int dst, int length) {
+        if (stride == 1) {
+            Simd.axpy(weight, in, src, out, dst, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            out[dst + i] += weight * in[src + i * stride];
         }
     }
 
     /**
-     * 並列最大プーリング
+     * タイルの範囲を半分ずつに分けるタスク（分割統治法）
      */
-    public static double[][][] maxPool3DParallel(double[][][] input, int poolSize, int stride) {
-        int channels = input.length;
-        int outputHeight = (input[0].length - poolSize) / stride + 1;
-        int outputWidth = (input[0][0].length - poolSize) / stride + 1;
+    private static class TileTask extends RecursiveTask<Void> {
+        private final Tiling tiling;
+        private final int start, end;
+
+        TileTask(Tiling tiling, int start, int end) {
+            this.tiling = tiling;
+            this.start = start;
+            this.end = end;
+        }
 
-        double[][][] output = new double[channels][outputHeight][outputWidth];
+        @Override
+        protected Void compute() {
+            if (end - start <= 1) {
+                tiling.compute(start, end);
+            } else {
+                int mid = start + (end - start) / 2;
+                TileTask left = new TileTask(tiling, start, mid);
+                left.fork();
+                new TileTask(tiling, mid, end).compute();
+                left.join();
+            }
+            return null;
+        }
+    }
 
-        // 各チャンネルを並列処理
-        PoolingTask task = new PoolingTask(input, output, poolSize, stride, 0, channels);
-        pool.invoke(task);
+    /**
+     * 並列最大プーリング（{@link MaxPooling#forwardInto}の1枚版）
+     */
+    public static double[][][] maxPool3DParallel(double[][][] input, int poolSize, int stride) {
+        return maxPool3DParallel(input, poolSize, stride, null);
+    }
 
-        return output;
+    /**
+     * 並列最大プーリング（最大値の位置を記録）
+     * @param argmax 最大値の窓の中の位置（ph * poolSize + pw）の記録先 [channels * outputHeight * outputWidth]（nullなら記録しない）
+     */
+    public static double[][][] maxPool3DParallel(double[][][] input, int poolSize, int stride, byte[] argmax) {
+        DenseTensor x = DenseTensor.fromArray(input);
+        DenseTensor output = DenseTensor.zeros(1, x.dim(0),
+                MaxPooling.outputSize(x.dim(1), poolSize, stride), MaxPooling.outputSize(x.dim(2), poolSize, stride));
+        MaxPooling.forwardInto(x.reshape(1, x.dim(0), x.dim(1), x.dim(2)), poolSize, stride, argmax, output);
+        return output.slice(0).toArray3D();
     }
 
     /**
-     * プーリングタスク
+     * {@link #maxPool3DParallel(double[][][], int, int, byte[])}の逆伝播
+     * 記録した位置に勾配を直接足し込む（チャンネルごとに並列、一時的なテンソルを作らない）
+     * @param gradOutput プーリング後の勾配 [channels][outputHeight][outputWidth]
+     * @param argmax 順伝播で記録した最大値の位置
+     * @param gradInput 書き込み先 [channels][height][width]（上書きされる）
      */
-    private static class PoolingTask extends RecursiveTask<Void> {
-        private final double[][][] input;
-        private final double[][][] output;
-        private final int poolSize, stride;
-        private final int startChannel, endChannel;
-
-        PoolingTask(double[][][] input, double[][][] output, int poolSize, int stride,
-                    int startChannel, int endChannel) {
-            this.input = input;
-            this.output = output;
-            this.poolSize = poolSize;
-            this.stride = stride;
-            this.startChannel = startChannel;
-            this.endChannel = endChannel;
+    public static void maxPool3DBackwardParallel(double[][][] gradOutput, byte[] argmax, int poolSize, int stride,
+                                                 double[][][] gradInput) {
+        int channels = gradInput.length;
+        int outputHeight = gradOutput[0].length;
+        int outputWidth = gradOutput[0][0].length;
+        int planeSize = outputHeight * outputWidth;
+        if (gradOutput.length != channels || argmax == null || argmax.length < channels * planeSize) {
+            throw new IllegalArgumentException("argmax must hold " + channels * planeSize + " entries");
         }
 
-        @Override
-        protected Void compute() {
-            int numChannels = endChannel - startChannel;
-
-            if (numChannels <= THRESHOLD) {
-                // 直接計算
-                for (int c = startChannel; c < endChannel; c++) {
-                    output[c] = ConvolutionOps.maxPool2D(input[c], poolSize, stride);
+        Matrix.parallelRows(channels, gradInput[0].length * gradInput[0][0].length, (start, end) -> {
+            for (int c = start; c < end; c++) {
+                for (double[] row : gradInput[c]) {
+                    Arrays.fill(row, 0.0);
+                }
+                int idx = c * planeSize;
+                for (int oh = 0; oh < outputHeight; oh++) {
+                    double[] g = gradOutput[c][oh];
+                    for (int ow = 0; ow < outputWidth; ow++, idx++) {
+                        int a = argmax[idx];
+                        // 窓が重なる場合に備えて加算
+                        gradInput[c][oh * stride + a / poolSize][ow * stride + a % poolSize] += g[ow];
+                    }
                 }
-            } else {
-                // 分割して並列処理
-                int mid = startChannel + numChannels / 2;
-
-                PoolingTask leftTask = new PoolingTask(
-                        input, output, poolSize, stride, startChannel, mid);
-                PoolingTask rightTask = new PoolingTask(
-                        input, output, poolSize, stride, mid, endChannel);
-
-                leftTask.fork();
-                rightTask.compute();
-                leftTask.join();
             }
-
-            return null;
-        }
+        });
     }
 
     /**
@@ -230,8 +332,8 @@ public class ParallelConvolution {
             }
         }
 
-        // 行列積として計算
-        double[][] outputMatrix = Matrix.dot(kernelMatrix, Matrix.t(inputCol));
+        // 行列積として計算（inputColの転置は作らずに読む）
+        double[][] outputMatrix = Matrix.dotNT(kernelMatrix, inputCol);
 
         // バイアスを追加
         if (bias != null) {
@@ -305,4 +407,328 @@ public class ParallelConvolution {
 
         return col;
     }
-}
\ No newline at end of file
+
+    /**
+     * バッチ全体をim2colで1つの行列にまとめた畳み込み
+     * 1枚ずつの細長い行列積ではなく、N枚分の列を並べた1回の大きなGEMMで計算する
+     * @param input 入力 [batch][inChannels][height][width]
+     * @param kernels カーネル [outChannels][inChannels][kernelHeight][kernelWidth]
+     * @param bias バイアス [outChannels]（nullなら加算しない）
+     * @param stride ストライド
+     * @param padding パディング
+     * @return 畳み込み結果 [batch][outChannels][outputHeight][outputWidth]（精度は入力と同じ）
+     */
+    public static DenseTensor convolveBatchIm2col(DenseTensor input, DenseTensor kernels, DenseTensor bias,
+                                                  int stride, int padding) {
+        Precision precision = input.precision();
+        int batch = input.dim(0);
+        int outChannels = kernels.dim(0);
+        int outputHeight = ConvolutionOps.outputSize(input.dim(2), kernels.dim(2), stride, padding);
+        int outputWidth = ConvolutionOps.outputSize(input.dim(3), kernels.dim(3), stride, padding);
+        int[] colShape = im2colBatchShape(input, kernels.dim(2), kernels.dim(3), stride, padding);
+
+        DenseTensor col = DenseTensor.zeros(precision, colShape);
+        DenseTensor product = batch == 1 ? null : DenseTensor.zeros(precision, outChannels, colShape[1]);
+        DenseTensor output = DenseTensor.zeros(precision, batch, outChannels, outputHeight, outputWidth);
+        convolveBatchIm2colInto(input, kernels, bias, stride, padding, col, product, output);
+        return output;
+    }
+
+    /**
+     * 4次元配列版（バッチ）
+     */
+    public static double[][][][] convolveBatchIm2col(double[][][][] input, double[][][][] kernels,
+                                                     double[] bias, int stride, int padding) {
+        return convolveBatchIm2col(DenseTensor.fromArray(input), DenseTensor.fromArray(kernels),
+                bias == null ? null : DenseTensor.fromArray(bias), stride, padding).toArray4D();
+    }
+
+    /**
+     * バッチをまとめたim2col畳み込みを既存のテンソルに書き込む
+     * 作業領域は呼び出し側が用意する（層はアリーナから借りて使い回す）
+     * @param input 入力 [batch][inChannels][height][width]
+     * @param kernels カーネル [outChannels][inChannels][kernelHeight][kernelWidth]
+     * @param bias バイアス [outChannels]（nullなら加算しない）
+     * @param stride ストライド
+     * @param padding パディング
+     * @param col im2colの作業領域（{@link #im2colBatchShape}の形状、連続メモリ）
+     * @param product 行列積の作業領域 [outChannels][batch * outputHeight * outputWidth]（batch=1ならnull可）
+     * @param output 書き込み先 [batch][outChannels][outputHeight][outputWidth]（連続メモリ、精度は入力と同じ）
+     */
+    public static void convolveBatchIm2colInto(DenseTensor input, DenseTensor kernels, DenseTensor bias,
+                                               int stride, int padding,
+                                               DenseTensor col, DenseTensor product, DenseTensor output) {
+        Precision precision = output.precision();
+        int batch = input.dim(0);
+        int outChannels = kernels.dim(0);
+        int planeSize = output.dim(2) * output.dim(3);
+        int columns = batch * planeSize;
+
+        im2colBatchInto(input, kernels.dim(2), kernels.dim(3), stride, padding, col);
+
+        // [outChannels][K] × [K][batch * planeSize] を1回のGEMMで計算
+        DenseTensor w = kernels.toPrecision(precision).reshape(outChannels, -1);
+        if (batch == 1) {
+            // 1枚なら行列積の結果がそのまま出力の並び
+            Matrix.dotInto(w, col, output.reshape(outChannels, planeSize));
+            product = output.reshape(outChannels, planeSize);
+        } else {
+            Matrix.dotInto(w, col, product);
+        }
+
+        // [outChannels][batch][planeSize] を [batch][outChannels][planeSize] に並べ替えながらバイアスを加算
+        DenseTensor b = bias == null ? null : bias.toPrecision(precision).contiguous();
+        int outOff = output.offset();
+        int prodOff = product.offset();
+        if (precision == Precision.FLOAT32) {
+            float[] src = product.floatData();
+            float[] dst = output.floatData();
+            for (int oc = 0; oc < outChannels; oc++) {
+                float bv = b == null ? 0.0f : b.floatData()[b.offset() + oc];
+                for (int n = 0; n < batch; n++) {
+                    int from = prodOff + oc * columns + n * planeSize;
+                    int to = outOff + (n * outChannels + oc) * planeSize;
+                    for (int i = 0; i < planeSize; i++) {
+                        dst[to + i] = src[from + i] + bv;
+                    }
+                }
+            }
+        } else {
+            double[] src = product.data();
+            double[] dst = output.data();
+            for (int oc = 0; oc < outChannels; oc++) {
+                double bv = b == null ? 0.0 : b.data()[b.offset() + oc];
+                for (int n = 0; n < batch; n++) {
+                    int from = prodOff + oc * columns + n * planeSize;
+                    int to = outOff + (n * outChannels + oc) * planeSize;
+                    for (int i = 0; i < planeSize; i++) {
+                        dst[to + i] = src[from + i] + bv;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * バッチをまとめたim2col畳み込みの逆伝播（行列積で計算）
+     * gradW = gradOut × colᵀ、gradCol = Wᵀ × gradOut を計算し、gradColをcol2imで入力の勾配に戻す
+     * colは順伝播で{@link #convolveBatchIm2colInto}が作ったものをそのまま使い、重みの勾配の後で
+     * gradColの書き込み先として上書きする
+     * @param gradOutput 出力に対する勾配 [batch][outChannels][outputHeight][outputWidth]
+     * @param kernels カーネル [outChannels][inChannels][kernelHeight][kernelWidth]
+     * @param stride ストライド
+     * @param padding パディング
+     * @param col 順伝播のim2col行列（上書きされる）
+     * @param product 並べ替えの作業領域 [outChannels][batch * outputHeight * outputWidth]（batch=1ならnull可）
+     * @param gradKernels 重みの勾配の書き込み先 [outChannels][inChannels][kernelHeight][kernelWidth]（連続メモリ）
+     * @param gradInput 入力の勾配の書き込み先 [batch][inChannels][height][width]（連続メモリ、nullなら計算しない）
+     */
+    public static void convolveBatchIm2colBackwardInto(DenseTensor gradOutput, DenseTensor kernels,
+                                                       int stride, int padding, DenseTensor col, DenseTensor product,
+                                                       DenseTensor gradKernels, DenseTensor gradInput) {
+        Precision precision = col.precision();
+        DenseTensor grad = gradOutput.toPrecision(precision).contiguous();
+        int batch = grad.dim(0);
+        int outChannels = grad.dim(1);
+        int planeSize = grad.dim(2) * grad.dim(3);
+        int columns = batch * planeSize;
+
+        // [batch][outChannels][planeSize] を順伝播の行列積と同じ [outChannels][batch * planeSize] に並べる
+        DenseTensor gradMat;
+        if (batch == 1) {
+            gradMat = grad.reshape(outChannels, planeSize);
+        } else {
+            gradMat = product;
+            int from = grad.offset();
+            for (int n = 0; n < batch; n++) {
+                for (int oc = 0; oc < outChannels; oc++, from += planeSize) {
+                    int to = product.offset() + oc * columns + n * planeSize;
+                    if (precision == Precision.FLOAT32) {
+                        System.arraycopy(grad.floatData(), from, product.floatData(), to, planeSize);
+                    } else {
+                        System.arraycopy(grad.data(), from, product.data(), to, planeSize);
+                    }
+                }
+            }
+        }
+
+        // gradW = gradOut × colᵀ
+        DenseTensor w = kernels.toPrecision(precision).reshape(outChannels, -1);
+        Matrix.dotNTInto(gradMat, col, gradKernels.reshape(outChannels, -1));
+        if (gradInput == null) {
+            return;
+        }
+
+        // gradCol = Wᵀ × gradOut（colはもう使わないので書き込み先にする）
+        Matrix.dotTNInto(w, gradMat, col);
+        col2imBatchInto(col, kernels.dim(2), kernels.dim(3), stride, padding, gradInput);
+    }
+
+    /**
+     * バッチ版im2colの行列の形状
+     * @return [inChannels * kernelHeight * kernelWidth][batch * outputHeight * outputWidth]
+     */
+    public static int[] im2colBatchShape(DenseTensor input, int kernelHeight, int kernelWidth,
+                                         int stride, int padding) {
+        int outputHeight = ConvolutionOps.outputSize(input.dim(2), kernelHeight, stride, padding);
+        int outputWidth = ConvolutionOps.outputSize(input.dim(3), kernelWidth, stride, padding);
+        return new int[]{input.dim(1) * kernelHeight * kernelWidth, input.dim(0) * outputHeight * outputWidth};
+    }
+
+    /**
+     * バッチ版im2col変換
+     * 行は (入力チャンネル, kh, kw)、列は (画像, oh, ow) の順に並ぶ
+     * パディングは変換時にゼロとして扱うため、パディング済みの入力を作らない
+     * @param input 入力 [batch][channels][height][width]
+     * @param col 書き込み先（{@link #im2colBatchShape}の形状、連続メモリ、精度は入力に合わせる）
+     */
+    public static void im2colBatchInto(DenseTensor input, int kernelHeight, int kernelWidth,
+                                       int stride, int padding, DenseTensor col) {
+        DenseTensor src = input.toPrecision(col.precision()).contiguous();
+        int batch = src.dim(0);
+        int channels = src.dim(1);
+        int height = src.dim(2);
+        int width = src.dim(3);
+        int outputHeight = ConvolutionOps.outputSize(height, kernelHeight, stride, padding);
+        int outputWidth = ConvolutionOps.outputSize(width, kernelWidth, stride, padding);
+        int rows = channels * kernelHeight * kernelWidth;
+        int columns = batch * outputHeight * outputWidth;
+        if (col.size() != rows * columns) {
+            throw new IllegalArgumentException("im2col buffer " + col + " does not match "
+                    + rows + "x" + columns);
+        }
+
+        boolean f32 = col.precision() == Precision.FLOAT32;
+        int inOff = src.offset();
+        int colOff = col.offset();
+
+        // 行ごとに独立なので行ブロックを並列に埋める
+        Matrix.parallelRows(rows, columns, (start, end) -> {
+            for (int r = start; r < end; r++) {
+                int c = r / (kernelHeight * kernelWidth);
+                int kh = r / kernelWidth % kernelHeight;
+                int kw = r % kernelWidth;
+                int to = colOff + r * columns;
+                for (int n = 0; n < batch; n++) {
+                    int plane = inOff + (n * channels + c) * height * width;
+                    for (int oh = 0; oh < outputHeight; oh++, to += outputWidth) {
+                        int ih = oh * stride + kh - padding;
+                        if (ih < 0 || ih >= height) {
+                            fillZero(col, f32, to, outputWidth);
+                        } else if (f32) {
+                            im2colRow(src.floatData(), plane + ih * width, width,
+                                    col.floatData(), to, outputWidth, kw - padding, stride);
+                        } else {
+                            im2colRow(src.data(), plane + ih * width, width,
+                                    col.data(), to, outputWidth, kw - padding, stride);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * バッチ版col2im変換（{@link #im2colBatchInto}の逆、重なる位置は加算）
+     * (画像, チャンネル)の面ごとに並列化する（各面に書き込むのはそのチャンネルの行だけ）
+     * @param col im2colの形状の行列 [channels * kernelHeight * kernelWidth][batch * outputHeight * outputWidth]
+     * @param image 書き込み先 [batch][channels][height][width]（連続メモリ、上書きされる）
+     */
+    public static void col2imBatchInto(DenseTensor col, int kernelHeight, int kernelWidth,
+                                       int stride, int padding, DenseTensor image) {
+        int batch = image.dim(0);
+        int channels = image.dim(1);
+        int height = image.dim(2);
+        int width = image.dim(3);
+        int outputHeight = ConvolutionOps.outputSize(height, kernelHeight, stride, padding);
+        int outputWidth = ConvolutionOps.outputSize(width, kernelWidth, stride, padding);
+        int kernelArea = kernelHeight * kernelWidth;
+        int columns = batch * outputHeight * outputWidth;
+        if (col.size() != channels * kernelArea * columns || col.precision() != image.precision()) {
+            throw new IllegalArgumentException("col2im buffer " + col + " does not match " + image);
+        }
+
+        boolean f32 = col.precision() == Precision.FLOAT32;
+        int colOff = col.offset();
+        int imageOff = image.offset();
+
+        Matrix.parallelRows(batch * channels, kernelArea * outputHeight * outputWidth, (start, end) -> {
+            for (int plane = start; plane < end; plane++) {
+                int n = plane / channels;
+                int c = plane % channels;
+                int to = imageOff + plane * height * width;
+                fillZero(image, f32, to, height * width);
+                for (int k = 0; k < kernelArea; k++) {
+                    int kh = k / kernelWidth;
+                    int kw = k % kernelWidth;
+                    int from = colOff + (c * kernelArea + k) * columns + n * outputHeight * outputWidth;
+                    for (int oh = 0; oh < outputHeight; oh++, from += outputWidth) {
+                        int ih = oh * stride + kh - padding;
+                        if (ih < 0 || ih >= height) {
+                            continue;
+                        }
+                        if (f32) {
+                            col2imRow(col.floatData(), from, image.floatData(), to + ih * width, width,
+                                    outputWidth, kw - padding, stride);
+                        } else {
+                            col2imRow(col.data(), from, image.data(), to + ih * width, width,
+                                    outputWidth, kw - padding, stride);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private static void fillZero(DenseTensor col, boolean f32, int from, int length) {
+        if (f32) {
+            Arrays.fill(col.floatData(), from, from + length, 0.0f);
+        } else {
+            Arrays.fill(col.data(), from, from + length, 0.0);
+        }
+    }
+
+    /**
+     * 入力の1行からim2colの1行分（出力の横方向）を取り出す（範囲外はゼロ）
+     * @param shift 出力位置0に対応する入力の列（kw - padding）
+     */
+    private static void im2colRow(double[] in, int rowOff, int width, double[] col, int to,
+                                  int outputWidth, int shift, int stride) {
+        for (int ow = 0; ow < outputWidth; ow++) {
+            int iw = ow * stride + shift;
+            col[to + ow] = iw >= 0 && iw < width ? in[rowOff + iw] : 0.0;
+        }
+    }
+
+    private static void im2colRow(float[] in, int rowOff, int width, float[] col, int to,
+                                  int outputWidth, int shift, int stride) {
+        for (int ow = 0; ow < outputWidth; ow++) {
+            int iw = ow * stride + shift;
+            col[to + ow] = iw >= 0 && iw < width ? in[rowOff + iw] : 0.0f;
+        }
+    }
+
+    /**
+     * im2colの1行分（出力の横方向）を入力の1行に加算する（範囲外は捨てる）
+     * @param shift 出力位置0に対応する入力の列（kw - padding）
+     */
+    private static void col2imRow(double[] col, int from, double[] image, int rowOff, int width,
+                                  int outputWidth, int shift, int stride) {
+        for (int ow = 0; ow < outputWidth; ow++) {
+            int iw = ow * stride + shift;
+            if (iw >= 0 && iw < width) {
+                image[rowOff + iw] += col[from + ow];
+            }
+        }
+    }
+
+    private static void col2imRow(float[] col, int from, float[] image, int rowOff, int width,
+                                  int outputWidth, int shift, int stride) {
+        for (int ow = 0; ow < outputWidth; ow++) {
+            int iw = ow * stride + shift;
+            if (iw >= 0 && iw < width) {
+                image[rowOff + iw] += col[from + ow];
+            }
+        }
+    }
+}
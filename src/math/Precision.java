@@ -0,0 +1,22 @@
+package math;
+
+/**
+ * テンソルの数値精度
+ */
+public enum Precision {
+    FLOAT64(8),
+    FLOAT32(4);
+
+    private final int bytes;
+
+    Precision(int bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * 1要素あたりのバイト数
+     */
+    public int bytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,297 @@
+package math;
+
+/**
+ * SIMDカーネルの切り替え
+ * jdk.incubator.vector モジュールが読み込まれていればVector APIのカーネルを使い、
+ * なければスカラー実装にフォールバックする
+ * -Dnumsense.simd=false または setEnabled(false) でスカラー実装に固定できる（結果の比較用）
+ */
+public final class Simd {
+
+    private static final boolean available = detect();
+    private static volatile boolean enabled =
+            available && !"false".equalsIgnoreCase(System.getProperty("numsense.simd"));
+
+    private Simd() {
+    }
+
+    /**
+     * Vector APIが利用できるか
+     */
+    public static boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * SIMDカーネルを使用中か
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * SIMDカーネルの使用を切り替え（利用できない環境では常にスカラー実装）
+     * @param on trueならSIMD、falseならスカラー実装
+     */
+    public static void setEnabled(boolean on) {
+        enabled = on && available;
+    }
+
+    /**
+     * double演算のレーン数（スカラー実装なら1）
+     */
+    public static int lanes() {
+        return enabled ? VectorKernels.lanes() : 1;
+    }
+
+    /**
+     * float演算のレーン数（スカラー実装なら1）
+     */
+    public static int floatLanes() {
+        return enabled ? VectorKernels.floatLanes() : 1;
+    }
+
+    /**
+     * 内積
+     * @return a[aOff..aOff+length) と b[bOff..bOff+length) の内積
+     */
+    public static double dot(double[] a, int aOff, double[] b, int bOff, int length) {
+        if (enabled) {
+            return VectorKernels.dot(a, aOff, b, bOff, length);
+        }
+        double sum = 0.0;
+        for (int i = 0; i < length; i++) {
+            sum += a[aOff + i] * b[bOff + i];
+        }
+        return sum;
+    }
+
+    /**
+     * 要素ごとの和 (dst = a + b)
+     */
+    public static void add(double[] a, int aOff, double[] b, int bOff, double[] dst, int dstOff, int length) {
+        if (enabled) {
+            VectorKernels.add(a, aOff, b, bOff, dst, dstOff, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            dst[dstOff + i] = a[aOff + i] + b[bOff + i];
+        }
+    }
+
+    /**
+     * 要素ごとの積 (dst = a ⊙ b)
+     */
+    public static void multiply(double[] a, int aOff, double[] b, int bOff, double[] dst, int dstOff, int length) {
+        if (enabled) {
+            VectorKernels.multiply(a, aOff, b, bOff, dst, dstOff, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            dst[dstOff + i] = a[aOff + i] * b[bOff + i];
+        }
+    }
+
+    /**
+     * スカラー倍の加算 (y += alpha * x)
+     */
+    public static void axpy(double alpha, double[] x, int xOff, double[] y, int yOff, int length) {
+        if (enabled) {
+            VectorKernels.axpy(alpha, x, xOff, y, yOff, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            y[yOff + i] += alpha * x[xOff + i];
+        }
+    }
+
+    /**
+     * 添字を介した内積 (Σ a[aOff + idx[p]] * x[p])
+     * 疎なベクトルの非ゼロ要素（値をxに詰めたもの）と行列の行との内積に使う
+     */
+    public static double dotGather(double[] a, int aOff, int[] idx, double[] x, int length) {
+        if (enabled) {
+            return VectorKernels.dotGather(a, aOff, idx, x, length);
+        }
+        double sum = 0.0;
+        for (int p = 0; p < length; p++) {
+            sum += a[aOff + idx[p]] * x[p];
+        }
+        return sum;
+    }
+
+    /**
+     * 添字を介したスカラー倍の加算 (y[yOff + idx[p]] += alpha * x[p])
+     * scatterのベクトル命令はスカラーより遅いため、常にスカラー実装
+     */
+    public static void axpyScatter(double alpha, double[] x, int[] idx, double[] y, int yOff, int length) {
+        for (int p = 0; p < length; p++) {
+            y[yOff + idx[p]] += alpha * x[p];
+        }
+    }
+
+    /**
+     * ReLU (dst = max(0, src))
+     */
+    public static void relu(double[] src, int srcOff, double[] dst, int dstOff, int length) {
+        if (enabled) {
+            VectorKernels.relu(src, srcOff, dst, dstOff, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            dst[dstOff + i] = Math.max(0, src[srcOff + i]);
+        }
+    }
+
+    /**
+     * Adamの1ステップ（モーメントとパラメータをその場で更新）
+     * @param bc1 1次モーメントのバイアス補正 (1 - beta1^t)
+     * @param bc2 2次モーメントのバイアス補正 (1 - beta2^t)
+     */
+    public static void adam(double[] param, int pOff, double[] grad, int gOff,
+                            double[] m, int mOff, double[] v, int vOff, int length,
+                            double learningRate, double beta1, double beta2, double epsilon,
+                            double bc1, double bc2) {
+        if (enabled) {
+            VectorKernels.adam(param, pOff, grad, gOff, m, mOff, v, vOff, length,
+                    learningRate, beta1, beta2, epsilon, bc1, bc2);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            double gi = grad[gOff + i];
+
+            // モーメントの更新
+            m[mOff + i] = beta1 * m[mOff + i] + (1 - beta1) * gi;
+            v[vOff + i] = beta2 * v[vOff + i] + (1 - beta2) * gi * gi;
+
+            // バイアス補正
+            double mHat = m[mOff + i] / bc1;
+            double vHat = v[vOff + i] / bc2;
+
+            // パラメータ更新
+            param[pOff + i] -= learningRate * mHat / (Math.sqrt(vHat) + epsilon);
+        }
+    }
+
+    // ========== float版（FLOAT32テンソル用） ==========
+
+    /**
+     * 内積（float）
+     */
+    public static float dot(float[] a, int aOff, float[] b, int bOff, int length) {
+        if (enabled) {
+            return VectorKernels.dot(a, aOff, b, bOff, length);
+        }
+        float sum = 0.0f;
+        for (int i = 0; i < length; i++) {
+            sum += a[aOff + i] * b[bOff + i];
+        }
+        return sum;
+    }
+
+    /**
+     * 要素ごとの和（float）
+     */
+    public static void add(float[] a, int aOff, float[] b, int bOff, float[] dst, int dstOff, int length) {
+        if (enabled) {
+            VectorKernels.add(a, aOff, b, bOff, dst, dstOff, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            dst[dstOff + i] = a[aOff + i] + b[bOff + i];
+        }
+    }
+
+    /**
+     * 要素ごとの積（float）
+     */
+    public static void multiply(float[] a, int aOff, float[] b, int bOff, float[] dst, int dstOff, int length) {
+        if (enabled) {
+            VectorKernels.multiply(a, aOff, b, bOff, dst, dstOff, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            dst[dstOff + i] = a[aOff + i] * b[bOff + i];
+        }
+    }
+
+    /**
+     * スカラー倍の加算（float）
+     */
+    public static void axpy(float alpha, float[] x, int xOff, float[] y, int yOff, int length) {
+        if (enabled) {
+            VectorKernels.axpy(alpha, x, xOff, y, yOff, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            y[yOff + i] += alpha * x[xOff + i];
+        }
+    }
+
+    /**
+     * 添字を介した内積（float）
+     * floatのgatherはJDK 17ではスカラーより遅いため、常にスカラー実装
+     */
+    public static float dotGather(float[] a, int aOff, int[] idx, float[] x, int length) {
+        float sum = 0.0f;
+        for (int p = 0; p < length; p++) {
+            sum += a[aOff + idx[p]] * x[p];
+        }
+        return sum;
+    }
+
+    /**
+     * 添字を介したスカラー倍の加算（float、常にスカラー実装）
+     */
+    public static void axpyScatter(float alpha, float[] x, int[] idx, float[] y, int yOff, int length) {
+        for (int p = 0; p < length; p++) {
+            y[yOff + idx[p]] += alpha * x[p];
+        }
+    }
+
+    /**
+     * ReLU（float）
+     */
+    public static void relu(float[] src, int srcOff, float[] dst, int dstOff, int length) {
+        if (enabled) {
+            VectorKernels.relu(src, srcOff, dst, dstOff, length);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            dst[dstOff + i] = Math.max(0f, src[srcOff + i]);
+        }
+    }
+
+    /**
+     * Adamの1ステップ（float、モーメントもfloatで保持）
+     */
+    public static void adam(float[] param, int pOff, float[] grad, int gOff,
+                            float[] m, int mOff, float[] v, int vOff, int length,
+                            float learningRate, float beta1, float beta2, float epsilon,
+                            float bc1, float bc2) {
+        if (enabled) {
+            VectorKernels.adam(param, pOff, grad, gOff, m, mOff, v, vOff, length,
+                    learningRate, beta1, beta2, epsilon, bc1, bc2);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            float gi = grad[gOff + i];
+            m[mOff + i] = beta1 * m[mOff + i] + (1 - beta1) * gi;
+            v[vOff + i] = beta2 * v[vOff + i] + (1 - beta2) * gi * gi;
+            float mHat = m[mOff + i] / bc1;
+            float vHat = v[vOff + i] / bc2;
+            param[pOff + i] -= learningRate * mHat / ((float) Math.sqrt(vHat) + epsilon);
+        }
+    }
+
+    private static boolean detect() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return false;
+        }
+        try {
+            return VectorKernels.lanes() > 1;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+}
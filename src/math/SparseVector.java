@@ -0,0 +1,87 @@
+package math;
+
+/**
+ * 疎なベクトル（非ゼロ要素の位置と値を詰めて保持する）
+ * ReLUやDropoutの後の活性化をcompress()で変換し、{@link Matrix}の疎なカーネルに渡す
+ * 配列は容量が足りなくなったときだけ確保し直すため、1つを使い回せる
+ */
+public final class SparseVector {
+
+    private int[] index = new int[0];
+    private double[] values = new double[0];
+    private float[] floatValues = new float[0];
+    private Precision precision = Precision.FLOAT64;
+    private int nnz;
+    private int length;
+
+    /**
+     * 密なベクトルから非ゼロ要素を集める
+     * @param v ベクトル（連続メモリ）
+     * @return 密度（非ゼロ要素の割合）
+     */
+    public double compress(DenseTensor v) {
+        int n = v.size();
+        precision = v.precision();
+        length = n;
+        if (index.length < n) {
+            index = new int[n];
+        }
+
+        int count = 0;
+        if (precision == Precision.FLOAT32) {
+            if (floatValues.length < n) {
+                floatValues = new float[n];
+            }
+            float[] x = v.floatData();
+            int off = v.offset();
+            for (int j = 0; j < n; j++) {
+                float xj = x[off + j];
+                if (xj != 0.0f) {
+                    index[count] = j;
+                    floatValues[count++] = xj;
+                }
+            }
+        } else {
+            if (values.length < n) {
+                values = new double[n];
+            }
+            double[] x = v.data();
+            int off = v.offset();
+            for (int j = 0; j < n; j++) {
+                double xj = x[off + j];
+                if (xj != 0.0) {
+                    index[count] = j;
+                    values[count++] = xj;
+                }
+            }
+        }
+        nnz = count;
+        return density();
+    }
+
+    /**
+     * 非ゼロ要素の割合
+     */
+    public double density() {
+        return length == 0 ? 0.0 : (double) nnz / length;
+    }
+
+    public int nnz() { return nnz; }
+    public int length() { return length; }
+    public Precision precision() { return precision; }
+
+    /**
+     * 非ゼロ要素の位置（先頭nnz個が有効、昇順）
+     */
+    int[] index() { return index; }
+
+    /**
+     * 非ゼロ要素の値（FLOAT64、先頭nnz個が有効）
+     */
+    double[] values() { return values; }
+
+    /**
+     * 非ゼロ要素の値（FLOAT32、先頭nnz個が有効）
+     */
+    float[] floatValues() { return floatValues; }
+}
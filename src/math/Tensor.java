@@ -71,20 +71,25 @@ public class Tensor {
      * @return フラット化された配列
      */
     public static double[] flatten(double[][][] tensor) {
-        int channels = tensor.length;
-        int height = tensor[0].length;
-        int width = tensor[0][0].length;
-        double[] flat = new double[channels * height * width];
+        double[] flat = new double[tensor.length * tensor[0].length * tensor[0][0].length];
+        flattenInto(tensor, flat);
+        return flat;
+    }
 
+    /**
+     * テンソルを出力先の1次元配列にフラット化
+     * @param tensor 3Dテンソル
+     * @param dst 書き込み先（長さ C*H*W 以上）
+     */
+    public static void flattenInto(double[][][] tensor, double[] dst) {
+        int width = tensor[0][0].length;
         int idx = 0;
-        for (int c = 0; c < channels; c++) {
-            for (int h = 0; h < height; h++) {
-                for (int w = 0; w < width; w++) {
-                    flat[idx++] = tensor[c][h][w];
-                }
+        for (double[][] channel : tensor) {
+            for (double[] row : channel) {
+                System.arraycopy(row, 0, dst, idx, width);
+                idx += width;
             }
         }
-        return flat;
     }
 
     /**
@@ -97,16 +102,24 @@ public class Tensor {
      */
     public static double[][][] reshape(double[] flat, int channels, int height, int width) {
         double[][][] tensor = new double[channels][height][width];
+        reshapeInto(flat, tensor);
+        return tensor;
+    }
 
+    /**
+     * 1次元配列を既存の3Dテンソルに書き込む
+     * @param flat フラット配列
+     * @param dst 書き込み先 [C][H][W]
+     */
+    public static void reshapeInto(double[] flat, double[][][] dst) {
+        int width = dst[0][0].length;
         int idx = 0;
-        for (int c = 0; c < channels; c++) {
-            for (int h = 0; h < height; h++) {
-                for (int w = 0; w < width; w++) {
-                    tensor[c][h][w] = flat[idx++];
-                }
+        for (double[][] channel : dst) {
+            for (double[] row : channel) {
+                System.arraycopy(flat, idx, row, 0, width);
+                idx += width;
             }
         }
-        return tensor;
     }
 
     /**
@@ -115,17 +128,23 @@ public class Tensor {
      * @return コピーされたテンソル
      */
     public static double[][][] copy3D(double[][][] src) {
-        int channels = src.length;
-        int height = src[0].length;
-        int width = src[0][0].length;
-        double[][][] dst = new double[channels][height][width];
+        double[][][] dst = new double[src.length][src[0].length][src[0][0].length];
+        copyInto(src, dst);
+        return dst;
+    }
 
-        for (int c = 0; c < channels; c++) {
-            for (int h = 0; h < height; h++) {
+    /**
+     * 既存のテンソルへコピー
+     * @param src ソーステンソル
+     * @param dst 書き込み先（同じ形状）
+     */
+    public static void copyInto(double[][][] src, double[][][] dst) {
+        int width = src[0][0].length;
+        for (int c = 0; c < src.length; c++) {
+            for (int h = 0; h < src[0].length; h++) {
                 System.arraycopy(src[c][h], 0, dst[c][h], 0, width);
             }
         }
-        return dst;
     }
 
     /**
@@ -149,18 +168,39 @@ public class Tensor {
 
         // 正規化
         double[][][] normalized = copy3D(tensor);
-        double range = max - min;
-        if (range > 0) {
-            for (int c = 0; c < tensor.length; c++) {
-                for (int h = 0; h < tensor[0].length; h++) {
-                    for (int w = 0; w < tensor[0][0].length; w++) {
-                        normalized[c][h][w] = (tensor[c][h][w] - min) / range;
-                    }
+        normalizeRange(tensor, min, max - min, normalized);
+        return normalized;
+    }
+
+    /**
+     * テンソルをその場で正規化（0-1の範囲に）
+     * @param tensor 入力テンソル（上書きされる）
+     */
+    public static void normalizeInPlace(double[][][] tensor) {
+        double min = Double.MAX_VALUE;
+        double max = Double.MIN_VALUE;
+        for (double[][] channel : tensor) {
+            for (double[] row : channel) {
+                for (double val : row) {
+                    min = Math.min(min, val);
+                    max = Math.max(max, val);
                 }
             }
         }
+        normalizeRange(tensor, min, max - min, tensor);
+    }
 
-        return normalized;
+    private static void normalizeRange(double[][][] src, double min, double range, double[][][] dst) {
+        if (range <= 0) {
+            return;
+        }
+        for (int c = 0; c < src.length; c++) {
+            for (int h = 0; h < src[0].length; h++) {
+                for (int w = 0; w < src[0][0].length; w++) {
+                    dst[c][h][w] = (src[c][h][w] - min) / range;
+                }
+            }
+        }
     }
 
     /**
@@ -178,16 +218,23 @@ public class Tensor {
         int newWidth = width + 2 * padding;
 
         double[][][] padded = new double[channels][newHeight][newWidth];
+        padInto(tensor, padding, padded);
+        return padded;
+    }
 
-        for (int c = 0; c < channels; c++) {
-            for (int h = 0; h < height; h++) {
-                for (int w = 0; w < width; w++) {
-                    padded[c][h + padding][w + padding] = tensor[c][h][w];
-                }
+    /**
+     * パディングを既存のテンソルに書き込む（境界部分は書き込まないため、ゼロのまま再利用すること）
+     * @param tensor 入力テンソル [C][H][W]
+     * @param padding パディングサイズ
+     * @param dst 書き込み先 [C][H+2p][W+2p]
+     */
+    public static void padInto(double[][][] tensor, int padding, double[][][] dst) {
+        int width = tensor[0][0].length;
+        for (int c = 0; c < tensor.length; c++) {
+            for (int h = 0; h < tensor[0].length; h++) {
+                System.arraycopy(tensor[c][h], 0, dst[c][h + padding], padding, width);
             }
         }
-
-        return padded;
     }
 
     /**
@@ -210,6 +257,24 @@ public class Tensor {
         int outWidth = (inWidth - kernelWidth) / stride + 1;
 
         double[][][] output = new double[outChannels][outHeight][outWidth];
+        convolveInto(input, kernel, stride, output);
+        return output;
+    }
+
+    /**
+     * 畳み込み演算の結果を既存のテンソルに書き込む
+     * @param input 入力テンソル [C_in][H][W]
+     * @param kernel カーネル [C_out][C_in][K_h][K_w]
+     * @param stride ストライド
+     * @param output 書き込み先 [C_out][H_out][W_out]
+     */
+    public static void convolveInto(double[][][] input, double[][][][] kernel, int stride, double[][][] output) {
+        int inChannels = input.length;
+        int outChannels = kernel.length;
+        int kernelHeight = kernel[0][0].length;
+        int kernelWidth = kernel[0][0][0].length;
+        int outHeight = output[0].length;
+        int outWidth = output[0][0].length;
 
         // 各出力チャンネルについて
         for (int oc = 0; oc < outChannels; oc++) {
@@ -233,8 +298,6 @@ public class Tensor {
                 }
             }
         }
-
-        return output;
     }
 
     /**
@@ -253,6 +316,21 @@ public class Tensor {
         int outWidth = (inWidth - poolSize) / stride + 1;
 
         double[][][] output = new double[channels][outHeight][outWidth];
+        maxPoolInto(input, poolSize, stride, output);
+        return output;
+    }
+
+    /**
+     * 最大プーリングの結果を既存のテンソルに書き込む
+     * @param input 入力テンソル
+     * @param poolSize プーリングサイズ
+     * @param stride ストライド
+     * @param output 書き込み先 [C][H_out][W_out]
+     */
+    public static void maxPoolInto(double[][][] input, int poolSize, int stride, double[][][] output) {
+        int channels = input.length;
+        int outHeight = output[0].length;
+        int outWidth = output[0][0].length;
 
         for (int c = 0; c < channels; c++) {
             for (int oh = 0; oh < outHeight; oh++) {
@@ -272,8 +350,6 @@ public class Tensor {
                 }
             }
         }
-
-        return output;
     }
 
     /**
@@ -291,18 +367,24 @@ public class Tensor {
         int outWidth = inWidth * scale;
 
         double[][][] output = new double[channels][outHeight][outWidth];
+        upsampleInto(input, scale, output);
+        return output;
+    }
 
-        for (int c = 0; c < channels; c++) {
-            for (int oh = 0; oh < outHeight; oh++) {
-                for (int ow = 0; ow < outWidth; ow++) {
-                    int ih = oh / scale;
-                    int iw = ow / scale;
-                    output[c][oh][ow] = input[c][ih][iw];
+    /**
+     * アップサンプリングの結果を既存のテンソルに書き込む
+     * @param input 入力テンソル
+     * @param scale スケール倍率
+     * @param output 書き込み先 [C][H*scale][W*scale]
+     */
+    public static void upsampleInto(double[][][] input, int scale, double[][][] output) {
+        for (int c = 0; c < output.length; c++) {
+            for (int oh = 0; oh < output[0].length; oh++) {
+                for (int ow = 0; ow < output[0][0].length; ow++) {
+                    output[c][oh][ow] = input[c][oh / scale][ow / scale];
                 }
             }
         }
-
-        return output;
     }
 
     /**
@@ -317,16 +399,27 @@ public class Tensor {
         int width = a[0][0].length;
 
         double[][][] result = new double[channels][height][width];
+        addInto(a, b, result);
+        return result;
+    }
 
-        for (int c = 0; c < channels; c++) {
-            for (int h = 0; h < height; h++) {
-                for (int w = 0; w < width; w++) {
-                    result[c][h][w] = a[c][h][w] + b[c][h][w];
-                }
+    /**
+     * テンソルの加算結果を既存のテンソルに書き込む (dst = A + B、dstにAやBを渡してもよい)
+     */
+    public static void addInto(double[][][] a, double[][][] b, double[][][] dst) {
+        int width = a[0][0].length;
+        for (int c = 0; c < a.length; c++) {
+            for (int h = 0; h < a[0].length; h++) {
+                Simd.add(a[c][h], 0, b[c][h], 0, dst[c][h], 0, width);
             }
         }
+    }
 
-        return result;
+    /**
+     * テンソルの加算をその場で計算 (A += B)
+     */
+    public static void addInPlace(double[][][] a, double[][][] b) {
+        addInto(a, b, a);
     }
 
     /**
@@ -337,15 +430,121 @@ public class Tensor {
      */
     public static double[][][] multiply(double[][][] tensor, double scalar) {
         double[][][] result = copy3D(tensor);
+        multiplyInPlace(result, scalar);
+        return result;
+    }
 
+    /**
+     * スカラー倍の結果を既存のテンソルに書き込む (dst = tensor * scalar、dstにtensorを渡してもよい)
+     */
+    public static void multiplyInto(double[][][] tensor, double scalar, double[][][] dst) {
         for (int c = 0; c < tensor.length; c++) {
             for (int h = 0; h < tensor[0].length; h++) {
                 for (int w = 0; w < tensor[0][0].length; w++) {
-                    result[c][h][w] *= scalar;
+                    dst[c][h][w] = tensor[c][h][w] * scalar;
                 }
             }
         }
+    }
+
+    /**
+     * テンソルをその場でスカラー倍 (tensor *= scalar)
+     */
+    public static void multiplyInPlace(double[][][] tensor, double scalar) {
+        multiplyInto(tensor, scalar, tensor);
+    }
 
+    /**
+     * テンソルの要素ごとの演算（加算、DenseTensor版）
+     * @param a テンソルA
+     * @param b テンソルB（Aと同じ形状）
+     * @return A + B
+     */
+    public static DenseTensor add(DenseTensor a, DenseTensor b) {
+        DenseTensor result = DenseTensor.zeros(a.precision(), a.shape());
+        addInto(a, b, result);
         return result;
     }
-}
\ No newline at end of file
+
+    /**
+     * 加算結果を既存のテンソルに書き込む (dst = A + B、dstにAやBを渡してもよい)
+     * @param a テンソルA
+     * @param b テンソルB（Aと同じ形状）
+     * @param dst 書き込み先（Aと同じ形状・精度）
+     */
+    public static void addInto(DenseTensor a, DenseTensor b, DenseTensor dst) {
+        if (!a.sameShape(b) || !a.sameShape(dst)) {
+            throw new IllegalArgumentException("Shape mismatch: " + a + " vs " + b + " -> " + dst);
+        }
+        DenseTensor ac = a.toPrecision(dst.precision()).contiguous();
+        DenseTensor bc = b.toPrecision(dst.precision()).contiguous();
+        if (!dst.isContiguous()) {
+            dst.copyFrom(add(ac, bc));
+            return;
+        }
+        int n = dst.size();
+
+        if (dst.precision() == Precision.FLOAT32) {
+            Simd.add(ac.floatData(), ac.offset(), bc.floatData(), bc.offset(), dst.floatData(), dst.offset(), n);
+        } else {
+            Simd.add(ac.data(), ac.offset(), bc.data(), bc.offset(), dst.data(), dst.offset(), n);
+        }
+    }
+
+    /**
+     * 加算をその場で計算 (A += B)
+     */
+    public static void addInPlace(DenseTensor a, DenseTensor b) {
+        addInto(a, b, a);
+    }
+
+    /**
+     * テンソルの要素ごとの演算（乗算、DenseTensor版）
+     * @param tensor テンソル
+     * @param scalar スカラー値
+     * @return tensor * scalar
+     */
+    public static DenseTensor multiply(DenseTensor tensor, double scalar) {
+        DenseTensor result = DenseTensor.zeros(tensor.precision(), tensor.shape());
+        multiplyInto(tensor, scalar, result);
+        return result;
+    }
+
+    /**
+     * スカラー倍を既存のテンソルに書き込む (dst = tensor * scalar、dstにtensorを渡してもよい)
+     * @param tensor テンソル
+     * @param scalar スカラー値
+     * @param dst 書き込み先（同じ形状・連続メモリ）
+     */
+    public static void multiplyInto(DenseTensor tensor, double scalar, DenseTensor dst) {
+        if (!tensor.sameShape(dst)) {
+            throw new IllegalArgumentException("Shape mismatch: " + tensor + " -> " + dst);
+        }
+        DenseTensor src = tensor.toPrecision(dst.precision()).contiguous();
+        int n = dst.size();
+        int sOff = src.offset();
+        int dOff = dst.offset();
+
+        if (dst.precision() == Precision.FLOAT32) {
+            float[] sd = src.floatData();
+            float[] rd = dst.floatData();
+            float f = (float) scalar;
+            for (int i = 0; i < n; i++) {
+                rd[dOff + i] = sd[sOff + i] * f;
+            }
+        } else {
+            double[] sd = src.data();
+            double[] rd = dst.data();
+            for (int i = 0; i < n; i++) {
+                rd[dOff + i] = sd[sOff + i] * scalar;
+            }
+        }
+    }
+
+    /**
+     * その場でスカラー倍 (tensor *= scalar)
+     */
+    public static void multiplyInPlace(DenseTensor tensor, double scalar) {
+        multiplyInto(tensor, scalar, tensor);
+    }
+}
@@ -0,0 +1,181 @@
+package math;
+
+import java.util.Arrays;
+
+/**
+ * 1ステップ（学習1回・推論1回）の間だけ使うテンソルを貸し出すアリーナ
+ * reset()でそれまでに貸し出したバッファをすべて回収し、次のステップで同じ形状・精度の要求に再利用する
+ * 各ステップで要求の順序がほぼ同じであれば、ウォームアップ後は新しい配列を確保しない
+ * スレッドセーフではない（モデルやワーカーごとに1つ持つ）
+ */
+public final class TensorArena {
+
+    private DenseTensor[] slots = new DenseTensor[16];
+    private boolean[] used = new boolean[16];
+    private int count;
+    private int cursor; // 前のステップで次に使われたスロット（順序が同じなら探索不要）
+
+    // 統計
+    private long requests;
+    private long reuses;
+    private long allocatedBytes;
+    private long inUseBytes;
+    private long peakBytes;
+    private long steps;
+
+    /**
+     * 指定した形状のテンソルを借りる（内容は初期化しない）
+     * 返したテンソルは次のreset()まで他の要求に渡されない
+     * @param precision 数値精度
+     * @param shape 形状
+     * @return 連続メモリのテンソル
+     */
+    public DenseTensor allocate(Precision precision, int... shape) {
+        requests++;
+        int slot = find(precision, shape);
+        if (slot >= 0) {
+            reuses++;
+        } else {
+            slot = add(DenseTensor.zeros(precision, shape));
+            allocatedBytes += bytesOf(slots[slot]);
+        }
+
+        used[slot] = true;
+        cursor = slot + 1;
+        inUseBytes += bytesOf(slots[slot]);
+        peakBytes = Math.max(peakBytes, inUseBytes);
+        return slots[slot];
+    }
+
+    /**
+     * ゼロで埋めたテンソルを借りる
+     */
+    public DenseTensor allocateZeroed(Precision precision, int... shape) {
+        DenseTensor t = allocate(precision, shape);
+        t.fill(0);
+        return t;
+    }
+
+    /**
+     * ステップの終了（貸し出したテンソルをすべて回収する）
+     * 回収したテンソルの内容は次の貸し出しで上書きされる
+     */
+    public void reset() {
+        Arrays.fill(used, 0, count, false);
+        cursor = 0;
+        inUseBytes = 0;
+        steps++;
+    }
+
+    /**
+     * 保持しているバッファをすべて手放す（統計も初期化）
+     */
+    public void clear() {
+        Arrays.fill(slots, 0, count, null);
+        Arrays.fill(used, 0, count, false);
+        count = 0;
+        cursor = 0;
+        resetStats();
+    }
+
+    /**
+     * 統計を初期化（保持しているバッファはそのまま）
+     */
+    public void resetStats() {
+        requests = 0;
+        reuses = 0;
+        allocatedBytes = 0;
+        peakBytes = inUseBytes;
+        steps = 0;
+    }
+
+    // ========== 統計 ==========
+
+    /**
+     * 貸し出し要求の回数
+     */
+    public long getRequests() { return requests; }
+
+    /**
+     * 既存のバッファで応えた回数
+     */
+    public long getReuses() { return reuses; }
+
+    /**
+     * 再利用率（要求がなければ0）
+     */
+    public double getReuseRate() {
+        return requests == 0 ? 0.0 : (double) reuses / requests;
+    }
+
+    /**
+     * 新しく確保したバイト数の累計
+     */
+    public long getAllocatedBytes() { return allocatedBytes; }
+
+    /**
+     * 1ステップ内で同時に貸し出していたバイト数の最大値
+     */
+    public long getPeakBytes() { return peakBytes; }
+
+    /**
+     * 保持しているバッファの合計バイト数
+     */
+    public long getReservedBytes() {
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += bytesOf(slots[i]);
+        }
+        return total;
+    }
+
+    /**
+     * 保持しているバッファの数
+     */
+    public int getBufferCount() { return count; }
+
+    /**
+     * reset()の回数
+     */
+    public long getSteps() { return steps; }
+
+    @Override
+    public String toString() {
+        return String.format("TensorArena[buffers=%d, reserved=%.1fKB, peak=%.1fKB, allocated=%.1fKB, reuse=%.1f%%, steps=%d]",
+                count, getReservedBytes() / 1024.0, peakBytes / 1024.0, allocatedBytes / 1024.0,
+                getReuseRate() * 100, steps);
+    }
+
+    // ========== 補助メソッド ==========
+
+    private int find(Precision precision, int[] shape) {
+        // 前のステップと同じ順序なら次のスロットがそのまま使える
+        if (cursor < count && matches(cursor, precision, shape)) {
+            return cursor;
+        }
+        for (int i = 0; i < count; i++) {
+            if (matches(i, precision, shape)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(int slot, Precision precision, int[] shape) {
+        DenseTensor t = slots[slot];
+        return !used[slot] && t.precision() == precision && t.hasShape(shape);
+    }
+
+    private int add(DenseTensor t) {
+        if (count == slots.length) {
+            slots = Arrays.copyOf(slots, count * 2);
+            used = Arrays.copyOf(used, count * 2);
+        }
+        slots[count] = t;
+        return count++;
+    }
+
+    private static long bytesOf(DenseTensor t) {
+        return (long) t.size() * (t.precision() == Precision.FLOAT32 ? Float.BYTES : Double.BYTES);
+    }
+}
@@ -0,0 +1,244 @@
+package math;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API（jdk.incubator.vector）によるSIMDカーネル
+ * 直接使わずに{@link Simd}経由で呼び出す（モジュールがない環境ではロードしない）
+ */
+final class VectorKernels {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    private VectorKernels() {
+    }
+
+    static int lanes() {
+        return SPECIES.length();
+    }
+
+    static int floatLanes() {
+        return FLOAT_SPECIES.length();
+    }
+
+    static double dot(double[] a, int aOff, double[] b, int bOff, int length) {
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOff + i);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOff + i);
+            acc = va.mul(vb).add(acc);
+        }
+
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a[aOff + i] * b[bOff + i];
+        }
+        return sum;
+    }
+
+    static void add(double[] a, int aOff, double[] b, int bOff, double[] dst, int dstOff, int length) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOff + i);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOff + i);
+            va.add(vb).intoArray(dst, dstOff + i);
+        }
+        for (; i < length; i++) {
+            dst[dstOff + i] = a[aOff + i] + b[bOff + i];
+        }
+    }
+
+    static void multiply(double[] a, int aOff, double[] b, int bOff, double[] dst, int dstOff, int length) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOff + i);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, bOff + i);
+            va.mul(vb).intoArray(dst, dstOff + i);
+        }
+        for (; i < length; i++) {
+            dst[dstOff + i] = a[aOff + i] * b[bOff + i];
+        }
+    }
+
+    static void axpy(double alpha, double[] x, int xOff, double[] y, int yOff, int length) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector vx = DoubleVector.fromArray(SPECIES, x, xOff + i);
+            DoubleVector vy = DoubleVector.fromArray(SPECIES, y, yOff + i);
+            vx.mul(alpha).add(vy).intoArray(y, yOff + i);
+        }
+        for (; i < length; i++) {
+            y[yOff + i] += alpha * x[xOff + i];
+        }
+    }
+
+    static double dotGather(double[] a, int aOff, int[] idx, double[] x, int length) {
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(length);
+        int p = 0;
+        for (; p < bound; p += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, aOff, idx, p);
+            DoubleVector vx = DoubleVector.fromArray(SPECIES, x, p);
+            acc = va.mul(vx).add(acc);
+        }
+
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; p < length; p++) {
+            sum += a[aOff + idx[p]] * x[p];
+        }
+        return sum;
+    }
+
+    static void relu(double[] src, int srcOff, double[] dst, int dstOff, int length) {
+        DoubleVector zero = DoubleVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, src, srcOff + i).max(zero).intoArray(dst, dstOff + i);
+        }
+        for (; i < length; i++) {
+            dst[dstOff + i] = Math.max(0, src[srcOff + i]);
+        }
+    }
+
+    static void adam(double[] param, int pOff, double[] grad, int gOff,
+                     double[] m, int mOff, double[] v, int vOff, int length,
+                     double learningRate, double beta1, double beta2, double epsilon,
+                     double bc1, double bc2) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector g = DoubleVector.fromArray(SPECIES, grad, gOff + i);
+            DoubleVector mv = DoubleVector.fromArray(SPECIES, m, mOff + i)
+                    .mul(beta1).add(g.mul(1 - beta1));
+            DoubleVector vv = DoubleVector.fromArray(SPECIES, v, vOff + i)
+                    .mul(beta2).add(g.mul(1 - beta2).mul(g));
+            mv.intoArray(m, mOff + i);
+            vv.intoArray(v, vOff + i);
+
+            DoubleVector mHat = mv.div(bc1);
+            DoubleVector vHat = vv.div(bc2);
+            DoubleVector p = DoubleVector.fromArray(SPECIES, param, pOff + i);
+            p.sub(mHat.mul(learningRate).div(vHat.lanewise(VectorOperators.SQRT).add(epsilon)))
+                    .intoArray(param, pOff + i);
+        }
+        for (; i < length; i++) {
+            double gi = grad[gOff + i];
+            m[mOff + i] = beta1 * m[mOff + i] + (1 - beta1) * gi;
+            v[vOff + i] = beta2 * v[vOff + i] + (1 - beta2) * gi * gi;
+            double mHat = m[mOff + i] / bc1;
+            double vHat = v[vOff + i] / bc2;
+            param[pOff + i] -= learningRate * mHat / (Math.sqrt(vHat) + epsilon);
+        }
+    }
+
+    // ========== float版 ==========
+
+    static float dot(float[] a, int aOff, float[] b, int bOff, int length) {
+        FloatVector acc = FloatVector.zero(FLOAT_SPECIES);
+        int bound = FLOAT_SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += FLOAT_SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(FLOAT_SPECIES, a, aOff + i);
+            FloatVector vb = FloatVector.fromArray(FLOAT_SPECIES, b, bOff + i);
+            acc = va.mul(vb).add(acc);
+        }
+
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a[aOff + i] * b[bOff + i];
+        }
+        return sum;
+    }
+
+    static void add(float[] a, int aOff, float[] b, int bOff, float[] dst, int dstOff, int length) {
+        int bound = FLOAT_SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += FLOAT_SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(FLOAT_SPECIES, a, aOff + i);
+            FloatVector vb = FloatVector.fromArray(FLOAT_SPECIES, b, bOff + i);
+            va.add(vb).intoArray(dst, dstOff + i);
+        }
+        for (; i < length; i++) {
+            dst[dstOff + i] = a[aOff + i] + b[bOff + i];
+        }
+    }
+
+    static void multiply(float[] a, int aOff, float[] b, int bOff, float[] dst, int dstOff, int length) {
+        int bound = FLOAT_SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += FLOAT_SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(FLOAT_SPECIES, a, aOff + i);
+            FloatVector vb = FloatVector.fromArray(FLOAT_SPECIES, b, bOff + i);
+            va.mul(vb).intoArray(dst, dstOff + i);
+        }
+        for (; i < length; i++) {
+            dst[dstOff + i] = a[aOff + i] * b[bOff + i];
+        }
+    }
+
+    static void axpy(float alpha, float[] x, int xOff, float[] y, int yOff, int length) {
+        int bound = FLOAT_SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += FLOAT_SPECIES.length()) {
+            FloatVector vx = FloatVector.fromArray(FLOAT_SPECIES, x, xOff + i);
+            FloatVector vy = FloatVector.fromArray(FLOAT_SPECIES, y, yOff + i);
+            vx.mul(alpha).add(vy).intoArray(y, yOff + i);
+        }
+        for (; i < length; i++) {
+            y[yOff + i] += alpha * x[xOff + i];
+        }
+    }
+
+    static void relu(float[] src, int srcOff, float[] dst, int dstOff, int length) {
+        FloatVector zero = FloatVector.zero(FLOAT_SPECIES);
+        int bound = FLOAT_SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += FLOAT_SPECIES.length()) {
+            FloatVector.fromArray(FLOAT_SPECIES, src, srcOff + i).max(zero).intoArray(dst, dstOff + i);
+        }
+        for (; i < length; i++) {
+            dst[dstOff + i] = Math.max(0f, src[srcOff + i]);
+        }
+    }
+
+    static void adam(float[] param, int pOff, float[] grad, int gOff,
+                     float[] m, int mOff, float[] v, int vOff, int length,
+                     float learningRate, float beta1, float beta2, float epsilon,
+                     float bc1, float bc2) {
+        int bound = FLOAT_SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += FLOAT_SPECIES.length()) {
+            FloatVector g = FloatVector.fromArray(FLOAT_SPECIES, grad, gOff + i);
+            FloatVector mv = FloatVector.fromArray(FLOAT_SPECIES, m, mOff + i)
+                    .mul(beta1).add(g.mul(1 - beta1));
+            FloatVector vv = FloatVector.fromArray(FLOAT_SPECIES, v, vOff + i)
+                    .mul(beta2).add(g.mul(1 - beta2).mul(g));
+            mv.intoArray(m, mOff + i);
+            vv.intoArray(v, vOff + i);
+
+            FloatVector mHat = mv.div(bc1);
+            FloatVector vHat = vv.div(bc2);
+            FloatVector p = FloatVector.fromArray(FLOAT_SPECIES, param, pOff + i);
+            p.sub(mHat.mul(learningRate).div(vHat.lanewise(VectorOperators.SQRT).add(epsilon)))
+                    .intoArray(param, pOff + i);
+        }
+        for (; i < length; i++) {
+            float gi = grad[gOff + i];
+            m[mOff + i] = beta1 * m[mOff + i] + (1 - beta1) * gi;
+            v[vOff + i] = beta2 * v[vOff + i] + (1 - beta2) * gi * gi;
+            float mHat = m[mOff + i] / bc1;
+            float vHat = v[vOff + i] / bc2;
+            param[pOff + i] -= learningRate * mHat / ((float) Math.sqrt(vHat) + epsilon);
+        }
+    }
+}
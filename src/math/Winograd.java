@@ -0,0 +1,372 @@
+package math;
+
+/**
+ * Winograd F(2x2, 3x3) による畳み込み（3x3カーネル、ストライド1専用）
+ * 出力の2x2タイルを4x4の入力タイルから16回の積で求める（直接計算は36回、約2.25倍少ない）
+ * <pre>
+ * U = G g G^T（カーネル、重みが変わるまで使い回す）
+ * V = B^T d B（入力タイル）
+ * Y = A^T [U ⊙ V] A（16個の要素位置ごとに [outChannels][inChannels] × [inChannels][tiles] のGEMM）
+ * </pre>
+ * 変換の途中で丸め誤差が増えるため、直接計算との差はFLOAT64で1e-13程度、FLOAT32で1e-5程度になる
+ */
+public final class Winograd {
+
+    static final int TILE = 4;                 // 入力タイルの大きさ
+    static final int AREA = TILE * TILE;       // 要素位置の数
+    static final int OUT = 2;                  // 出力タイルの大きさ
+
+    private Winograd() {
+    }
+
+    /**
+     * Winogradで計算できる形状か（3x3カーネル、ストライド1）
+     * 入力勾配の計算にはパディングが2以下であることも必要
+     */
+    public static boolean supports(int kernelSize, int stride, int padding) {
+        return kernelSize == 3 && stride == 1 && padding >= 0 && padding <= 2;
+    }
+
+    /**
+     * 出力タイルの総数（作業領域の大きさの計算用）
+     * @return batch * ceil(outputHeight / 2) * ceil(outputWidth / 2)
+     */
+    public static int tiles(int batch, int outputHeight, int outputWidth) {
+        return batch * ((outputHeight + 1) / OUT) * ((outputWidth + 1) / OUT);
+    }
+
+    /**
+     * カーネルを変換 (U = G g G^T)
+     * @param kernels カーネル [outChannels][inChannels][3][3]
+     * @return 変換済みカーネル [16][outChannels][inChannels]（精度はカーネルと同じ）
+     */
+    public static DenseTensor transformFilters(DenseTensor kernels) {
+        DenseTensor u = DenseTensor.zeros(kernels.precision(), AREA, kernels.dim(0), kernels.dim(1));
+        transformFiltersInto(kernels, false, u);
+        return u;
+    }
+
+    /**
+     * 入力勾配用にカーネルを変換
+     * 入力勾配は180度回転して入出力チャンネルを入れ替えたカーネルとの畳み込みなので、その変換を作る
+     * @param kernels カーネル [outChannels][inChannels][3][3]
+     * @return 変換済みカーネル [16][inChannels][outChannels]
+     */
+    public static DenseTensor transformFiltersForBackward(DenseTensor kernels) {
+        DenseTensor u = DenseTensor.zeros(kernels.precision(), AREA, kernels.dim(1), kernels.dim(0));
+        transformFiltersInto(kernels, true, u);
+        return u;
+    }
+
+    /**
+     * カーネルの変換を既存のテンソルに書き込む
+     * @param kernels カーネル [outChannels][inChannels][3][3]
+     * @param backward trueなら入力勾配用（180度回転、チャンネルを入れ替え）
+     * @param dst 書き込み先 [16][outChannels][inChannels]（backwardなら[16][inChannels][outChannels]）
+     */
+    public static void transformFiltersInto(DenseTensor kernels, boolean backward, DenseTensor dst) {
+        if (kernels.dim(2) != 3 || kernels.dim(3) != 3) {
+            throw new IllegalArgumentException("Winograd F(2x2,3x3) needs 3x3 kernels: " + kernels);
+        }
+        DenseTensor k = kernels.contiguous();
+        int outChannels = k.dim(0);
+        int inChannels = k.dim(1);
+        int rows = backward ? inChannels : outChannels;
+        int cols = backward ? outChannels : inChannels;
+        double[] g = new double[9];
+        double[] t = new double[12];
+        double[] u = new double[AREA];
+
+        for (int oc = 0; oc < outChannels; oc++) {
+            for (int ic = 0; ic < inChannels; ic++) {
+                int base = (oc * inChannels + ic) * 9;
+                for (int i = 0; i < 9; i++) {
+                    // 入力勾配用は180度回転
+                    g[i] = k.getFlat(base + (backward ? 8 - i : i));
+                }
+                filterTransform(g, t, u);
+                int r = backward ? ic : oc;
+                int c = backward ? oc : ic;
+                for (int xi = 0; xi < AREA; xi++) {
+                    dst.setFlat((xi * rows + r) * cols + c, u[xi]);
+                }
+            }
+        }
+    }
+
+    /**
+     * 畳み込みを計算（カーネルの変換と作業領域の確保も行う）
+     * @param input 入力 [batch][inChannels][height][width]
+     * @param kernels カーネル [outChannels][inChannels][3][3]
+     * @param bias バイアス [outChannels]（nullなら加算しない）
+     * @param padding パディング
+     * @return 畳み込み結果 [batch][outChannels][outputHeight][outputWidth]（精度は入力と同じ）
+     */
+    public static DenseTensor convolve(DenseTensor input, DenseTensor kernels, DenseTensor bias, int padding) {
+        Precision precision = input.precision();
+        int batch = input.dim(0);
+        int outChannels = kernels.dim(0);
+        int outputHeight = ConvolutionOps.outputSize(input.dim(2), 3, 1, padding);
+        int outputWidth = ConvolutionOps.outputSize(input.dim(3), 3, 1, padding);
+        int tiles = tiles(batch, outputHeight, outputWidth);
+
+        DenseTensor u = transformFilters(kernels.toPrecision(precision));
+        DenseTensor v = DenseTensor.zeros(precision, AREA, input.dim(1), tiles);
+        DenseTensor m = DenseTensor.zeros(precision, AREA, outChannels, tiles);
+        DenseTensor output = DenseTensor.zeros(precision, batch, outChannels, outputHeight, outputWidth);
+        convolveInto(input, u, bias, padding, v, m, output);
+        return output;
+    }
+
+    /**
+     * 変換済みカーネルとの畳み込みを既存のテンソルに書き込む
+     * パディングは入力タイルの読み込み時にゼロとして扱う
+     * @param input 入力 [batch][inChannels][height][width]
+     * @param filters 変換済みカーネル [16][outChannels][inChannels]（{@link #transformFilters}）
+     * @param bias バイアス [outChannels]（nullなら加算しない）
+     * @param padding パディング
+     * @param v 入力タイルの作業領域 [16][inChannels][tiles]（連続メモリ）
+     * @param m 積の作業領域 [16][outChannels][tiles]（連続メモリ）
+     * @param output 書き込み先 [batch][outChannels][outputHeight][outputWidth]（連続メモリ、精度は入力と同じ）
+     */
+    public static void convolveInto(DenseTensor input, DenseTensor filters, DenseTensor bias, int padding,
+                                    DenseTensor v, DenseTensor m, DenseTensor output) {
+        Precision precision = output.precision();
+        DenseTensor in = input.toPrecision(precision).contiguous();
+        DenseTensor u = filters.toPrecision(precision).contiguous();
+        int batch = in.dim(0);
+        int inChannels = in.dim(1);
+        int outChannels = output.dim(1);
+        int outputHeight = output.dim(2);
+        int outputWidth = output.dim(3);
+        int tiles = tiles(batch, outputHeight, outputWidth);
+        if (u.dim(1) != outChannels || u.dim(2) != inChannels
+                || v.size() != AREA * inChannels * tiles || m.size() != AREA * outChannels * tiles) {
+            throw new IllegalArgumentException("Shape mismatch: " + input + " * " + filters + " -> " + output);
+        }
+
+        inputTransform(in, padding, outputHeight, outputWidth, v);
+
+        // 要素位置ごとのGEMM: M[xi] = U[xi] × V[xi]
+        for (int xi = 0; xi < AREA; xi++) {
+            if (precision == Precision.FLOAT32) {
+                Matrix.gemm(outChannels, tiles, inChannels,
+                        u.floatData(), u.offset() + xi * outChannels * inChannels, inChannels,
+                        v.floatData(), v.offset() + xi * inChannels * tiles, tiles,
+                        m.floatData(), m.offset() + xi * outChannels * tiles, tiles);
+            } else {
+                Matrix.gemm(outChannels, tiles, inChannels,
+                        u.data(), u.offset() + xi * outChannels * inChannels, inChannels,
+                        v.data(), v.offset() + xi * inChannels * tiles, tiles,
+                        m.data(), m.offset() + xi * outChannels * tiles, tiles);
+            }
+        }
+
+        outputTransform(m, bias == null ? null : bias.toPrecision(precision).contiguous(), output);
+    }
+
+    /**
+     * 入力勾配を既存のテンソルに書き込む（ストライド1なので、回転したカーネルとの畳み込みになる）
+     * @param gradOutput 出力に対する勾配 [batch][outChannels][outputHeight][outputWidth]
+     * @param filters 入力勾配用の変換済みカーネル [16][inChannels][outChannels]（{@link #transformFiltersForBackward}）
+     * @param padding 順伝播のパディング（2以下）
+     * @param v 作業領域 [16][outChannels][tiles]（tilesは入力の大きさから計算）
+     * @param m 作業領域 [16][inChannels][tiles]
+     * @param gradInput 書き込み先 [batch][inChannels][height][width]（連続メモリ、上書きされる）
+     */
+    public static void backwardInputInto(DenseTensor gradOutput, DenseTensor filters, int padding,
+                                         DenseTensor v, DenseTensor m, DenseTensor gradInput) {
+        if (padding > 2) {
+            throw new IllegalArgumentException("Winograd backward needs padding <= 2: " + padding);
+        }
+        convolveInto(gradOutput, filters, null, 2 - padding, v, m, gradInput);
+    }
+
+    // ========== タイルの変換 ==========
+
+    /**
+     * U = G g G^T（gは3x3、tはG gを入れる4x3の作業領域、uは4x4）
+     */
+    private static void filterTransform(double[] g, double[] t, double[] u) {
+        for (int j = 0; j < 3; j++) {
+            double g0 = g[j];
+            double g1 = g[3 + j];
+            double g2 = g[6 + j];
+            t[j] = g0;
+            t[3 + j] = 0.5 * (g0 + g1 + g2);
+            t[6 + j] = 0.5 * (g0 - g1 + g2);
+            t[9 + j] = g2;
+        }
+        for (int i = 0; i < TILE; i++) {
+            double t0 = t[i * 3];
+            double t1 = t[i * 3 + 1];
+            double t2 = t[i * 3 + 2];
+            u[i * TILE] = t0;
+            u[i * TILE + 1] = 0.5 * (t0 + t1 + t2);
+            u[i * TILE + 2] = 0.5 * (t0 - t1 + t2);
+            u[i * TILE + 3] = t2;
+        }
+    }
+
+    /**
+     * V = B^T d B を全タイルについて計算
+     * (画像, チャンネル) の面ごとに独立なので面単位で並列化する
+     */
+    private static void inputTransform(DenseTensor in, int padding, int outputHeight, int outputWidth,
+                                       DenseTensor v) {
+        int batch = in.dim(0);
+        int channels = in.dim(1);
+        int height = in.dim(2);
+        int width = in.dim(3);
+        int tilesH = (outputHeight + 1) / OUT;
+        int tilesW = (outputWidth + 1) / OUT;
+        int tilesPerImage = tilesH * tilesW;
+        int tiles = batch * tilesPerImage;
+        int xiStride = channels * tiles;
+        boolean f32 = in.precision() == Precision.FLOAT32;
+        double[] src = f32 ? null : in.data();
+        float[] srcf = f32 ? in.floatData() : null;
+        double[] dst = f32 ? null : v.data();
+        float[] dstf = f32 ? v.floatData() : null;
+        int inOff = in.offset();
+        int vOff = v.offset();
+
+        Matrix.parallelRows(batch * channels, tilesPerImage * AREA, (start, end) -> {
+            double[] d = new double[AREA];
+            for (int plane = start; plane < end; plane++) {
+                int n = plane / channels;
+                int c = plane % channels;
+                int planeBase = inOff + plane * height * width;
+                int vBase = vOff + c * tiles + n * tilesPerImage;
+                for (int ty = 0; ty < tilesH; ty++) {
+                    int y0 = ty * OUT - padding;
+                    for (int tx = 0; tx < tilesW; tx++) {
+                        int x0 = tx * OUT - padding;
+
+                        // 4x4の入力タイルを読み込む（範囲外はゼロ）
+                        for (int i = 0; i < TILE; i++) {
+                            int y = y0 + i;
+                            boolean rowIn = y >= 0 && y < height;
+                            for (int j = 0; j < TILE; j++) {
+                                int x = x0 + j;
+                                int idx = planeBase + y * width + x;
+                                d[i * TILE + j] = rowIn && x >= 0 && x < width
+                                        ? (f32 ? srcf[idx] : src[idx]) : 0.0;
+                            }
+                        }
+
+                        // 行方向 (B^T d)
+                        for (int j = 0; j < TILE; j++) {
+                            double d0 = d[j];
+                            double d1 = d[TILE + j];
+                            double d2 = d[2 * TILE + j];
+                            double d3 = d[3 * TILE + j];
+                            d[j] = d0 - d2;
+                            d[TILE + j] = d1 + d2;
+                            d[2 * TILE + j] = d2 - d1;
+                            d[3 * TILE + j] = d1 - d3;
+                        }
+                        // 列方向 (... B) と書き込み
+                        int t = vBase + ty * tilesW + tx;
+                        for (int i = 0; i < TILE; i++) {
+                            double d0 = d[i * TILE];
+                            double d1 = d[i * TILE + 1];
+                            double d2 = d[i * TILE + 2];
+                            double d3 = d[i * TILE + 3];
+                            int idx = t + i * TILE * xiStride;
+                            if (f32) {
+                                dstf[idx] = (float) (d0 - d2);
+                                dstf[idx + xiStride] = (float) (d1 + d2);
+                                dstf[idx + 2 * xiStride] = (float) (d2 - d1);
+                                dstf[idx + 3 * xiStride] = (float) (d1 - d3);
+                            } else {
+                                dst[idx] = d0 - d2;
+                                dst[idx + xiStride] = d1 + d2;
+                                dst[idx + 2 * xiStride] = d2 - d1;
+                                dst[idx + 3 * xiStride] = d1 - d3;
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Y = A^T m A を全タイルについて計算し、バイアスを加えて出力に書き込む
+     * 出力の端（高さ・幅が奇数）ではタイルの一部だけを書き込む
+     */
+    private static void outputTransform(DenseTensor m, DenseTensor bias, DenseTensor output) {
+        int batch = output.dim(0);
+        int channels = output.dim(1);
+        int outputHeight = output.dim(2);
+        int outputWidth = output.dim(3);
+        int tilesH = (outputHeight + 1) / OUT;
+        int tilesW = (outputWidth + 1) / OUT;
+        int tilesPerImage = tilesH * tilesW;
+        int tiles = batch * tilesPerImage;
+        int xiStride = channels * tiles;
+        boolean f32 = output.precision() == Precision.FLOAT32;
+        double[] src = f32 ? null : m.data();
+        float[] srcf = f32 ? m.floatData() : null;
+        double[] dst = f32 ? null : output.data();
+        float[] dstf = f32 ? output.floatData() : null;
+        int mOff = m.offset();
+        int outOff = output.offset();
+
+        Matrix.parallelRows(batch * channels, tilesPerImage * AREA, (start, end) -> {
+            double[] s = new double[AREA];
+            for (int plane = start; plane < end; plane++) {
+                int n = plane / channels;
+                int c = plane % channels;
+                double b = bias == null ? 0.0 : bias.getFlat(c);
+                int outBase = outOff + plane * outputHeight * outputWidth;
+                int mBase = mOff + c * tiles + n * tilesPerImage;
+                for (int ty = 0; ty < tilesH; ty++) {
+                    for (int tx = 0; tx < tilesW; tx++) {
+                        int t = mBase + ty * tilesW + tx;
+                        for (int xi = 0; xi < AREA; xi++) {
+                            int idx = t + xi * xiStride;
+                            s[xi] = f32 ? srcf[idx] : src[idx];
+                        }
+
+                        // 行方向 (A^T m) で2x4に
+                        for (int j = 0; j < TILE; j++) {
+                            double m0 = s[j];
+                            double m1 = s[TILE + j];
+                            double m2 = s[2 * TILE + j];
+                            double m3 = s[3 * TILE + j];
+                            s[j] = m0 + m1 + m2;
+                            s[TILE + j] = m1 - m2 - m3;
+                        }
+
+                        int oh = ty * OUT;
+                        int ow = tx * OUT;
+                        for (int i = 0; i < OUT && oh + i < outputHeight; i++) {
+                            // 列方向 (... A) で2x2に
+                            double m0 = s[i * TILE];
+                            double m1 = s[i * TILE + 1];
+                            double m2 = s[i * TILE + 2];
+                            double m3 = s[i * TILE + 3];
+                            double y0 = m0 + m1 + m2 + b;
+                            double y1 = m1 - m2 - m3 + b;
+                            int idx = outBase + (oh + i) * outputWidth + ow;
+                            boolean both = ow + 1 < outputWidth;
+                            if (f32) {
+                                dstf[idx] = (float) y0;
+                                if (both) {
+                                    dstf[idx + 1] = (float) y1;
+                                }
+                            } else {
+                                dst[idx] = y0;
+                                if (both) {
+                                    dst[idx + 1] = y1;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+}
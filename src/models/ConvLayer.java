@@ -1,65 +1,343 @@
 package models;
 
+import alg.Adam;
+import math.ChannelsLast;
+import math.ConvAutotuner;
 import math.ConvolutionOps;
+import math.DenseTensor;
+import math.FFTConvolution;
+import math.FusedConvolution;
+import math.Layout;
+import math.ParallelConvolution;
+import math.Precision;
+import math.Tensor;
+import math.TensorArena;
+import math.Winograd;
+
 import java.util.Random;
 
 class ConvLayer {
-    private final double[][][][] weights;  // [outChannels][inChannels][kernelH][kernelW]
-    private final double[] bias;          // [outChannels]
-    private double[][][][] gradWeights;
-    private double[] gradBias;
+    private DenseTensor weights;  // [outChannels][inChannels][kernelH][kernelW]
+    private DenseTensor bias;     // [outChannels]
+    private DenseTensor gradWeights;
+    private DenseTensor gradBias;
 
     private double learningRate;
     private int inChannels, outChannels, kernelSize, stride, padding;
 
     // Adamオプティマイザー用
-    private double[][][][] mWeights, vWeights;
-    private double[] mBias, vBias;
+    private DenseTensor mWeights, vWeights;
+    private DenseTensor mBias, vBias;
     private int t = 0;
 
     // 逆伝播用のキャッシュ
-    private double[][][] lastInput;
-    private double[][][] lastOutput;
+    private DenseTensor lastInput;
+    private DenseTensor lastOutput;
+    // forwardBatchのim2col行列と並べ替えの作業領域（逆伝播の行列積で使い回す、使ったらnull）
+    private DenseTensor lastColumns, lastProduct;
+
+    // 出力・勾配のバッファを借りるアリーナ（モデルに組み込まれたらモデルと共有）
+    private TensorArena arena = new TensorArena();
+    private boolean ownsArena = true;
+
+    private final Precision precision;
+
+    // 活性化の配置（NHWCなら入出力・勾配は [batch][height][width][channels]）
+    private final Layout layout;
+    private DenseTensor packedWeights;  // NHWC用に並べ替えたカーネル [K][K][inChannels][outChannels]
+    private DenseTensor packedGrad;
+    private boolean packedStale = true; // 重みが変わったら並べ替え直す
+
+    // Winograd F(2x2,3x3)（3x3・ストライド1の層で、変換のコストに見合うチャンネル数があれば使う）
+    private static final int WINOGRAD_MIN_CHANNELS = 4;
+    private final boolean useWinograd;
+    private DenseTensor winogradFilters;          // [16][outChannels][inChannels]
+    private DenseTensor winogradBackwardFilters;  // [16][inChannels][outChannels]
+    private boolean winogradStale = true;         // 重みが変わったら変換し直す
+
+    // FFT（大きなカーネルと入力で使う、カーネルのスペクトルを保持）
+    private FFTConvolution fft;
+
+    // 順伝播のアルゴリズム（入力の形状が変わったときだけオートチューナーに問い合わせる）
+    private ConvAutotuner.Algorithm algorithm;
+    private int tunedBatch, tunedHeight, tunedWidth;
+    private boolean tunedEnabled;
+    // ReLUと最大プーリングが続く場合の選択（FUSEDを含む）
+    private ConvAutotuner.Algorithm pooledAlgorithm;
+    private int pooledTunedBatch, pooledTunedHeight, pooledTunedWidth, pooledTunedSize, pooledTunedStride;
+    private boolean pooledTunedEnabled, pooledTunedTraining;
+    private boolean autotune = true;  // falseならオートチューナーを使わず固定の規則で選ぶ（シードを固定したモデル）
+
+    // 畳み込み+ReLU+プーリングの融合（最大値の位置とReLUのマスク、形状が変わったときだけ確保し直す）
+    private byte[] poolArgmax = new byte[0];
+    private boolean[] poolMask = new boolean[0];
+    private int poolSize, poolStride;
+    private int convHeight, convWidth;
 
     public ConvLayer(int inChannels, int outChannels, int kernelSize,
                      int stride, int padding, double learningRate) {
+        this(inChannels, outChannels, kernelSize, stride, padding, learningRate, Precision.FLOAT64);
+    }
+
+    public ConvLayer(int inChannels, int outChannels, int kernelSize,
+                     int stride, int padding, double learningRate, Precision precision) {
+        this(inChannels, outChannels, kernelSize, stride, padding, learningRate, precision, Layout.NCHW);
+    }
+
+    /**
+     * @param layout 入出力の配置（NHWCなら出力チャンネル方向にSIMD化したカーネルを使い、オートチューナーは通さない）
+     */
+    public ConvLayer(int inChannels, int outChannels, int kernelSize,
+                     int stride, int padding, double learningRate, Precision precision, Layout layout) {
+        this(inChannels, outChannels, kernelSize, stride, padding, learningRate, precision, layout, new Random());
+    }
+
+    /**
+     * @param rand 重みの初期化に使う乱数（シードを固定すれば同じ重みになる）
+     */
+    ConvLayer(int inChannels, int outChannels, int kernelSize, int stride, int padding,
+              double learningRate, Precision precision, Layout layout, Random rand) {
+        this.layout = layout;
         this.inChannels = inChannels;
         this.outChannels = outChannels;
         this.kernelSize = kernelSize;
         this.stride = stride;
         this.padding = padding;
         this.learningRate = learningRate;
+        this.precision = precision;
+        this.useWinograd = Winograd.supports(kernelSize, stride, padding)
+                && inChannels >= WINOGRAD_MIN_CHANNELS && outChannels >= WINOGRAD_MIN_CHANNELS;
 
         // He初期化
         double scale = Math.sqrt(2.0 / (inChannels * kernelSize * kernelSize));
-        Random rand = new Random();
-
-        weights = new double[outChannels][inChannels][kernelSize][kernelSize];
-        bias = new double[outChannels];
-
-        for (int oc = 0; oc < outChannels; oc++) {
-            for (int ic = 0; ic < inChannels; ic++) {
-                for (int kh = 0; kh < kernelSize; kh++) {
-                    for (int kw = 0; kw < kernelSize; kw++) {
-                        weights[oc][ic][kh][kw] = rand.nextGaussian() * scale;
-                    }
-                }
-            }
+
+        weights = DenseTensor.zeros(precision, outChannels, inChannels, kernelSize, kernelSize);
+        bias = DenseTensor.zeros(precision, outChannels);
+
+        for (int i = 0; i < weights.size(); i++) {
+            weights.setFlat(i, rand.nextGaussian() * scale);
         }
 
         // Adamの初期化
-        mWeights = new double[outChannels][inChannels][kernelSize][kernelSize];
-        vWeights = new double[outChannels][inChannels][kernelSize][kernelSize];
-        mBias = new double[outChannels];
-        vBias = new double[outChannels];
+        mWeights = DenseTensor.zeros(precision, outChannels, inChannels, kernelSize, kernelSize);
+        vWeights = DenseTensor.zeros(precision, outChannels, inChannels, kernelSize, kernelSize);
+        mBias = DenseTensor.zeros(precision, outChannels);
+        vBias = DenseTensor.zeros(precision, outChannels);
     }
 
-    public double[][][] forward(double[][][] input) {
-        // 入力をキャッシュ（逆伝播で使用）
+    private ConvLayer(ConvLayer shared) {
+        this.layout = shared.layout;
+        this.inChannels = shared.inChannels;
+        this.outChannels = shared.outChannels;
+        this.kernelSize = shared.kernelSize;
+        this.stride = shared.stride;
+        this.padding = shared.padding;
+        this.learningRate = shared.learningRate;
+        this.precision = shared.precision;
+        this.useWinograd = shared.useWinograd;
+        this.autotune = shared.autotune;
+        this.weights = shared.weights;
+        this.bias = shared.bias;
+    }
+
+    /**
+     * 重みとバイアスを共有する複製（データ並列学習のワーカー用）
+     * 活性化・勾配・変換済みカーネルは別に持ち、Adamの状態は最初のupdateWeightsで作る
+     */
+    ConvLayer replica() {
+        return new ConvLayer(this);
+    }
+
+    /**
+     * 他の層（複製）の勾配をこの層の勾配に足し込む
+     */
+    void addGradients(ConvLayer other) {
+        Tensor.addInPlace(gradWeights, other.gradWeights);
+        Tensor.addInPlace(gradBias, other.gradBias);
+    }
+
+    /**
+     * 重みから作ったカーネル（Winograd・NHWC・FFT）を次の呼び出しで作り直させる
+     * 複製は元の層が重みを更新したあとに呼ばれる
+     */
+    void weightsChanged() {
+        winogradStale = true;
+        packedStale = true;
+        if (fft != null) {
+            fft.invalidate();
+        }
+    }
+
+    /**
+     * この層でオートチューナーを使うか（falseなら計測の結果によらず固定の規則で選び、実行ごとに同じ計算になる）
+     */
+    void setAutotune(boolean on) {
+        this.autotune = on;
+    }
+
+    /**
+     * バッファを借りるアリーナを設定（モデルが1ステップごとにreset()する）
+     */
+    void setArena(TensorArena arena) {
+        this.arena = arena;
+        this.ownsArena = false;
+    }
+
+    /**
+     * 順伝播
+     * 出力はアリーナから借りたバッファで、単独で使う場合は次のforward呼び出しで上書きされる
+     * アルゴリズム（直接・タイル分割・im2col・Winograd・FFT）は形状ごとに{@link ConvAutotuner}が計測して選ぶ
+     * （無効なら3x3・ストライド1の層はWinograd、大きなカーネルと入力はFFT、2枚以上のバッチはim2col、1枚なら直接）
+     * NHWCの層は常に{@link ChannelsLast#convolveInto}で計算する
+     * @param input 入力 [batch][inChannels][height][width]（3次元なら1枚として扱う、NHWCなら[batch][height][width][inChannels]）
+     * @return 出力 [batch][outChannels][outputHeight][outputWidth]（NHWCなら[batch][outputHeight][outputWidth][outChannels]）
+     */
+    public DenseTensor forward(DenseTensor input) {
+        if (input.rank() == 3) {
+            input = input.reshape(1, input.dim(0), input.dim(1), input.dim(2));
+        }
+        if (layout == Layout.NHWC) {
+            return forwardChannelsLast(input);
+        }
+        return convolve(input, algorithmFor(input));
+    }
+
+    /**
+     * 指定したアルゴリズムによる順伝播（NCHW）
+     */
+    private DenseTensor convolve(DenseTensor input, ConvAutotuner.Algorithm algorithm) {
+        switch (algorithm) {
+            case WINOGRAD:
+                return forwardWinograd(input);
+            case FFT:
+                return forwardFFT(input);
+            case IM2COL:
+                // まとめて1回の行列積で計算
+                return forwardBatch(input);
+            case TILED:
+                return forwardTiled(input);
+            default:
+                return forwardDirect(input);
+        }
+    }
+
+    /**
+     * この入力の形状で使うアルゴリズム（形状が同じ間は前回の選択を使う）
+     */
+    private ConvAutotuner.Algorithm algorithmFor(DenseTensor input) {
+        boolean enabled = autotune && ConvAutotuner.isEnabled();
+        if (algorithm == null || tunedEnabled != enabled || tunedBatch != input.dim(0)
+                || tunedHeight != input.dim(2) || tunedWidth != input.dim(3)) {
+            if (enabled) {
+                algorithm = ConvAutotuner.shared().select(input.toPrecision(precision), weights, bias, stride, padding);
+            } else {
+                algorithm = ruleFor(input);
+            }
+            tunedEnabled = enabled;
+            tunedBatch = input.dim(0);
+            tunedHeight = input.dim(2);
+            tunedWidth = input.dim(3);
+        }
+        return algorithm;
+    }
+
+    /**
+     * ReLUと最大プーリングが続く場合に使うアルゴリズム（FUSEDを含む、形状と学習かどうかが同じ間は前回の選択を使う）
+     * オートチューナーが無効なら、Winograd・FFTを選ぶ層以外はFUSED
+     */
+    private ConvAutotuner.Algorithm pooledAlgorithmFor(DenseTensor input, int poolSize, int poolStride,
+                                                       boolean training) {
+        boolean enabled = autotune && ConvAutotuner.isEnabled();
+        if (pooledAlgorithm == null || pooledTunedEnabled != enabled || pooledTunedTraining != training
+                || pooledTunedBatch != input.dim(0) || pooledTunedHeight != input.dim(2)
+                || pooledTunedWidth != input.dim(3) || pooledTunedSize != poolSize || pooledTunedStride != poolStride) {
+            if (enabled) {
+                pooledAlgorithm = ConvAutotuner.shared().selectPooled(input, weights, bias, stride, padding,
+                        poolSize, poolStride, training);
+            } else {
+                ConvAutotuner.Algorithm rule = ruleFor(input);
+                pooledAlgorithm = rule == ConvAutotuner.Algorithm.WINOGRAD || rule == ConvAutotuner.Algorithm.FFT
+                        ? rule : ConvAutotuner.Algorithm.FUSED;
+            }
+            pooledTunedEnabled = enabled;
+            pooledTunedTraining = training;
+            pooledTunedBatch = input.dim(0);
+            pooledTunedHeight = input.dim(2);
+            pooledTunedWidth = input.dim(3);
+            pooledTunedSize = poolSize;
+            pooledTunedStride = poolStride;
+        }
+        return pooledAlgorithm;
+    }
+
+    /**
+     * オートチューナーを使わない場合の固定の規則（Winograd → FFT → im2col → 直接）
+     */
+    private ConvAutotuner.Algorithm ruleFor(DenseTensor input) {
+        if (useWinograd) {
+            return ConvAutotuner.Algorithm.WINOGRAD;
+        } else if (FFTConvolution.prefers(kernelSize, input.dim(2), input.dim(3))) {
+            return ConvAutotuner.Algorithm.FFT;
+        }
+        return input.dim(0) > 1 ? ConvAutotuner.Algorithm.IM2COL : ConvAutotuner.Algorithm.DIRECT;
+    }
+
+    /**
+     * NHWCの順伝播（入力 [batch][height][width][inChannels]、出力 [batch][outputHeight][outputWidth][outChannels]）
+     */
+    private DenseTensor forwardChannelsLast(DenseTensor input) {
+        if (ownsArena) {
+            arena.reset();
+        }
+        input = input.toPrecision(precision);
         this.lastInput = input;
+        this.lastColumns = null;
+
+        refreshPackedWeights();
+        DenseTensor output = arena.allocate(precision, input.dim(0),
+                ConvolutionOps.outputSize(input.dim(1), kernelSize, stride, padding),
+                ConvolutionOps.outputSize(input.dim(2), kernelSize, stride, padding), outChannels);
+        ChannelsLast.convolveInto(input, packedWeights, bias, stride, padding, output);
+
+        this.lastOutput = output;
+        return output;
+    }
 
-        // 畳み込み演算
-        double[][][] output = ConvolutionOps.convolve3D(input, weights, bias, stride, padding);
+    /**
+     * NHWC用のカーネルを必要なら並べ替え直す（updateWeightsの後の最初の呼び出しだけ）
+     */
+    private void refreshPackedWeights() {
+        if (!packedStale) {
+            return;
+        }
+        if (packedWeights == null) {
+            packedWeights = DenseTensor.zeros(precision, kernelSize, kernelSize, inChannels, outChannels);
+            packedGrad = DenseTensor.zeros(precision, kernelSize, kernelSize, inChannels, outChannels);
+        }
+        ChannelsLast.packKernelsInto(weights, packedWeights);
+        packedStale = false;
+    }
+
+    /**
+     * パディングしない直接畳み込みによる順伝播（境界は内側と外側に分けたループで処理）
+     */
+    private DenseTensor forwardDirect(DenseTensor input) {
+        if (ownsArena) {
+            arena.reset();
+        }
+        input = input.toPrecision(precision);
+        int batch = input.dim(0);
+        int inputHeight = input.dim(2);
+        int inputWidth = input.dim(3);
+
+        // 入力をキャッシュ（逆伝播で使用、パディングは逆伝播で必要になったときに作る）
+        this.lastInput = input;
+        this.lastColumns = null;
+
+        DenseTensor output = arena.allocate(precision, batch, outChannels,
+                ConvolutionOps.outputSize(inputHeight, kernelSize, stride, padding),
+                ConvolutionOps.outputSize(inputWidth, kernelSize, stride, padding));
+        ConvolutionOps.convolveDirectInto(input, weights, bias, stride, padding, output);
 
         // 出力をキャッシュ
         this.lastOutput = output;
@@ -67,154 +345,334 @@ class ConvLayer {
         return output;
     }
 
+    /**
+     * タイル分割の並列畳み込みによる順伝播（パディングは1回だけ）
+     */
+    private DenseTensor forwardTiled(DenseTensor input) {
+        if (ownsArena) {
+            arena.reset();
+        }
+        input = input.toPrecision(precision);
+        this.lastInput = input;
+        this.lastColumns = null;
+
+        DenseTensor padded;
+        if (padding == 0) {
+            padded = input.contiguous();
+        } else {
+            padded = arena.allocateZeroed(precision, input.dim(0), inChannels,
+                    input.dim(2) + 2 * padding, input.dim(3) + 2 * padding);
+            ConvolutionOps.padInto(input, padding, padded);
+        }
+        DenseTensor output = arena.allocate(precision, input.dim(0), outChannels,
+                ConvolutionOps.outputSize(input.dim(2), kernelSize, stride, padding),
+                ConvolutionOps.outputSize(input.dim(3), kernelSize, stride, padding));
+        ParallelConvolution.convolveTiledInto(padded, weights, bias, stride, output);
+
+        this.lastOutput = output;
+        return output;
+    }
+
+    /**
+     * バッチ全体を1回の行列積で計算する順伝播（im2col）
+     * N枚分のim2col行列をまとめて作るため、バッチが大きいほどGEMMのパッキングと並列化が効く
+     * 出力と逆伝播用のキャッシュはforwardと同じ
+     * @param input 入力 [batch][inChannels][height][width]（3次元なら1枚として扱う）
+     * @return 出力 [batch][outChannels][outputHeight][outputWidth]
+     */
+    public DenseTensor forwardBatch(DenseTensor input) {
+        if (input.rank() == 3) {
+            input = input.reshape(1, input.dim(0), input.dim(1), input.dim(2));
+        }
+        if (ownsArena) {
+            arena.reset();
+        }
+        input = input.toPrecision(precision);
+        int batch = input.dim(0);
+        int outputHeight = ConvolutionOps.outputSize(input.dim(2), kernelSize, stride, padding);
+        int outputWidth = ConvolutionOps.outputSize(input.dim(3), kernelSize, stride, padding);
+
+        // パディングはim2colの中で扱い、im2col行列は逆伝播の行列積で使い回す
+        this.lastInput = input;
+        this.lastColumns = null;
+
+        DenseTensor col = arena.allocate(precision,
+                ParallelConvolution.im2colBatchShape(input, kernelSize, kernelSize, stride, padding));
+        DenseTensor product = batch == 1 ? null
+                : arena.allocate(precision, outChannels, batch * outputHeight * outputWidth);
+        DenseTensor output = arena.allocate(precision, batch, outChannels, outputHeight, outputWidth);
+        ParallelConvolution.convolveBatchIm2colInto(input, weights, bias, stride, padding, col, product, output);
+        this.lastColumns = col;
+        this.lastProduct = product;
+
+        this.lastOutput = output;
+        return output;
+    }
+
+    /**
+     * Winograd F(2x2,3x3)による順伝播
+     */
+    private DenseTensor forwardWinograd(DenseTensor input) {
+        if (ownsArena) {
+            arena.reset();
+        }
+        input = input.toPrecision(precision);
+        int batch = input.dim(0);
+        int outputHeight = ConvolutionOps.outputSize(input.dim(2), kernelSize, stride, padding);
+        int outputWidth = ConvolutionOps.outputSize(input.dim(3), kernelSize, stride, padding);
+        int tiles = Winograd.tiles(batch, outputHeight, outputWidth);
+
+        this.lastInput = input;
+        this.lastColumns = null;
+
+        refreshWinogradFilters();
+        DenseTensor output = arena.allocate(precision, batch, outChannels, outputHeight, outputWidth);
+        Winograd.convolveInto(input, winogradFilters, bias, padding,
+                arena.allocate(precision, 16, inChannels, tiles),
+                arena.allocate(precision, 16, outChannels, tiles), output);
+
+        this.lastOutput = output;
+        return output;
+    }
+
+    /**
+     * FFTによる順伝播（カーネルの面積 × 入力の面積が閾値以上のとき）
+     */
+    private DenseTensor forwardFFT(DenseTensor input) {
+        if (ownsArena) {
+            arena.reset();
+        }
+        input = input.toPrecision(precision);
+        if (fft == null) {
+            fft = new FFTConvolution(kernelSize, stride, padding);
+        }
+
+        this.lastInput = input;
+        this.lastColumns = null;
+
+        DenseTensor output = arena.allocate(precision, input.dim(0), outChannels,
+                ConvolutionOps.outputSize(input.dim(2), kernelSize, stride, padding),
+                ConvolutionOps.outputSize(input.dim(3), kernelSize, stride, padding));
+        fft.convolveInto(input, weights, bias, output);
+
+        this.lastOutput = output;
+        return output;
+    }
+
+    /**
+     * 順伝播（畳み込み → ReLU → 最大プーリングを融合）
+     * 学習時は最大値の位置とReLUのマスクを記録し、{@link #backwardReluPool}で使う
+     * アルゴリズムは{@link ConvAutotuner#selectPooled}がReLUとプーリングまでの時間で選ぶ
+     * FUSEDならプーリング前の活性化を確保せずに帯ごとに計算し（学習時はim2col行列を残し、逆伝播を行列積で計算する）、
+     * それ以外は選んだアルゴリズムで畳み込みの出力を作ってからReLUとプーリングを1回で行う
+     * NHWCの層は畳み込みの出力を作ってから{@link ChannelsLast#reluMaxPoolInto}でReLUとプーリングを行う
+     * @param input 入力 [batch][inChannels][height][width]（3次元なら1枚として扱う、NHWCなら[batch][height][width][inChannels]）
+     * @param training trueなら逆伝播用に記録する
+     * @return プーリング後の出力 [batch][outChannels][pooledHeight][pooledWidth]（NHWCなら[batch][pooledHeight][pooledWidth][outChannels]）
+     */
+    public DenseTensor forwardReluPool(DenseTensor input, int poolSize, int poolStride, boolean training) {
+        if (input.rank() == 3) {
+            input = input.reshape(1, input.dim(0), input.dim(1), input.dim(2));
+        }
+        input = input.toPrecision(precision);
+        int batch = input.dim(0);
+        boolean channelsLast = layout == Layout.NHWC;
+        this.poolSize = poolSize;
+        this.poolStride = poolStride;
+        this.convHeight = ConvolutionOps.outputSize(input.dim(channelsLast ? 1 : 2), kernelSize, stride, padding);
+        this.convWidth = ConvolutionOps.outputSize(input.dim(channelsLast ? 2 : 3), kernelSize, stride, padding);
+        int pooledHeight = (convHeight - poolSize) / poolStride + 1;
+        int pooledWidth = (convWidth - poolSize) / poolStride + 1;
+
+        int pooled = batch * outChannels * pooledHeight * pooledWidth;
+        if (training && poolArgmax.length != pooled) {
+            poolArgmax = new byte[pooled];
+            poolMask = new boolean[pooled];
+        }
+        byte[] argmax = training ? poolArgmax : null;
+        boolean[] mask = training ? poolMask : null;
+
+        if (channelsLast) {
+            DenseTensor conv = forwardChannelsLast(input);
+            DenseTensor output = arena.allocate(precision, batch, pooledHeight, pooledWidth, outChannels);
+            ChannelsLast.reluMaxPoolInto(conv, poolSize, poolStride, argmax, mask, output);
+            return output;
+        }
+
+        ConvAutotuner.Algorithm algorithm = pooledAlgorithmFor(input, poolSize, poolStride, training);
+        if (algorithm != ConvAutotuner.Algorithm.FUSED) {
+            DenseTensor conv = convolve(input, algorithm);
+            DenseTensor output = arena.allocate(precision, batch, outChannels, pooledHeight, pooledWidth);
+            FusedConvolution.reluMaxPoolInto(conv, poolSize, poolStride, argmax, mask, output);
+            return output;
+        }
+
+        if (ownsArena) {
+            arena.reset();
+        }
+        this.lastInput = input;
+        this.lastOutput = null;
+        // 学習時はim2col行列を残し、逆伝播を行列積で計算する
+        DenseTensor col = null;
+        this.lastProduct = null;
+        if (training) {
+            col = arena.allocate(precision,
+                    ParallelConvolution.im2colBatchShape(input, kernelSize, kernelSize, stride, padding));
+            if (batch > 1) {
+                this.lastProduct = arena.allocate(precision, outChannels, batch * convHeight * convWidth);
+            }
+        }
+        this.lastColumns = col;
+        DenseTensor output = arena.allocate(precision, batch, outChannels, pooledHeight, pooledWidth);
+        FusedConvolution.convReluMaxPoolInto(input, weights, bias, stride, padding, poolSize, poolStride,
+                argmax, mask, col, output);
+        return output;
+    }
+
+    /**
+     * {@link #forwardReluPool}の逆伝播
+     * 記録した最大値の位置とReLUのマスクから畳み込みの出力の勾配を作り、{@link #backward}に渡す
+     * @param gradOutput プーリング後の出力に対する勾配 [batch][outChannels][pooledHeight][pooledWidth]
+     * @return 入力に対する勾配 [batch][inChannels][height][width]
+     */
+    public DenseTensor backwardReluPool(DenseTensor gradOutput) {
+        if (layout == Layout.NHWC) {
+            DenseTensor gradConv = arena.allocate(precision, gradOutput.dim(0), convHeight, convWidth, outChannels);
+            ChannelsLast.reluMaxPoolBackwardInto(gradOutput, poolArgmax, poolMask, poolSize, poolStride, gradConv);
+            return backward(gradConv, lastInput);
+        }
+        DenseTensor gradConv = arena.allocate(precision, gradOutput.dim(0), outChannels, convHeight, convWidth);
+        FusedConvolution.reluMaxPoolBackwardInto(gradOutput, poolArgmax, poolMask, poolSize, poolStride, gradConv);
+        return backward(gradConv, lastInput);
+    }
+
+    /**
+     * 変換済みカーネルを必要なら作り直す（updateWeightsの後の最初の呼び出しだけ）
+     */
+    private void refreshWinogradFilters() {
+        if (!winogradStale) {
+            return;
+        }
+        if (winogradFilters == null) {
+            winogradFilters = DenseTensor.zeros(precision, 16, outChannels, inChannels);
+            winogradBackwardFilters = DenseTensor.zeros(precision, 16, inChannels, outChannels);
+        }
+        Winograd.transformFiltersInto(weights, false, winogradFilters);
+        Winograd.transformFiltersInto(weights, true, winogradBackwardFilters);
+        winogradStale = false;
+    }
+
+    public double[][][] forward(double[][][] input) {
+        return forward(DenseTensor.fromArray(input)).slice(0).toArray3D();
+    }
+
     /**
      * 完全な逆伝播実装
-     * @param gradOutput 出力に対する勾配
+     * 返す入力勾配と重みの勾配はアリーナから借りたバッファ
+     * @param gradOutput 出力に対する勾配 [batch][outChannels][outputHeight][outputWidth]
      * @param input 順伝播時の入力（キャッシュから取得）
-     * @return 入力に対する勾配
+     * @return 入力に対する勾配 [batch][inChannels][height][width]
      */
-    public double[][][] backward(double[][][] gradOutput, double[][][] input) {
+    public DenseTensor backward(DenseTensor gradOutput, DenseTensor input) {
         // 使用する入力（キャッシュがあればそれを使用）
         if (lastInput != null) {
             input = lastInput;
         }
-
-        // 勾配の初期化
-        gradWeights = new double[outChannels][inChannels][kernelSize][kernelSize];
-        gradBias = new double[outChannels];
-
-        // パディングされた入力を準備
-        double[][][] paddedInput = new double[inChannels][][];
-        for (int ic = 0; ic < inChannels; ic++) {
-            paddedInput[ic] = ConvolutionOps.applyPadding(input[ic], padding);
+        if (input.rank() == 3) {
+            input = input.reshape(1, input.dim(0), input.dim(1), input.dim(2));
+        }
+        if (gradOutput.rank() == 3) {
+            gradOutput = gradOutput.reshape(1, gradOutput.dim(0), gradOutput.dim(1), gradOutput.dim(2));
+        }
+        input = input.toPrecision(precision);
+        DenseTensor grad = gradOutput.toPrecision(precision).contiguous();
+        if (layout == Layout.NHWC) {
+            return backwardChannelsLast(grad, input);
         }
-
-        // 出力サイズ
-        int outputHeight = gradOutput[0].length;
-        int outputWidth = gradOutput[0][0].length;
 
         // 1. バイアスの勾配を計算（出力勾配の総和）
-        for (int oc = 0; oc < outChannels; oc++) {
-            double sum = 0;
-            for (int oh = 0; oh < outputHeight; oh++) {
-                for (int ow = 0; ow < outputWidth; ow++) {
-                    sum += gradOutput[oc][oh][ow];
-                }
-            }
-            gradBias[oc] = sum;
+        gradBias = arena.allocate(precision, outChannels);
+        ConvolutionOps.convolveBackwardBiasInto(grad, gradBias);
+
+        gradWeights = arena.allocate(precision, outChannels, inChannels, kernelSize, kernelSize);
+        DenseTensor gradInput = arena.allocate(precision, input.shape());
+        if (lastColumns != null) {
+            // 順伝播がim2colなら、その行列を使って重みと入力の勾配を行列積で計算
+            // (gradW = gradOut × colᵀ, gradInput = col2im(Wᵀ × gradOut))
+            ParallelConvolution.convolveBatchIm2colBackwardInto(grad, weights, stride, padding,
+                    lastColumns, lastProduct, gradWeights, gradInput);
+            // colは入力の勾配の計算で上書きされたので、もう使えない
+            lastColumns = null;
+            return gradInput;
         }
 
         // 2. 重みの勾配を計算
         // dL/dW = input * gradOutput （相関演算）
-        for (int oc = 0; oc < outChannels; oc++) {
-            for (int ic = 0; ic < inChannels; ic++) {
-                for (int kh = 0; kh < kernelSize; kh++) {
-                    for (int kw = 0; kw < kernelSize; kw++) {
-                        double sum = 0;
-
-                        // 出力の各位置について
-                        for (int oh = 0; oh < outputHeight; oh++) {
-                            for (int ow = 0; ow < outputWidth; ow++) {
-                                // 対応する入力位置
-                                int ih = oh * stride + kh;
-                                int iw = ow * stride + kw;
-
-                                sum += gradOutput[oc][oh][ow] * paddedInput[ic][ih][iw];
-                            }
-                        }
-
-                        gradWeights[oc][ic][kh][kw] = sum;
-                    }
-                }
-            }
+        DenseTensor paddedInput;
+        if (padding == 0) {
+            paddedInput = input.contiguous();
+        } else {
+            paddedInput = arena.allocateZeroed(precision, input.dim(0), inChannels,
+                    input.dim(2) + 2 * padding, input.dim(3) + 2 * padding);
+            ConvolutionOps.padInto(input, padding, paddedInput);
         }
+        ConvolutionOps.convolveBackwardKernelsInto(paddedInput, grad, stride, gradWeights);
 
         // 3. 入力に対する勾配を計算（転置畳み込み）
-        // パディングを考慮した入力サイズ
-        int paddedHeight = input[0].length + 2 * padding;
-        int paddedWidth = input[0][0].length + 2 * padding;
-
-        // パディングされた勾配入力を初期化
-        double[][][] paddedGradInput = new double[inChannels][paddedHeight][paddedWidth];
-
-        // 各入力チャンネルについて
-        for (int ic = 0; ic < inChannels; ic++) {
-            // 各出力チャンネルからの寄与を累積
-            for (int oc = 0; oc < outChannels; oc++) {
-                // 出力の各位置について
-                for (int oh = 0; oh < outputHeight; oh++) {
-                    for (int ow = 0; ow < outputWidth; ow++) {
-                        double grad = gradOutput[oc][oh][ow];
-
-                        // カーネルの各位置について
-                        for (int kh = 0; kh < kernelSize; kh++) {
-                            for (int kw = 0; kw < kernelSize; kw++) {
-                                // 対応する入力位置
-                                int ih = oh * stride + kh;
-                                int iw = ow * stride + kw;
-
-                                // 勾配を伝播（重みを掛けて累積）
-                                paddedGradInput[ic][ih][iw] += grad * weights[oc][ic][kh][kw];
-                            }
-                        }
-                    }
-                }
-            }
+        if (useWinograd) {
+            // ストライド1なので回転したカーネルとのWinograd畳み込みになる
+            refreshWinogradFilters();
+            int tiles = Winograd.tiles(input.dim(0), input.dim(2), input.dim(3));
+            Winograd.backwardInputInto(grad, winogradBackwardFilters, padding,
+                    arena.allocate(precision, 16, outChannels, tiles),
+                    arena.allocate(precision, 16, inChannels, tiles), gradInput);
+        } else {
+            ConvolutionOps.convolveBackwardInputInto(grad, weights, stride, padding, gradInput);
         }
+        return gradInput;
+    }
 
-        // パディングを除去して最終的な入力勾配を作成
-        double[][][] gradInput = new double[inChannels][input[0].length][input[0][0].length];
-        for (int ic = 0; ic < inChannels; ic++) {
-            for (int h = 0; h < input[0].length; h++) {
-                for (int w = 0; w < input[0][0].length; w++) {
-                    gradInput[ic][h][w] = paddedGradInput[ic][h + padding][w + padding];
-                }
-            }
-        }
+    /**
+     * NHWCの逆伝播（カーネルの勾配は並べ替えた配置で計算してから元の配置に戻す）
+     */
+    private DenseTensor backwardChannelsLast(DenseTensor grad, DenseTensor input) {
+        gradBias = arena.allocate(precision, outChannels);
+        ChannelsLast.convolveBackwardBiasInto(grad, gradBias);
 
+        refreshPackedWeights();
+        ChannelsLast.convolveBackwardKernelsInto(input, grad, stride, padding, packedGrad);
+        gradWeights = arena.allocate(precision, outChannels, inChannels, kernelSize, kernelSize);
+        ChannelsLast.unpackKernelsInto(packedGrad, gradWeights);
+
+        DenseTensor gradInput = arena.allocate(precision, input.shape());
+        ChannelsLast.convolveBackwardInputInto(grad, packedWeights, stride, padding, gradInput);
         return gradInput;
     }
 
+    public double[][][] backward(double[][][] gradOutput, double[][][] input) {
+        return backward(DenseTensor.fromArray(gradOutput), DenseTensor.fromArray(input))
+                .slice(0).toArray3D();
+    }
+
     /**
      * Adamによる重み更新
      */
     public void updateWeights() {
-        t++;
-        double beta1 = 0.9, beta2 = 0.999, epsilon = 1e-8;
-
-        // 重みの更新
-        for (int oc = 0; oc < outChannels; oc++) {
-            // バイアスの更新
-            mBias[oc] = beta1 * mBias[oc] + (1 - beta1) * gradBias[oc];
-            vBias[oc] = beta2 * vBias[oc] + (1 - beta2) * gradBias[oc] * gradBias[oc];
-            double mHat = mBias[oc] / (1 - Math.pow(beta1, t));
-            double vHat = vBias[oc] / (1 - Math.pow(beta2, t));
-            bias[oc] -= learningRate * mHat / (Math.sqrt(vHat) + epsilon);
-
-            // カーネル重みの更新
-            for (int ic = 0; ic < inChannels; ic++) {
-                for (int kh = 0; kh < kernelSize; kh++) {
-                    for (int kw = 0; kw < kernelSize; kw++) {
-                        double grad = gradWeights[oc][ic][kh][kw];
-
-                        // モーメントの更新
-                        mWeights[oc][ic][kh][kw] = beta1 * mWeights[oc][ic][kh][kw] + (1 - beta1) * grad;
-                        vWeights[oc][ic][kh][kw] = beta2 * vWeights[oc][ic][kh][kw] + (1 - beta2) * grad * grad;
-
-                        // バイアス補正
-                        mHat = mWeights[oc][ic][kh][kw] / (1 - Math.pow(beta1, t));
-                        vHat = vWeights[oc][ic][kh][kw] / (1 - Math.pow(beta2, t));
-
-                        // 重みの更新
-                        weights[oc][ic][kh][kw] -= learningRate * mHat / (Math.sqrt(vHat) + epsilon);
-                    }
-                }
-            }
+        if (mWeights == null) {
+            // 複製は最初の更新で自分のAdamの状態を作る
+            mWeights = DenseTensor.zeros(precision, weights.shape());
+            vWeights = DenseTensor.zeros(precision, weights.shape());
+            mBias = DenseTensor.zeros(precision, bias.shape());
+            vBias = DenseTensor.zeros(precision, bias.shape());
         }
+        t++;
+
+        // バイアスとカーネル重みの更新
+        Adam.step(bias, gradBias, mBias, vBias, learningRate, t);
+        Adam.step(weights, gradWeights, mWeights, vWeights, learningRate, t);
+        weightsChanged();
 
-        // 勾配のクリア
-        gradWeights = null;
-        gradBias = null;
+        // 勾配バッファはアリーナのreset()後に再利用される
     }
 
     public void setLearningRate(double lr) {
@@ -222,6 +680,8 @@ class ConvLayer {
     }
 
     // ゲッター（デバッグ用）
-    public double[][][][] getWeights() { return weights; }
-    public double[] getBias() { return bias; }
-}
\ No newline at end of file
+    public DenseTensor getWeights() { return weights; }
+    public DenseTensor getBias() { return bias; }
+    public Precision getPrecision() { return precision; }
+    public Layout getLayout() { return layout; }
+}
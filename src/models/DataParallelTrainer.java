@@ -0,0 +1,180 @@
+package models;
+
+import math.DenseTensor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * データ並列の学習
+ * ミニバッチをワーカー数に分け、各ワーカーは重みを共有する{@link ImprovedCNN}の複製で順伝播と逆伝播を行う
+ * （活性化・勾配・アリーナはワーカーごと）。勾配は木構造で元のモデルに足し込み、Adamの更新は1回だけ行う
+ * ワーカー0は元のモデルそのもので、呼び出したスレッドで計算する
+ * 分け方と足し込む順番は固定なので、シードを固定したモデル（{@link ImprovedCNN#ImprovedCNN(double, math.Precision, boolean, math.Layout, long)}）
+ * と同じシード・同じワーカー数なら結果は毎回同じになる（複製も元のモデルと同じ固定の規則でアルゴリズムを選ぶ）
+ */
+public final class DataParallelTrainer implements AutoCloseable {
+
+    private final ImprovedCNN model;
+    private final ImprovedCNN[] workers;  // [0]は元のモデル
+    private final ExecutorService executor;
+
+    // trainBatch(double[][][][], int[])の入力のバッファ
+    private DenseTensor batchInput;
+
+    /**
+     * @param model 学習するモデル（重みの更新はこのモデルで行う）
+     * @param workers ワーカー数（1なら{@link ImprovedCNN#trainBatch}と同じ）
+     * @param seed 複製のDropoutに使う乱数のシード（ワーカーiはseed + i）
+     */
+    public DataParallelTrainer(ImprovedCNN model, int workers, long seed) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Worker count must be positive: " + workers);
+        }
+        this.model = model;
+        this.workers = new ImprovedCNN[workers];
+        this.workers[0] = model;
+        for (int i = 1; i < workers; i++) {
+            this.workers[i] = model.replica(seed + i);
+        }
+        this.executor = workers == 1 ? null : Executors.newFixedThreadPool(workers - 1, r -> {
+            Thread thread = new Thread(r);
+            thread.setName("CNN-Worker-Thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * ワーカー数
+     */
+    public int getWorkers() {
+        return workers.length;
+    }
+
+    /**
+     * ミニバッチ学習
+     * @param images 入力画像 [batch][channels][height][width]
+     * @param labels 正解クラス [batch]
+     * @return バッチの平均損失
+     */
+    public double trainBatch(double[][][][] images, int[] labels) {
+        batchInput = DenseTensor.reuse(batchInput, model.getPrecision(),
+                images.length, images[0].length, images[0][0].length, images[0][0][0].length);
+        int idx = 0;
+        for (double[][][] image : images) {
+            for (double[][] channel : image) {
+                for (double[] row : channel) {
+                    for (double v : row) {
+                        batchInput.setFlat(idx++, v);
+                    }
+                }
+            }
+        }
+        return trainBatch(batchInput, labels);
+    }
+
+    /**
+     * ミニバッチ学習（DenseTensor版）
+     * バッチを先頭から連続した部分バッチに分け、ワーカーiがi番目を担当する（枚数がワーカー数より少なければ一部のワーカーだけ使う）
+     * @param images 入力画像 [batch][channels][height][width]（連続メモリ）
+     * @param labels 正解クラス [batch]
+     * @return バッチの平均損失
+     */
+    public double trainBatch(DenseTensor images, int[] labels) {
+        int batch = images.dim(0);
+        if (labels.length != batch) {
+            throw new IllegalArgumentException("Expected " + batch + " labels but got " + labels.length);
+        }
+        // 元のモデルのアリーナを使う間は、他のスレッドからの予測を待たせる
+        synchronized (model) {
+            int active = Math.min(workers.length, batch);
+            if (active == 1) {
+                return model.trainBatch(images, labels);
+            }
+
+            // 順伝播と逆伝播（ワーカー0は呼び出したスレッドで計算）
+            List<Callable<Double>> tasks = new ArrayList<>(active - 1);
+            for (int w = 1; w < active; w++) {
+                int worker = w;
+                tasks.add(() -> backpropagate(worker, active, images, labels));
+            }
+            List<Future<Double>> results = submit(tasks);
+            double loss = backpropagate(0, active, images, labels);
+            for (Future<Double> result : results) {
+                loss += await(result);
+            }
+
+            // 勾配の木構造の足し込み（幅1, 2, 4, ...の組を段ごとに並列に足す、順番は固定）
+            for (int width = 1; width < active; width *= 2) {
+                List<Future<?>> pending = new ArrayList<>();
+                for (int w = 2 * width; w + width < active; w += 2 * width) {
+                    ImprovedCNN target = workers[w];
+                    ImprovedCNN source = workers[w + width];
+                    pending.add(executor.submit(() -> target.addGradients(source)));
+                }
+                // 最初の組は呼び出したスレッドで足す
+                workers[0].addGradients(workers[width]);
+                for (Future<?> sum : pending) {
+                    await(sum);
+                }
+            }
+
+            // 1回だけ更新し、複製の変換済みカーネルを作り直させる
+            model.applyGradients();
+            for (int w = 1; w < workers.length; w++) {
+                workers[w].weightsChanged();
+            }
+            return loss / batch;
+        }
+    }
+
+    /**
+     * ワーカーwの担当範囲で順伝播と逆伝播を行う
+     * @return 担当範囲の損失の合計
+     */
+    private double backpropagate(int w, int active, DenseTensor images, int[] labels) {
+        int batch = images.dim(0);
+        int start = (int) ((long) batch * w / active);
+        int end = (int) ((long) batch * (w + 1) / active);
+        return workers[w].backpropagate(images.narrow(0, start, end - start), labels, start, batch);
+    }
+
+    private List<Future<Double>> submit(List<Callable<Double>> tasks) {
+        List<Future<Double>> futures = new ArrayList<>(tasks.size());
+        for (Callable<Double> task : tasks) {
+            futures.add(executor.submit(task));
+        }
+        return futures;
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a worker", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Worker failed", cause);
+        }
+    }
+
+    /**
+     * ワーカーのスレッドを止める
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package models;
+
+import alg.Adam;
+import math.ConvolutionOps;
+import math.DenseTensor;
+import math.Precision;
+import math.Tensor;
+import math.TensorArena;
+
+import java.util.Random;
+
+/**
+ * Depthwise畳み込み層（チャンネルごとに独立した K×K の畳み込み、入出力のチャンネル数は同じ）
+ * 1x1の{@link PointwiseConvLayer}と組み合わせると、通常の畳み込みの積和回数を約 1/K² + 1/outChannels にできる
+ */
+class DepthwiseConvLayer {
+    private DenseTensor weights;  // [channels][1][kernelH][kernelW]
+    private DenseTensor bias;     // [channels]
+    private DenseTensor gradWeights;
+    private DenseTensor gradBias;
+
+    private double learningRate;
+    private final int channels, kernelSize, stride, padding;
+
+    // Adamオプティマイザー用
+    private DenseTensor mWeights, vWeights;
+    private DenseTensor mBias, vBias;
+    private int t = 0;
+
+    // 逆伝播用のキャッシュ
+    private DenseTensor lastInput;
+
+    // 出力・勾配のバッファを借りるアリーナ（モデルに組み込まれたらモデルと共有）
+    private TensorArena arena = new TensorArena();
+    private boolean ownsArena = true;
+
+    private final Precision precision;
+
+    public DepthwiseConvLayer(int channels, int kernelSize, int stride, int padding, double learningRate) {
+        this(channels, kernelSize, stride, padding, learningRate, Precision.FLOAT64);
+    }
+
+    public DepthwiseConvLayer(int channels, int kernelSize, int stride, int padding,
+                              double learningRate, Precision precision) {
+        this(channels, kernelSize, stride, padding, learningRate, precision, new Random());
+    }
+
+    /**
+     * @param rand 重みの初期化に使う乱数（シードを固定すれば同じ重みになる）
+     */
+    DepthwiseConvLayer(int channels, int kernelSize, int stride, int padding,
+                       double learningRate, Precision precision, Random rand) {
+        this.channels = channels;
+        this.kernelSize = kernelSize;
+        this.stride = stride;
+        this.padding = padding;
+        this.learningRate = learningRate;
+        this.precision = precision;
+
+        // He初期化（1チャンネル分のカーネルが入力）
+        double scale = Math.sqrt(2.0 / (kernelSize * kernelSize));
+
+        weights = DenseTensor.zeros(precision, channels, 1, kernelSize, kernelSize);
+        bias = DenseTensor.zeros(precision, channels);
+
+        for (int i = 0; i < weights.size(); i++) {
+            weights.setFlat(i, rand.nextGaussian() * scale);
+        }
+
+        // Adamの初期化
+        mWeights = DenseTensor.zeros(precision, channels, 1, kernelSize, kernelSize);
+        vWeights = DenseTensor.zeros(precision, channels, 1, kernelSize, kernelSize);
+        mBias = DenseTensor.zeros(precision, channels);
+        vBias = DenseTensor.zeros(precision, channels);
+    }
+
+    private DepthwiseConvLayer(DepthwiseConvLayer shared) {
+        this.channels = shared.channels;
+        this.kernelSize = shared.kernelSize;
+        this.stride = shared.stride;
+        this.padding = shared.padding;
+        this.learningRate = shared.learningRate;
+        this.precision = shared.precision;
+        this.weights = shared.weights;
+        this.bias = shared.bias;
+    }
+
+    /**
+     * 重みとバイアスを共有する複製（データ並列学習のワーカー用）
+     * 活性化と勾配は別に持ち、Adamの状態は最初のupdateWeightsで作る
+     */
+    DepthwiseConvLayer replica() {
+        return new DepthwiseConvLayer(this);
+    }
+
+    /**
+     * 他の層（複製）の勾配をこの層の勾配に足し込む
+     */
+    void addGradients(DepthwiseConvLayer other) {
+        Tensor.addInPlace(gradWeights, other.gradWeights);
+        Tensor.addInPlace(gradBias, other.gradBias);
+    }
+
+    /**
+     * バッファを借りるアリーナを設定（モデルが1ステップごとにreset()する）
+     */
+    void setArena(TensorArena arena) {
+        this.arena = arena;
+        this.ownsArena = false;
+    }
+
+    /**
+     * 順伝播
+     * 出力はアリーナから借りたバッファで、単独で使う場合は次のforward呼び出しで上書きされる
+     * @param input 入力 [batch][channels][height][width]（3次元なら1枚として扱う）
+     * @return 出力 [batch][channels][outputHeight][outputWidth]
+     */
+    public DenseTensor forward(DenseTensor input) {
+        if (input.rank() == 3) {
+            input = input.reshape(1, input.dim(0), input.dim(1), input.dim(2));
+        }
+        if (ownsArena) {
+            arena.reset();
+        }
+        input = input.toPrecision(precision);
+        this.lastInput = input;
+
+        DenseTensor output = arena.allocate(precision, input.dim(0), channels,
+                ConvolutionOps.outputSize(input.dim(2), kernelSize, stride, padding),
+                ConvolutionOps.outputSize(input.dim(3), kernelSize, stride, padding));
+        ConvolutionOps.convolveDepthwiseInto(input, weights, bias, stride, padding, output);
+        return output;
+    }
+
+    /**
+     * 逆伝播
+     * 返す入力勾配と重みの勾配はアリーナから借りたバッファ
+     * @param gradOutput 出力に対する勾配 [batch][channels][outputHeight][outputWidth]
+     * @param input 順伝播時の入力（キャッシュがあればそちらを使う）
+     * @return 入力に対する勾配 [batch][channels][height][width]
+     */
+    public DenseTensor backward(DenseTensor gradOutput, DenseTensor input) {
+        if (lastInput != null) {
+            input = lastInput;
+        }
+        if (input.rank() == 3) {
+            input = input.reshape(1, input.dim(0), input.dim(1), input.dim(2));
+        }
+        if (gradOutput.rank() == 3) {
+            gradOutput = gradOutput.reshape(1, gradOutput.dim(0), gradOutput.dim(1), gradOutput.dim(2));
+        }
+        input = input.toPrecision(precision);
+        DenseTensor grad = gradOutput.toPrecision(precision).contiguous();
+
+        gradBias = arena.allocate(precision, channels);
+        ConvolutionOps.convolveBackwardBiasInto(grad, gradBias);
+
+        gradWeights = arena.allocate(precision, channels, 1, kernelSize, kernelSize);
+        ConvolutionOps.convolveDepthwiseBackwardKernelsInto(input, grad, stride, padding, gradWeights);
+
+        DenseTensor gradInput = arena.allocate(precision, input.shape());
+        ConvolutionOps.convolveDepthwiseBackwardInputInto(grad, weights, stride, padding, gradInput);
+        return gradInput;
+    }
+
+    /**
+     * Adamによる重み更新
+     */
+    public void updateWeights() {
+        if (mWeights == null) {
+            // 複製は最初の更新で自分のAdamの状態を作る
+            mWeights = DenseTensor.zeros(precision, weights.shape());
+            vWeights = DenseTensor.zeros(precision, weights.shape());
+            mBias = DenseTensor.zeros(precision, bias.shape());
+            vBias = DenseTensor.zeros(precision, bias.shape());
+        }
+        t++;
+        Adam.step(bias, gradBias, mBias, vBias, learningRate, t);
+        Adam.step(weights, gradWeights, mWeights, vWeights, learningRate, t);
+    }
+
+    public void setLearningRate(double lr) {
+        this.learningRate = lr;
+    }
+
+    // ゲッター（デバッグ用）
+    public DenseTensor getWeights() { return weights; }
+    public DenseTensor getBias() { return bias; }
+    public Precision getPrecision() { return precision; }
+}
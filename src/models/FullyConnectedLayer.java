@@ -1,6 +1,12 @@
 package models;
 
+import alg.Adam;
+import math.DenseTensor;
 import math.Matrix;
+import math.Precision;
+import math.SparseVector;
+import math.Tensor;
+import math.TensorArena;
 
 import java.util.Random;
 
@@ -8,85 +14,247 @@ import java.util.Random;
  * 全結合層
  */
 class FullyConnectedLayer {
-    private double[][] weights;
-    private double[] bias;
-    private double[][] gradWeights;
-    private double[] gradBias;
+    private DenseTensor weights;  // [outputSize][inputSize]
+    private DenseTensor bias;     // [outputSize]
+    private DenseTensor gradWeights;
+    private DenseTensor gradBias;
 
     private double learningRate;
     private int inputSize, outputSize;
 
     // Adamオプティマイザー用
-    private double[][] mWeights, vWeights;
-    private double[] mBias, vBias;
+    private DenseTensor mWeights, vWeights;
+    private DenseTensor mBias, vBias;
     private int t = 0;
 
+    private final Precision precision;
+
+    // 入力の密度がこれ未満なら非ゼロ要素だけを使う疎なカーネルで計算する
+    // （ReLUとDropoutの後の入力は半分以上がゼロになる）
+    private double sparseThreshold;
+    private final SparseVector sparseInput = new SparseVector();
+
+    // 出力・勾配のバッファを借りるアリーナ（モデルに組み込まれたらモデルと共有）
+    private TensorArena arena = new TensorArena();
+    private boolean ownsArena = true;
+
     public FullyConnectedLayer(int inputSize, int outputSize, double learningRate) {
+        this(inputSize, outputSize, learningRate, Precision.FLOAT64);
+    }
+
+    public FullyConnectedLayer(int inputSize, int outputSize, double learningRate, Precision precision) {
+        this(inputSize, outputSize, learningRate, precision, new Random());
+    }
+
+    /**
+     * @param rand 重みの初期化に使う乱数（シードを固定すれば同じ重みになる）
+     */
+    FullyConnectedLayer(int inputSize, int outputSize, double learningRate, Precision precision, Random rand) {
         this.inputSize = inputSize;
         this.outputSize = outputSize;
         this.learningRate = learningRate;
+        this.precision = precision;
+        this.sparseThreshold = defaultSparseThreshold(precision);
 
         // Xavierの初期化
         double scale = Math.sqrt(2.0 / inputSize);
-        Random rand = new Random();
 
-        weights = new double[outputSize][inputSize];
-        bias = new double[outputSize];
+        weights = DenseTensor.zeros(precision, outputSize, inputSize);
+        bias = DenseTensor.zeros(precision, outputSize);
 
-        for (int i = 0; i < outputSize; i++) {
-            for (int j = 0; j < inputSize; j++) {
-                weights[i][j] = rand.nextGaussian() * scale;
-            }
+        for (int i = 0; i < weights.size(); i++) {
+            weights.setFlat(i, rand.nextGaussian() * scale);
         }
 
         // Adamの初期化
-        mWeights = new double[outputSize][inputSize];
-        vWeights = new double[outputSize][inputSize];
-        mBias = new double[outputSize];
-        vBias = new double[outputSize];
+        mWeights = DenseTensor.zeros(precision, outputSize, inputSize);
+        vWeights = DenseTensor.zeros(precision, outputSize, inputSize);
+        mBias = DenseTensor.zeros(precision, outputSize);
+        vBias = DenseTensor.zeros(precision, outputSize);
+    }
+
+    /**
+     * 精度ごとの既定の密度閾値
+     * 1サンプルの順伝播と重みの勾配を合わせた時間が密な計算と同じになる密度（計測値）
+     * FLOAT64はFC1（128x2048）で約0.27、FC2（10x128）で約0.2、FLOAT32はどちらも約0.2
+     * FC2の入力（ReLU・Dropout後）は密度0.25前後なので、FLOAT64ではFC1の分岐点に合わせて疎なカーネルを使う
+     */
+    static double defaultSparseThreshold(Precision precision) {
+        return precision == Precision.FLOAT32 ? 0.2 : 0.27;
+    }
+
+    /**
+     * 疎なカーネルに切り替える入力の密度の閾値を設定（0なら常に密な計算）
+     */
+    void setSparseThreshold(double threshold) {
+        if (threshold < 0.0 || threshold > 1.0) {
+            throw new IllegalArgumentException("Sparse threshold must be in [0, 1]: " + threshold);
+        }
+        this.sparseThreshold = threshold;
+    }
+
+    private FullyConnectedLayer(FullyConnectedLayer shared) {
+        this.inputSize = shared.inputSize;
+        this.outputSize = shared.outputSize;
+        this.sparseThreshold = shared.sparseThreshold;
+        this.learningRate = shared.learningRate;
+        this.precision = shared.precision;
+        this.weights = shared.weights;
+        this.bias = shared.bias;
+    }
+
+    /**
+     * 重みとバイアスを共有する複製（データ並列学習のワーカー用）
+     * 活性化と勾配は別に持ち、Adamの状態は最初のupdateWeightsで作る
+     */
+    FullyConnectedLayer replica() {
+        return new FullyConnectedLayer(this);
+    }
+
+    /**
+     * 他の層（複製）の勾配をこの層の勾配に足し込む
+     */
+    void addGradients(FullyConnectedLayer other) {
+        Tensor.addInPlace(gradWeights, other.gradWeights);
+        Tensor.addInPlace(gradBias, other.gradBias);
+    }
+
+    /**
+     * バッファを借りるアリーナを設定（モデルが1ステップごとにreset()する）
+     */
+    void setArena(TensorArena arena) {
+        this.arena = arena;
+        this.ownsArena = false;
+    }
+
+    /**
+     * 順伝播
+     * 出力はアリーナから借りたバッファで、単独で使う場合は次のforward呼び出しで上書きされる
+     * @param input 入力 [batch][inputSize]（1次元なら1サンプルとして扱う）
+     * @return 出力 [batch][outputSize]
+     */
+    public DenseTensor forward(DenseTensor input) {
+        if (ownsArena) {
+            arena.reset();
+        }
+        DenseTensor in = input.toPrecision(precision).reshape(-1, inputSize);
+        int batch = in.dim(0);
+        DenseTensor output = arena.allocate(precision, batch, outputSize);
+
+        if (batch == 1) {
+            // 1サンプルなら行列ベクトル積（疎なら非ゼロの列だけ）
+            DenseTensor x = in.slice(0);
+            if (isSparse(x)) {
+                Matrix.dotMVSparseInto(weights, sparseInput, output.slice(0));
+            } else {
+                Matrix.dotMVInto(weights, x, output.slice(0));
+            }
+        } else if (allSparse(in)) {
+            for (int n = 0; n < batch; n++) {
+                sparseInput.compress(in.slice(n));
+                Matrix.dotMVSparseInto(weights, sparseInput, output.slice(n));
+            }
+        } else {
+            // 密なバッチは1回の行列積 (input × W^T、転置はストライドで扱う)
+            Matrix.dotNTInto(in, weights, output);
+        }
+        for (int n = 0; n < batch; n++) {
+            Tensor.addInPlace(output.slice(n), bias);
+        }
+        return output;
     }
 
     public double[] forward(double[] input) {
-        return Matrix.addVec(Matrix.dotMV(weights, input), bias);
+        return forward(DenseTensor.fromArray(input)).toArray();
     }
 
-    public double[] backward(double[] gradOutput, double[] input) {
-        // 重みとバイアスの勾配
-        gradWeights = Matrix.outer(gradOutput, input);
-        gradBias = gradOutput.clone();
+    /**
+     * 逆伝播（バッチ内の勾配は合計される）
+     * 返す入力勾配と重みの勾配はアリーナから借りたバッファ
+     * @param gradOutput 出力に対する勾配 [batch][outputSize]
+     * @param input 順伝播時の入力 [batch][inputSize]
+     * @return 入力に対する勾配 [batch][inputSize]
+     */
+    public DenseTensor backward(DenseTensor gradOutput, DenseTensor input) {
+        DenseTensor grad = gradOutput.toPrecision(precision).reshape(-1, outputSize);
+        DenseTensor in = input.toPrecision(precision).reshape(-1, inputSize);
+        int batch = grad.dim(0);
 
-        // 入力に対する勾配
-        return Matrix.dotMV(Matrix.t(weights), gradOutput);
+        // 重みの勾配 (gradOutput^T × input)
+        if (batch == 1) {
+            // 1サンプルなら外積（疎なら非ゼロの列だけ）
+            DenseTensor x = in.slice(0);
+            if (isSparse(x)) {
+                gradWeights = arena.allocateZeroed(precision, outputSize, inputSize);
+                Matrix.outerSparseAdd(grad.slice(0), sparseInput, gradWeights);
+            } else {
+                gradWeights = arena.allocate(precision, outputSize, inputSize);
+                Matrix.outerInto(grad.slice(0), x, gradWeights, false);
+            }
+        } else if (allSparse(in)) {
+            gradWeights = arena.allocateZeroed(precision, outputSize, inputSize);
+            for (int n = 0; n < batch; n++) {
+                sparseInput.compress(in.slice(n));
+                Matrix.outerSparseAdd(grad.slice(n), sparseInput, gradWeights);
+            }
+        } else {
+            // 転置はストライドで扱う
+            gradWeights = arena.allocate(precision, outputSize, inputSize);
+            Matrix.dotTNInto(grad, in, gradWeights);
+        }
+
+        // バイアスの勾配
+        gradBias = arena.allocateZeroed(precision, outputSize);
+        DenseTensor gradInput = arena.allocate(precision, batch, inputSize);
+
+        for (int n = 0; n < batch; n++) {
+            DenseTensor g = grad.slice(n);
+            Tensor.addInPlace(gradBias, g);
+
+            // 入力に対する勾配 (W^T × g、転置行列は作らない)
+            Matrix.dotMVTInto(weights, g, gradInput.slice(n));
+        }
+
+        return gradInput;
     }
 
-    public void updateWeights() {
-        t++;
-        double beta1 = 0.9, beta2 = 0.999, epsilon = 1e-8;
+    /**
+     * 入力を疎なベクトルに変換し、疎なカーネルを使うかを判定
+     * trueならsparseInputに非ゼロ要素が入っている
+     */
+    private boolean isSparse(DenseTensor x) {
+        if (sparseThreshold <= 0.0 || !x.isContiguous()) {
+            return false;
+        }
+        return sparseInput.compress(x) < sparseThreshold;
+    }
 
-        // Adam更新
-        for (int i = 0; i < outputSize; i++) {
-            // バイアスの更新
-            updateBias(beta1, beta2, epsilon, i, mBias, gradBias, vBias, t, bias, learningRate);
-            double mHat;
-            double vHat;
-
-            // 重みの更新
-            for (int j = 0; j < inputSize; j++) {
-                mWeights[i][j] = beta1 * mWeights[i][j] + (1 - beta1) * gradWeights[i][j];
-                vWeights[i][j] = beta2 * vWeights[i][j] + (1 - beta2) * gradWeights[i][j] * gradWeights[i][j];
-                mHat = mWeights[i][j] / (1 - Math.pow(beta1, t));
-                vHat = vWeights[i][j] / (1 - Math.pow(beta2, t));
-                weights[i][j] -= learningRate * mHat / (Math.sqrt(vHat) + epsilon);
+    private boolean allSparse(DenseTensor in) {
+        for (int n = 0; n < in.dim(0); n++) {
+            if (!isSparse(in.slice(n))) {
+                return false;
             }
         }
+        return true;
+    }
+
+    public double[] backward(double[] gradOutput, double[] input) {
+        return backward(DenseTensor.fromArray(gradOutput), DenseTensor.fromArray(input)).toArray();
     }
 
-    static void updateBias(double beta1, double beta2, double epsilon, int i, double[] mBias, double[] gradBias, double[] vBias, int t, double[] bias, double learningRate) {
-        mBias[i] = beta1 * mBias[i] + (1 - beta1) * gradBias[i];
-        vBias[i] = beta2 * vBias[i] + (1 - beta2) * gradBias[i] * gradBias[i];
-        double mHat = mBias[i] / (1 - Math.pow(beta1, t));
-        double vHat = vBias[i] / (1 - Math.pow(beta2, t));
-        bias[i] -= learningRate * mHat / (Math.sqrt(vHat) + epsilon);
+    public void updateWeights() {
+        if (mWeights == null) {
+            // 複製は最初の更新で自分のAdamの状態を作る
+            mWeights = DenseTensor.zeros(precision, weights.shape());
+            vWeights = DenseTensor.zeros(precision, weights.shape());
+            mBias = DenseTensor.zeros(precision, bias.shape());
+            vBias = DenseTensor.zeros(precision, bias.shape());
+        }
+        t++;
+
+        // Adam更新
+        Adam.step(bias, gradBias, mBias, vBias, learningRate, t);
+        Adam.step(weights, gradWeights, mWeights, vWeights, learningRate, t);
     }
 
     public void setLearningRate(double lr) {
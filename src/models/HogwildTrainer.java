@@ -0,0 +1,214 @@
+package models;
+
+import math.DenseTensor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+/**
+ * Hogwild方式の非同期学習
+ * 各ワーカーは重みを共有する{@link ImprovedCNN}の複製で、重ならないサンプルを1枚ずつ{@link ImprovedCNN#train}し、
+ * 自分のAdamの状態でロックを取らずに共有の重みを直接更新する
+ * 他のワーカーの更新と競合した値を読み書きすることがあるので、結果は実行ごとに変わる（同期のデータ並列は{@link DataParallelTrainer}）
+ * ワーカー0は元のモデルそのもので、呼び出したスレッドで計算する
+ */
+public final class HogwildTrainer implements AutoCloseable {
+
+    private final ImprovedCNN model;
+    private final ImprovedCNN[] workers;  // [0]は元のモデル
+    private final ExecutorService executor;
+
+    private volatile boolean stopRequested = false;  // 一度止めたら戻さない（エポックの間に止めても失われない）
+
+    /**
+     * @param model 学習するモデル
+     * @param workers ワーカー数
+     * @param seed 複製のDropoutに使う乱数のシード（ワーカーiはseed + i）
+     */
+    public HogwildTrainer(ImprovedCNN model, int workers, long seed) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Worker count must be positive: " + workers);
+        }
+        this.model = model;
+        this.workers = new ImprovedCNN[workers];
+        this.workers[0] = model;
+        for (int i = 1; i < workers; i++) {
+            this.workers[i] = model.replica(seed + i);
+        }
+        this.executor = workers == 1 ? null : Executors.newFixedThreadPool(workers - 1, r -> {
+            Thread thread = new Thread(r);
+            thread.setName("CNN-Hogwild-Thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * ワーカー数
+     */
+    public int getWorkers() {
+        return workers.length;
+    }
+
+    /**
+     * 1エポックの学習
+     * サンプルを先頭から連続したワーカー数個の範囲に分け、ワーカーiがi番目の範囲を順に学習する
+     * @param images index番目の画像 [channels][height][width] を返す関数（ワーカーのスレッドから同時に呼ばれる）
+     * @param labels 正解クラス
+     * @param interval 損失曲線の1点あたりのサンプル数（全ワーカーの合計）
+     * @return 学習したサンプル数・時間・損失曲線
+     */
+    public Report trainEpoch(IntFunction<DenseTensor> images, int[] labels, int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Interval must be positive: " + interval);
+        }
+        int active = Math.max(1, Math.min(workers.length, labels.length));
+        int chunk = Math.max(1, interval / active);  // ワーカーごとの1点あたりのサンプル数
+        long startTime = System.nanoTime();
+
+        List<Future<Progress>> results = new ArrayList<>(active - 1);
+        for (int w = 1; w < active; w++) {
+            int worker = w;
+            results.add(executor.submit(() -> run(worker, active, chunk, images, labels)));
+        }
+        Progress[] progress = new Progress[active];
+        progress[0] = run(0, active, chunk, images, labels);
+        for (int w = 1; w < active; w++) {
+            progress[w] = await(results.get(w - 1));
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+
+        // 損失曲線: 各点は全ワーカーのk番目の区間の平均
+        int points = 0;
+        int samples = 0;
+        double lossSum = 0.0;
+        for (Progress p : progress) {
+            points = Math.max(points, p.curveSums.length);
+            samples += p.samples;
+            lossSum += p.lossSum;
+        }
+        double[] curve = new double[points];
+        int[] counts = new int[points];
+        for (Progress p : progress) {
+            for (int k = 0; k < p.curveSums.length; k++) {
+                curve[k] += p.curveSums[k];
+                counts[k] += p.curveCounts[k];
+            }
+        }
+        int used = 0;
+        for (int k = 0; k < points && counts[k] > 0; k++, used++) {
+            curve[k] /= counts[k];
+        }
+        double[] lossCurve = new double[used];
+        System.arraycopy(curve, 0, lossCurve, 0, used);
+        return new Report(samples, seconds, samples > 0 ? lossSum / samples : 0.0, lossCurve);
+    }
+
+    /**
+     * ワーカーwの範囲を1枚ずつ学習する
+     */
+    private Progress run(int w, int active, int chunk, IntFunction<DenseTensor> images, int[] labels) {
+        int n = labels.length;
+        int start = (int) ((long) n * w / active);
+        int end = (int) ((long) n * (w + 1) / active);
+        int points = (end - start + chunk - 1) / chunk;
+        Progress progress = new Progress(points);
+        ImprovedCNN worker = workers[w];
+
+        for (int i = start; i < end && !stopRequested; i++) {
+            double loss = worker.train(images.apply(i), labels[i]);
+            int k = (i - start) / chunk;
+            progress.curveSums[k] += loss;
+            progress.curveCounts[k]++;
+            progress.lossSum += loss;
+            progress.samples++;
+        }
+        return progress;
+    }
+
+    /**
+     * エポック終了時の処理（全ワーカーの学習率を減衰させる）
+     */
+    public void endEpoch() {
+        for (ImprovedCNN worker : workers) {
+            worker.endEpoch();
+        }
+    }
+
+    /**
+     * 学習を止める（各ワーカーは今のサンプルを終えてから戻り、以後のtrainEpochは何も学習せずに戻る）
+     */
+    public void stop() {
+        stopRequested = true;
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a worker", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Worker failed", cause);
+        }
+    }
+
+    /**
+     * ワーカーのスレッドを止める
+     */
+    @Override
+    public void close() {
+        stopRequested = true;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * ワーカーごとの途中経過
+     */
+    private static final class Progress {
+        final double[] curveSums;
+        final int[] curveCounts;
+        double lossSum;
+        int samples;
+
+        Progress(int points) {
+            this.curveSums = new double[points];
+            this.curveCounts = new int[points];
+        }
+    }
+
+    /**
+     * 1エポックの計測結果
+     */
+    public static final class Report {
+        public final int samples;          // 学習したサンプル数
+        public final double seconds;       // 経過時間（秒）
+        public final double meanLoss;      // 平均損失
+        public final double[] lossCurve;   // interval枚ごとの平均損失
+
+        public Report(int samples, double seconds, double meanLoss, double[] lossCurve) {
+            this.samples = samples;
+            this.seconds = seconds;
+            this.meanLoss = meanLoss;
+            this.lossCurve = lossCurve;
+        }
+
+        /**
+         * スループット（サンプル/秒）
+         */
+        public double getSamplesPerSecond() {
+            return seconds > 0 ? samples / seconds : 0.0;
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package models;
 
-import alg.CrossEntropy;
 import alg.ReLU;
 import alg.Softmax;
-import math.ConvolutionOps;
-import math.Matrix;
+import math.ChannelsLast;
+import math.DenseTensor;
+import math.Layout;
+import math.Precision;
 import math.Tensor;
+import math.TensorArena;
 
 import java.util.Random;
 
@@ -15,12 +17,16 @@ import java.util.Random;
  * - データ拡張
  * - 学習率減衰
  * - ドロップアウト
+ * 順伝播・学習・予測はこのモデルのロックを取って行う
+ * （中間バッファのアリーナは1つなので、GUIのスレッドからの予測が学習中のステップのバッファを上書きしないように）
  */
 public class ImprovedCNN {
 
     // 層のパラメータ
     private final ConvLayer conv1;
-    private final ConvLayer conv2;
+    private final ConvLayer conv2;                 // separableならnull
+    private final DepthwiseConvLayer conv2Depthwise;  // separableのときだけ
+    private final PointwiseConvLayer conv2Pointwise;
     private final FullyConnectedLayer fc1;
     private final FullyConnectedLayer fc2;
 
@@ -32,43 +38,201 @@ public class ImprovedCNN {
     private boolean isTraining = true;
 
     private final Random random;
+    private final Precision precision;
+    private final boolean separable;
+    private final Layout layout;
+
+    // 1ステップ分の活性化と勾配を貸し出すアリーナ（各層と共有）
+    private final TensorArena arena = new TensorArena();
+
+    // trainBatch(double[][][][], int[])の入力と、train(DenseTensor, int)のラベルのバッファ
+    private DenseTensor batchInput;
+    private final int[] singleLabel = new int[1];
 
     public ImprovedCNN(double learningRate) {
+        this(learningRate, Precision.FLOAT64);
+    }
+
+    /**
+     * 数値精度を指定してモデルを構築
+     * @param learningRate 学習率
+     * @param precision 重みと活性化の精度（FLOAT32ならメモリと帯域が半分）
+     */
+    public ImprovedCNN(double learningRate, Precision precision) {
+        this(learningRate, precision, false);
+    }
+
+    /**
+     * 数値精度とConv2の構成を指定してモデルを構築
+     * @param learningRate 学習率
+     * @param precision 重みと活性化の精度（FLOAT32ならメモリと帯域が半分）
+     * @param separable trueならConv2を3x3のdepthwise（16ch）と1x1のpointwise（16ch→32ch）に分解する
+     *                  （Conv2の積和回数が約1/7、パラメータ数は4640から704に）
+     */
+    public ImprovedCNN(double learningRate, Precision precision, boolean separable) {
+        this(learningRate, precision, separable, Layout.NCHW);
+    }
+
+    /**
+     * 数値精度・Conv2の構成・畳み込み層の活性化の配置を指定してモデルを構築
+     * NHWCでは入力をNHWCに変換し、畳み込み・ReLU・プーリングはNHWCのまま計算して、
+     * Flattenの直前でNCHWに戻す（全結合層の重みの並びと.jnnファイルは配置によらず同じ）
+     * @param layout 畳み込み層の配置（NHWCはseparableと組み合わせられない）
+     */
+    public ImprovedCNN(double learningRate, Precision precision, boolean separable, Layout layout) {
+        this(learningRate, precision, separable, layout, new Random(), new Random(42), false);
+    }
+
+    /**
+     * 乱数のシードを指定してモデルを構築（重みの初期値とDropoutのマスクが毎回同じになる）
+     * 畳み込みのアルゴリズムもオートチューナーの計測によらず固定の規則で選ぶので、同じ入力なら学習の結果は毎回同じになる
+     * @param seed 重みの初期化とDropoutに使う乱数のシード
+     */
+    public ImprovedCNN(double learningRate, Precision precision, boolean separable, Layout layout, long seed) {
+        this(learningRate, precision, separable, layout, new Random(seed), new Random(seed + 1), true);
+    }
+
+    /**
+     * @param pinned trueなら畳み込み層でオートチューナーを使わない（シードを固定したモデル）
+     */
+    private ImprovedCNN(double learningRate, Precision precision, boolean separable, Layout layout,
+                        Random init, Random dropout, boolean pinned) {
+        if (separable && layout != Layout.NCHW) {
+            throw new IllegalArgumentException("Separable Conv2 supports only the NCHW layout");
+        }
+        this.layout = layout;
         this.initialLearningRate = learningRate;
         this.currentLearningRate = learningRate;
-        this.random = new Random(42);
+        this.random = dropout;
+        this.precision = precision;
+        this.separable = separable;
 
         // 層の初期化
-        conv1 = new ConvLayer(1, 16, 3, 1, 1, learningRate);    // 入力1ch、出力16ch、3x3カーネル
-        conv2 = new ConvLayer(16, 32, 3, 1, 1, learningRate);   // 入力16ch、出力32ch、3x3カーネル
-        fc1 = new FullyConnectedLayer(32 * 8 * 8, 128, learningRate);
-        fc2 = new FullyConnectedLayer(128, 10, learningRate);
+        conv1 = new ConvLayer(1, 16, 3, 1, 1, learningRate, precision, layout, init);    // 入力1ch、出力16ch、3x3カーネル
+        if (separable) {
+            conv2 = null;
+            conv2Depthwise = new DepthwiseConvLayer(16, 3, 1, 1, learningRate, precision, init);  // 16ch、3x3カーネル
+            conv2Pointwise = new PointwiseConvLayer(16, 32, learningRate, precision, init);       // 16ch → 32ch
+        } else {
+            conv2 = new ConvLayer(16, 32, 3, 1, 1, learningRate, precision, layout, init);   // 入力16ch、出力32ch、3x3カーネル
+            conv2Depthwise = null;
+            conv2Pointwise = null;
+        }
+        fc1 = new FullyConnectedLayer(32 * 8 * 8, 128, learningRate, precision, init);
+        fc2 = new FullyConnectedLayer(128, 10, learningRate, precision, init);
+        if (pinned) {
+            conv1.setAutotune(false);
+            if (!separable) {
+                conv2.setAutotune(false);
+            }
+        }
+        shareArena();
+    }
+
+    /**
+     * 重みを共有する複製を構築（{@link #replica}用）
+     */
+    private ImprovedCNN(ImprovedCNN shared, long seed) {
+        this.layout = shared.layout;
+        this.initialLearningRate = shared.initialLearningRate;
+        this.currentLearningRate = shared.currentLearningRate;
+        this.dropoutRate = shared.dropoutRate;
+        this.epoch = shared.epoch;
+        this.random = new Random(seed);
+        this.precision = shared.precision;
+        this.separable = shared.separable;
+
+        conv1 = shared.conv1.replica();
+        conv2 = separable ? null : shared.conv2.replica();
+        conv2Depthwise = separable ? shared.conv2Depthwise.replica() : null;
+        conv2Pointwise = separable ? shared.conv2Pointwise.replica() : null;
+        fc1 = shared.fc1.replica();
+        fc2 = shared.fc2.replica();
+        shareArena();
+    }
+
+    private void shareArena() {
+        conv1.setArena(arena);
+        if (separable) {
+            conv2Depthwise.setArena(arena);
+            conv2Pointwise.setArena(arena);
+        } else {
+            conv2.setArena(arena);
+        }
+        fc1.setArena(arena);
+        fc2.setArena(arena);
+    }
+
+    /**
+     * モデルの数値精度
+     */
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Conv2をdepthwise + pointwiseに分解したモデルか
+     */
+    public boolean isSeparable() {
+        return separable;
+    }
+
+    /**
+     * 畳み込み層の活性化の配置
+     */
+    public Layout getLayout() {
+        return layout;
+    }
+
+    /**
+     * 全結合層が疎なカーネルに切り替える入力の密度の閾値を設定
+     * 既定はFLOAT64で0.27、FLOAT32で0.2（計測した損益分岐点、0なら常に密な計算）
+     */
+    public void setSparseThreshold(double threshold) {
+        fc1.setSparseThreshold(threshold);
+        fc2.setSparseThreshold(threshold);
+    }
+
+    /**
+     * 中間バッファのアリーナ（ピークメモリや再利用率の確認用）
+     */
+    public TensorArena getArena() {
+        return arena;
     }
 
     /**
      * 順伝播
      */
     public double[] forward(double[][][] input) {
-        // Conv1 -> ReLU -> Pool
-        double[][][] conv1Out = conv1.forward(input);
-        double[][][] relu1Out = ReLU.apply(conv1Out);
-        double[][][] pool1Out = ConvolutionOps.maxPool3D(relu1Out, 2, 2);
+        return forward(DenseTensor.fromArray(input)).toArray();
+    }
+
+    /**
+     * 順伝播（DenseTensor版）
+     * 中間結果はアリーナから借りたバッファに書き込み、戻り値だけを新しく確保する
+     * @param input 入力 [batch][channels][height][width]（3次元なら1枚として扱う）
+     * @return 各クラスの確率 [batch][10]
+     */
+    public synchronized DenseTensor forward(DenseTensor input) {
+        arena.reset();
+        DenseTensor x = toBatch(input);
+
+        // Conv1 -> ReLU -> Pool（融合、プーリング前の活性化は作らない）
+        DenseTensor pool1Out = conv1.forwardReluPool(toLayout(x), 2, 2, false);
 
         // Conv2 -> ReLU -> Pool
-        double[][][] conv2Out = conv2.forward(pool1Out);
-        double[][][] relu2Out = ReLU.apply(conv2Out);
-        double[][][] pool2Out = ConvolutionOps.maxPool3D(relu2Out, 2, 2);
+        DenseTensor pool2Out = conv2ReluPool(pool1Out, false);
 
-        // Flatten
-        double[] flattened = Tensor.flatten(pool2Out);
+        // Flatten（NCHWならコピーなし）
+        DenseTensor flattened = toNCHW(pool2Out).reshape(x.dim(0), -1);
 
         // FC1 -> ReLU -> Dropout
-        double[] fc1Out = fc1.forward(flattened);
-        double[] relu3Out = ReLU.apply(fc1Out);
-        double[] dropped = applyDropout(relu3Out);
+        DenseTensor relu3Out = fc1.forward(flattened);
+        ReLU.applyInPlace(relu3Out);
+        DenseTensor dropped = applyDropout(relu3Out);
 
         // FC2 -> Softmax
-        double[] fc2Out = fc2.forward(dropped);
+        DenseTensor fc2Out = fc2.forward(dropped);
         return Softmax.apply(fc2Out);
     }
 
@@ -76,106 +240,191 @@ public class ImprovedCNN {
      * 学習（順伝播と逆伝播）
      */
     public double train(double[][][] input, int targetClass) {
-        isTraining = true;
+        return train(DenseTensor.fromArray(input), targetClass);
+    }
 
-        // 順伝播（中間結果を保存）
-        // Conv1
-        double[][][] conv1Out = conv1.forward(input);
-        double[][][] relu1Out = ReLU.apply(conv1Out);
-        double[][][] pool1Out = maxPoolForward(relu1Out, 2, 2);
-        int[][][] pool1Indices = lastPoolIndices;
+    /**
+     * 学習（DenseTensor版、1枚のミニバッチとして{@link #trainBatch(DenseTensor, int[])}を呼ぶ）
+     * @param input 入力画像 [channels][height][width] または [1][channels][height][width]
+     * @param targetClass 正解クラス
+     * @return 損失値
+     */
+    public synchronized double train(DenseTensor input, int targetClass) {
+        singleLabel[0] = targetClass;
+        return trainBatch(input, singleLabel);
+    }
 
-        // Conv2
-        double[][][] conv2Out = conv2.forward(pool1Out);
-        double[][][] relu2Out = ReLU.apply(conv2Out);
-        double[][][] pool2Out = maxPoolForward(relu2Out, 2, 2);
-        int[][][] pool2Indices = lastPoolIndices;
+    /**
+     * ミニバッチ学習（バッチ全体で順伝播・逆伝播を1回ずつ行い、重みの更新は1回）
+     * @param images 入力画像 [batch][channels][height][width]
+     * @param labels 正解クラス [batch]
+     * @return バッチの平均損失
+     */
+    public synchronized double trainBatch(double[][][][] images, int[] labels) {
+        batchInput = DenseTensor.reuse(batchInput, precision,
+                images.length, images[0].length, images[0][0].length, images[0][0][0].length);
+        int idx = 0;
+        for (double[][][] image : images) {
+            for (double[][] channel : image) {
+                for (double[] row : channel) {
+                    for (double v : row) {
+                        batchInput.setFlat(idx++, v);
+                    }
+                }
+            }
+        }
+        return trainBatch(batchInput, labels);
+    }
 
-        // Flatten
-        double[] flattened = Tensor.flatten(pool2Out);
+    /**
+     * ミニバッチ学習（DenseTensor版）
+     * 畳み込み層はバッチ全体を1回で計算し（2枚以上ならim2colのGEMMなどを選べる）、全結合層はバッチ全体のGEMMで重みの勾配を求める
+     * 各層の勾配はバッチ内で合計されるので、出力の勾配を1/batchにして平均損失の勾配にする
+     * ReLUはその場で適用し、逆伝播ではReLU後の値で勾配をマスクする
+     * 畳み込み層はReLUとプーリングまで融合し、最大値の位置とマスクだけを記録する
+     * @param input 入力画像 [batch][channels][height][width]（3次元なら1枚として扱う）
+     * @param labels 正解クラス [batch]
+     * @return バッチの平均損失
+     */
+    public synchronized double trainBatch(DenseTensor input, int[] labels) {
+        int batch = input.rank() == 3 ? 1 : input.dim(0);
+        if (labels.length != batch) {
+            throw new IllegalArgumentException("Expected " + batch + " labels but got " + labels.length);
+        }
+        double loss = backpropagate(input, labels, 0, batch);
+        applyGradients();
+        return loss / batch;
+    }
 
-        // FC1
-        double[] fc1Out = fc1.forward(flattened);
-        double[] relu3Out = ReLU.apply(fc1Out);
-        double[] dropped = applyDropout(relu3Out);
-        boolean[] dropoutMask = lastDropoutMask;
+    /**
+     * 順伝播と逆伝播を行い、各層に勾配を残す（重みは更新しない）
+     * 出力の勾配を1/totalBatchにするので、複数の部分バッチの勾配を足せばバッチ全体の平均損失の勾配になる
+     * @param input 入力画像 [batch][channels][height][width]（3次元なら1枚として扱う）
+     * @param labels 正解クラス
+     * @param labelOffset この部分バッチの先頭のラベルの位置
+     * @param totalBatch 勾配を平均するバッチ全体の枚数
+     * @return この部分バッチの損失の合計
+     */
+    synchronized double backpropagate(DenseTensor input, int[] labels, int labelOffset, int totalBatch) {
+        isTraining = true;
+        arena.reset();
+        DenseTensor x = toBatch(input);
+        int batch = x.dim(0);
 
-        // FC2
-        double[] fc2Out = fc2.forward(dropped);
-        double[] probabilities = Softmax.apply(fc2Out);
+        // 順伝播（中間結果を保存）
+        // Conv1 -> ReLU -> Pool
+        DenseTensor pool1Out = conv1.forwardReluPool(toLayout(x), 2, 2, true);
 
-        // 損失計算
-        double loss = CrossEntropy.calculate(probabilities, targetClass);
+        // Conv2 -> ReLU -> Pool
+        DenseTensor pool2Out = conv2ReluPool(pool1Out, true);
 
-        // 逆伝播
-        // Softmax + CrossEntropyの勾配
-        double[] gradOutput = Softmax.gradientWithCrossEntropy(probabilities, targetClass);
+        // Flatten（NCHWならコピーなし）
+        DenseTensor pool2Nchw = toNCHW(pool2Out);
+        DenseTensor flattened = pool2Nchw.reshape(batch, -1);
+
+        // FC1
+        DenseTensor relu3Out = fc1.forward(flattened);
+        ReLU.applyInPlace(relu3Out);
+        DenseTensor dropped = applyDropout(relu3Out);
+
+        // FC2 -> Softmax（確率はバッファに書き込む）
+        DenseTensor fc2Out = fc2.forward(dropped);
+        DenseTensor probabilities = arena.allocate(precision, fc2Out.shape());
+        Softmax.applyInto(fc2Out, probabilities);
+
+        // 損失計算と逆伝播の開始
+        // Softmax + CrossEntropyの勾配（確率から正解クラスの1を引く、その場で計算）
+        int numClasses = probabilities.dim(1);
+        double loss = 0.0;
+        DenseTensor gradOutput = probabilities;
+        for (int n = 0; n < batch; n++) {
+            int target = n * numClasses + labels[labelOffset + n];
+            double p = gradOutput.getFlat(target);
+            loss -= Math.log(p + 1e-8);
+            gradOutput.setFlat(target, p - 1.0);
+        }
+        if (totalBatch > 1) {
+            Tensor.multiplyInPlace(gradOutput, 1.0 / totalBatch);
+        }
 
         // FC2の逆伝播
-        double[] gradFC1 = fc2.backward(gradOutput, dropped);
+        DenseTensor gradFC1 = fc2.backward(gradOutput, dropped);
 
         // Dropoutの逆伝播
-        double[] gradDropout = applyDropoutBackward(gradFC1, dropoutMask);
+        DenseTensor gradDropout = applyDropoutBackward(gradFC1, lastDropoutMask);
 
         // ReLU (FC1後)の逆伝播
-        double[] gradReLU3 = new double[fc1Out.length];
-        for (int i = 0; i < fc1Out.length; i++) {
-            gradReLU3[i] = fc1Out[i] > 0 ? gradDropout[i] : 0;
-        }
+        ReLU.backwardInPlace(gradDropout, relu3Out);
 
         // FC1の逆伝播
-        double[] gradFlatten = fc1.backward(gradReLU3, flattened);
+        DenseTensor gradFlatten = fc1.backward(gradDropout, flattened);
 
-        // Unflatten
-        double[][][] gradPool2 = Tensor.reshape(gradFlatten, 32, 7, 7);
+        // Unflatten（NCHWならコピーなし）
+        DenseTensor gradPool2 = toLayout(gradFlatten.reshape(pool2Nchw.shape()));
 
-        // MaxPool2の逆伝播
-        double[][][] gradReLU2 = maxPoolBackward(gradPool2, pool2Indices, 2, 2, relu2Out);
+        // MaxPool2 -> ReLU -> Conv2の逆伝播
+        DenseTensor gradPool1 = conv2BackwardReluPool(gradPool2);
 
-        // ReLU (Conv2後)の逆伝播
-        double[][][] gradConv2 = new double[32][][];
-        for (int c = 0; c < 32; c++) {
-            gradConv2[c] = new double[14][14];
-            for (int h = 0; h < 14; h++) {
-                for (int w = 0; w < 14; w++) {
-                    gradConv2[c][h][w] = conv2Out[c][h][w] > 0 ? gradReLU2[c][h][w] : 0;
-                }
-            }
-        }
-
-        // Conv2の逆伝播
-        double[][][] gradPool1 = conv2.backward(gradConv2, pool1Out);
-
-        // MaxPool1の逆伝播
-        double[][][] gradReLU1 = maxPoolBackward(gradPool1, pool1Indices, 2, 2, relu1Out);
-
-        // ReLU (Conv1後)の逆伝播
-        double[][][] gradConv1 = new double[16][][];
-        for (int c = 0; c < 16; c++) {
-            gradConv1[c] = new double[28][28];
-            for (int h = 0; h < 28; h++) {
-                for (int w = 0; w < 28; w++) {
-                    gradConv1[c][h][w] = conv1Out[c][h][w] > 0 ? gradReLU1[c][h][w] : 0;
-                }
-            }
-        }
+        // MaxPool1 -> ReLU -> Conv1の逆伝播
+        conv1.backwardReluPool(gradPool1);
 
-        // Conv1の逆伝播
-        conv1.backward(gradConv1, input);
+        return loss;
+    }
 
-        // 重みの更新
+    /**
+     * 各層に残っている勾配で重みを更新する（バッチごとに1回）
+     */
+    synchronized void applyGradients() {
         conv1.updateWeights();
-        conv2.updateWeights();
+        if (separable) {
+            conv2Depthwise.updateWeights();
+            conv2Pointwise.updateWeights();
+        } else {
+            conv2.updateWeights();
+        }
         fc1.updateWeights();
         fc2.updateWeights();
+    }
 
-        return loss;
+    /**
+     * 重みを共有する複製（データ並列学習のワーカー用）
+     * 活性化・勾配・アリーナ・Dropoutの乱数は複製ごとに持つ
+     * データ並列では重みの更新は元のモデルだけが行い、Hogwildでは複製も自分のAdamの状態で共有の重みを更新する
+     * @param seed 複製のDropoutに使う乱数のシード
+     */
+    ImprovedCNN replica(long seed) {
+        return new ImprovedCNN(this, seed);
+    }
+
+    /**
+     * 複製の勾配をこのモデルの勾配に足し込む（{@link #backpropagate}の後に呼ぶ）
+     */
+    void addGradients(ImprovedCNN other) {
+        conv1.addGradients(other.conv1);
+        if (separable) {
+            conv2Depthwise.addGradients(other.conv2Depthwise);
+            conv2Pointwise.addGradients(other.conv2Pointwise);
+        } else {
+            conv2.addGradients(other.conv2);
+        }
+        fc1.addGradients(other.fc1);
+        fc2.addGradients(other.fc2);
+    }
+
+    /**
+     * 元のモデルが重みを更新したことを複製に知らせる（変換済みカーネルを作り直させる）
+     */
+    void weightsChanged() {
+        conv1.weightsChanged();
+        if (!separable) {
+            conv2.weightsChanged();
+        }
     }
 
     /**
      * 予測
      */
-    public int predict(double[][][] input) {
+    public synchronized int predict(double[][][] input) {
         isTraining = false;
         double[] probabilities = forward(input);
         return Softmax.argmax(probabilities);
@@ -184,101 +433,103 @@ public class ImprovedCNN {
     /**
      * エポック終了時の処理
      */
-    public void endEpoch() {
+    public synchronized void endEpoch() {
         epoch++;
         // 学習率の減衰（10エポックごとに0.9倍）
         if (epoch % 10 == 0) {
             currentLearningRate *= 0.9;
             conv1.setLearningRate(currentLearningRate);
-            conv2.setLearningRate(currentLearningRate);
+            if (separable) {
+                conv2Depthwise.setLearningRate(currentLearningRate);
+                conv2Pointwise.setLearningRate(currentLearningRate);
+            } else {
+                conv2.setLearningRate(currentLearningRate);
+            }
             fc1.setLearningRate(currentLearningRate);
             fc2.setLearningRate(currentLearningRate);
         }
     }
 
     // 補助メソッド
-    private int[][][] lastPoolIndices;
-
-    private double[][][] maxPoolForward(double[][][] input, int poolSize, int stride) {
-        int channels = input.length;
-        int inputHeight = input[0].length;
-        int inputWidth = input[0][0].length;
-        int outputHeight = (inputHeight - poolSize) / stride + 1;
-        int outputWidth = (inputWidth - poolSize) / stride + 1;
 
-        double[][][] output = new double[channels][outputHeight][outputWidth];
-        lastPoolIndices = new int[channels][outputHeight][outputWidth];
-
-        for (int c = 0; c < channels; c++) {
-            for (int oh = 0; oh < outputHeight; oh++) {
-                for (int ow = 0; ow < outputWidth; ow++) {
-                    double maxVal = Double.NEGATIVE_INFINITY;
-                    int maxIdx = 0;
-
-                    for (int ph = 0; ph < poolSize; ph++) {
-                        for (int pw = 0; pw < poolSize; pw++) {
-                            int ih = oh * stride + ph;
-                            int iw = ow * stride + pw;
-                            if (input[c][ih][iw] > maxVal) {
-                                maxVal = input[c][ih][iw];
-                                maxIdx = ph * poolSize + pw;
-                            }
-                        }
-                    }
-
-                    output[c][oh][ow] = maxVal;
-                    lastPoolIndices[c][oh][ow] = maxIdx;
-                }
-            }
+    /**
+     * Conv2 -> ReLU -> Pool（separableならdepthwise -> pointwise -> ReLU -> Pool）
+     */
+    private DenseTensor conv2ReluPool(DenseTensor input, boolean training) {
+        if (separable) {
+            return conv2Pointwise.forwardReluPool(conv2Depthwise.forward(input), 2, 2, training);
         }
-
-        return output;
+        return conv2.forwardReluPool(input, 2, 2, training);
     }
 
-    private double[][][] maxPoolBackward(double[][][] gradOutput, int[][][] indices,
-                                         int poolSize, int stride, double[][][] originalInput) {
-        int channels = gradOutput.length;
-        int outputHeight = gradOutput[0].length;
-        int outputWidth = gradOutput[0][0].length;
-        int inputHeight = originalInput[0].length;
-        int inputWidth = originalInput[0][0].length;
+    /**
+     * {@link #conv2ReluPool}の逆伝播
+     */
+    private DenseTensor conv2BackwardReluPool(DenseTensor gradOutput) {
+        if (separable) {
+            DenseTensor gradDepthwise = conv2Pointwise.backwardReluPool(gradOutput);
+            return conv2Depthwise.backward(gradDepthwise, null);
+        }
+        return conv2.backwardReluPool(gradOutput);
+    }
 
-        double[][][] gradInput = new double[channels][inputHeight][inputWidth];
+    private DenseTensor toBatch(DenseTensor input) {
+        if (input.rank() == 3) {
+            input = input.reshape(1, input.dim(0), input.dim(1), input.dim(2));
+        }
+        if (input.precision() == precision) {
+            return input;
+        }
+        // 精度の変換先もアリーナから借りる
+        DenseTensor converted = arena.allocate(precision, input.shape());
+        converted.copyFrom(input);
+        return converted;
+    }
 
-        for (int c = 0; c < channels; c++) {
-            for (int oh = 0; oh < outputHeight; oh++) {
-                for (int ow = 0; ow < outputWidth; ow++) {
-                    int maxIdx = indices[c][oh][ow];
-                    int ph = maxIdx / poolSize;
-                    int pw = maxIdx % poolSize;
-                    int ih = oh * stride + ph;
-                    int iw = ow * stride + pw;
-
-                    gradInput[c][ih][iw] += gradOutput[c][oh][ow];
-                }
-            }
+    /**
+     * NCHWのテンソルを畳み込み層の配置にする（NHWCならアリーナのバッファに変換）
+     */
+    private DenseTensor toLayout(DenseTensor x) {
+        if (layout == Layout.NCHW) {
+            return x;
         }
+        DenseTensor converted = arena.allocate(precision, x.dim(0), x.dim(2), x.dim(3), x.dim(1));
+        ChannelsLast.toNHWCInto(x, converted);
+        return converted;
+    }
 
-        return gradInput;
+    /**
+     * 畳み込み層の配置のテンソルをNCHWに戻す（Flattenの直前）
+     */
+    private DenseTensor toNCHW(DenseTensor x) {
+        if (layout == Layout.NCHW) {
+            return x;
+        }
+        DenseTensor converted = arena.allocate(precision, x.dim(0), x.dim(3), x.dim(1), x.dim(2));
+        ChannelsLast.toNCHWInto(x, converted);
+        return converted;
     }
 
     private boolean[] lastDropoutMask;
 
-    private double[] applyDropout(double[] input) {
+    private DenseTensor applyDropout(DenseTensor input) {
         if (!isTraining || dropoutRate == 0) {
             return input;
         }
 
-        double[] output = new double[input.length];
-        lastDropoutMask = new boolean[input.length];
+        DenseTensor output = arena.allocate(input.precision(), input.shape());
+        int n = output.size();
+        if (lastDropoutMask == null || lastDropoutMask.length != n) {
+            lastDropoutMask = new boolean[n];
+        }
         double scale = 1.0 / (1.0 - dropoutRate);
 
-        for (int i = 0; i < input.length; i++) {
+        for (int i = 0; i < n; i++) {
             if (random.nextDouble() > dropoutRate) {
-                output[i] = input[i] * scale;
+                output.setFlat(i, input.getFlat(i) * scale);
                 lastDropoutMask[i] = true;
             } else {
-                output[i] = 0;
+                output.setFlat(i, 0);
                 lastDropoutMask[i] = false;
             }
         }
@@ -286,21 +537,20 @@ public class ImprovedCNN {
         return output;
     }
 
-    private double[] applyDropoutBackward(double[] gradOutput, boolean[] mask) {
+    /**
+     * Dropoutの逆伝播（勾配をその場で更新）
+     */
+    private DenseTensor applyDropoutBackward(DenseTensor gradOutput, boolean[] mask) {
         if (!isTraining || dropoutRate == 0) {
             return gradOutput;
         }
 
-        double[] gradInput = new double[gradOutput.length];
         double scale = 1.0 / (1.0 - dropoutRate);
-
-        for (int i = 0; i < gradOutput.length; i++) {
-            if (mask[i]) {
-                gradInput[i] = gradOutput[i] * scale;
-            }
+        for (int i = 0; i < mask.length; i++) {
+            gradOutput.setFlat(i, mask[i] ? gradOutput.getFlat(i) * scale : 0);
         }
 
-        return gradInput;
+        return gradOutput;
     }
 
     /**
@@ -1,5 +1,8 @@
 package models;
 
+import math.DenseTensor;
+import math.Precision;
+
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -15,7 +18,7 @@ public class ModelSerializer {
 
     // ファイルフォーマットのマジックナンバー
     private static final int MAGIC_NUMBER = 0x4A4E4E31; // "JNN1"
-    private static final int VERSION = 1;
+    private static final int VERSION = 3; // v2: 数値精度を保存（v1はFLOAT64固定）、v3: Conv2の構成（separable）を保存
 
     /**
      * モデルを保存
@@ -38,9 +41,9 @@ public class ModelSerializer {
             ModelStructure structure = extractStructure(model);
             writeStructure(out, structure);
 
-            // 重みとバイアス
+            // 重みとバイアス（モデルの精度で書き込む）
             ModelWeights weights = extractWeights(model);
-            writeWeights(out, weights);
+            writeWeights(out, weights, structure.precision);
 
             System.out.println("Model saved to: " + filepath);
         }
@@ -60,19 +63,19 @@ public class ModelSerializer {
             }
 
             int version = in.readInt();
-            if (version != VERSION) {
+            if (version < 1 || version > VERSION) {
                 throw new IOException("Unsupported version: " + version);
             }
 
             // モデル構造を読み込み
-            ModelStructure structure = readStructure(in);
+            ModelStructure structure = readStructure(in, version);
 
-            // 新しいモデルインスタンスを作成
-            ImprovedCNN model = new ImprovedCNN(structure.learningRate);
+            // 新しいモデルインスタンスを作成（保存時の精度で構築）
+            ImprovedCNN model = new ImprovedCNN(structure.learningRate, structure.precision, structure.separable);
 
             // 重みとバイアスを読み込み
             ModelWeights weights = readWeights(in, structure);
-            applyWeights(model, weights);
+            applyWeights(model, weights, structure.precision);
 
             System.out.println("Model loaded from: " + filepath);
             return model;
@@ -86,10 +89,17 @@ public class ModelSerializer {
         // ImprovedCNNの構造は固定なので、ハードコード
         ModelStructure structure = new ModelStructure();
         structure.learningRate = 0.001; // デフォルト値
+        structure.precision = model.getPrecision();
 
         // Conv層の構造
         structure.conv1 = new ConvLayerStructure(1, 16, 3, 1, 1);
-        structure.conv2 = new ConvLayerStructure(16, 32, 3, 1, 1);
+        structure.separable = model.isSeparable();
+        if (structure.separable) {
+            structure.depthwise = new ConvLayerStructure(16, 16, 3, 1, 1);
+            structure.pointwise = new ConvLayerStructure(16, 32, 1, 1, 0);
+        } else {
+            structure.conv2 = new ConvLayerStructure(16, 32, 3, 1, 1);
+        }
 
         // FC層の構造
         structure.fc1 = new FCLayerStructure(32 * 8 * 8, 128);
@@ -110,10 +120,6 @@ public class ModelSerializer {
             conv1Field.setAccessible(true);
             ConvLayer conv1 = (ConvLayer) conv1Field.get(model);
 
-            java.lang.reflect.Field conv2Field = ImprovedCNN.class.getDeclaredField("conv2");
-            conv2Field.setAccessible(true);
-            ConvLayer conv2 = (ConvLayer) conv2Field.get(model);
-
             java.lang.reflect.Field fc1Field = ImprovedCNN.class.getDeclaredField("fc1");
             fc1Field.setAccessible(true);
             FullyConnectedLayer fc1 = (FullyConnectedLayer) fc1Field.get(model);
@@ -125,8 +131,18 @@ public class ModelSerializer {
             // Conv層の重みを抽出
             weights.conv1Weights = extractConvWeights(conv1);
             weights.conv1Bias = extractConvBias(conv1);
-            weights.conv2Weights = extractConvWeights(conv2);
-            weights.conv2Bias = extractConvBias(conv2);
+            if (model.isSeparable()) {
+                Object depthwise = layerField(model, "conv2Depthwise");
+                Object pointwise = layerField(model, "conv2Pointwise");
+                weights.depthwiseWeights = tensorField(DepthwiseConvLayer.class, depthwise, "weights").toArray4D();
+                weights.depthwiseBias = tensorField(DepthwiseConvLayer.class, depthwise, "bias").toArray();
+                weights.pointwiseWeights = tensorField(PointwiseConvLayer.class, pointwise, "weights").toArray2D();
+                weights.pointwiseBias = tensorField(PointwiseConvLayer.class, pointwise, "bias").toArray();
+            } else {
+                ConvLayer conv2 = (ConvLayer) layerField(model, "conv2");
+                weights.conv2Weights = extractConvWeights(conv2);
+                weights.conv2Bias = extractConvBias(conv2);
+            }
 
             // FC層の重みを抽出
             weights.fc1Weights = extractFCWeights(fc1);
@@ -140,13 +156,40 @@ public class ModelSerializer {
         }
     }
 
+    /**
+     * モデルの層のフィールドを取得
+     */
+    private static Object layerField(ImprovedCNN model, String name) throws Exception {
+        java.lang.reflect.Field field = ImprovedCNN.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(model);
+    }
+
+    /**
+     * 層のテンソルのフィールド（重み・バイアス）を取得
+     */
+    private static DenseTensor tensorField(Class<?> type, Object layer, String name) throws Exception {
+        java.lang.reflect.Field field = type.getDeclaredField(name);
+        field.setAccessible(true);
+        return (DenseTensor) field.get(layer);
+    }
+
+    /**
+     * 層のテンソルのフィールドを設定
+     */
+    private static void setTensorField(Class<?> type, Object layer, String name, DenseTensor value) throws Exception {
+        java.lang.reflect.Field field = type.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(layer, value);
+    }
+
     /**
      * Conv層の重みを抽出
      */
     private static double[][][][] extractConvWeights(ConvLayer layer) throws Exception {
         java.lang.reflect.Field weightsField = ConvLayer.class.getDeclaredField("weights");
         weightsField.setAccessible(true);
-        return (double[][][][]) weightsField.get(layer);
+        return ((DenseTensor) weightsField.get(layer)).toArray4D();
     }
 
     /**
@@ -155,7 +198,7 @@ public class ModelSerializer {
     private static double[] extractConvBias(ConvLayer layer) throws Exception {
         java.lang.reflect.Field biasField = ConvLayer.class.getDeclaredField("bias");
         biasField.setAccessible(true);
-        return (double[]) biasField.get(layer);
+        return ((DenseTensor) biasField.get(layer)).toArray();
     }
 
     /**
@@ -164,7 +207,7 @@ public class ModelSerializer {
     private static double[][] extractFCWeights(FullyConnectedLayer layer) throws Exception {
         java.lang.reflect.Field weightsField = FullyConnectedLayer.class.getDeclaredField("weights");
         weightsField.setAccessible(true);
-        return (double[][]) weightsField.get(layer);
+        return ((DenseTensor) weightsField.get(layer)).toArray2D();
     }
 
     /**
@@ -173,23 +216,19 @@ public class ModelSerializer {
     private static double[] extractFCBias(FullyConnectedLayer layer) throws Exception {
         java.lang.reflect.Field biasField = FullyConnectedLayer.class.getDeclaredField("bias");
         biasField.setAccessible(true);
-        return (double[]) biasField.get(layer);
+        return ((DenseTensor) biasField.get(layer)).toArray();
     }
 
     /**
      * 重みを適用
      */
-    private static void applyWeights(ImprovedCNN model, ModelWeights weights) {
+    private static void applyWeights(ImprovedCNN model, ModelWeights weights, Precision precision) {
         try {
             // プライベートフィールドにアクセス
             java.lang.reflect.Field conv1Field = ImprovedCNN.class.getDeclaredField("conv1");
             conv1Field.setAccessible(true);
             ConvLayer conv1 = (ConvLayer) conv1Field.get(model);
 
-            java.lang.reflect.Field conv2Field = ImprovedCNN.class.getDeclaredField("conv2");
-            conv2Field.setAccessible(true);
-            ConvLayer conv2 = (ConvLayer) conv2Field.get(model);
-
             java.lang.reflect.Field fc1Field = ImprovedCNN.class.getDeclaredField("fc1");
             fc1Field.setAccessible(true);
             FullyConnectedLayer fc1 = (FullyConnectedLayer) fc1Field.get(model);
@@ -199,39 +238,57 @@ public class ModelSerializer {
             FullyConnectedLayer fc2 = (FullyConnectedLayer) fc2Field.get(model);
 
             // 重みを設定
-            setConvWeights(conv1, weights.conv1Weights, weights.conv1Bias);
-            setConvWeights(conv2, weights.conv2Weights, weights.conv2Bias);
-            setFCWeights(fc1, weights.fc1Weights, weights.fc1Bias);
-            setFCWeights(fc2, weights.fc2Weights, weights.fc2Bias);
+            setConvWeights(conv1, weights.conv1Weights, weights.conv1Bias, precision);
+            if (model.isSeparable()) {
+                Object depthwise = layerField(model, "conv2Depthwise");
+                Object pointwise = layerField(model, "conv2Pointwise");
+                setTensorField(DepthwiseConvLayer.class, depthwise, "weights",
+                        DenseTensor.fromArray(weights.depthwiseWeights).toPrecision(precision));
+                setTensorField(DepthwiseConvLayer.class, depthwise, "bias",
+                        DenseTensor.fromArray(weights.depthwiseBias).toPrecision(precision));
+                setTensorField(PointwiseConvLayer.class, pointwise, "weights",
+                        DenseTensor.fromArray(weights.pointwiseWeights).toPrecision(precision));
+                setTensorField(PointwiseConvLayer.class, pointwise, "bias",
+                        DenseTensor.fromArray(weights.pointwiseBias).toPrecision(precision));
+            } else {
+                setConvWeights((ConvLayer) layerField(model, "conv2"),
+                        weights.conv2Weights, weights.conv2Bias, precision);
+            }
+            setFCWeights(fc1, weights.fc1Weights, weights.fc1Bias, precision);
+            setFCWeights(fc2, weights.fc2Weights, weights.fc2Bias, precision);
 
         } catch (Exception e) {
             throw new RuntimeException("Failed to apply weights", e);
         }
     }
 
-    private static void setConvWeights(ConvLayer layer, double[][][][] weights, double[] bias) throws Exception {
+    private static void setConvWeights(ConvLayer layer, double[][][][] weights, double[] bias,
+                                       Precision precision) throws Exception {
         java.lang.reflect.Field weightsField = ConvLayer.class.getDeclaredField("weights");
         weightsField.setAccessible(true);
-        weightsField.set(layer, weights);
+        weightsField.set(layer, DenseTensor.fromArray(weights).toPrecision(precision));
 
         java.lang.reflect.Field biasField = ConvLayer.class.getDeclaredField("bias");
         biasField.setAccessible(true);
-        biasField.set(layer, bias);
+        biasField.set(layer, DenseTensor.fromArray(bias).toPrecision(precision));
     }
 
-    private static void setFCWeights(FullyConnectedLayer layer, double[][] weights, double[] bias) throws Exception {
+    private static void setFCWeights(FullyConnectedLayer layer, double[][] weights, double[] bias,
+                                     Precision precision) throws Exception {
         java.lang.reflect.Field weightsField = FullyConnectedLayer.class.getDeclaredField("weights");
         weightsField.setAccessible(true);
-        weightsField.set(layer, weights);
+        weightsField.set(layer, DenseTensor.fromArray(weights).toPrecision(precision));
 
         java.lang.reflect.Field biasField = FullyConnectedLayer.class.getDeclaredField("bias");
         biasField.setAccessible(true);
-        biasField.set(layer, bias);
+        biasField.set(layer, DenseTensor.fromArray(bias).toPrecision(precision));
     }
 
     // 構造情報の書き込み/読み込み
     private static void writeStructure(DataOutputStream out, ModelStructure structure) throws IOException {
+        out.writeUTF(structure.precision.name());
         out.writeDouble(structure.learningRate);
+        out.writeBoolean(structure.separable);
 
         // Conv1
         out.writeInt(structure.conv1.inChannels);
@@ -240,12 +297,13 @@ public class ModelSerializer {
         out.writeInt(structure.conv1.stride);
         out.writeInt(structure.conv1.padding);
 
-        // Conv2
-        out.writeInt(structure.conv2.inChannels);
-        out.writeInt(structure.conv2.outChannels);
-        out.writeInt(structure.conv2.kernelSize);
-        out.writeInt(structure.conv2.stride);
-        out.writeInt(structure.conv2.padding);
+        // Conv2（separableならdepthwiseとpointwise）
+        if (structure.separable) {
+            writeConvStructure(out, structure.depthwise);
+            writeConvStructure(out, structure.pointwise);
+        } else {
+            writeConvStructure(out, structure.conv2);
+        }
 
         // FC1
         out.writeInt(structure.fc1.inputSize);
@@ -256,19 +314,32 @@ public class ModelSerializer {
         out.writeInt(structure.fc2.outputSize);
     }
 
-    private static ModelStructure readStructure(DataInputStream in) throws IOException {
+    private static ModelStructure readStructure(DataInputStream in, int version) throws IOException {
         ModelStructure structure = new ModelStructure();
+        if (version >= 2) {
+            try {
+                structure.precision = Precision.valueOf(in.readUTF());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Unknown precision", e);
+            }
+        } else {
+            structure.precision = Precision.FLOAT64;
+        }
         structure.learningRate = in.readDouble();
+        structure.separable = version >= 3 && in.readBoolean();
 
         // Conv1
         structure.conv1 = new ConvLayerStructure(
                 in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt()
         );
 
-        // Conv2
-        structure.conv2 = new ConvLayerStructure(
-                in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt()
-        );
+        // Conv2（separableならdepthwiseとpointwise）
+        if (structure.separable) {
+            structure.depthwise = readConvStructure(in);
+            structure.pointwise = readConvStructure(in);
+        } else {
+            structure.conv2 = readConvStructure(in);
+        }
 
         // FC1
         structure.fc1 = new FCLayerStructure(in.readInt(), in.readInt());
@@ -279,86 +350,140 @@ public class ModelSerializer {
         return structure;
     }
 
+    private static void writeConvStructure(DataOutputStream out, ConvLayerStructure conv) throws IOException {
+        out.writeInt(conv.inChannels);
+        out.writeInt(conv.outChannels);
+        out.writeInt(conv.kernelSize);
+        out.writeInt(conv.stride);
+        out.writeInt(conv.padding);
+    }
+
+    private static ConvLayerStructure readConvStructure(DataInputStream in) throws IOException {
+        return new ConvLayerStructure(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+    }
+
     // 重みの書き込み/読み込み
-    private static void writeWeights(DataOutputStream out, ModelWeights weights) throws IOException {
+    private static void writeWeights(DataOutputStream out, ModelWeights weights,
+                                     Precision precision) throws IOException {
         // Conv1
-        write4DArray(out, weights.conv1Weights);
-        write1DArray(out, weights.conv1Bias);
-
-        // Conv2
-        write4DArray(out, weights.conv2Weights);
-        write1DArray(out, weights.conv2Bias);
+        write4DArray(out, weights.conv1Weights, precision);
+        write1DArray(out, weights.conv1Bias, precision);
+
+        // Conv2（separableならdepthwiseとpointwise）
+        if (weights.depthwiseWeights != null) {
+            write4DArray(out, weights.depthwiseWeights, precision);
+            write1DArray(out, weights.depthwiseBias, precision);
+            write2DArray(out, weights.pointwiseWeights, precision);
+            write1DArray(out, weights.pointwiseBias, precision);
+        } else {
+            write4DArray(out, weights.conv2Weights, precision);
+            write1DArray(out, weights.conv2Bias, precision);
+        }
 
         // FC1
-        write2DArray(out, weights.fc1Weights);
-        write1DArray(out, weights.fc1Bias);
+        write2DArray(out, weights.fc1Weights, precision);
+        write1DArray(out, weights.fc1Bias, precision);
 
         // FC2
-        write2DArray(out, weights.fc2Weights);
-        write1DArray(out, weights.fc2Bias);
+        write2DArray(out, weights.fc2Weights, precision);
+        write1DArray(out, weights.fc2Bias, precision);
     }
 
     private static ModelWeights readWeights(DataInputStream in, ModelStructure structure) throws IOException {
         ModelWeights weights = new ModelWeights();
+        Precision precision = structure.precision;
 
         // Conv1
-        weights.conv1Weights = read4DArray(in, structure.conv1.outChannels,
+        weights.conv1Weights = read4DArray(in, precision, structure.conv1.outChannels,
                 structure.conv1.inChannels, structure.conv1.kernelSize, structure.conv1.kernelSize);
-        weights.conv1Bias = read1DArray(in, structure.conv1.outChannels);
-
-        // Conv2
-        weights.conv2Weights = read4DArray(in, structure.conv2.outChannels,
-                structure.conv2.inChannels, structure.conv2.kernelSize, structure.conv2.kernelSize);
-        weights.conv2Bias = read1DArray(in, structure.conv2.outChannels);
+        weights.conv1Bias = read1DArray(in, precision, structure.conv1.outChannels);
+
+        // Conv2（separableならdepthwiseとpointwise）
+        if (structure.separable) {
+            ConvLayerStructure dw = structure.depthwise;
+            ConvLayerStructure pw = structure.pointwise;
+            weights.depthwiseWeights = read4DArray(in, precision, dw.outChannels, 1, dw.kernelSize, dw.kernelSize);
+            weights.depthwiseBias = read1DArray(in, precision, dw.outChannels);
+            weights.pointwiseWeights = read2DArray(in, precision, pw.outChannels, pw.inChannels);
+            weights.pointwiseBias = read1DArray(in, precision, pw.outChannels);
+        } else {
+            weights.conv2Weights = read4DArray(in, precision, structure.conv2.outChannels,
+                    structure.conv2.inChannels, structure.conv2.kernelSize, structure.conv2.kernelSize);
+            weights.conv2Bias = read1DArray(in, precision, structure.conv2.outChannels);
+        }
 
         // FC1
-        weights.fc1Weights = read2DArray(in, structure.fc1.outputSize, structure.fc1.inputSize);
-        weights.fc1Bias = read1DArray(in, structure.fc1.outputSize);
+        weights.fc1Weights = read2DArray(in, precision, structure.fc1.outputSize, structure.fc1.inputSize);
+        weights.fc1Bias = read1DArray(in, precision, structure.fc1.outputSize);
 
         // FC2
-        weights.fc2Weights = read2DArray(in, structure.fc2.outputSize, structure.fc2.inputSize);
-        weights.fc2Bias = read1DArray(in, structure.fc2.outputSize);
+        weights.fc2Weights = read2DArray(in, precision, structure.fc2.outputSize, structure.fc2.inputSize);
+        weights.fc2Bias = read1DArray(in, precision, structure.fc2.outputSize);
 
         return weights;
     }
 
     // 配列の読み書きヘルパーメソッド
-    private static void write1DArray(DataOutputStream out, double[] array) throws IOException {
+    // 各配列の先頭には次元数分のサイズが書かれている（読み込み時に構造と照合する）
+    private static void writeValue(DataOutputStream out, double val, Precision precision) throws IOException {
+        if (precision == Precision.FLOAT32) {
+            out.writeFloat((float) val);
+        } else {
+            out.writeDouble(val);
+        }
+    }
+
+    private static double readValue(DataInputStream in, Precision precision) throws IOException {
+        return precision == Precision.FLOAT32 ? in.readFloat() : in.readDouble();
+    }
+
+    private static void readDims(DataInputStream in, int... expected) throws IOException {
+        for (int d : expected) {
+            int actual = in.readInt();
+            if (actual != d) {
+                throw new IOException("Array size mismatch: expected " + d + " but was " + actual);
+            }
+        }
+    }
+
+    private static void write1DArray(DataOutputStream out, double[] array, Precision precision) throws IOException {
         out.writeInt(array.length);
         for (double val : array) {
-            out.writeDouble(val);
+            writeValue(out, val, precision);
         }
     }
 
-    private static double[] read1DArray(DataInputStream in, int length) throws IOException {
+    private static double[] read1DArray(DataInputStream in, Precision precision, int length) throws IOException {
+        readDims(in, length);
         double[] array = new double[length];
         for (int i = 0; i < length; i++) {
-            array[i] = in.readDouble();
+            array[i] = readValue(in, precision);
         }
         return array;
     }
 
-    private static void write2DArray(DataOutputStream out, double[][] array) throws IOException {
+    private static void write2DArray(DataOutputStream out, double[][] array, Precision precision) throws IOException {
         out.writeInt(array.length);
         out.writeInt(array[0].length);
         for (double[] row : array) {
             for (double val : row) {
-                out.writeDouble(val);
+                writeValue(out, val, precision);
             }
         }
     }
 
-    private static double[][] read2DArray(DataInputStream in, int rows, int cols) throws IOException {
+    private static double[][] read2DArray(DataInputStream in, Precision precision, int rows, int cols) throws IOException {
+        readDims(in, rows, cols);
         double[][] array = new double[rows][cols];
         for (int i = 0; i < rows; i++) {
             for (int j = 0; j < cols; j++) {
-                array[i][j] = in.readDouble();
+                array[i][j] = readValue(in, precision);
             }
         }
         return array;
     }
 
-    private static void write4DArray(DataOutputStream out, double[][][][] array) throws IOException {
+    private static void write4DArray(DataOutputStream out, double[][][][] array, Precision precision) throws IOException {
         out.writeInt(array.length);
         out.writeInt(array[0].length);
         out.writeInt(array[0][0].length);
@@ -368,20 +493,22 @@ public class ModelSerializer {
             for (double[][] dim2 : dim1) {
                 for (double[] dim3 : dim2) {
                     for (double val : dim3) {
-                        out.writeDouble(val);
+                        writeValue(out, val, precision);
                     }
                 }
             }
         }
     }
 
-    private static double[][][][] read4DArray(DataInputStream in, int d1, int d2, int d3, int d4) throws IOException {
+    private static double[][][][] read4DArray(DataInputStream in, Precision precision,
+                                              int d1, int d2, int d3, int d4) throws IOException {
+        readDims(in, d1, d2, d3, d4);
         double[][][][] array = new double[d1][d2][d3][d4];
         for (int i = 0; i < d1; i++) {
             for (int j = 0; j < d2; j++) {
                 for (int k = 0; k < d3; k++) {
                     for (int l = 0; l < d4; l++) {
-                        array[i][j][k][l] = in.readDouble();
+                        array[i][j][k][l] = readValue(in, precision);
                     }
                 }
             }
@@ -391,9 +518,13 @@ public class ModelSerializer {
 
     // 内部クラス
     private static class ModelStructure {
+        Precision precision;
         double learningRate;
         ConvLayerStructure conv1;
         ConvLayerStructure conv2;
+        boolean separable;
+        ConvLayerStructure depthwise;  // separableのときだけ
+        ConvLayerStructure pointwise;
         FCLayerStructure fc1;
         FCLayerStructure fc2;
     }
@@ -424,5 +555,8 @@ public class ModelSerializer {
         double[] conv1Bias, conv2Bias;
         double[][] fc1Weights, fc2Weights;
         double[] fc1Bias, fc2Bias;
+        double[][][][] depthwiseWeights;  // separableのときだけ
+        double[][] pointwiseWeights;
+        double[] depthwiseBias, pointwiseBias;
     }
 }
\ No newline at end of file
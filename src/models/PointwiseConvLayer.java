@@ -0,0 +1,229 @@
+package models;
+
+import alg.Adam;
+import math.ConvolutionOps;
+import math.DenseTensor;
+import math.FusedConvolution;
+import math.Precision;
+import math.Tensor;
+import math.TensorArena;
+
+import java.util.Random;
+
+/**
+ * 1x1（pointwise）畳み込み層
+ * 画像ごとに [outChannels][inChannels] × [inChannels][height * width] の行列積で計算する（im2colが不要）
+ * 重みは [outChannels][inChannels] の2次元で持つ
+ */
+class PointwiseConvLayer {
+    private DenseTensor weights;  // [outChannels][inChannels]
+    private DenseTensor bias;     // [outChannels]
+    private DenseTensor gradWeights;
+    private DenseTensor gradBias;
+
+    private double learningRate;
+    private final int inChannels, outChannels;
+
+    // Adamオプティマイザー用
+    private DenseTensor mWeights, vWeights;
+    private DenseTensor mBias, vBias;
+    private int t = 0;
+
+    // 逆伝播用のキャッシュ
+    private DenseTensor lastInput;
+
+    // 出力・勾配のバッファを借りるアリーナ（モデルに組み込まれたらモデルと共有）
+    private TensorArena arena = new TensorArena();
+    private boolean ownsArena = true;
+
+    private final Precision precision;
+
+    // ReLU+プーリングの融合（最大値の位置とReLUのマスク、形状が変わったときだけ確保し直す）
+    private byte[] poolArgmax = new byte[0];
+    private boolean[] poolMask = new boolean[0];
+    private int poolSize, poolStride;
+    private int convHeight, convWidth;
+
+    public PointwiseConvLayer(int inChannels, int outChannels, double learningRate) {
+        this(inChannels, outChannels, learningRate, Precision.FLOAT64);
+    }
+
+    public PointwiseConvLayer(int inChannels, int outChannels, double learningRate, Precision precision) {
+        this(inChannels, outChannels, learningRate, precision, new Random());
+    }
+
+    /**
+     * @param rand 重みの初期化に使う乱数（シードを固定すれば同じ重みになる）
+     */
+    PointwiseConvLayer(int inChannels, int outChannels, double learningRate, Precision precision, Random rand) {
+        this.inChannels = inChannels;
+        this.outChannels = outChannels;
+        this.learningRate = learningRate;
+        this.precision = precision;
+
+        // He初期化
+        double scale = Math.sqrt(2.0 / inChannels);
+
+        weights = DenseTensor.zeros(precision, outChannels, inChannels);
+        bias = DenseTensor.zeros(precision, outChannels);
+
+        for (int i = 0; i < weights.size(); i++) {
+            weights.setFlat(i, rand.nextGaussian() * scale);
+        }
+
+        // Adamの初期化
+        mWeights = DenseTensor.zeros(precision, outChannels, inChannels);
+        vWeights = DenseTensor.zeros(precision, outChannels, inChannels);
+        mBias = DenseTensor.zeros(precision, outChannels);
+        vBias = DenseTensor.zeros(precision, outChannels);
+    }
+
+    private PointwiseConvLayer(PointwiseConvLayer shared) {
+        this.inChannels = shared.inChannels;
+        this.outChannels = shared.outChannels;
+        this.learningRate = shared.learningRate;
+        this.precision = shared.precision;
+        this.weights = shared.weights;
+        this.bias = shared.bias;
+    }
+
+    /**
+     * 重みとバイアスを共有する複製（データ並列学習のワーカー用）
+     * 活性化と勾配は別に持ち、Adamの状態は最初のupdateWeightsで作る
+     */
+    PointwiseConvLayer replica() {
+        return new PointwiseConvLayer(this);
+    }
+
+    /**
+     * 他の層（複製）の勾配をこの層の勾配に足し込む
+     */
+    void addGradients(PointwiseConvLayer other) {
+        Tensor.addInPlace(gradWeights, other.gradWeights);
+        Tensor.addInPlace(gradBias, other.gradBias);
+    }
+
+    /**
+     * バッファを借りるアリーナを設定（モデルが1ステップごとにreset()する）
+     */
+    void setArena(TensorArena arena) {
+        this.arena = arena;
+        this.ownsArena = false;
+    }
+
+    /**
+     * 順伝播
+     * 出力はアリーナから借りたバッファで、単独で使う場合は次のforward呼び出しで上書きされる
+     * @param input 入力 [batch][inChannels][height][width]（3次元なら1枚として扱う）
+     * @return 出力 [batch][outChannels][height][width]
+     */
+    public DenseTensor forward(DenseTensor input) {
+        if (input.rank() == 3) {
+            input = input.reshape(1, input.dim(0), input.dim(1), input.dim(2));
+        }
+        if (ownsArena) {
+            arena.reset();
+        }
+        input = input.toPrecision(precision);
+        this.lastInput = input;
+
+        DenseTensor output = arena.allocate(precision, input.dim(0), outChannels, input.dim(2), input.dim(3));
+        ConvolutionOps.convolvePointwiseInto(input, weights, bias, output);
+        return output;
+    }
+
+    /**
+     * 順伝播（1x1畳み込み → ReLU → 最大プーリング）
+     * 学習時は最大値の位置とReLUのマスクを記録し、{@link #backwardReluPool}で使う
+     * @param input 入力 [batch][inChannels][height][width]（3次元なら1枚として扱う）
+     * @param training trueなら逆伝播用に記録する
+     * @return プーリング後の出力 [batch][outChannels][pooledHeight][pooledWidth]
+     */
+    public DenseTensor forwardReluPool(DenseTensor input, int poolSize, int poolStride, boolean training) {
+        DenseTensor conv = forward(input);
+        int batch = conv.dim(0);
+        this.poolSize = poolSize;
+        this.poolStride = poolStride;
+        this.convHeight = conv.dim(2);
+        this.convWidth = conv.dim(3);
+        int pooledHeight = (convHeight - poolSize) / poolStride + 1;
+        int pooledWidth = (convWidth - poolSize) / poolStride + 1;
+
+        int pooled = batch * outChannels * pooledHeight * pooledWidth;
+        if (training && poolArgmax.length != pooled) {
+            poolArgmax = new byte[pooled];
+            poolMask = new boolean[pooled];
+        }
+        DenseTensor output = arena.allocate(precision, batch, outChannels, pooledHeight, pooledWidth);
+        FusedConvolution.reluMaxPoolInto(conv, poolSize, poolStride,
+                training ? poolArgmax : null, training ? poolMask : null, output);
+        return output;
+    }
+
+    /**
+     * {@link #forwardReluPool}の逆伝播
+     * @param gradOutput プーリング後の出力に対する勾配 [batch][outChannels][pooledHeight][pooledWidth]
+     * @return 入力に対する勾配 [batch][inChannels][height][width]
+     */
+    public DenseTensor backwardReluPool(DenseTensor gradOutput) {
+        DenseTensor gradConv = arena.allocate(precision, gradOutput.dim(0), outChannels, convHeight, convWidth);
+        FusedConvolution.reluMaxPoolBackwardInto(gradOutput, poolArgmax, poolMask, poolSize, poolStride, gradConv);
+        return backward(gradConv, lastInput);
+    }
+
+    /**
+     * 逆伝播（重みの勾配と入力勾配はどちらも1回の行列積）
+     * 返す入力勾配と重みの勾配はアリーナから借りたバッファ
+     * @param gradOutput 出力に対する勾配 [batch][outChannels][height][width]
+     * @param input 順伝播時の入力（キャッシュがあればそちらを使う）
+     * @return 入力に対する勾配 [batch][inChannels][height][width]
+     */
+    public DenseTensor backward(DenseTensor gradOutput, DenseTensor input) {
+        if (lastInput != null) {
+            input = lastInput;
+        }
+        if (input.rank() == 3) {
+            input = input.reshape(1, input.dim(0), input.dim(1), input.dim(2));
+        }
+        if (gradOutput.rank() == 3) {
+            gradOutput = gradOutput.reshape(1, gradOutput.dim(0), gradOutput.dim(1), gradOutput.dim(2));
+        }
+        input = input.toPrecision(precision);
+        DenseTensor grad = gradOutput.toPrecision(precision).contiguous();
+
+        gradBias = arena.allocate(precision, outChannels);
+        ConvolutionOps.convolveBackwardBiasInto(grad, gradBias);
+
+        gradWeights = arena.allocate(precision, outChannels, inChannels);
+        ConvolutionOps.convolvePointwiseBackwardWeightsInto(input, grad, gradWeights);
+
+        DenseTensor gradInput = arena.allocate(precision, input.shape());
+        ConvolutionOps.convolvePointwiseBackwardInputInto(grad, weights, gradInput);
+        return gradInput;
+    }
+
+    /**
+     * Adamによる重み更新
+     */
+    public void updateWeights() {
+        if (mWeights == null) {
+            // 複製は最初の更新で自分のAdamの状態を作る
+            mWeights = DenseTensor.zeros(precision, weights.shape());
+            vWeights = DenseTensor.zeros(precision, weights.shape());
+            mBias = DenseTensor.zeros(precision, bias.shape());
+            vBias = DenseTensor.zeros(precision, bias.shape());
+        }
+        t++;
+        Adam.step(bias, gradBias, mBias, vBias, learningRate, t);
+        Adam.step(weights, gradWeights, mWeights, vWeights, learningRate, t);
+    }
+
+    public void setLearningRate(double lr) {
+        this.learningRate = lr;
+    }
+
+    // ゲッター（デバッグ用）
+    public DenseTensor getWeights() { return weights; }
+    public DenseTensor getBias() { return bias; }
+    public Precision getPrecision() { return precision; }
+}
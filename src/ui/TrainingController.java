@@ -1,10 +1,19 @@
 package ui;
 
+import math.DenseTensor;
+import math.Layout;
+import math.OffHeapArena;
+import math.OffHeapTensor;
+import math.Precision;
+import models.DataParallelTrainer;
+import models.HogwildTrainer;
 import models.ImprovedCNN;
 import models.ModelSerializer;
 import data.MINIST;
 import javax.swing.*;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 import java.io.File;
 
 /**
@@ -21,6 +30,15 @@ public class TrainingController {
     private int batchSize;
     private final double learningRate;
     private boolean useDataAugmentation;
+    private boolean offHeapData = false;
+    private int workers = 1;
+    private boolean hogwild = false;
+    private final Long seed;  // nullなら毎回異なる乱数
+
+    // 1回の学習で使う乱数とデータ並列の学習器（workersが2以上のときだけ）
+    private Random shuffleRand;
+    private DataParallelTrainer parallelTrainer;
+    private volatile HogwildTrainer hogwildTrainer;
 
     // 学習状態
     private volatile boolean isTraining = false;
@@ -43,19 +61,56 @@ public class TrainingController {
         void onError(String error);                    // エラーが発生したとき
         void onModelSaved(String filepath);            // モデルが保存されたとき
         void onModelLoaded(String filepath);           // モデルが読み込まれたとき
+
+        /**
+         * エポックのスループット（サンプル/秒）と損失曲線（同期ならバッチごと、Hogwildならバッチサイズ枚ごとの平均損失）
+         */
+        default void onEpochStats(int epoch, double samplesPerSecond, double[] lossCurve) {
+        }
     }
 
     /**
      * コンストラクタ
      */
     public TrainingController(int epochs, int batchSize, double learningRate, boolean useDataAugmentation) {
+        this(epochs, batchSize, learningRate, useDataAugmentation, Precision.FLOAT64);
+    }
+
+    /**
+     * コンストラクタ（数値精度を指定）
+     * @param precision モデルの精度（FLOAT32なら重みと活性化をfloatで保持）
+     */
+    public TrainingController(int epochs, int batchSize, double learningRate, boolean useDataAugmentation,
+                              Precision precision) {
+        this(epochs, batchSize, learningRate, useDataAugmentation, precision, null);
+    }
+
+    /**
+     * コンストラクタ（数値精度と乱数のシードを指定）
+     * 重みの初期値・データ生成・シャッフル・データ拡張・Dropoutの乱数をシードから作るので、
+     * 同じシードと同じワーカー数なら学習結果が毎回同じになる
+     * @param seed 乱数のシード
+     */
+    public TrainingController(int epochs, int batchSize, double learningRate, boolean useDataAugmentation,
+                              Precision precision, long seed) {
+        this(epochs, batchSize, learningRate, useDataAugmentation, precision, Long.valueOf(seed));
+    }
+
+    private TrainingController(int epochs, int batchSize, double learningRate, boolean useDataAugmentation,
+                               Precision precision, Long seed) {
         this.epochs = epochs;
         this.batchSize = batchSize;
         this.learningRate = learningRate;
         this.useDataAugmentation = useDataAugmentation;
-
-        this.model = new ImprovedCNN(learningRate);
-        this.dataGenerator = new MINIST();
+        this.seed = seed;
+
+        if (seed != null) {
+            this.model = new ImprovedCNN(learningRate, precision, false, Layout.NCHW, seed);
+            this.dataGenerator = new MINIST(seed);
+        } else {
+            this.model = new ImprovedCNN(learningRate, precision);
+            this.dataGenerator = new MINIST();
+        }
     }
 
     /**
@@ -65,6 +120,41 @@ public class TrainingController {
         this.listener = listener;
     }
 
+    /**
+     * 訓練データをヒープ外メモリに置くか（次のstartTrainingから有効）
+     * trueなら画像をOffHeapTensorに格納し、GCの走査対象から外す
+     */
+    public void setOffHeapData(boolean offHeapData) {
+        this.offHeapData = offHeapData;
+    }
+
+    /**
+     * データ並列の学習に使うスレッド数（次のstartTrainingから有効、1なら呼び出したスレッドだけで学習）
+     * 各バッチをスレッド数に分けて勾配を計算し、足し合わせてから1回だけ重みを更新する
+     */
+    public void setWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Worker count must be positive: " + workers);
+        }
+        this.workers = workers;
+    }
+
+    /**
+     * Hogwild方式で学習するか（次のstartTrainingから有効）
+     * trueなら各スレッドが別々のサンプルを1枚ずつ学習し、ロックを取らずに共有の重みを更新する
+     * （同期のデータ並列より速いが、シードを固定しても結果は毎回変わる）
+     */
+    public void setHogwild(boolean hogwild) {
+        this.hogwild = hogwild;
+    }
+
+    /**
+     * データ並列の学習に使うスレッド数
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
     /**
      * モデルを取得
      */
@@ -93,6 +183,10 @@ public class TrainingController {
      */
     public void stopTraining() {
         stopRequested = true;
+        HogwildTrainer trainer = hogwildTrainer;
+        if (trainer != null) {
+            trainer.stop();
+        }
     }
 
     /**
@@ -106,13 +200,21 @@ public class TrainingController {
      * 学習の実行
      */
     private void runTraining() {
+        TrainingData trainingData = null;
         try {
             // 訓練データの生成
             notifyStatus("Generating training data...");
-            TrainingData trainingData = generateTrainingData();
-
-            // データ拡張用のRandom
-            Random augmentRand = new Random();
+            trainingData = generateTrainingData();
+
+            // シャッフルとデータ拡張用のRandom
+            shuffleRand = seed != null ? new Random(seed) : new Random();
+            Random augmentRand = seed != null ? new Random(seed + 1) : new Random();
+            long workerSeed = seed != null ? seed : System.nanoTime();
+            if (hogwild) {
+                hogwildTrainer = new HogwildTrainer(model, workers, workerSeed);
+            } else if (workers > 1) {
+                parallelTrainer = new DataParallelTrainer(model, workers, workerSeed);
+            }
 
             // エポックごとの学習
             for (int epoch = 0; epoch < epochs && !stopRequested; epoch++) {
@@ -120,13 +222,18 @@ public class TrainingController {
                 notifyProgress((epoch * 100) / epochs);
 
                 // データをシャッフル
-                shuffleData(trainingData.images, trainingData.labels);
+                shuffleData(trainingData);
 
                 // ミニバッチ学習
-                double epochLoss = trainEpoch(trainingData, augmentRand, epoch);
+                double epochLoss = hogwildTrainer != null ? trainEpochHogwild(trainingData, epoch)
+                        : trainEpoch(trainingData, augmentRand, epoch);
 
                 // エポック終了処理
-                model.endEpoch();
+                if (hogwildTrainer != null) {
+                    hogwildTrainer.endEpoch();
+                } else {
+                    model.endEpoch();
+                }
                 notifyEpochCompleted(epoch + 1, epochLoss);
 
                 // 定期的に評価
@@ -145,6 +252,18 @@ public class TrainingController {
             notifyError("Training error: " + e.getMessage());
             e.printStackTrace();
         } finally {
+            if (trainingData != null) {
+                trainingData.close();
+            }
+            if (parallelTrainer != null) {
+                parallelTrainer.close();
+                parallelTrainer = null;
+            }
+            if (hogwildTrainer != null) {
+                hogwildTrainer.close();
+                hogwildTrainer = null;
+            }
+
             // 学習完了後に自動保存
             if (!stopRequested) {
                 notifyStatus("Saving model...");
@@ -161,13 +280,24 @@ public class TrainingController {
      */
     private TrainingData generateTrainingData() {
         int trainSize = 6000;
-        double[][][][] images = new double[trainSize][1][32][32];  // 32x32画像
         int[] labels = new int[trainSize];
+        TrainingData data;
+        if (offHeapData) {
+            OffHeapArena arena = OffHeapArena.open();
+            data = new TrainingData(arena, arena.allocate(model.getPrecision(), trainSize, 1, 32, 32), labels);
+        } else {
+            data = new TrainingData(new double[trainSize][1][32][32], labels);  // 32x32画像
+        }
 
         // 各数字を均等に生成
         for (int i = 0; i < trainSize; i++) {
             int digit = i % 10;
-            images[i][0] = dataGenerator.generateDigit(digit, 0.1);
+            double[][] image = dataGenerator.generateDigit(digit, 0.1);
+            if (data.images != null) {
+                data.images[i][0] = image;
+            } else {
+                data.offHeapImages.store(i, DenseTensor.fromArray(image));
+            }
             labels[i] = digit;
 
             // 進捗更新
@@ -176,7 +306,7 @@ public class TrainingController {
             }
         }
 
-        return new TrainingData(images, labels);
+        return data;
     }
 
     /**
@@ -184,41 +314,70 @@ public class TrainingController {
      */
     private double trainEpoch(TrainingData data, Random augmentRand, int epochIndex) {
         double epochLoss = 0.0;
-        int numBatches = data.images.length / batchSize;
+        int numBatches = data.size() / batchSize;
+        double[] lossCurve = new double[numBatches];
+        long startTime = System.nanoTime();
 
-        for (int batch = 0; batch < numBatches && !stopRequested; batch++) {
+        int batch = 0;
+        for (; batch < numBatches && !stopRequested; batch++) {
             double batchLoss = trainBatch(data, batch, augmentRand, epochIndex);
             epochLoss += batchLoss;
+            lossCurve[batch] = batchLoss;
 
             // バッチごとの進捗更新
             int currentProgress = ((epochIndex * numBatches + batch) * 100) / (epochs * numBatches);
             notifyProgress(currentProgress);
         }
 
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        notifyEpochStats(epochIndex + 1, seconds > 0 ? batch * batchSize / seconds : 0.0,
+                Arrays.copyOf(lossCurve, batch));
         return epochLoss / numBatches;
     }
 
     /**
-     * 1バッチの学習
+     * Hogwild方式の1エポックの学習（データ拡張にはスレッドごとの乱数を使う）
+     */
+    private double trainEpochHogwild(TrainingData data, int epochIndex) {
+        boolean augment = useDataAugmentation && epochIndex < epochs - 2;
+        HogwildTrainer.Report report = hogwildTrainer.trainEpoch(i -> {
+            if (!augment) {
+                return data.images != null ? DenseTensor.fromArray(data.images[i]) : data.loadCopy(i);
+            }
+            double[][][] image = data.images != null ? data.images[i] : data.loadCopy(i).toArray3D();
+            return DenseTensor.fromArray(ImprovedCNN.augmentImage(image, ThreadLocalRandom.current()));
+        }, data.labels, batchSize);
+
+        notifyProgress(((epochIndex + 1) * 100) / epochs);
+        notifyEpochStats(epochIndex + 1, report.getSamplesPerSecond(), report.lossCurve);
+        return report.meanLoss;
+    }
+
+    /**
+     * 1バッチの学習（バッチ全体で1回の順伝播・逆伝播と1回の重みの更新）
      */
     private double trainBatch(TrainingData data, int batchIndex, Random augmentRand, int epochIndex) {
-        double batchLoss = 0.0;
         int start = batchIndex * batchSize;
-        int end = Math.min(start + batchSize, data.images.length);
-
-        for (int i = start; i < end; i++) {
-            // データ拡張
-            double[][][] image = data.images[i];
-            if (useDataAugmentation && epochIndex < epochs - 2) {
-                image = ImprovedCNN.augmentImage(image, augmentRand);
+        int end = Math.min(start + batchSize, data.size());
+        boolean augment = useDataAugmentation && epochIndex < epochs - 2;
+        int[] labels = Arrays.copyOfRange(data.labels, start, end);
+
+        if (data.images != null || augment) {
+            double[][][][] images = new double[end - start][][][];
+            for (int i = start; i < end; i++) {
+                // データ拡張
+                double[][][] image = data.image(i);
+                if (augment) {
+                    image = ImprovedCNN.augmentImage(image, augmentRand);
+                }
+                images[i - start] = image;
             }
-
-            // 学習
-            double loss = model.train(image, data.labels[i]);
-            batchLoss += loss;
+            return parallelTrainer != null ? parallelTrainer.trainBatch(images, labels)
+                    : model.trainBatch(images, labels);
         }
-
-        return batchLoss / (end - start);
+        // ヒープ外のデータは使い回すバッファへまとめて読み込む
+        DenseTensor batch = data.loadBatch(start, end);
+        return parallelTrainer != null ? parallelTrainer.trainBatch(batch, labels) : model.trainBatch(batch, labels);
     }
 
     /**
@@ -349,15 +508,24 @@ public class TrainingController {
     /**
      * データのシャッフル
      */
-    private void shuffleData(double[][][][] images, int[] labels) {
-        Random rand = new Random();
-        for (int i = images.length - 1; i > 0; i--) {
+    private void shuffleData(TrainingData data) {
+        Random rand = shuffleRand;
+        double[][][][] images = data.images;
+        int[] order = data.order;
+        int[] labels = data.labels;
+        for (int i = labels.length - 1; i > 0; i--) {
             int j = rand.nextInt(i + 1);
 
-            // 画像の交換
-            double[][][] tempImage = images[i];
-            images[i] = images[j];
-            images[j] = tempImage;
+            // 画像の交換（ヒープ外のデータは並び順だけを交換）
+            if (images != null) {
+                double[][][] tempImage = images[i];
+                images[i] = images[j];
+                images[j] = tempImage;
+            } else {
+                int tempIndex = order[i];
+                order[i] = order[j];
+                order[j] = tempIndex;
+            }
 
             // ラベルの交換
             int tempLabel = labels[i];
@@ -386,6 +554,12 @@ public class TrainingController {
         }
     }
 
+    private void notifyEpochStats(int epoch, double samplesPerSecond, double[] lossCurve) {
+        if (listener != null) {
+            SwingUtilities.invokeLater(() -> listener.onEpochStats(epoch, samplesPerSecond, lossCurve));
+        }
+    }
+
     private void notifyAccuracyUpdated(double accuracy) {
         if (listener != null) {
             SwingUtilities.invokeLater(() -> listener.onAccuracyUpdated(accuracy));
@@ -418,13 +592,78 @@ public class TrainingController {
 
     // ========== 内部クラス ==========
 
-    private static class TrainingData {
-        final double[][][][] images;
+    private static class TrainingData implements AutoCloseable {
+        final double[][][][] images;         // ヒープ上の画像（ヒープ外ならnull）
+        final OffHeapTensor offHeapImages;   // ヒープ外の画像 [n][1][32][32]
+        final int[] order;                   // ヒープ外の画像の並び順
         final int[] labels;
+        private final OffHeapArena arena;
+        private DenseTensor sample;          // 読み込み用のバッファ
+        private DenseTensor batch;           // バッチの読み込み用のバッファ
 
         TrainingData(double[][][][] images, int[] labels) {
             this.images = images;
+            this.offHeapImages = null;
+            this.order = null;
             this.labels = labels;
+            this.arena = null;
+        }
+
+        TrainingData(OffHeapArena arena, OffHeapTensor images, int[] labels) {
+            this.images = null;
+            this.offHeapImages = images;
+            this.order = new int[labels.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            this.labels = labels;
+            this.arena = arena;
+        }
+
+        int size() {
+            return labels.length;
+        }
+
+        /**
+         * i番目の画像を読み込む（返すバッファは次の呼び出しで上書きされる）
+         */
+        DenseTensor load(int i) {
+            if (sample == null) {
+                sample = DenseTensor.zeros(offHeapImages.precision(), 1, 32, 32);
+            }
+            offHeapImages.load(order[i], sample);
+            return sample;
+        }
+
+        /**
+         * start番目からend番目の手前までの画像をまとめて読み込む（返すバッファは次の呼び出しで上書きされる）
+         */
+        DenseTensor loadBatch(int start, int end) {
+            batch = DenseTensor.reuse(batch, offHeapImages.precision(), end - start, 1, 32, 32);
+            for (int i = start; i < end; i++) {
+                offHeapImages.load(order[i], batch.slice(i - start));
+            }
+            return batch;
+        }
+
+        /**
+         * i番目の画像を新しいバッファに読み込む（複数のスレッドから呼んでよい）
+         */
+        DenseTensor loadCopy(int i) {
+            DenseTensor copy = DenseTensor.zeros(offHeapImages.precision(), 1, 32, 32);
+            offHeapImages.load(order[i], copy);
+            return copy;
+        }
+
+        double[][][] image(int i) {
+            return images != null ? images[i] : load(i).toArray3D();
+        }
+
+        @Override
+        public void close() {
+            if (arena != null) {
+                arena.close();
+            }
         }
     }
 
@@ -0,0 +1,60 @@
+package math;
+
+import java.util.Random;
+
+/**
+ * {@link FusedConvolution}を畳み込み → ReLU + 最大プーリングの順の計算と比べるテスト
+ * 帯の並列化と帯の中の行列積の並列化が重なるよう、conv2の形状（16→32、16×16、3×3、パディング1、
+ * プーリング2）を大きいバッチで繰り返す（複数コアで実行する、例: -XX:ActiveProcessorCount=8）
+ */
+public class FusedConvolutionTest {
+
+    public static void main(String[] args) {
+        // バッチ1は帯が1つだけになり、帯の中の行列積だけを並列化する
+        for (int batch : new int[]{1, 64}) {
+            matchesUnfused(Precision.FLOAT64, batch, 1e-12);
+            matchesUnfused(Precision.FLOAT32, batch, 1e-4);
+        }
+    }
+
+    static void matchesUnfused(Precision precision, int batch, double tolerance) {
+        Random rand = new Random(7);
+        int inChannels = 16;
+        int outChannels = 32;
+        int size = 16;
+        int pooled = FusedConvolution.pooledSize(size, 3, 1, 1, 2, 2);
+        DenseTensor kernels = random(precision, rand, outChannels, inChannels, 3, 3);
+        DenseTensor bias = random(precision, rand, outChannels);
+        DenseTensor conv = DenseTensor.zeros(precision, batch, outChannels, size, size);
+        DenseTensor expected = DenseTensor.zeros(precision, batch, outChannels, pooled, pooled);
+        DenseTensor actual = DenseTensor.zeros(precision, batch, outChannels, pooled, pooled);
+        DenseTensor col = null;
+
+        for (int iter = 0; iter < 50; iter++) {
+            DenseTensor input = random(precision, rand, batch, inChannels, size, size);
+            if (col == null) {
+                col = DenseTensor.zeros(precision, ParallelConvolution.im2colBatchShape(input, 3, 3, 1, 1));
+            }
+            ConvolutionOps.convolveDirectInto(input, kernels, bias, 1, 1, conv);
+            FusedConvolution.reluMaxPoolInto(conv, 2, 2, null, null, expected);
+            // 帯ごとにim2colを作る版と、バッチ全体のim2col行列を読む版を交互に試す
+            FusedConvolution.convReluMaxPoolInto(input, kernels, bias, 1, 1, 2, 2,
+                    null, null, iter % 2 == 0 ? null : col, actual);
+            for (int i = 0; i < actual.size(); i++) {
+                double error = Math.abs(expected.getFlat(i) - actual.getFlat(i));
+                if (!(error <= tolerance)) {
+                    throw new AssertionError(precision + " batch " + batch + " iteration " + iter + " element " + i
+                            + ": error " + error + " exceeds " + tolerance);
+                }
+            }
+        }
+    }
+
+    private static DenseTensor random(Precision precision, Random rand, int... shape) {
+        DenseTensor t = DenseTensor.zeros(precision, shape);
+        for (int i = 0; i < t.size(); i++) {
+            t.setFlat(i, rand.nextDouble() * 2 - 1);
+        }
+        return t;
+    }
+}
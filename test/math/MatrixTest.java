@@ -0,0 +1,79 @@
+package math;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link Matrix}の並列化のテスト
+ * 並列化を確かめるため、1コアの環境では -XX:ActiveProcessorCount=8 などを付けて実行する
+ */
+public class MatrixTest {
+
+    public static void main(String[] args) {
+        fc1GemvSplits();
+        parallelGemvMatchesSequential();
+    }
+
+    /**
+     * FC1のGEMV（128×2048 = 2^18）が既定の閾値で複数のタスクに分かれる
+     */
+    static void fc1GemvSplits() {
+        if (Runtime.getRuntime().availableProcessors() < 2) {
+            throw new AssertionError("Run with at least 2 processors (e.g. -XX:ActiveProcessorCount=8)");
+        }
+        // gemv/gemvT/dotMVIntoと同じ分け方
+        AtomicInteger tasks = new AtomicInteger();
+        Matrix.parallelRows(128, 2048, Matrix.getGemvParallelThreshold(), (start, end) -> tasks.incrementAndGet());
+        check(tasks.get() > 1, "FC1 forward GEMV ran as " + tasks.get() + " task(s)");
+
+        tasks.set(0);
+        Matrix.parallelRows(2048, 128, Matrix.getGemvParallelThreshold(), (start, end) -> tasks.incrementAndGet());
+        check(tasks.get() > 1, "FC1 backward GEMV ran as " + tasks.get() + " task(s)");
+    }
+
+    /**
+     * 並列のGEMV/GEMVᵀは閾値を変えてシングルスレッドにしたものとビット単位で同じ
+     */
+    static void parallelGemvMatchesSequential() {
+        Random rand = new Random(3);
+        int rows = 128;
+        int cols = 2048;
+        double[] a = new double[rows * cols];
+        double[] x = new double[cols];
+        double[] xt = new double[rows];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = rand.nextGaussian();
+        }
+        for (int i = 0; i < cols; i++) {
+            x[i] = rand.nextGaussian();
+        }
+        for (int i = 0; i < rows; i++) {
+            xt[i] = rand.nextGaussian();
+        }
+
+        double[] y = new double[rows];
+        double[] yt = new double[cols];
+        Matrix.gemv(rows, cols, a, 0, cols, x, 0, y, 0);
+        Matrix.gemvT(rows, cols, a, 0, cols, xt, 0, yt, 0);
+
+        long saved = Matrix.getGemvParallelThreshold();
+        double[] ySeq = new double[rows];
+        double[] ytSeq = new double[cols];
+        try {
+            Matrix.setGemvParallelThreshold(Long.MAX_VALUE);
+            Matrix.gemv(rows, cols, a, 0, cols, x, 0, ySeq, 0);
+            Matrix.gemvT(rows, cols, a, 0, cols, xt, 0, ytSeq, 0);
+        } finally {
+            Matrix.setGemvParallelThreshold(saved);
+        }
+        check(Arrays.equals(y, ySeq), "parallel GEMV differs from sequential");
+        check(Arrays.equals(yt, ytSeq), "parallel GEMV^T differs from sequential");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
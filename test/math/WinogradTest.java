@@ -0,0 +1,90 @@
+package math;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * {@link Winograd}を直接計算と比べるテスト
+ * 奇数の大きさとパディング0〜2で、順伝播を{@link ConvolutionOps#convolve3D}、
+ * 入力勾配を{@link ConvolutionOps#convolveBackwardInput}と比べる
+ * （許容値はFLOAT64で1e-12、FLOAT32で1e-4）
+ */
+public class WinogradTest {
+
+    private static final int[][] SHAPES = {
+            // {inChannels, outChannels, height, width}
+            {4, 4, 5, 5},
+            {8, 16, 9, 7},
+            {16, 32, 16, 16},
+    };
+
+    public static void main(String[] args) {
+        matchesDirect(Precision.FLOAT64, 1e-12);
+        matchesDirect(Precision.FLOAT32, 1e-4);
+    }
+
+    static void matchesDirect(Precision precision, double tolerance) {
+        Random rand = new Random(42);
+        for (int[] shape : SHAPES) {
+            for (int padding = 0; padding <= 2; padding++) {
+                double[] errors = maxErrors(precision, shape[0], shape[1], shape[2], shape[3], padding, rand);
+                if (!(errors[0] <= tolerance && errors[1] <= tolerance)) {
+                    throw new AssertionError(precision + " " + Arrays.toString(shape) + " padding " + padding
+                            + ": forward error " + errors[0] + ", backward error " + errors[1]
+                            + " exceed " + tolerance);
+                }
+            }
+        }
+    }
+
+    /**
+     * 1つの形状について順伝播と入力勾配の最大誤差を求める
+     * @return {順伝播の最大誤差, 入力勾配の最大誤差}
+     */
+    private static double[] maxErrors(Precision precision, int inChannels, int outChannels,
+                                      int height, int width, int padding, Random rand) {
+        int batch = 2;
+        DenseTensor input = random(precision, rand, batch, inChannels, height, width);
+        DenseTensor kernels = random(precision, rand, outChannels, inChannels, 3, 3);
+        DenseTensor bias = random(precision, rand, outChannels);
+
+        // 順伝播（基準は画像ごとのconvolve3D）
+        DenseTensor output = Winograd.convolve(input, kernels, bias, padding);
+        double[][][][] k = kernels.toArray4D();
+        double[] b = bias.toArray();
+        double forward = 0.0;
+        for (int n = 0; n < batch; n++) {
+            double[][][] expected = ConvolutionOps.convolve3D(input.slice(n).toArray3D(), k, b, 1, padding);
+            double[][][] actual = output.slice(n).toArray3D();
+            for (int c = 0; c < expected.length; c++) {
+                for (int h = 0; h < expected[c].length; h++) {
+                    for (int w = 0; w < expected[c][h].length; w++) {
+                        forward = Math.max(forward, Math.abs(expected[c][h][w] - actual[c][h][w]));
+                    }
+                }
+            }
+        }
+
+        // 入力勾配
+        DenseTensor gradOutput = random(precision, rand, batch, outChannels, output.dim(2), output.dim(3));
+        DenseTensor expected = ConvolutionOps.convolveBackwardInput(gradOutput, kernels, height, width, 1, padding);
+        int tiles = Winograd.tiles(batch, height, width);
+        DenseTensor gradInput = DenseTensor.zeros(precision, batch, inChannels, height, width);
+        Winograd.backwardInputInto(gradOutput, Winograd.transformFiltersForBackward(kernels), padding,
+                DenseTensor.zeros(precision, 16, outChannels, tiles),
+                DenseTensor.zeros(precision, 16, inChannels, tiles), gradInput);
+        double backward = 0.0;
+        for (int i = 0; i < gradInput.size(); i++) {
+            backward = Math.max(backward, Math.abs(expected.getFlat(i) - gradInput.getFlat(i)));
+        }
+        return new double[]{forward, backward};
+    }
+
+    private static DenseTensor random(Precision precision, Random rand, int... shape) {
+        DenseTensor t = DenseTensor.zeros(precision, shape);
+        for (int i = 0; i < t.size(); i++) {
+            t.setFlat(i, rand.nextDouble() * 2 - 1);
+        }
+        return t;
+    }
+}